@@ -51,7 +51,7 @@ public class ConnectivityMatrix
 
     protected final LWMap map;
     protected final IndexedCountingSet keys;
-    protected final int cx[][];
+    protected final SparseMatrix cx;
     
     protected int scanCount = 0;
     protected int hitCount = 0;
@@ -113,10 +113,130 @@ public class ConnectivityMatrix
         public Iterator<T> iterator()  { return values.iterator(); }
     }
     
+    /**
+     * A sparse int matrix.  Connectivity matricies are almost entirely zeros (a map with n nodes
+     * will rarely have more than a few times n links), so we only store the non-zero cells: in an
+     * open-addressed hash table, keyed by the row and column packed into a single long.  The
+     * non-zero cells can be walked without visiting all n^2 cells: e.g.:
+     * <pre>
+     *     for (int cell = m.nextCell(0); cell >= 0; cell = m.nextCell(cell + 1))
+     *         use(m.rowAt(cell), m.colAt(cell), m.valueAt(cell));
+     * </pre>
+     * Cells set back to zero keep their slot until the table next grows.
+     */
+    protected static final class SparseMatrix {
+        private static final long FREE = -1L;
+        
+        private long[] keys;
+        private int[] values;
+        private int used;
+
+        SparseMatrix(int expectedCells) {
+            int capacity = 16;
+            while (capacity * 3 < expectedCells * 4)
+                capacity <<= 1;
+            alloc(capacity);
+        }
+        
+        SparseMatrix(SparseMatrix copy) {
+            keys = copy.keys.clone();
+            values = copy.values.clone();
+            used = copy.used;
+        }
+
+        private void alloc(int capacity) {
+            keys = new long[capacity];
+            values = new int[capacity];
+            Arrays.fill(keys, FREE);
+            used = 0;
+        }
+
+        private static long key(int row, int col) {
+            return ((long) row << 32) | (col & 0xFFFFFFFFL);
+        }
+        
+        private int slot(long key) {
+            final int mask = keys.length - 1;
+            int h = (int) (key ^ (key >>> 29)) * 0x9E3779B9;
+            h ^= (h >>> 16);
+            h &= mask;
+            while (keys[h] != FREE && keys[h] != key)
+                h = (h + 1) & mask;
+            return h;
+        }
+
+        int get(int row, int col) {
+            final int s = slot(key(row, col));
+            return keys[s] == FREE ? 0 : values[s];
+        }
+
+        void set(int row, int col, int value) {
+            put(key(row, col), value, false);
+        }
+        
+        void add(int row, int col, int delta) {
+            put(key(row, col), delta, true);
+        }
+
+        private void put(long key, int value, boolean add) {
+            int s = slot(key);
+            if (keys[s] == FREE) {
+                if (value == 0)
+                    return;
+                if ((used + 1) * 4 > keys.length * 3) {
+                    rehash(keys.length * 2);
+                    s = slot(key);
+                }
+                keys[s] = key;
+                values[s] = value;
+                used++;
+            } else if (add) {
+                values[s] += value;
+            } else {
+                values[s] = value;
+            }
+        }
+        
+        private void rehash(int capacity) {
+            final long[] oldKeys = keys;
+            final int[] oldValues = values;
+            alloc(capacity);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != FREE && oldValues[i] != 0) {
+                    final int s = slot(oldKeys[i]);
+                    keys[s] = oldKeys[i];
+                    values[s] = oldValues[i];
+                    used++;
+                }
+            }
+        }
+
+        /** @return the first cell at or after the given one with a non-zero value, or -1 if there are no more */
+        int nextCell(int cell) {
+            for (; cell < keys.length; cell++)
+                if (keys[cell] != FREE && values[cell] != 0)
+                    return cell;
+            return -1;
+        }
+        
+        int rowAt(int cell)                 { return (int) (keys[cell] >>> 32); }
+        int colAt(int cell)                 { return (int) keys[cell]; }
+        int valueAt(int cell)               { return values[cell]; }
+        void setValueAt(int cell, int value){ values[cell] = value; }
+
+        /** @return the number of non-zero cells */
+        int count() {
+            int count = 0;
+            for (int cell = nextCell(0); cell >= 0; cell = nextCell(cell + 1))
+                count++;
+            return count;
+        }
+    }
+
     protected ConnectivityMatrix(IndexedCountingSet preComputedSet) {
         this.map = null;
         this.keys = preComputedSet;
-        this.cx = new int[keys.size()][keys.size()];
+        this.cx = new SparseMatrix(keys.size() * 2);
         if (DEBUG.Enabled) Log.debug(this + " created from pre-computed.");
     }
     
@@ -127,17 +247,58 @@ public class ConnectivityMatrix
         final Collection<LWComponent> allInMap = map.getAllDescendents(ChildKind.PROPER);
         
         indexMergeKeys(allInMap);
-        // after adding all keys, we know exactly how big to make the matrix
-        this.cx = new int[keys.size()][keys.size()];
+        this.cx = new SparseMatrix(keys.size() * 2);
         generateMatrix(allInMap);
         if (DEBUG.Enabled) Log.debug(this + " created.");
     }
+
+    /**
+     * Create the matricies for all the given maps.  Each map is independent, so they're built in
+     * parallel.
+     * @return the matricies, in the same order as the maps
+     */
+    public static List<ConnectivityMatrix> createAll(final List<LWMap> maps)
+    {
+        final List<ConnectivityMatrix> matrices = new ArrayList<ConnectivityMatrix>(maps.size());
+        if (maps.size() < 2) {
+            for (LWMap map : maps)
+                matrices.add(new ConnectivityMatrix(map));
+            return matrices;
+        }
+        final int threads = Math.min(maps.size(), Runtime.getRuntime().availableProcessors());
+        final java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(threads);
+        try {
+            final List<java.util.concurrent.Future<ConnectivityMatrix>> results = new ArrayList();
+            for (final LWMap map : maps) {
+                results.add(pool.submit(new java.util.concurrent.Callable<ConnectivityMatrix>() {
+                        public ConnectivityMatrix call() {
+                            return new ConnectivityMatrix(map);
+                        }}));
+            }
+            for (java.util.concurrent.Future<ConnectivityMatrix> result : results)
+                matrices.add(result.get());
+        } catch (java.util.concurrent.ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            pool.shutdown();
+        }
+        return matrices;
+    }
     
     public IndexedCountingSet getKeys() { return keys; }
     public boolean containsKey(String key) { return keys.contains(key); }
     public int size() { return keys.size(); }
     public LWMap getMap() { return map; }
-    public int[][] getMatrix() { return cx; }
+    
+    /** @return a dense copy of the matrix -- note this is size()^2 in memory */
+    public int[][] getMatrix() {
+        final int[][] dense = new int[size()][size()];
+        for (int cell = cx.nextCell(0); cell >= 0; cell = cx.nextCell(cell + 1))
+            dense[cx.rowAt(cell)][cx.colAt(cell)] = cx.valueAt(cell);
+        return dense;
+    }
     
 
     public static final boolean isValidTarget(LWComponent c) {
@@ -191,12 +352,12 @@ public class ConnectivityMatrix
                         final int tailIndex = keys.findIndex(tailKey);
                         
                         if (arrowState == LWLink.ARROW_BOTH || arrowState == LWLink.ARROW_NONE) {
-                            cx[headIndex][tailIndex] = 1;
-                            cx[tailIndex][headIndex] = 1;
+                            cx.set(headIndex, tailIndex, 1);
+                            cx.set(tailIndex, headIndex, 1);
                         } else if (arrowState == LWLink.ARROW_HEAD) {
-                            cx[tailIndex][headIndex] = 1;
+                            cx.set(tailIndex, headIndex, 1);
                         } else if (arrowState == LWLink.ARROW_TAIL) {
-                            cx[headIndex][tailIndex] = 1;
+                            cx.set(headIndex, tailIndex, 1);
                         }
                     } catch (Throwable t) {
                         // Should never happen, but theoretically could get NPE or ArrayOutOfBounds
@@ -210,7 +371,7 @@ public class ConnectivityMatrix
     
     
     public int getConnection(int i, int j) {
-        return cx[i][j];
+        return cx.get(i, j);
     }
     
     /** @return connection value found for these two keys, if any, otherwise 0 */
@@ -218,7 +379,7 @@ public class ConnectivityMatrix
         final int row = keys.findIndex(key1);
         final int col = keys.findIndex(key2);
         if (row >= 0 && col >=0) 
-            return this.cx[row][col];
+            return this.cx.get(row, col);
         else 
             return 0;
     }
@@ -227,7 +388,7 @@ public class ConnectivityMatrix
         final int index1 = keys.findIndex(key1);
         final int index2 = keys.findIndex(key2);
         if (index1 >= 0 && index2 >=0)
-            this.cx[index1][index2] = value;
+            this.cx.set(index1, index2, value);
     }
     
     /**
@@ -238,16 +399,17 @@ public class ConnectivityMatrix
      *
      */
     public boolean compare(ConnectivityMatrix c2) {
-        final int size = size();
-        if(c2.size() != size) 
+        if (c2.size() != size()) 
             return false;
-        for(int i=0;i<size;i++) {
-            for(int j=0;j<size;j++) {
-                if (this.cx[i][j] != c2.cx[i][j])
-                    return false;
-            }
+        // both matricies must have the same non-zero cells: check every one in ours is in theirs,
+        // and that they don't have any more than we do
+        int count = 0;
+        for (int cell = cx.nextCell(0); cell >= 0; cell = cx.nextCell(cell + 1)) {
+            if (c2.cx.get(cx.rowAt(cell), cx.colAt(cell)) != cx.valueAt(cell))
+                return false;
+            count++;
         }
-        return true;
+        return count == c2.cx.count();
     }
 
     // public void store(OutputStream out) {
@@ -288,7 +450,7 @@ public class ConnectivityMatrix
             capacity += size * (maxLeftLen+1);
 
         if (DEBUG.MERGE) {
-            Log.debug("toString:   cx.size=" + cx.length + " (max alloc matrix)");
+            Log.debug("toString:  cx.cells=" + cx.count() + " (non-zero)");
             Log.debug("toString: nodesSeen=" + scanCount); 
             Log.debug("toString: keysFound=" + hitCount);
             Log.debug("toString: keys.size=" + keys.size() + " (unique property values)");
@@ -342,7 +504,7 @@ public class ConnectivityMatrix
             for (int col = 0; col < size; col++) {
                 if (col != 0)
                     b.append(LABELS_TOP_BIG ? TAB : SPACE);
-                final int val = cx[row][col];
+                final int val = cx.get(row, col);
                 if (val == 0)
                     b.append((row==col) ? '0' : '.');
                 else
@@ -355,6 +517,87 @@ public class ConnectivityMatrix
         return b.toString();
     }
     
+    private static long usedMemory() {
+        final Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /**
+     * Benchmark: merge time and heap use of the sparse matricies v.s. the dense int[n][n]
+     * matricies + n^2 aggregation loops they replaced.  args: [nodes-per-map [map-count]]
+     */
+    public static void main(String args[]) throws Exception
+    {
+        DEBUG.Enabled = false;
+        final int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        final int mapCount = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        // maps with mostly overlapping labels, and about two links per node
+        final Random random = new Random(nodes);
+        final List<LWMap> maps = new ArrayList<LWMap>();
+        for (int m = 0; m < mapCount; m++) {
+            final LWMap map = new LWMap("map " + m);
+            final List<LWComponent> mapNodes = new ArrayList<LWComponent>();
+            for (int i = 0; i < nodes; i++)
+                mapNodes.add(new LWNode("concept " + random.nextInt(nodes * 5 / 4)));
+            map.addChildren(mapNodes);
+            final List<LWComponent> links = new ArrayList<LWComponent>();
+            for (int i = 0; i < nodes * 2; i++)
+                links.add(new LWLink(mapNodes.get(random.nextInt(nodes)), mapNodes.get(random.nextInt(nodes))));
+            map.addChildren(links);
+            maps.add(map);
+        }
+
+        long memBase = usedMemory();
+        long t = System.currentTimeMillis();
+        final List<ConnectivityMatrix> matrices = createAll(maps);
+        final VoteAggregate vote = VoteAggregate.create(matrices, 0.5, 0.5);
+        final WeightAggregate weight = WeightAggregate.create(matrices);
+        final long sparseTime = System.currentTimeMillis() - t;
+        final long sparseMem = usedMemory() - memBase;
+        if (vote.size() != weight.size())
+            throw new Error("aggregates differ");
+
+        final int size = weight.size();
+        System.out.format("%d maps of %d nodes, %d merged keys, %d merged links%n", mapCount, nodes, size, weight.cx.count());
+        System.out.format("sparse: %6dms %8.1fMB%n", sparseTime, sparseMem / 1048576.0);
+
+        // the dense version, as it was before
+        memBase = usedMemory();
+        t = System.currentTimeMillis();
+        try {
+            final List<int[][]> dense = new ArrayList<int[][]>();
+            for (ConnectivityMatrix matrix : matrices)
+                dense.add(matrix.getMatrix());
+            final int[][] denseWeight = new int[size][size];
+            for (int m = 0; m < dense.size(); m++) {
+                final int[][] in = dense.get(m);
+                final ConnectivityMatrix matrix = matrices.get(m);
+                for (int i = 0; i < in.length; i++)
+                    for (int j = 0; j < in.length; j++)
+                        if (in[i][j] != 0)
+                            denseWeight[weight.keys.indexOf(matrix.keys.get(i))][weight.keys.indexOf(matrix.keys.get(j))] += in[i][j];
+            }
+            final int[][] denseVote = new int[size][size];
+            for (int i = 0; i < size; i++)
+                for (int j = 0; j < size; j++)
+                    denseVote[i][j] = denseWeight[i][j] > 0 && denseWeight[i][j] >= (int) (0.5 * mapCount) ? 1 : 0;
+            final long denseTime = System.currentTimeMillis() - t;
+            final long denseMem = usedMemory() - memBase;
+            System.out.format(" dense: %6dms %8.1fMB (%d+2 matricies)%n", denseTime, denseMem / 1048576.0, dense.size());
+
+            boolean same = true;
+            for (int i = 0; i < size && same; i++)
+                for (int j = 0; j < size && same; j++)
+                    same = denseWeight[i][j] == weight.getConnection(i, j) && denseVote[i][j] == vote.getConnection(i, j);
+            System.out.println("same results for " + maps.size() + " maps: " + same);
+        } catch (OutOfMemoryError e) {
+            System.out.format(" dense: out of memory after %dms%n", System.currentTimeMillis() - t);
+        }
+    }
+    
     public static final Object getMergeKey(LWComponent node) {
         // Log.debug("getMergeKey: " + Util.getMergeKey(node));
         return Util.getMergeProperty(node);
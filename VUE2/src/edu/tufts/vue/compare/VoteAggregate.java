@@ -37,7 +37,7 @@ public class VoteAggregate extends WeightAggregate
     private final int aggregateLinkThreshold;
     private final int aggregateNodeThreshold;
 
-    protected final int[][] linkCounts;
+    protected final SparseMatrix linkCounts;
     
     public static VoteAggregate create(List<ConnectivityMatrix> matrices, double nodeThresh, double linkThresh) {
         final IndexedCountingSet preComputed = new IndexedCountingSet();
@@ -51,7 +51,7 @@ public class VoteAggregate extends WeightAggregate
     private VoteAggregate(IndexedCountingSet preComputed, List<ConnectivityMatrix> matrices, double nodePercent, double linkPercent) {
         super(preComputed, matrices);
         // WeightAggregate superclass will have merged in all the matrices to produce counts: we save them here
-        this.linkCounts = super.cx.clone();  // computeLinkVotes is about to write all over super.cx
+        this.linkCounts = new SparseMatrix(super.cx);  // computeLinkVotes is about to write all over super.cx
         this.nodePercentMaps = nodePercent;
         this.linkPercentMaps = linkPercent;
         final double nodeThresh = nodePercent * (double) matrices.size();
@@ -67,8 +67,6 @@ public class VoteAggregate extends WeightAggregate
     
     private void computeLinkVotes()
     {
-        final int size = super.size();
-
         // This will collapse the connection count values (in super.cx) from their counts down to a
         // 0 or 1, depending on if the vote passed (the count was at or over the threshold).
 
@@ -77,13 +75,14 @@ public class VoteAggregate extends WeightAggregate
         // "vote", which is: x > 0 && x >= (final int this.aggregateLinkThreshold) ?  In both
         // cases, we still need to hash two strings to indicies first, then do the 2d-array access.
 
-        for (int i = 0; i < size; i++) {
-            for (int j = 0; j < size; j++) {
-                if (super.cx[i][j] > 0 && super.cx[i][j] >= aggregateLinkThreshold)
-                    super.cx[i][j] = POSITIVE_VOTE;
-                else
-                    super.cx[i][j] = NEGATIVE_VOTE;
-            }
+        // Only the non-zero cells need visiting: a zero count is already a NEGATIVE_VOTE.
+
+        for (int cell = cx.nextCell(0); cell >= 0; cell = cx.nextCell(cell + 1)) {
+            final int count = cx.valueAt(cell);
+            if (count > 0 && count >= aggregateLinkThreshold)
+                cx.setValueAt(cell, POSITIVE_VOTE);
+            else
+                cx.setValueAt(cell, NEGATIVE_VOTE);
         }
     }
     
@@ -103,9 +102,9 @@ public class VoteAggregate extends WeightAggregate
         if (ihead < 0 || itail < 0)
             return false;
         
-        if (super.cx[ihead][itail] > 0) {
+        if (super.cx.get(ihead, itail) > 0) {
             // reverse the index order and consume the opposite direction link vote
-            super.cx[itail][ihead] = 0;
+            super.cx.set(itail, ihead, 0);
             return true;
         } else {
             return false;
@@ -121,7 +120,7 @@ public class VoteAggregate extends WeightAggregate
         final int headIndex = keys.findIndex(headKey);
         final int tailIndex = keys.findIndex(tailKey);
         if (headIndex >= 0 && tailIndex >= 0)
-            return linkCounts[headIndex][tailIndex];
+            return linkCounts.get(headIndex, tailIndex);
         else
             return 0;
     }
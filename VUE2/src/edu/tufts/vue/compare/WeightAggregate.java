@@ -52,18 +52,17 @@ public class WeightAggregate extends ConnectivityMatrix
      */
     private void mergeInConnectionValues(final ConnectivityMatrix input) {
         Log.info("mergeIn " + input);
+        // translate each input index to our index just once
         final int inSize = input.size();
-        for (int index1 = 0; index1 < inSize; index1++) {
-            for (int index2 = 0; index2 < inSize; index2++) {
-                final int connection = input.cx[index1][index2];
-                if (connection != 0) {
-                    final Object key1 = input.keys.get(index1);
-                    final Object key2 = input.keys.get(index2);
-                    this.cx[this.keys.indexOf(key1)]
-                           [this.keys.indexOf(key2)] += connection;
-                    // Log.debug("merged " + connection + " for " + key1 + "," + key2);
-                }
-            }
+        final int[] toIndex = new int[inSize];
+        for (int i = 0; i < inSize; i++)
+            toIndex[i] = this.keys.indexOf(input.keys.get(i));
+        
+        final SparseMatrix in = input.cx;
+        for (int cell = in.nextCell(0); cell >= 0; cell = in.nextCell(cell + 1)) {
+            this.cx.add(toIndex[in.rowAt(cell)],
+                        toIndex[in.colAt(cell)],
+                        in.valueAt(cell));
         }
     }
     
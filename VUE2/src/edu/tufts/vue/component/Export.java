@@ -76,7 +76,7 @@ public class Export {
     */
 	public void createPNG(String  mapFile, String outputFile) throws Exception { 
 		LWMap map = OpenAction.loadMap(mapFile);
-		ImageConversion.convert(map.getAsImage(), new File(outputFile), ImageConversion.PNG);
+		ImageConversion.createActiveMapPng(new File(outputFile), map, 1.0);
 	}
 	
 	/** A method that creates a SVG from map file. T 
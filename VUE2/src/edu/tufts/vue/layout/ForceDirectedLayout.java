@@ -0,0 +1,429 @@
+/*
+ * ForceDirectedLayout.java
+ *
+* Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package edu.tufts.vue.layout;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.awt.geom.Rectangle2D;
+import tufts.vue.*;
+import edu.tufts.vue.dataset.*;
+
+/**
+ * A force-directed (spring-embedder) layout of the selected nodes.  Every pair of nodes repels
+ * each other, and every link between two selected nodes acts as a spring pulling it's endpoints
+ * together, with a weak gravity toward the middle to keep unconnected groups from drifting off.
+ *
+ * Repulsion is computed with the Barnes-Hut approximation: a quad-tree is built over the node
+ * positions each iteration, and distant cells of the tree are treated as a single mass at their
+ * center, making each iteration O(n log n) instead of O(n^2).  The force accumulation is split
+ * across a pool of threads.  Distances are measured between node edges, using each node's real
+ * size, so large nodes get more room.
+ *
+ * The layout is animated: the selection is updated every few iterations and the active viewer
+ * repainted.  As the UndoManager compresses repeated location changes to a component, the whole
+ * layout is still a single undoable action.
+ */
+public class ForceDirectedLayout extends Layout {
+
+    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(ForceDirectedLayout.class);
+
+    /** Barnes-Hut accuracy: cells smaller than THETA * their distance are approximated */
+    private static final double THETA = 0.9;
+    private static final int ITERATIONS = 300;
+    private static final double GRAVITY = 0.5;
+    /** minimum time between animation frames */
+    private static final long FRAME_MILLIS = 40;
+    /** don't bother splitting the work up if there are fewer than this many nodes */
+    private static final int MIN_PARALLEL = 500;
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    private static ExecutorService Pool;
+
+    /** Creates a new instance of ForceDirectedLayout */
+    public ForceDirectedLayout() {
+    }
+
+    public LWMap createMap(Dataset ds, String mapName) throws Exception {
+        LWMap map = new LWMap(mapName);
+        return map;
+    }
+
+    private static synchronized ExecutorService getPool() {
+        if (Pool == null) {
+            Pool = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                    private int count;
+                    public Thread newThread(Runnable r) {
+                        final Thread t = new Thread(r, "ForceDirectedLayout-" + (++count));
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+        return Pool;
+    }
+
+    public void layout(LWSelection selection) throws Exception {
+
+        final List<LWComponent> nodes = new ArrayList<LWComponent>();
+        for (LWComponent c : selection) {
+            if (c instanceof LWLink || c.isManagedLocation())
+                continue;
+            nodes.add(c);
+        }
+        if (nodes.size() < 2)
+            return;
+
+        final long start = System.currentTimeMillis();
+        final Simulation sim = new Simulation(nodes);
+
+        final MapViewer viewer = javax.swing.SwingUtilities.isEventDispatchThread() ? VUE.getActiveViewer() : null;
+        long lastFrame = System.currentTimeMillis();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            sim.step(1.0 - (double) i / ITERATIONS);
+            if (viewer != null && System.currentTimeMillis() - lastFrame > FRAME_MILLIS) {
+                sim.apply();
+                viewer.paintImmediately(viewer.getVisibleRect());
+                lastFrame = System.currentTimeMillis();
+            }
+        }
+        sim.apply();
+
+        if (DEBUG.Enabled) Log.debug("laid out " + nodes.size() + " nodes, " + sim.linkCount + " links in "
+                                     + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /** the layout state, kept in flat arrays indexed by node */
+    private static final class Simulation {
+
+        final List<LWComponent> nodes;
+        final int n;
+        /** node centers */
+        final double[] x, y;
+        /** node "radius": half the larger side of the node */
+        final double[] radius;
+        /** per-iteration displacements */
+        final double[] dx, dy;
+        /** link endpoints, as node indices */
+        final int[] head, tail;
+        final int linkCount;
+        /** the ideal gap between linked nodes */
+        final double k;
+        final double minX, minY;
+
+        final QuadTree tree;
+
+        Simulation(List<LWComponent> nodes) {
+            this.nodes = nodes;
+            n = nodes.size();
+            x = new double[n];
+            y = new double[n];
+            radius = new double[n];
+            dx = new double[n];
+            dy = new double[n];
+
+            final Map<LWComponent,Integer> index = new HashMap<LWComponent,Integer>(n * 2);
+            double sizes = 0, left = Double.MAX_VALUE, top = Double.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+                final LWComponent c = nodes.get(i);
+                final Rectangle2D.Float r = c.getMapBounds();
+                x[i] = r.getCenterX();
+                y[i] = r.getCenterY();
+                radius[i] = Math.max(r.width, r.height) / 2;
+                sizes += radius[i] * 2;
+                left = Math.min(left, r.x);
+                top = Math.min(top, r.y);
+                index.put(c, i);
+            }
+            minX = left;
+            minY = top;
+            k = Math.max(X_SPACING, Y_SPACING) + sizes / n / 2;
+
+            // Only links between two nodes in the selection count: we find them via each
+            // node's own link list rather than scanning the whole map.
+            final Set<LWLink> links = new LinkedHashSet<LWLink>();
+            for (LWComponent c : nodes)
+                links.addAll(c.getLinks());
+            final int[] h = new int[links.size()], t = new int[links.size()];
+            int count = 0;
+            for (LWLink link : links) {
+                final Integer hi = index.get(link.getHead());
+                final Integer ti = index.get(link.getTail());
+                if (hi == null || ti == null || hi.intValue() == ti.intValue())
+                    continue;
+                h[count] = hi;
+                t[count] = ti;
+                count++;
+            }
+            head = h;
+            tail = t;
+            linkCount = count;
+
+            // Nodes on top of each other have no direction to be pushed in, and nodes
+            // in a line (e.g., a data list) could only be pushed along that line: jiggle
+            // everything a bit.
+            final Random random = new Random(n);
+            for (int i = 0; i < n; i++) {
+                x[i] += (random.nextDouble() - 0.5) * k;
+                y[i] += (random.nextDouble() - 0.5) * k;
+            }
+
+            tree = new QuadTree(n);
+        }
+
+        /** @param heat 1.0 on the first iteration, cooling toward 0 on the last */
+        void step(double heat) {
+
+            tree.build(x, y, n);
+
+            if (n < MIN_PARALLEL) {
+                repel(0, n);
+            } else {
+                final int chunks = THREADS * 4;
+                final int chunkSize = (n + chunks - 1) / chunks;
+                final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(chunks);
+                for (int lo = 0; lo < n; lo += chunkSize) {
+                    final int from = lo, to = Math.min(n, lo + chunkSize);
+                    tasks.add(new Callable<Object>() {
+                            public Object call() {
+                                repel(from, to);
+                                return null;
+                            }});
+                }
+                try {
+                    for (Future<Object> f : getPool().invokeAll(tasks))
+                        f.get();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            // springs
+            for (int l = 0; l < linkCount; l++) {
+                final int a = head[l], b = tail[l];
+                final double vx = x[b] - x[a], vy = y[b] - y[a];
+                final double dist = Math.sqrt(vx * vx + vy * vy);
+                if (dist == 0)
+                    continue;
+                final double gap = Math.max(0, dist - radius[a] - radius[b]);
+                final double f = gap * gap / k / dist;
+                dx[a] += vx * f;
+                dy[a] += vy * f;
+                dx[b] -= vx * f;
+                dy[b] -= vy * f;
+            }
+
+            // gravity toward the center of mass, and move each node by at most the current temperature
+            final double gx = tree.comX[0], gy = tree.comY[0];
+            final double temperature = k * (0.05 + heat * heat * Math.sqrt(n));
+            for (int i = 0; i < n; i++) {
+                dx[i] += (gx - x[i]) * GRAVITY;
+                dy[i] += (gy - y[i]) * GRAVITY;
+                final double len = Math.sqrt(dx[i] * dx[i] + dy[i] * dy[i]);
+                if (len > 0) {
+                    final double move = Math.min(len, temperature) / len;
+                    x[i] += dx[i] * move;
+                    y[i] += dy[i] * move;
+                }
+            }
+        }
+
+        /** compute the repulsion on nodes from (inclusive) through to (exclusive) into dx/dy */
+        void repel(int from, int to) {
+            final int[] stack = new int[64 * 4];
+            final double k2 = k * k;
+            for (int i = from; i < to; i++) {
+                final double xi = x[i], yi = y[i], ri = radius[i];
+                double fx = 0, fy = 0;
+                int sp = 0;
+                stack[sp++] = 0;
+                while (sp > 0) {
+                    final int cell = stack[--sp];
+                    final double vx = xi - tree.comX[cell], vy = yi - tree.comY[cell];
+                    final double dist2 = vx * vx + vy * vy;
+                    if (tree.isLeaf(cell)) {
+                        for (int b = tree.first[cell], end = tree.last[cell]; b < end; b++) {
+                            final int j = tree.order[b];
+                            if (j == i)
+                                continue;
+                            final double ux = xi - x[j], uy = yi - y[j];
+                            final double dist = Math.sqrt(ux * ux + uy * uy);
+                            if (dist == 0)
+                                continue;
+                            final double gap = Math.max(dist - ri - radius[j], k * 0.01);
+                            final double f = k2 / gap / dist;
+                            fx += ux * f;
+                            fy += uy * f;
+                        }
+                    } else if (tree.size[cell] * tree.size[cell] < THETA * THETA * dist2) {
+                        final double dist = Math.sqrt(dist2);
+                        final double f = tree.mass[cell] * k2 / Math.max(dist - ri, k * 0.01) / dist;
+                        fx += vx * f;
+                        fy += vy * f;
+                    } else {
+                        for (int q = 0; q < 4; q++) {
+                            final int child = tree.child[cell * 4 + q];
+                            if (child > 0)
+                                stack[sp++] = child;
+                        }
+                    }
+                }
+                dx[i] = fx;
+                dy[i] = fy;
+            }
+        }
+
+        /** move the nodes to the current layout, keeping the top-left of the selection where it was */
+        void apply() {
+            double left = Double.MAX_VALUE, top = Double.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+                left = Math.min(left, x[i] - nodes.get(i).getMapWidth() / 2);
+                top = Math.min(top, y[i] - nodes.get(i).getMapHeight() / 2);
+            }
+            final double offX = minX - left, offY = minY - top;
+            for (int i = 0; i < n; i++)
+                nodes.get(i).setCenterAt(x[i] + offX, y[i] + offY);
+        }
+    }
+
+    /**
+     * A point-region quad-tree, rebuilt each iteration.  Cells are kept in flat arrays, with
+     * cell 0 as the root.  Each leaf holds a range of the node indices in "order", which is
+     * partitioned in place as the tree is built.  Nodes that fall into a cell smaller than
+     * MIN_SIZE stay together in one leaf.
+     */
+    private static final class QuadTree {
+        private static final int LEAF_SIZE = 1;
+        private static final double MIN_SIZE = 1e-3;
+
+        final int[] order;
+        int cells;
+        int[] child = new int[0];
+        int[] first = new int[0], last = new int[0];
+        double[] comX = new double[0], comY = new double[0], mass = new double[0], size = new double[0];
+
+        private double[] x, y;
+
+        QuadTree(int n) {
+            order = new int[n];
+            ensureCapacity(n * 2 + 1);
+        }
+
+        boolean isLeaf(int cell) {
+            return first[cell] >= 0;
+        }
+
+        void build(double[] x, double[] y, int n) {
+            this.x = x;
+            this.y = y;
+            double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+                order[i] = i;
+                minX = Math.min(minX, x[i]);
+                minY = Math.min(minY, y[i]);
+                maxX = Math.max(maxX, x[i]);
+                maxY = Math.max(maxY, y[i]);
+            }
+            cells = 0;
+            build(newCell(), 0, n, minX, minY, Math.max(maxX - minX, maxY - minY), 0);
+        }
+
+        private int newCell() {
+            if (cells == size.length)
+                ensureCapacity(cells * 2);
+            return cells++;
+        }
+
+        private void ensureCapacity(int capacity) {
+            child = grow(child, capacity * 4);
+            first = grow(first, capacity);
+            last = grow(last, capacity);
+            comX = grow(comX, capacity);
+            comY = grow(comY, capacity);
+            mass = grow(mass, capacity);
+            size = grow(size, capacity);
+        }
+
+        private static int[] grow(int[] a, int length) {
+            final int[] grown = new int[length];
+            System.arraycopy(a, 0, grown, 0, a.length);
+            return grown;
+        }
+        
+        private static double[] grow(double[] a, int length) {
+            final double[] grown = new double[length];
+            System.arraycopy(a, 0, grown, 0, a.length);
+            return grown;
+        }
+
+        /** build the cell for order[lo..hi), with the given bounding square */
+        private void build(int cell, int lo, int hi, double left, double top, double side, int depth) {
+            double cx = 0, cy = 0;
+            for (int b = lo; b < hi; b++) {
+                cx += x[order[b]];
+                cy += y[order[b]];
+            }
+            comX[cell] = cx / (hi - lo);
+            comY[cell] = cy / (hi - lo);
+            mass[cell] = hi - lo;
+            size[cell] = side;
+
+            if (hi - lo <= LEAF_SIZE || side < MIN_SIZE || depth >= 60) {
+                first[cell] = lo;
+                last[cell] = hi;
+                return;
+            }
+            first[cell] = -1;
+
+            // partition into the four quadrants: first by y, then each half by x
+            final double midX = left + side / 2, midY = top + side / 2;
+            final int splitY = partition(lo, hi, y, midY);
+            final int splitX0 = partition(lo, splitY, x, midX);
+            final int splitX1 = partition(splitY, hi, x, midX);
+            final int[] bounds = { lo, splitX0, splitY, splitX1, hi };
+            for (int q = 0; q < 4; q++) {
+                // child indices are filled in after the recursive build, as newCell may grow the arrays
+                int c = 0;
+                if (bounds[q + 1] > bounds[q]) {
+                    c = newCell();
+                    build(c, bounds[q], bounds[q + 1],
+                          (q & 1) == 0 ? left : midX,
+                          (q & 2) == 0 ? top : midY,
+                          side / 2, depth + 1);
+                }
+                child[cell * 4 + q] = c;
+            }
+        }
+
+        /** partition order[lo..hi) so those with v < mid come first: @return the index of the first >= mid */
+        private int partition(int lo, int hi, double[] v, double mid) {
+            int i = lo, j = hi - 1;
+            while (i <= j) {
+                if (v[order[i]] < mid) {
+                    i++;
+                } else {
+                    final int t = order[i];
+                    order[i] = order[j];
+                    order[j] = t;
+                    j--;
+                }
+            }
+            return i;
+        }
+    }
+}
@@ -373,6 +373,8 @@ public class SearchAction extends AbstractAction
             if (DEBUG.SEARCH) Log.debug("found valid cached index " + Util.tags(cache));
             index = cache.index;
         } else {
+            if (cache != null)
+                cache.dispose();
             if (DEBUG.SEARCH || DEBUG.RDF) {
                 if (cache != null) Log.debug("saw cached index " + Util.tags(cache) + "; but was invalid");
                 Log.debug("indexing " + map + "...");
@@ -397,19 +399,22 @@ public class SearchAction extends AbstractAction
         return index;
     }
 
+    /** a map's index, kept current with changes to the map by an RDFIndex.Maintainer */
     private static class CachedIndex {
         final RDFIndex index;
-        final LWMap map;
-        final long mapChangeStateAtIndex;
+        final RDFIndex.Maintainer maintainer;
         final boolean indexHad_LWC_fields;
         CachedIndex(RDFIndex i, LWMap m, boolean didIndex_LWC_fields) {
             index = i;
-            map = m;
-            mapChangeStateAtIndex = map.getChangeState();
             indexHad_LWC_fields = didIndex_LWC_fields;
+            maintainer = new RDFIndex.Maintainer(i, m, !didIndex_LWC_fields);
         }
+        /** @return true if the index is of the wanted type, and could be brought up to date with the map */
         boolean isStillValid(boolean want_LWC_fields) {
-            return map.getChangeState() == mapChangeStateAtIndex && indexHad_LWC_fields == want_LWC_fields;
+            return indexHad_LWC_fields == want_LWC_fields && maintainer.update();
+        }
+        void dispose() {
+            maintainer.dispose();
         }
     }
 
@@ -21,6 +21,7 @@ import java.net.*;
 
 import tufts.vue.DEBUG;
 import tufts.vue.LWComponent;
+import tufts.vue.LWKey;
 import tufts.vue.LWPathway;
 import tufts.vue.LWMap;
 import tufts.vue.LWSlide;
@@ -116,11 +117,19 @@ public class RDFIndex extends com.hp.hpl.jena.rdf.model.impl.ModelCom
      * in which case it will contain the merged URI's from all maps */
     private final Map<URI,LWComponent> vueComponentMap = new HashMap();
 
+    /** inverted index of all literal values in the model, for searchAllValues */
+    private final ValueIndex valueIndex = new ValueIndex();
+
+    /** false if statements may have entered the model without going through addStatement/addProperty
+     * (e.g., a read from a file), in which case the valueIndex can't be trusted */
+    private boolean valuesIndexed = true;
+
     /** a general default index -- available but unused feature up through summer 2012 */
     private static RDFIndex defaultIndex;
     
     public RDFIndex(com.hp.hpl.jena.graph.Graph base) {
         super(base);
+        valuesIndexed = (base.size() == 0);
         Log.info("instanced from " + tufts.Util.tags(base)); // are we using this case?
     }
 
@@ -147,6 +156,8 @@ public class RDFIndex extends com.hp.hpl.jena.rdf.model.impl.ModelCom
     public void addMapIndex(RDFIndex mapIndex) {
         vueComponentMap.putAll(mapIndex.vueComponentMap);
         super.add(mapIndex);
+        valueIndex.addAll(mapIndex.valueIndex);
+        valuesIndexed &= mapIndex.valuesIndexed;
     }
     
     public void indexMap(LWMap map) {
@@ -224,6 +235,197 @@ public class RDFIndex extends com.hp.hpl.jena.rdf.model.impl.ModelCom
         if(DEBUG.RDF) Log.debug("index: done -- size="+this.size());
     }
 
+
+    /** @return true if the given component would be included by indexAdd(LWMap) */
+    private static boolean isIndexable(LWComponent c) {
+        if (c instanceof LWPathway || c instanceof LWMap.Layer || c instanceof LWMap)
+            return false;
+        if (!INDEX_SLIDES && (c instanceof LWSlide || c.getAncestorOfType(LWSlide.class) != null))
+            return false;
+        return true;
+    }
+
+    /**
+     * Index (or re-index) a single component from the given map, replacing anything
+     * already in the index for it.
+     */
+    public void indexComponent(final LWMap map, final LWComponent c, final boolean metadataOnly)
+    {
+        final com.hp.hpl.jena.rdf.model.Resource r = createResource(c.getURI().toString());
+        removeAll(r, null, null);
+        try {
+            load_VUE_component_to_RDF_index(c, createResource(map.getURI().toString()), !metadataOnly);
+        } catch (Throwable t) {
+            Log.warn("indexing VUE component " + c, t);
+        }
+    }
+
+    /** remove everything in the index for the given component */
+    public void unindexComponent(final LWComponent c)
+    {
+        final URI uri = c.getURI();
+        removeAll(createResource(uri.toString()), null, null);
+        vueComponentMap.remove(uri);
+    }
+
+    /** re-index the properties of the map itself (e.g., after it's label has changed) */
+    private void indexMapProperties(final LWMap map)
+    {
+        final com.hp.hpl.jena.rdf.model.Resource mapRoot = createResource(map.getURI().toString());
+        removeAll(mapRoot, labelOf, null);
+        if (map.hasLabel())
+            addProperty(mapRoot, labelOf, map.getLabel());
+    }
+
+    /**
+     * Keeps the RDFIndex for a map current by listening to the map and recording the
+     * components that are added, removed, or changed.  Those changes are applied to the
+     * index the next time it's needed via update(), instead of re-indexing the whole map.
+     *
+     * Changes that come through without a component event (e.g., LWMap.markAsModified
+     * after an un-announced meta-data edit) can't be tracked.  To detect them, we count the
+     * events that LWMap counts toward it's change state: if the map's change state ever
+     * gets ahead of that, update() reports the index as stale.  We take event batches whole,
+     * as they carry that count for all the events that went into them, including any the
+     * batch coalesced away.
+     */
+    public static final class Maintainer implements LWComponent.BatchListener
+    {
+        private final RDFIndex index;
+        private final LWMap map;
+        private final boolean metadataOnly;
+
+        /** component -> TRUE if it needs (re)indexing, FALSE if it needs removing from the index */
+        private final Map<LWComponent,Boolean> pending = new LinkedHashMap();
+        /** the map change state accounted for by the index plus pending changes */
+        private long changeState;
+        private boolean mapPropertiesChanged;
+        private boolean stale;
+
+        /** @param index must already contain the current content of map */
+        public Maintainer(RDFIndex index, LWMap map, boolean metadataOnly) {
+            this.index = index;
+            this.map = map;
+            this.metadataOnly = metadataOnly;
+            this.changeState = map.getChangeState();
+            map.addLWCListener(this);
+        }
+
+        public RDFIndex getIndex() {
+            return index;
+        }
+
+        public synchronized void LWCChanged(tufts.vue.LWCEvent e) {
+
+            if (e.isBatch()) {
+                changeState += e.getBatchedChangeCount();
+                if (!stale)
+                    for (tufts.vue.LWCEvent batched : e.getBatchedEvents())
+                        record(batched);
+                return;
+            }
+
+            if (e.isUndoable() && javax.swing.SwingUtilities.isEventDispatchThread())
+                changeState++; // see LWMap.markChange
+
+            if (!stale)
+                record(e);
+        }
+
+        /** note what the given event may have changed in the index */
+        private void record(tufts.vue.LWCEvent e) {
+
+            final Object key = e.key;
+
+            if (key == LWKey.ChildrenAdded || key == LWKey.ChildrenRemoved) {
+                final Boolean present = Boolean.valueOf(key == LWKey.ChildrenAdded);
+                final List<LWComponent> list = e.getComponents();
+                if (list != null) {
+                    for (LWComponent c : list) {
+                        record(c, present);
+                        if (c.hasChildren()) {
+                            for (LWComponent d : c.getAllDescendents())
+                                record(d, present);
+                        }
+                    }
+                }
+                return;
+            }
+
+            if (key == LWKey.UserActionCompleted
+                || key == LWKey.Location
+                || key == LWKey.Size
+                || key == LWKey.Frame
+                || key == LWKey.Scale
+                || key == LWKey.Hidden
+                || key == LWKey.Filtered
+                || key == LWKey.Created
+                || key == LWKey.Deleting
+                || key == LWKey.LinkAdded
+                || key == LWKey.LinkRemoved
+                || (key instanceof String && (((String)key).startsWith("hier.") || ((String)key).startsWith("repaint"))))
+                return; // nothing we index can have changed
+            
+            final List<LWComponent> list = e.getComponents();
+
+            if (list != null) {
+                for (LWComponent changed : list)
+                    record(changed, Boolean.TRUE);
+                return;
+            }
+            
+            final LWComponent c = e.getComponent();
+
+            if (c == map) {
+                if (key == LWKey.Label)
+                    mapPropertiesChanged = true;
+                else if (key == LWKey.MetaData)
+                    stale = true; // a meta-data change to the selection: we don't know what changed
+            } else if (c != null) {
+                record(c, Boolean.TRUE);
+            }
+        }
+
+        private void record(LWComponent c, Boolean present) {
+            if (isIndexable(c))
+                pending.put(c, present);
+        }
+
+        /**
+         * Apply all changes seen to the index.
+         * @return false if the index is stale and can't be brought current
+         */
+        public synchronized boolean update() {
+
+            if (stale || changeState != map.getChangeState()) {
+                if (DEBUG.SEARCH || DEBUG.RDF) Log.debug("index is stale: " + map
+                                                         + "; state=" + map.getChangeState() + "; tracked=" + changeState);
+                stale = true;
+                return false;
+            }
+
+            if (pending.size() > 0 || mapPropertiesChanged) {
+                if (DEBUG.SEARCH || DEBUG.RDF) Log.debug("applying " + pending.size() + " changes to index for " + map);
+                for (Map.Entry<LWComponent,Boolean> e : pending.entrySet()) {
+                    if (e.getValue())
+                        index.indexComponent(map, e.getKey(), metadataOnly);
+                    else
+                        index.unindexComponent(e.getKey());
+                }
+                pending.clear();
+                if (mapPropertiesChanged) {
+                    index.indexMapProperties(map);
+                    mapPropertiesChanged = false;
+                }
+            }
+            return true;
+        }
+
+        /** stop tracking changes to the map */
+        public void dispose() {
+            map.removeLWCListener(this);
+        }
+    }
     
     public Collection<URI> searchWithSPARQL(final String queryString)
     {
@@ -317,16 +519,37 @@ public class RDFIndex extends com.hp.hpl.jena.rdf.model.impl.ModelCom
     // private static final String DefaultVueQuery =
     //       "PREFIX vue: <"+VUE_ONTOLOGY+"> SELECT ?resource ?keyword WHERE { ?resource ?x ?keyword }";
     
-    /** General search: search all values, ignoring keywords (a.k.a: search the values for every and any key) */
+    /**
+     * General search: search all values, ignoring keywords (a.k.a: search the values for every
+     * and any key).  This is a plain case-insensitive substring match, answered from our inverted
+     * value index, so it's fast enough to run on every keystroke even for large maps.
+     */
     public Collection<URI> searchAllValues(String substring)
     {
         if (DEBUG.SEARCH || DEBUG.RDF) Log.debug("searchAllValues:   " + Util.tags(substring));
 
+        if (!valuesIndexed)
+            return searchAllValuesWithSPARQL(substring);
+
+        return valueIndex.findSubjects(substring);
+    }
+
+    /** The full-scan version of searchAllValues: runs a regex filter against every value in the model. */
+    private Collection<URI> searchAllValuesWithSPARQL(String substring)
+    {
+        // The substring is quoted so any regex meta-characters in it are matched literally,
+        // then escaped for use inside a SPARQL string.
+        final String regex = java.util.regex.Pattern.quote(substring)
+            .replace("\\", "\\\\")
+            .replace("\"", "\\\"")
+            .replace("\n", "\\n")
+            .replace("\r", "\\r");
+
         // Newlines for diagnostic readability
         // This would be a the same as what we'd get from a single-criteria edu.tufts.vue.rdf.Query that had
         // not specific property it was looking for (just a value), if Query supported that.
         final String genericSubstringQuery =
-            "PREFIX vue: <"+VUE_ONTOLOGY+">\n SELECT ?rid ?key ?val WHERE {\n\t?rid ?key ?val FILTER regex(?val, \""+substring+ "\", \"i\")\n}";
+            "PREFIX vue: <"+VUE_ONTOLOGY+">\n SELECT ?rid ?key ?val WHERE {\n\t?rid ?key ?val FILTER regex(?val, \""+regex+ "\", \"i\")\n}";
 
         // Note: the WHERE cause is what assigns local variable names to WHATEVER is in the RDF store
         // tuples -- e.g., we have the Jena Resource URI at position 0, the keyword/Jena Property at position 1, and
@@ -334,10 +557,149 @@ public class RDFIndex extends com.hp.hpl.jena.rdf.model.impl.ModelCom
         // Note that we can order the results in the QuerySolution by differing the order
         // in the SELECT from the order in the WHERE.
         
-        //if (DEBUG.SEARCH) Log.debug("searchAllResources " + Util.tags(keyword) + "  " + queryString);
-        //return searchWithSPARQL(substring, genericSubstringQuery);
         return searchWithSPARQL(genericSubstringQuery);
     }
+
+    /**
+     * An inverted index of literal values: value trigrams -> distinct (lower-cased) values -> the
+     * subjects that have them.  A substring search only needs to verify the values posted under
+     * the rarest trigram of the search string, instead of every value in the model.  Searches
+     * shorter than a trigram just scan the distinct values.
+     */
+    private static final class ValueIndex
+    {
+        private static final int GRAM = 3;
+
+        private static final class Value {
+            final String text;
+            /** subject -> number of statements it has with this value */
+            final Map<Subject,Integer> subjects = new HashMap<Subject,Integer>(4);
+            Value(String text) { this.text = text; }
+        }
+
+        private static final class Posting {
+            final String property;
+            final Value value;
+            Posting(String property, Value value) { this.property = property; this.value = value; }
+        }
+
+        private static final class Subject {
+            final String name;
+            /** everything indexed for this subject, so it can be removed again */
+            final List<Posting> postings = new ArrayList<Posting>(4);
+            private URI uri;
+            Subject(String name) { this.name = name; }
+            /** parsing URI's is costly compared to the search itself, so we only do it once */
+            URI getURI() throws URISyntaxException {
+                if (uri == null)
+                    uri = new URI(name);
+                return uri;
+            }
+        }
+
+        private final Map<String,Value> values = new HashMap<String,Value>();
+        private final Map<String,Set<Value>> grams = new HashMap<String,Set<Value>>();
+        private final Map<String,Subject> subjects = new HashMap<String,Subject>();
+
+        void add(String subjectName, String property, String literal) {
+            final String text = literal.toLowerCase();
+            Value value = values.get(text);
+            if (value == null) {
+                value = new Value(text);
+                values.put(text, value);
+                for (int i = 0; i + GRAM <= text.length(); i++) {
+                    final String gram = text.substring(i, i + GRAM);
+                    Set<Value> posted = grams.get(gram);
+                    if (posted == null)
+                        grams.put(gram, posted = new HashSet<Value>());
+                    posted.add(value);
+                }
+            }
+            Subject subject = subjects.get(subjectName);
+            if (subject == null)
+                subjects.put(subjectName, subject = new Subject(subjectName));
+            subject.postings.add(new Posting(property, value));
+            
+            final Integer count = value.subjects.get(subject);
+            value.subjects.put(subject, count == null ? 1 : count + 1);
+        }
+
+        /** Remove what's indexed for the subject.  A null property or literal matches anything. */
+        void remove(String subjectName, String property, String literal) {
+            final Subject subject = subjects.get(subjectName);
+            if (subject == null)
+                return;
+            final String text = literal == null ? null : literal.toLowerCase();
+            for (Iterator<Posting> i = subject.postings.iterator(); i.hasNext();) {
+                final Posting p = i.next();
+                if ((property == null || property.equals(p.property)) && (text == null || text.equals(p.value.text))) {
+                    i.remove();
+                    release(p.value, subject);
+                }
+            }
+            if (subject.postings.isEmpty())
+                subjects.remove(subjectName);
+        }
+
+        private void release(Value value, Subject subject) {
+            final Integer count = value.subjects.get(subject);
+            if (count == null)
+                return;
+            if (count > 1) {
+                value.subjects.put(subject, count - 1);
+                return;
+            }
+            value.subjects.remove(subject);
+            if (!value.subjects.isEmpty())
+                return;
+            values.remove(value.text);
+            for (int i = 0; i + GRAM <= value.text.length(); i++) {
+                final String gram = value.text.substring(i, i + GRAM);
+                final Set<Value> posted = grams.get(gram);
+                if (posted != null && posted.remove(value) && posted.isEmpty())
+                    grams.remove(gram);
+            }
+        }
+
+        void clear() {
+            values.clear();
+            grams.clear();
+            subjects.clear();
+        }
+
+        void addAll(ValueIndex other) {
+            for (Subject subject : other.subjects.values())
+                for (Posting p : subject.postings)
+                    add(subject.name, p.property, p.value.text);
+        }
+
+        /** @return the URI's of subjects having any value containing the substring, ignoring case */
+        Collection<URI> findSubjects(String substring) {
+            final String text = substring.toLowerCase();
+            Collection<Value> candidates = values.values();
+            for (int i = 0; i + GRAM <= text.length(); i++) {
+                final Set<Value> posted = grams.get(text.substring(i, i + GRAM));
+                if (posted == null)
+                    return new ArrayList<URI>(0);
+                if (posted.size() < candidates.size())
+                    candidates = posted;
+            }
+            final Set<Subject> found = new LinkedHashSet<Subject>();
+            for (Value value : candidates)
+                if (value.text.contains(text))
+                    found.addAll(value.subjects.keySet());
+
+            final Collection<URI> resultSet = new ArrayList<URI>(found.size());
+            for (Subject subject : found) {
+                try {
+                    resultSet.add(subject.getURI());
+                } catch (Throwable t) {
+                    Log.warn("handling result " + Util.tags(subject.name), t);
+                }
+            }
+            return resultSet;
+        }
+    }
     
     // public void save() { }
     // public void read() { }
@@ -524,7 +886,12 @@ public class RDFIndex extends com.hp.hpl.jena.rdf.model.impl.ModelCom
     public void addStatement(com.hp.hpl.jena.rdf.model.Statement statement) {
         if (size() < MAX_SIZE) {
             if (DEBUG.SEARCH && DEBUG.META) Log.debug("addStatement: " + statement);
+            final long sizeBefore = size();
             super.add(statement);
+            if (size() > sizeBefore && statement.getObject().isLiteral() && statement.getSubject().isURIResource())
+                valueIndex.add(statement.getSubject().getURI(),
+                               statement.getPredicate().getURI(),
+                               ((com.hp.hpl.jena.rdf.model.Literal)statement.getObject()).getLexicalForm());
         } else {
             throw new RuntimeException("Size of index: "+size()+ " exceeds MAX_SIZE: "+MAX_SIZE);
         }
@@ -532,11 +899,136 @@ public class RDFIndex extends com.hp.hpl.jena.rdf.model.impl.ModelCom
     
     public void addProperty(com.hp.hpl.jena.rdf.model.Resource r, com.hp.hpl.jena.rdf.model.Property p,String value)  {
         if (size() <MAX_SIZE) {
+            final long sizeBefore = size();
             r.addProperty(p, value);
+            if (size() > sizeBefore)
+                valueIndex.add(r.getURI(), p.getURI(), value);
         } else {
             throw new RuntimeException("Size of index: "+size()+ " exceeds MAX_SIZE: "+MAX_SIZE);
         }
     }
+
+    /** overridden to keep the value index in sync */
+    @Override public com.hp.hpl.jena.rdf.model.Model removeAll() {
+        super.removeAll();
+        valueIndex.clear();
+        valuesIndexed = true;
+        return this;
+    }
+    
+    /** overridden to keep the value index in sync */
+    @Override public com.hp.hpl.jena.rdf.model.Model removeAll(com.hp.hpl.jena.rdf.model.Resource s,
+                                                               com.hp.hpl.jena.rdf.model.Property p,
+                                                               com.hp.hpl.jena.rdf.model.RDFNode o)
+    {
+        if (s != null && s.getURI() != null && (o == null || o.isLiteral()))
+            valueIndex.remove(s.getURI(),
+                              p == null ? null : p.getURI(),
+                              o == null ? null : ((com.hp.hpl.jena.rdf.model.Literal)o).getLexicalForm());
+        else if (o == null || o.isLiteral())
+            valuesIndexed = false; // can't tell what will be removed: fall back to SPARQL searches
+        return super.removeAll(s, p, o);
+    }
+    /**
+     * Benchmark: search latency after small edits on a large map, re-indexing the whole map
+     * (the old behaviour) v.s. applying the edits via a Maintainer.  Also verifies the
+     * maintained index ends up identical to a fresh one.  args: [node-count [edit-count]]
+     */
+    public static void main(String args[])
+    {
+        DEBUG.Enabled = false;
+        final int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        final int edits = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        final Random random = new Random(nodes);
+        final LWMap map = new LWMap("RDFIndex benchmark");
+        final List<LWComponent> children = new ArrayList(nodes);
+        for (int i = 0; i < nodes; i++) {
+            final tufts.vue.LWNode n = new tufts.vue.LWNode("node " + i + " word" + random.nextInt(1000));
+            if (i % 3 == 0)
+                n.setNotes("notes for node " + i);
+            children.add(n);
+        }
+        map.addChildren(children);
+
+        final String search = "word42";
+        
+        final RDFIndex maintained = new RDFIndex();
+        maintained.indexAdd(map, false, false);
+        final Maintainer maintainer = new Maintainer(maintained, map, false);
+
+        long fullTime = 0, incrementalTime = 0;
+        int fullHits = 0, incrementalHits = 0;
+
+        for (int i = 0; i < edits; i++) {
+            // a small edit: relabel one node, add one, remove one
+            children.get(random.nextInt(children.size())).setLabel("edited " + i + " word42");
+            final tufts.vue.LWNode added = new tufts.vue.LWNode("added " + i + " word42");
+            map.add(added);
+            children.add(added);
+            final LWComponent removed = children.remove(random.nextInt(children.size()));
+            removed.getParent().deleteChildPermanently(removed);
+
+            long t = System.nanoTime();
+            final RDFIndex full = new RDFIndex();
+            full.indexAdd(map, false, false);
+            fullHits = full.searchAllValues(search).size();
+            fullTime += System.nanoTime() - t;
+
+            t = System.nanoTime();
+            if (!maintainer.update())
+                throw new Error("index went stale");
+            incrementalHits = maintained.searchAllValues(search).size();
+            incrementalTime += System.nanoTime() - t;
+        }
+
+        // a drag batched on the AWT thread as a gesture would be: the repeated changes are
+        // coalesced, but must all be accounted for, or the index looks stale
+        final LWComponent dragged = children.get(0);
+        try {
+            java.awt.EventQueue.invokeAndWait(new Runnable() { public void run() {
+                map.beginEventBatch();
+                try {
+                    for (int i = 0; i < 50; i++) {
+                        dragged.setLocation(dragged.getX() + 1, dragged.getY());
+                        dragged.setLabel("dragged " + i + " word42");
+                    }
+                } finally {
+                    map.endEventBatch();
+                }
+            }});
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+        final boolean dragIncremental = maintainer.update();
+        maintainer.dispose();
+
+        final RDFIndex fresh = new RDFIndex();
+        fresh.indexAdd(map, false, false);
+        
+        System.out.format("%d nodes, %d edits: hits %d/%d; index+search after edit: full %.1fms, incremental %.1fms;"
+                          + " still incremental after a batched drag=%s; identical=%s%n",
+                          nodes, edits, fullHits, incrementalHits,
+                          fullTime / 1e6 / edits,
+                          incrementalTime / 1e6 / edits,
+                          dragIncremental,
+                          fresh.isIsomorphicWith((com.hp.hpl.jena.rdf.model.Model) maintained) && fresh.vueComponentMap.equals(maintained.vueComponentMap));
+
+        // keystroke-driven search: the value index v.s. the SPARQL regex scan
+        for (int len = 1; len <= search.length(); len++) {
+            final String typed = search.substring(0, len);
+            long t = System.nanoTime();
+            final Collection<URI> indexed = maintained.searchAllValues(typed);
+            final long indexedTime = System.nanoTime() - t;
+            t = System.nanoTime();
+            final Collection<URI> scanned = maintained.searchAllValuesWithSPARQL(typed);
+            final long scanTime = System.nanoTime() - t;
+            System.out.format("search %-8s hits %6d: index %7.2fms, sparql %7.2fms; same=%s%n",
+                              Util.tags(typed), indexed.size(), indexedTime / 1e6, scanTime / 1e6,
+                              new HashSet(indexed).equals(new HashSet(scanned)));
+        }
+    }
+    
     public static String getUniqueId() {
         return Constants.RESOURCE_URL+edu.tufts.vue.util.GUID.generate();
         // This might better be called something else, but leaving for now just in case of any
@@ -647,6 +1139,7 @@ public class RDFIndex extends com.hp.hpl.jena.rdf.model.impl.ModelCom
             File indexFile = new File(INDEX_FILE);
             if(indexFile.exists()) {
                 defaultIndex.read(new FileReader(indexFile),Constants.RESOURCE_URL);
+                defaultIndex.valuesIndexed = false; // statements read from the file bypass the value index
             }
         } catch(Throwable t) {
             t.printStackTrace();
@@ -2083,44 +2083,44 @@ public class Actions implements VueConstants
     public static final LWCAction FontSmaller =
     new LWCAction(VueResources.local("menu.format.font.fontsmaller"), keyStroke(KeyEvent.VK_MINUS, COMMAND+SHIFT)) {
         void act(LWComponent c) {
-            int size = c.mFontSize.get();
+            int size = c.getFontSize();
             if (size > 1) {
                 if (size >= 14 && size % 2 == 0)
                     size -= 2;
                 else
                     size--;
-                c.mFontSize.set(size);
+                LWComponent.KEY_FontSize.set(c, size);
             }
         }
     };
     public static final LWCAction FontBigger =
     new LWCAction(VueResources.local("menu.format.font.fontbig"), keyStroke(KeyEvent.VK_EQUALS, COMMAND+SHIFT)) {
         void act(LWComponent c) {
-            int size = c.mFontSize.get();
+            int size = c.getFontSize();
             if (size >= 12 && size % 2 == 0)
                 size += 2;
             else
                 size++;
-            c.mFontSize.set(size);
+            LWComponent.KEY_FontSize.set(c, size);
         }
     };
     public static final LWCAction FontBold =
     new LWCAction(VueResources.local("menu.format.font.fontbold"), keyStroke(KeyEvent.VK_B, COMMAND)) {
         void act(LWComponent c) {
-            c.mFontStyle.set(c.mFontStyle.get() ^ Font.BOLD);
+            LWComponent.KEY_FontStyle.set(c, c.getFontStyle() ^ Font.BOLD);
         }
     };
     public static final LWCAction FontItalic =
     new LWCAction(VueResources.local("menu.format.font.fontitalic"), keyStroke(KeyEvent.VK_I, COMMAND)) {
         void act(LWComponent c) {
-            c.mFontStyle.set(c.mFontStyle.get() ^ Font.ITALIC);
+            LWComponent.KEY_FontStyle.set(c, c.getFontStyle() ^ Font.ITALIC);
         }
     };
     
     public static final LWCAction FontUnderline =
         new LWCAction(VueResources.local("menu.format.font.fontunderline"), keyStroke(KeyEvent.VK_U, COMMAND)) {
             void act(LWComponent c) {
-                c.mFontUnderline.set((c.mFontUnderline.get().toString()).equals("underline") ? "normal" : "underline");
+                LWComponent.KEY_FontUnderline.set(c, (c.getFontUnderline().toString()).equals("underline") ? "normal" : "underline");
 
             }
         };
@@ -2886,7 +2886,7 @@ public class Actions implements VueConstants
                 
                     if (moveToEdge) {
                         n.setTextColor(java.awt.Color.red);
-                        n.mFontStyle.set(java.awt.Font.BOLD);
+                        LWComponent.KEY_FontStyle.set(n, java.awt.Font.BOLD);
                     }
                     n.setNotes(notes);
                     if (newCenter != null)
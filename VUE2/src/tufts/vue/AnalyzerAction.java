@@ -477,7 +477,7 @@ public class AnalyzerAction extends Actions.LWCAction {
 			    		{
 			    		//	node.setFillColor(new Color())
 			    			node.setFillColor(joinNodeColor);
-			    			link.mStrokeStyle.setTo(LWComponent.StrokeStyle.DASHED);
+			    			LWComponent.KEY_StrokeStyle.set(link, LWComponent.StrokeStyle.DASHED);
 			    			categoryComps.add(node);
 			    			categoryComps.add(link);
 			    		
@@ -0,0 +1,652 @@
+/*
+* Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.vue;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Rectangle2D;
+
+/**
+ * An aggregated, level-of-detail view of a large map, for drawing it when it's zoomed
+ * so far out that it's individual nodes and links would be only a few pixels in size.
+ * Instead of visiting every component, LWMap.draw will have us draw a glyph for each
+ * tile of a grid over the map: a single node as the rectangle it would be drawn as
+ * anyway, and any more as a cluster glyph with the combined area and average fill color
+ * of the nodes in the tile, at their centroid.  Links are summarized as one bundle per
+ * pair of tiles they connect, drawn thicker the more links it carries.
+ *
+ * The tiles are kept at a series of levels, each with tiles twice the size of the
+ * last, and the level drawn is the one with the smallest tiles that are still at least a
+ * few pixels on screen.
+ *
+ * The tiles are built in the background the first time they're needed, and are then
+ * kept current incrementally: LWMap passes us every LWCEvent it sees, and the
+ * components named in them (and their descendents and connected links) are only marked
+ * dirty.  The background thread has the contribution of each dirty component re-computed,
+ * and subtracts the old one from the tiles and adds the new.  Components leaving the map
+ * are noted as such when the event arrives, as they may not yet look deleted by the
+ * time the background thread gets to them.  The model is only ever read on the AWT
+ * thread, where it's edited: the walk of the map that starts a full build, and the
+ * contributions of each chunk of dirty components, are done there, and the background
+ * thread does the rest.  An update that fails anyway is tried again, after a delay that
+ * grows while the failures continue.  Until the first build is done, we decline to draw,
+ * and the map draws normally.  Whenever an update completes after a draw that could have
+ * used it, the map is asked to repaint.
+ *
+ * The nodes counted are the components drawn directly on a layer or in a group: the
+ * children of nodes are within their parents, and are represented by them.
+ */
+public final class DensityTiles
+{
+    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(DensityTiles.class);
+
+    /** maps with fewer nodes than this are always drawn in full */
+    static final int MinNodes = 2000;
+
+    /** the edge length of the tiles at level 0, in map units: each level up doubles it */
+    private static final float BaseTileSize = 64;
+    private static final int LevelCount = 14;
+    /** the smallest on-screen size in pixels for the tiles of the level to draw */
+    private static final float MinTilePixels = 12;
+    /** cluster glyphs are never drawn smaller than this many pixels across */
+    private static final float MinGlyphPixels = 3;
+    /** the most dirty components updated per hold of our lock, so drawing isn't held up long */
+    private static final int UpdateChunk = 1000;
+
+    private static final Color BundleColor = new Color(128, 128, 128, 160);
+    private static final Color NoFillColor = Color.gray;
+
+    /** if false, no map will make use of it's density tiles: for debugging and benchmarking */
+    static boolean Enabled = true;
+
+    /** after a failed update, how long to wait before trying again: doubled for each failure in a row */
+    private static final int RetryDelay = 100;
+    private static final int MaxRetryDelay = 10000;
+
+    private static final ScheduledExecutorService Builder = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread it = new Thread(r, "DensityTiles-build");
+                it.setDaemon(true);
+                it.setPriority(Thread.MIN_PRIORITY);
+                return it;
+            }
+        });
+
+    /** What a single component adds to the tiles: a node, or a link */
+    private static final class Contribution {
+        final boolean isLink;
+        /** node center, or link head */
+        final float x, y;
+        /** node size, or link tail */
+        final float w, h;
+        /** node fill color, or null if none */
+        final Color fill;
+
+        Contribution(boolean isLink, float x, float y, float w, float h, Color fill) {
+            this.isLink = isLink;
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+            this.fill = fill;
+        }
+    }
+
+    private static final class Tile {
+        int count;
+        double sumX, sumY, sumW, sumH, area;
+        int fills;
+        long red, green, blue;
+
+        void add(Contribution c, int sign) {
+            count += sign;
+            sumX += sign * c.x;
+            sumY += sign * c.y;
+            sumW += sign * c.w;
+            sumH += sign * c.h;
+            area += sign * (double) c.w * c.h;
+            if (c.fill != null) {
+                fills += sign;
+                red += sign * c.fill.getRed();
+                green += sign * c.fill.getGreen();
+                blue += sign * c.fill.getBlue();
+            }
+        }
+    }
+
+    /** the pair of tiles a bundle of links runs between */
+    private static final class Bundle {
+        final long tile1, tile2;
+        int count;
+
+        Bundle(long t1, long t2) {
+            // order doesn't matter: links are bundled regardless of direction
+            if (t1 < t2) {
+                tile1 = t1;
+                tile2 = t2;
+            } else {
+                tile1 = t2;
+                tile2 = t1;
+            }
+        }
+
+        @Override public boolean equals(Object o) {
+            final Bundle b = (Bundle) o;
+            return tile1 == b.tile1 && tile2 == b.tile2;
+        }
+
+        @Override public int hashCode() {
+            return (int) (tile1 ^ (tile1 >>> 32)) * 31 + (int) (tile2 ^ (tile2 >>> 32));
+        }
+    }
+
+    private static final class Level {
+        final float tileSize;
+        final Map<Long,Tile> tiles = new HashMap();
+        final Map<Bundle,Bundle> bundles = new HashMap();
+        /** what to draw, if it's been asked for since we last changed */
+        Snapshot snapshot;
+
+        Level(float tileSize) {
+            this.tileSize = tileSize;
+        }
+
+        long key(float x, float y) {
+            final long tx = (long) Math.floor(x / tileSize);
+            final long ty = (long) Math.floor(y / tileSize);
+            return (tx << 32) | (ty & 0xFFFFFFFFL);
+        }
+
+        void add(Contribution c, int sign) {
+            snapshot = null;
+            if (c.isLink) {
+                final long t1 = key(c.x, c.y);
+                final long t2 = key(c.w, c.h);
+                if (t1 == t2)
+                    return; // entirely inside a tile: nothing to show
+                final Bundle probe = new Bundle(t1, t2);
+                Bundle b = bundles.get(probe);
+                if (b == null)
+                    bundles.put(probe, b = probe);
+                if ((b.count += sign) <= 0)
+                    bundles.remove(b);
+            } else {
+                final Long key = key(c.x, c.y);
+                Tile t = tiles.get(key);
+                if (t == null)
+                    tiles.put(key, t = new Tile());
+                t.add(c, sign);
+                if (t.count <= 0)
+                    tiles.remove(key);
+            }
+        }
+
+        /** @return the (immutable) content of this level ready to draw */
+        Snapshot snapshot() {
+            if (snapshot == null)
+                snapshot = new Snapshot(this);
+            return snapshot;
+        }
+    }
+
+    /** A level as it was when asked for, with everything needed to draw it, so drawing needn't hold our lock */
+    private static final class Snapshot {
+        final float tileSize;
+        final int tileCount;
+        final float[] x, y, w, h;
+        final int[] count;
+        final Color[] color;
+        final int bundleCount;
+        final float[] x1, y1, x2, y2;
+        final int[] links;
+
+        Snapshot(Level level) {
+            tileSize = level.tileSize;
+            tileCount = level.tiles.size();
+            x = new float[tileCount];
+            y = new float[tileCount];
+            w = new float[tileCount];
+            h = new float[tileCount];
+            count = new int[tileCount];
+            color = new Color[tileCount];
+            final Map<Long,Integer> index = new HashMap(tileCount * 2);
+            int i = 0;
+            for (Map.Entry<Long,Tile> e : level.tiles.entrySet()) {
+                final Tile t = e.getValue();
+                count[i] = t.count;
+                x[i] = (float) (t.sumX / t.count);
+                y[i] = (float) (t.sumY / t.count);
+                if (t.count == 1) {
+                    w[i] = (float) t.sumW;
+                    h[i] = (float) t.sumH;
+                } else {
+                    // a circle with the combined area of all the nodes, tho never larger than the tile
+                    w[i] = h[i] = (float) Math.min(tileSize, 2 * Math.sqrt(t.area / Math.PI));
+                }
+                if (t.fills > 0)
+                    color[i] = new Color((int) (t.red / t.fills), (int) (t.green / t.fills), (int) (t.blue / t.fills));
+                else
+                    color[i] = NoFillColor;
+                index.put(e.getKey(), i);
+                i++;
+            }
+            bundleCount = level.bundles.size();
+            x1 = new float[bundleCount];
+            y1 = new float[bundleCount];
+            x2 = new float[bundleCount];
+            y2 = new float[bundleCount];
+            links = new int[bundleCount];
+            i = 0;
+            for (Bundle b : level.bundles.keySet()) {
+                links[i] = b.count;
+                placeEnd(index.get(b.tile1), b.tile1, i, x1, y1);
+                placeEnd(index.get(b.tile2), b.tile2, i, x2, y2);
+                i++;
+            }
+        }
+
+        /** a bundle runs between the centroids of it's tiles, or the tile center if there are no nodes in it */
+        private void placeEnd(Integer tile, long key, int i, float[] ex, float[] ey) {
+            if (tile != null) {
+                ex[i] = x[tile];
+                ey[i] = y[tile];
+            } else {
+                ex[i] = ((int) (key >> 32) + 0.5f) * tileSize;
+                ey[i] = ((int) key + 0.5f) * tileSize;
+            }
+        }
+    }
+
+    private final LWMap map;
+
+    // All of the below guarded by this: events may arrive on any thread, the
+    // background build updates the tiles, and drawing happens on the AWT thread.
+    private final Level[] mLevels = new Level[LevelCount];
+    private final Map<LWComponent,Contribution> mContributions = new IdentityHashMap();
+    /** dirty components: TRUE to re-compute, FALSE if they've left the map */
+    private final Map<LWComponent,Boolean> mDirty = new IdentityHashMap();
+    private boolean mFullBuildNeeded = true;
+    private boolean mBuilt;
+    private boolean mUpdateScheduled;
+    /** updates that have failed in a row */
+    private int mFailures;
+    /** a draw has happened (or been declined) since the last update: repaint when the next completes */
+    private boolean mDrawWanted;
+    private int mNodeCount;
+
+    DensityTiles(LWMap map) {
+        this.map = map;
+        for (int i = 0; i < LevelCount; i++)
+            mLevels[i] = new Level(BaseTileSize * (1 << i));
+    }
+
+    /** Note any components the given event names: they'll be re-tiled in the background */
+    synchronized void update(LWCEvent e)
+    {
+        final Object key = e.key;
+
+        if (mFullBuildNeeded || key == LWKey.UserActionCompleted || key == LWKey.Repaint || key == LWKey.RepaintAsync)
+            return;
+
+        if (key == LWKey.HierarchyChanging || key == LWKey.HierarchyChanged)
+            return; // these name the parent: the children come with ChildrenAdded/ChildrenRemoved
+
+        final int dirty = mDirty.size();
+
+        if (key == LWKey.ChildrenRemoved) {
+            final Object container = e.getSource();
+            for (LWComponent c : e.getComponents()) {
+                // On a move, the add to the new parent may already have been seen.  Note
+                // that a REDO of a delete leaves the children with the old parent set.
+                if (c.getParent() != container && !c.isDeleted() && c.getMap() == map)
+                    markDirty(c);
+                else
+                    markRemoved(c);
+            }
+        } else if (key == LWKey.Deleting) {
+            markRemoved(e.component);
+        } else if (e.component != null) {
+            if (e.component != map)
+                markDirty(e.component);
+        } else {
+            final List<LWComponent> list = e.getComponents();
+            if (list != null)
+                for (LWComponent c : list)
+                    markDirty(c);
+        }
+
+        if (mDirty.size() != dirty)
+            scheduleUpdate();
+    }
+
+    /** must be called holding our lock */
+    private void markDirty(LWComponent c) {
+        mDirty.put(c, Boolean.TRUE);
+        // anything that moves along with this, or is hidden with it
+        if (c.hasChildren())
+            for (LWComponent d : c.getAllDescendents(LWComponent.ChildKind.PROPER))
+                mDirty.put(d, Boolean.TRUE);
+        for (LWLink l : c.getLinks())
+            mDirty.put(l, Boolean.TRUE);
+    }
+
+    /** must be called holding our lock */
+    private void markRemoved(LWComponent c) {
+        mDirty.put(c, Boolean.FALSE);
+        if (c.hasChildren())
+            for (LWComponent d : c.getAllDescendents(LWComponent.ChildKind.PROPER))
+                mDirty.put(d, Boolean.FALSE);
+        for (LWLink l : c.getLinks())
+            if (!mDirty.containsKey(l))
+                mDirty.put(l, Boolean.TRUE);
+    }
+
+    /** Throw out all the tiles: they'll be rebuilt in the background the next time they're needed */
+    synchronized void invalidate() {
+        mFullBuildNeeded = true;
+        mBuilt = false;
+        mDirty.clear();
+    }
+
+    /** must be called holding our lock */
+    private void scheduleUpdate() {
+        if (!mUpdateScheduled) {
+            mUpdateScheduled = true;
+            if (mFailures == 0)
+                Builder.execute(Updater);
+            else
+                Builder.schedule(Updater, Math.min(MaxRetryDelay, RetryDelay << Math.min(mFailures - 1, 16)), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private final Runnable Updater = new Runnable() { public void run() { runUpdate(); }};
+
+    /**
+     * Run on the AWT thread, where the model is edited, so the walk of the map can't
+     * collide with an edit, and no event can arrive between the walk and the start of the
+     * build.  Only this small part of a full build is done there.
+     */
+    private final Runnable FullBuildStarter = new Runnable() { public void run() {
+        final Collection<LWComponent> all = map.getAllDescendents(LWComponent.ChildKind.PROPER);
+        synchronized (DensityTiles.this) {
+            if (mFullBuildNeeded)
+                beginFullBuild(all);
+        }
+    }};
+
+    private void runUpdate()
+    {
+        final long start = System.currentTimeMillis();
+        int updated = 0;
+        boolean failed = false;
+
+        final List<LWComponent> chunk = new ArrayList(UpdateChunk);
+        final List<Contribution> contributions = new ArrayList(UpdateChunk);
+        final List<Boolean> present = new ArrayList(UpdateChunk);
+
+        try {
+
+            final boolean fullBuild;
+            synchronized (this) {
+                fullBuild = mFullBuildNeeded;
+            }
+            if (fullBuild)
+                java.awt.EventQueue.invokeAndWait(FullBuildStarter);
+
+            while (true) {
+                chunk.clear();
+                present.clear();
+                contributions.clear();
+                synchronized (this) {
+                    final Iterator<Map.Entry<LWComponent,Boolean>> i = mDirty.entrySet().iterator();
+                    while (i.hasNext() && chunk.size() < UpdateChunk) {
+                        final Map.Entry<LWComponent,Boolean> e = i.next();
+                        chunk.add(e.getKey());
+                        present.add(e.getValue());
+                        i.remove();
+                    }
+                    if (chunk.isEmpty())
+                        break;
+                }
+                // the model is read on AWT, outside our lock
+                java.awt.EventQueue.invokeAndWait(new Runnable() { public void run() {
+                    for (int i = 0; i < chunk.size(); i++)
+                        contributions.add(present.get(i) ? contributionOf(chunk.get(i)) : null);
+                }});
+                synchronized (this) {
+                    for (int i = 0; i < chunk.size(); i++)
+                        setContribution(chunk.get(i), contributions.get(i));
+                }
+                updated += chunk.size();
+            }
+
+        } catch (Throwable t) {
+            // the contributions in hand were never applied, so just try that chunk again later
+            if (t instanceof java.lang.reflect.InvocationTargetException)
+                t = t.getCause();
+            Log.warn("update failed; will retry: " + t);
+            failed = true;
+            synchronized (this) {
+                for (int i = 0; i < chunk.size(); i++)
+                    if (!mDirty.containsKey(chunk.get(i))) // unless it's been marked again since
+                        mDirty.put(chunk.get(i), present.get(i));
+            }
+        }
+
+        final boolean repaint;
+        synchronized (this) {
+            mUpdateScheduled = false;
+            mFailures = failed ? mFailures + 1 : 0;
+            if (mFullBuildNeeded || !mDirty.isEmpty()) {
+                // more came in, or we failed: go again (after a delay if we failed)
+                scheduleUpdate();
+                return;
+            }
+            if (!mBuilt && DEBUG.Enabled)
+                Log.debug(map + "; built " + mNodeCount + " nodes in " + (System.currentTimeMillis() - start) + "ms");
+            mBuilt = true;
+            repaint = mDrawWanted;
+            mDrawWanted = false;
+        }
+
+        if (DEBUG.PAINT) Log.debug(map + "; updated " + updated + " in " + (System.currentTimeMillis() - start) + "ms");
+
+        if (repaint) {
+            VUE.invokeAfterAWT(new Runnable() { public void run() {
+                map.notify(DensityTiles.this, LWKey.RepaintAsync);
+            }});
+        }
+    }
+
+    /** must be called holding our lock: start over, with all the given components of the map dirty */
+    private void beginFullBuild(Collection<LWComponent> all) {
+        for (Level level : mLevels) {
+            level.tiles.clear();
+            level.bundles.clear();
+            level.snapshot = null;
+        }
+        mContributions.clear();
+        mNodeCount = 0;
+        mDirty.clear();
+        for (LWComponent c : all)
+            mDirty.put(c, Boolean.TRUE);
+        mFullBuildNeeded = false;
+    }
+
+    /** must be called holding our lock */
+    private void setContribution(LWComponent c, Contribution now) {
+        final Contribution was = now == null ? mContributions.remove(c) : mContributions.put(c, now);
+        if (was != null) {
+            for (Level level : mLevels)
+                level.add(was, -1);
+            if (!was.isLink)
+                mNodeCount--;
+        }
+        if (now != null) {
+            for (Level level : mLevels)
+                level.add(now, +1);
+            if (!now.isLink)
+                mNodeCount++;
+        }
+    }
+
+    /** @return what the given component currently adds to the tiles, if anything: on AWT only */
+    private Contribution contributionOf(LWComponent c)
+    {
+        final LWContainer parent = c.getParent();
+
+        if (c.isDeleted() || parent == null || c.getMap() != map)
+            return null;
+
+        // only what's drawn directly on a layer or in a group
+        if (parent instanceof LWMap.Layer == false && parent instanceof LWGroup == false)
+            return null;
+
+        if (c instanceof LWGroup || !c.isPainted())
+            return null;
+
+        for (LWComponent p = parent; p != null && p != map; p = p.getParent())
+            if (!p.isVisible())
+                return null;
+
+        if (c instanceof LWLink) {
+            final LWLink link = (LWLink) c;
+            final LWComponent head = link.getHead();
+            final LWComponent tail = link.getTail();
+            final java.awt.geom.Point2D headPoint = head == null ? link.getHeadPoint() : null;
+            final java.awt.geom.Point2D tailPoint = tail == null ? link.getTailPoint() : null;
+            return new Contribution(true,
+                                    head == null ? (float) headPoint.getX() : head.getMapCenterX(),
+                                    head == null ? (float) headPoint.getY() : head.getMapCenterY(),
+                                    tail == null ? (float) tailPoint.getX() : tail.getMapCenterX(),
+                                    tail == null ? (float) tailPoint.getY() : tail.getMapCenterY(),
+                                    null);
+        } else {
+            final Color fill = c.getFillColor();
+            return new Contribution(false,
+                                    c.getMapCenterX(),
+                                    c.getMapCenterY(),
+                                    c.getMapWidth(),
+                                    c.getMapHeight(),
+                                    fill == null || fill.getAlpha() == 0 ? null : fill);
+        }
+    }
+
+    /**
+     * Draw the map, which the given DrawContext is expected to be transformed for, from
+     * the tiles at the level for it's current zoom.
+     *
+     * @return false if we can't (yet) draw it, or it's too small to bother: the caller should
+     * draw the map normally
+     */
+    boolean draw(DrawContext dc)
+    {
+        final Snapshot tiles;
+
+        synchronized (this) {
+            mDrawWanted = true;
+            if (mFullBuildNeeded || !mBuilt) {
+                scheduleUpdate();
+                return false;
+            }
+            if (mNodeCount < MinNodes) {
+                mDrawWanted = false;
+                return false;
+            }
+            tiles = mLevels[levelFor(dc.zoom)].snapshot();
+            if (mDirty.isEmpty() && !mUpdateScheduled)
+                mDrawWanted = false; // we're already current
+        }
+
+        final Graphics2D g = dc.g;
+        final Rectangle2D clip = dc.getMasterClipRect();
+        final double zoom = dc.zoom;
+
+        // Bundles first, underneath the clusters
+
+        g.setColor(BundleColor);
+        final Line2D.Float line = new Line2D.Float();
+        final BasicStroke[] strokes = new BasicStroke[7];
+        for (int i = 0; i < tiles.bundleCount; i++) {
+            line.setLine(tiles.x1[i], tiles.y1[i], tiles.x2[i], tiles.y2[i]);
+            if (clip != null && !line.intersects(clip))
+                continue;
+            // a hairline for a single link (much faster than any scaled stroke), one pixel more for each doubling
+            final int width = Math.min(strokes.length - 1, 1 + log2(tiles.links[i]));
+            if (strokes[width] == null)
+                strokes[width] = new BasicStroke(width == 1 ? 0f : (float) (width / zoom));
+            g.setStroke(strokes[width]);
+            g.draw(line);
+        }
+
+        final float minGlyph = (float) (MinGlyphPixels / zoom);
+        final Rectangle2D.Float box = new Rectangle2D.Float();
+        final Ellipse2D.Float circle = new Ellipse2D.Float();
+        final float onePixel = (float) (1 / zoom);
+
+        for (int i = 0; i < tiles.tileCount; i++) {
+            final float w = Math.max(tiles.w[i], minGlyph);
+            final float h = Math.max(tiles.h[i], minGlyph);
+            box.setRect(tiles.x[i] - w / 2, tiles.y[i] - h / 2, w, h);
+            if (clip != null && !box.intersects(clip))
+                continue;
+            g.setColor(tiles.color[i]);
+            if (tiles.count[i] == 1) {
+                g.fill(box);
+            } else {
+                // the outline is a darker disc under an inset one: filling is much cheaper than stroking
+                circle.setFrame(box);
+                g.setColor(tiles.color[i].darker());
+                g.fill(circle);
+                circle.setFrame(box.x + onePixel, box.y + onePixel, box.width - 2 * onePixel, box.height - 2 * onePixel);
+                g.setColor(tiles.color[i]);
+                g.fill(circle);
+            }
+        }
+
+        return true;
+    }
+
+    /** @return the level with the smallest tiles that are still at least MinTilePixels on screen at the given zoom */
+    private static int levelFor(double zoom) {
+        for (int i = 0; i < LevelCount - 1; i++)
+            if (BaseTileSize * (1 << i) * zoom >= MinTilePixels)
+                return i;
+        return LevelCount - 1;
+    }
+
+    private static int log2(int n) {
+        return 31 - Integer.numberOfLeadingZeros(n);
+    }
+
+    /** @return the number of nodes represented, or -1 if we haven't been built yet */
+    public synchronized int getNodeCount() {
+        return mBuilt ? mNodeCount : -1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DensityTiles[" + map + (mBuilt ? "; nodes=" + mNodeCount : "; unbuilt") + " dirty=" + mDirty.size() + "]";
+    }
+}
@@ -56,6 +56,15 @@ public final class DrawContext
     private static final String QUALITY_DRAFT = "draft";
     private static final String QUALITY_NORMAL = "normal";
     private static final String QUALITY_PRINT = "print";
+
+    // Level-Of-Detail thresholds: see isLODEnabled
+    
+    /** text smaller than this on-screen point size may be skipped, or drawn as a line */
+    public static final float LODTextSize = 5;
+    /** at or below this zoom, links may skip their decorations (e.g., arrow heads) */
+    public static final double LODLinkZoom = 0.125;
+    /** below this zoom, a large map may be drawn from it's DensityTiles instead of it's components */
+    public static final double LODClusterZoom = 0.1;
     
     
     private int index;
@@ -90,6 +99,8 @@ public final class DrawContext
 
     private boolean isClipOptimized = true; // todo: rename isPaintOptimized, and make the default false
     private boolean isAnimating;
+    private boolean isRenderCaching;
+    private boolean isClusterDrawing;
 
     private boolean isBrowsing = false;
 
@@ -236,6 +247,33 @@ public final class DrawContext
 //         else
 //             quality = QUALITY_NORMAL;
     }
+
+    /**
+     * Permit components to be drawn from the RenderCache, e.g., while the view is panning or
+     * animating.  Only takes effect when Level-Of-Detail rendering is also enabled.
+     */
+    public void setRenderCaching(boolean caching) {
+        isRenderCaching = caching;
+    }
+
+    /** @return true if components may be drawn from cached rasters of themselves */
+    public boolean isRenderCaching() {
+        return isRenderCaching && isLODEnabled();
+    }
+
+    /**
+     * Permit a large map to be drawn as clusters of nodes and bundles of links (see
+     * DensityTiles) when zoomed out below LODClusterZoom.  Only takes effect when
+     * Level-Of-Detail rendering is also enabled.
+     */
+    public void setClusterDrawing(boolean clusters) {
+        isClusterDrawing = clusters;
+    }
+
+    /** @return true if a map may be drawn from it's DensityTiles at our current zoom */
+    public boolean isClusterDrawing() {
+        return isClusterDrawing && zoom < LODClusterZoom && isLODEnabled();
+    }
     
     public void setMapDrawing() {
         isClipOptimized = true;
@@ -798,6 +836,8 @@ public final class DrawContext
         this.fillColor = dc.fillColor;
         this.isClipOptimized = dc.isClipOptimized;
         this.isAnimating = dc.isAnimating;
+        this.isRenderCaching = dc.isRenderCaching;
+        this.isClusterDrawing = dc.isClusterDrawing;
         this.focused = dc.focused;
         this.isBrowsing = dc.isBrowsing;
 
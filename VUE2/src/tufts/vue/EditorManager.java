@@ -475,10 +475,15 @@ public class EditorManager
             // back up to the tools, we want to ignore those events while this is underway -- the tools
             // already have their state set to this.
             PropertySettingUnderway = true;
+            final LWMap map = VUE.getActiveMap();
+            if (map != null)
+                map.beginEventBatch();
             try {
                 for (tufts.vue.LWComponent c : components)
                     applyPropertyValue(source, key, newValue, c);
             } finally {
+                if (map != null)
+                    map.endEventBatch();
                 PropertySettingUnderway = false;
             }
 
@@ -0,0 +1,746 @@
+/*
+* Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.vue;
+
+import tufts.Util;
+
+import java.util.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+
+/**
+ * The persistent disk store for image icons.  This replaces the original disk cache
+ * of one PNG file per icon, which had to be listed in full at startup, and meant
+ * decoding a PNG every time an icon was needed.
+ *
+ * Icons are stored as raw ARGB pixels, packed into a handful of fixed size segment
+ * files, with a single open-addressing hash index file.  All of these are memory
+ * mapped, so opening the store at startup only means mapping the index, no matter
+ * how many icons it holds.  Reading an icon copies it's pixels straight out of the
+ * mapped segment into a standard int ARGB image: there's no decoding, and the image
+ * is one Java2D can draw with it's fast loops, and cache as a managed image.
+ *
+ * There are two tables in the index: one from source URI (the icon cache key) to a
+ * key record, and one from a hash of the icon pixels to the pixel record.  The key
+ * record holds the full URI (to confirm the hash match) and the pixel size of the
+ * original image, and points at a pixel record.  Identical icons (e.g., the same
+ * image found at two different URL's) share a single pixel record.
+ *
+ * Records are only ever appended.  Space from replaced or removed icons isn't
+ * reclaimed: that's rare enough in practice (see Images.flushCache) that it isn't
+ * worth the complexity.  If the store is ever found to be damaged, it's thrown out
+ * and started over: everything in it can be regenerated from the original images.
+ *
+ * The data is written in native byte order: the store is a local cache, and isn't
+ * meant to be moved between machines.
+ *
+ * Only one process may have the store open at a time, which is enforced with a file
+ * lock held for as long as the process runs.  Any other VUE running at the same
+ * time can't open the store, and falls back to the old per-file icon cache.
+ */
+final class IconStore
+{
+    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(IconStore.class);
+
+    private static final int INDEX_MAGIC = 0x56554958;    // "VUIX"
+    private static final int SEGMENT_MAGIC = 0x56555347;  // "VUSG"
+    private static final int KEY_RECORD = 0x4B455931;     // "KEY1"
+    private static final int PIXEL_RECORD = 0x50495831;   // "PIX1"
+    private static final int VERSION = 1;
+    private static final int BYTE_ORDER_MARK = 0x01020304;
+
+    /** the size of each segment file */
+    static final int SEGMENT_BYTES = 32 * 1024 * 1024;
+    private static final int SEGMENT_HEADER = 16;
+
+    /** the initial number of slots in each index table: this doubles as needed */
+    private static final int MIN_SLOTS = 4096;
+    private static final int SLOT_BYTES = 16;
+
+    // index header layout
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_ORDER = 8;
+    private static final int H_SLOTS = 12;
+    private static final int H_KEYS = 16;
+    private static final int H_KEY_SLOTS_USED = 20; // live keys plus deleted slots
+    private static final int H_CONTENTS = 24;
+    private static final int H_SEGMENTS = 28;
+    private static final int H_WRITE_POS = 32;
+    private static final int HEADER_BYTES = 64;
+
+    // key record layout: the URI bytes follow the header
+    private static final int K_URI_LENGTH = 4;
+    private static final int K_SOURCE_WIDTH = 8;
+    private static final int K_SOURCE_HEIGHT = 12;
+    private static final int K_PIXELS = 16;
+    private static final int KEY_HEADER = 24;
+
+    // pixel record layout: the pixels follow the header
+    private static final int P_WIDTH = 4;
+    private static final int P_HEIGHT = 8;
+    private static final int P_FLAGS = 12;
+    private static final int P_HASH = 16;
+    private static final int PIXEL_HEADER = 24;
+
+    private static final int FLAG_ALPHA = 0x1;
+
+    /** an index slot location value for an empty slot */
+    private static final long EMPTY = 0;
+    /** an index slot location value for a slot whose key has been removed */
+    private static final long DELETED = -1;
+
+    private static final String INDEX_PREFIX = "index.";
+    private static final String SEGMENT_PREFIX = "segment.";
+    private static final String LOCK_FILE = "lock";
+
+    private final File dir;
+    /** held for as long as we run: never released, so the channel it's on is never closed */
+    private final FileLock lock;
+    private File indexFile;
+    private MappedByteBuffer index;
+    private int slots;
+    private final List<ByteBuffer> segments = new ArrayList();
+
+    /**
+     * Open the icon store in the given directory, creating it if needed.
+     * @return the store, or null if it couldn't be opened or created, or
+     * another process already has it open
+     */
+    static IconStore open(File dir) {
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                Log.warn("couldn't create icon store directory " + dir);
+                return null;
+            }
+            final FileLock lock = lock(dir);
+            if (lock == null) {
+                Log.info("icon store " + dir + " is already in use");
+                return null;
+            }
+            return new IconStore(dir, lock);
+        } catch (Throwable t) {
+            Log.error("opening icon store " + dir, t);
+            return null;
+        }
+    }
+
+    /** the directories of the stores we've locked */
+    private static final Set<File> Locked = new HashSet();
+
+    /** @return an exclusive lock on the store in the given directory, or null if it's already in use */
+    private static FileLock lock(File dir)
+        throws IOException
+    {
+        synchronized (Locked) {
+            // We must check this first: file locks are held per-process, and closing
+            // any channel on the file, such as one from a failed attempt to lock it
+            // again, would release the lock we already have.
+            final File key = dir.getCanonicalFile();
+            if (Locked.contains(key))
+                return null;
+            final RandomAccessFile raf = new RandomAccessFile(new File(dir, LOCK_FILE), "rw");
+            FileLock lock = null;
+            try {
+                lock = raf.getChannel().tryLock();
+            } finally {
+                if (lock == null)
+                    raf.close();
+            }
+            if (lock != null)
+                Locked.add(key);
+            return lock;
+        }
+    }
+
+    private IconStore(File dir, FileLock lock)
+        throws IOException
+    {
+        this.dir = dir;
+        this.lock = lock;
+
+        for (File file : findIndexFiles()) {
+            if (mapIndex(file))
+                break;
+            Log.warn("skipping unusable icon index " + file);
+        }
+
+        if (index == null) {
+            deleteStoreFiles();
+            createIndex(MIN_SLOTS, null);
+        }
+        deleteStaleIndexFiles();
+
+        if (DEBUG.IMAGE || DEBUG.IO) Log.debug("opened " + this);
+    }
+
+    /** @return true if the store has an icon for the given key */
+    synchronized boolean contains(URI key) {
+        final byte[] uri = toBytes(key);
+        return findKey(hash(uri), uri) >= 0;
+    }
+
+    /** @return a handle on the stored icon for the given key, or null if we don't have it */
+    synchronized Images.Handle get(URI key) {
+        final byte[] uri = toBytes(key);
+        final int slot = findKey(hash(uri), uri);
+        if (slot < 0)
+            return null;
+
+        try {
+            final long keyLoc = index.getLong(keySlot(slot) + 8);
+            final ByteBuffer ks = segmentFor(keyLoc, KEY_HEADER);
+            final int ko = offset(keyLoc);
+            if (ks == null)
+                throw new IOException("bad key location " + Long.toHexString(keyLoc));
+            final int sourceWidth = ks.getInt(ko + K_SOURCE_WIDTH);
+            final int sourceHeight = ks.getInt(ko + K_SOURCE_HEIGHT);
+            final long pixelLoc = ks.getLong(ko + K_PIXELS);
+
+            final ByteBuffer ps = segmentFor(pixelLoc, PIXEL_HEADER);
+            final int po = offset(pixelLoc);
+            if (ps == null || ps.getInt(po) != PIXEL_RECORD)
+                throw new IOException("bad pixel record at " + Long.toHexString(pixelLoc));
+            final int width = ps.getInt(po + P_WIDTH);
+            final int height = ps.getInt(po + P_HEIGHT);
+            final boolean alpha = (ps.getInt(po + P_FLAGS) & FLAG_ALPHA) != 0;
+            if (width <= 0 || height <= 0 || po + PIXEL_HEADER + width * height * 4L > SEGMENT_BYTES)
+                throw new IOException("bad pixel record size " + width + "x" + height);
+
+            final Image image = createImage(ps, po + PIXEL_HEADER, width, height, alpha);
+            final Map<String,?> data;
+            if (sourceWidth > 0 && sourceHeight > 0)
+                data = Collections.singletonMap("sourcePixels", new int[] { sourceWidth, sourceHeight });
+            else
+                data = Collections.EMPTY_MAP;
+            return new Images.Handle(image, data);
+
+        } catch (Throwable t) {
+            Log.warn("dropping unreadable icon " + key + ": " + t);
+            removeSlot(slot);
+            return null;
+        }
+    }
+
+    /**
+     * Add an icon to the store, replacing any existing icon for the given key.
+     * @param sourceWidth/sourceHeight the pixel size of the original image the icon was made from
+     * @return true if the icon was stored
+     */
+    synchronized boolean put(URI key, Image image, int sourceWidth, int sourceHeight) {
+        if (!(image instanceof BufferedImage)) {
+            // icons are always produced as BufferedImage's (see Images.createIcon)
+            Log.warn("can't store non-buffered icon " + Util.tags(image) + " for " + key);
+            return false;
+        }
+        try {
+            final BufferedImage icon = (BufferedImage) image;
+            final int width = icon.getWidth();
+            final int height = icon.getHeight();
+            final int[] pixels = icon.getRGB(0, 0, width, height, null, 0, width);
+            final long contentHash = contentHash(width, height, pixels);
+            final byte[] uri = toBytes(key);
+
+            ensureCapacity();
+
+            long pixelLoc = findContent(contentHash, width, height, pixels);
+            if (pixelLoc == EMPTY) {
+                pixelLoc = allocate(PIXEL_HEADER + pixels.length * 4);
+                final ByteBuffer ps = segmentFor(pixelLoc, PIXEL_HEADER);
+                final int po = offset(pixelLoc);
+                final ByteBuffer out = ps.duplicate().order(ByteOrder.nativeOrder());
+                out.position(po + PIXEL_HEADER);
+                out.asIntBuffer().put(pixels);
+                ps.putInt(po + P_WIDTH, width);
+                ps.putInt(po + P_HEIGHT, height);
+                ps.putInt(po + P_FLAGS, icon.getColorModel().hasAlpha() ? FLAG_ALPHA : 0);
+                ps.putLong(po + P_HASH, contentHash);
+                ps.putInt(po, PIXEL_RECORD); // last, so a partially written record is never valid
+                insert(contentSlot(0), contentHash, pixelLoc);
+                index.putInt(H_CONTENTS, index.getInt(H_CONTENTS) + 1);
+            } else {
+                if (DEBUG.IMAGE) Log.debug("sharing stored pixels for " + key);
+            }
+
+            final long keyLoc = allocate(pad(KEY_HEADER + uri.length));
+            final ByteBuffer ks = segmentFor(keyLoc, KEY_HEADER);
+            final int ko = offset(keyLoc);
+            for (int i = 0; i < uri.length; i++)
+                ks.put(ko + KEY_HEADER + i, uri[i]);
+            ks.putInt(ko + K_URI_LENGTH, uri.length);
+            ks.putInt(ko + K_SOURCE_WIDTH, sourceWidth);
+            ks.putInt(ko + K_SOURCE_HEIGHT, sourceHeight);
+            ks.putLong(ko + K_PIXELS, pixelLoc);
+            ks.putInt(ko, KEY_RECORD);
+
+            final long hash = hash(uri);
+            final int existing = findKey(hash, uri);
+            if (existing >= 0) {
+                index.putLong(keySlot(existing) + 8, keyLoc);
+            } else {
+                final boolean reused = insert(keySlot(0), hash, keyLoc);
+                index.putInt(H_KEYS, index.getInt(H_KEYS) + 1);
+                if (!reused)
+                    index.putInt(H_KEY_SLOTS_USED, index.getInt(H_KEY_SLOTS_USED) + 1);
+            }
+            return true;
+
+        } catch (Throwable t) {
+            Log.error("storing icon " + key, t);
+            return false;
+        }
+    }
+
+    /** remove any icon for the given key: @return true if there was one */
+    synchronized boolean remove(URI key) {
+        final byte[] uri = toBytes(key);
+        final int slot = findKey(hash(uri), uri);
+        if (slot < 0)
+            return false;
+        removeSlot(slot);
+        return true;
+    }
+
+    /** force any changes to the store out to disk */
+    synchronized void flush() {
+        index.force();
+        for (ByteBuffer segment : segments)
+            if (segment != null)
+                ((MappedByteBuffer)segment).force();
+    }
+
+    private void removeSlot(int slot) {
+        index.putLong(keySlot(slot) + 8, DELETED);
+        index.putInt(H_KEYS, index.getInt(H_KEYS) - 1);
+    }
+
+    //-----------------------------------------------------------------------------
+    // index tables
+    //-----------------------------------------------------------------------------
+
+    private int keySlot(int i) {
+        return HEADER_BYTES + i * SLOT_BYTES;
+    }
+
+    private int contentSlot(int i) {
+        return HEADER_BYTES + (slots + i) * SLOT_BYTES;
+    }
+
+    private static long indexBytes(int slots) {
+        return HEADER_BYTES + 2L * slots * SLOT_BYTES;
+    }
+
+    private int firstProbe(long hash) {
+        return (int) (hash ^ (hash >>> 32)) & (slots - 1);
+    }
+
+    /** @return the key table slot for the given key, or -1 if not found */
+    private int findKey(long hash, byte[] uri) {
+        int i = firstProbe(hash);
+        for (int probes = 0; probes < slots; probes++) {
+            final int at = keySlot(i);
+            final long loc = index.getLong(at + 8);
+            if (loc == EMPTY)
+                break;
+            if (loc != DELETED && index.getLong(at) == hash && keyMatches(loc, uri))
+                return i;
+            i = (i + 1) & (slots - 1);
+        }
+        return -1;
+    }
+
+    private boolean keyMatches(long loc, byte[] uri) {
+        try {
+            final ByteBuffer ks = segmentFor(loc, KEY_HEADER + uri.length);
+            final int ko = offset(loc);
+            if (ks == null || ks.getInt(ko) != KEY_RECORD || ks.getInt(ko + K_URI_LENGTH) != uri.length)
+                return false;
+            for (int i = 0; i < uri.length; i++)
+                if (ks.get(ko + KEY_HEADER + i) != uri[i])
+                    return false;
+            return true;
+        } catch (IOException e) {
+            Log.warn("reading key record: " + e);
+            return false;
+        }
+    }
+
+    /** @return the location of an identical stored pixel record, or EMPTY if there isn't one */
+    private long findContent(long hash, int width, int height, int[] pixels)
+        throws IOException
+    {
+        int i = firstProbe(hash);
+        for (int probes = 0; probes < slots; probes++) {
+            final int at = contentSlot(i);
+            final long loc = index.getLong(at + 8);
+            if (loc == EMPTY)
+                break;
+            if (index.getLong(at) == hash && pixelsMatch(loc, width, height, pixels))
+                return loc;
+            i = (i + 1) & (slots - 1);
+        }
+        return EMPTY;
+    }
+
+    private boolean pixelsMatch(long loc, int width, int height, int[] pixels)
+        throws IOException
+    {
+        final ByteBuffer ps = segmentFor(loc, PIXEL_HEADER + pixels.length * 4);
+        final int po = offset(loc);
+        if (ps == null
+            || ps.getInt(po) != PIXEL_RECORD
+            || ps.getInt(po + P_WIDTH) != width
+            || ps.getInt(po + P_HEIGHT) != height)
+            return false;
+        final IntBuffer stored = intView(ps, po + PIXEL_HEADER, pixels.length);
+        for (int i = 0; i < pixels.length; i++)
+            if (stored.get(i) != pixels[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Insert into the first free slot of the table starting at the given
+     * byte offset into the index.
+     * @return true if a deleted slot was re-used
+     */
+    private boolean insert(int table, long hash, long loc) {
+        int i = firstProbe(hash);
+        for (;;) {
+            final int at = table + i * SLOT_BYTES;
+            final long old = index.getLong(at + 8);
+            if (old == EMPTY || old == DELETED) {
+                index.putLong(at, hash);
+                index.putLong(at + 8, loc);
+                return old == DELETED;
+            }
+            i = (i + 1) & (slots - 1);
+        }
+    }
+
+    /** grow the index if either table is getting too full: we keep them at most 3/4 full */
+    private void ensureCapacity()
+        throws IOException
+    {
+        final int limit = slots / 4 * 3;
+        if (index.getInt(H_KEY_SLOTS_USED) < limit && index.getInt(H_CONTENTS) < limit)
+            return;
+        createIndex(slots * 2, index);
+        deleteStaleIndexFiles();
+    }
+
+    /**
+     * Create a new index file with the given number of slots, and make it our
+     * current index.  If old is non-null, all it's content is re-hashed into
+     * the new index.
+     */
+    private void createIndex(int newSlots, MappedByteBuffer old)
+        throws IOException
+    {
+        final int oldSlots = slots;
+        final File file = new File(dir, INDEX_PREFIX + newSlots);
+        file.delete();
+        final MappedByteBuffer buf = map(file, indexBytes(newSlots));
+        for (int i = 0; i < buf.capacity(); i += 8)
+            buf.putLong(i, 0);
+
+        index = buf;
+        indexFile = file;
+        slots = newSlots;
+        buf.putInt(H_VERSION, VERSION);
+        buf.putInt(H_ORDER, BYTE_ORDER_MARK);
+        buf.putInt(H_SLOTS, newSlots);
+
+        if (old != null) {
+            buf.putInt(H_SEGMENTS, old.getInt(H_SEGMENTS));
+            buf.putInt(H_WRITE_POS, old.getInt(H_WRITE_POS));
+            int keys = 0, contents = 0;
+            for (int i = 0; i < oldSlots; i++) {
+                final int at = HEADER_BYTES + i * SLOT_BYTES;
+                final long loc = old.getLong(at + 8);
+                if (loc != EMPTY && loc != DELETED) {
+                    insert(keySlot(0), old.getLong(at), loc);
+                    keys++;
+                }
+            }
+            for (int i = 0; i < oldSlots; i++) {
+                final int at = HEADER_BYTES + (oldSlots + i) * SLOT_BYTES;
+                final long loc = old.getLong(at + 8);
+                if (loc != EMPTY) {
+                    insert(contentSlot(0), old.getLong(at), loc);
+                    contents++;
+                }
+            }
+            buf.putInt(H_KEYS, keys);
+            buf.putInt(H_KEY_SLOTS_USED, keys);
+            buf.putInt(H_CONTENTS, contents);
+            if (DEBUG.IMAGE || DEBUG.IO) Log.debug("grew icon index to " + newSlots + " slots; keys=" + keys + " contents=" + contents);
+        }
+
+        // Write the magic last, and make sure everything's on disk before the old
+        // index file is deleted: if we die before we get here, this index will
+        // be considered unusable, and the old index found on the next startup.
+        buf.putInt(H_MAGIC, INDEX_MAGIC);
+        if (old != null)
+            buf.force();
+    }
+
+    private boolean mapIndex(File file)
+        throws IOException
+    {
+        final long length = file.length();
+        if (length < HEADER_BYTES)
+            return false;
+        final MappedByteBuffer buf = map(file, length);
+        if (buf.getInt(H_MAGIC) != INDEX_MAGIC
+            || buf.getInt(H_VERSION) != VERSION
+            || buf.getInt(H_ORDER) != BYTE_ORDER_MARK)
+            return false;
+        final int n = buf.getInt(H_SLOTS);
+        if (n < MIN_SLOTS || Integer.bitCount(n) != 1 || length != indexBytes(n))
+            return false;
+        final int segmentCount = buf.getInt(H_SEGMENTS);
+        final int writePos = buf.getInt(H_WRITE_POS);
+        if (segmentCount < 0 || writePos < 0 || writePos > SEGMENT_BYTES)
+            return false;
+        for (int i = 0; i < segmentCount; i++) {
+            if (segmentFile(i).length() != SEGMENT_BYTES)
+                return false;
+        }
+        index = buf;
+        indexFile = file;
+        slots = n;
+        return true;
+    }
+
+    /** @return any index files found, largest first */
+    private List<File> findIndexFiles() {
+        final File[] files = dir.listFiles();
+        final List<File> found = new ArrayList();
+        if (files == null)
+            return found;
+        for (File f : files)
+            if (indexSize(f) > 0)
+                found.add(f);
+        Collections.sort(found, new Comparator<File>() {
+                public int compare(File a, File b) {
+                    final int sa = indexSize(a), sb = indexSize(b);
+                    return sa > sb ? -1 : (sa < sb ? 1 : 0);
+                }
+            });
+        return found;
+    }
+
+    private static int indexSize(File f) {
+        final String name = f.getName();
+        if (!name.startsWith(INDEX_PREFIX))
+            return -1;
+        try {
+            return Integer.parseInt(name.substring(INDEX_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** this may fail on some platforms for index files that are still mapped: they'll be deleted on a later startup */
+    private void deleteStaleIndexFiles() {
+        for (File f : findIndexFiles())
+            if (!f.equals(indexFile) && !f.delete())
+                if (DEBUG.IO) Log.debug("couldn't delete stale index " + f);
+    }
+
+    private void deleteStoreFiles() {
+        final File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File f : files) {
+            final String name = f.getName();
+            if (name.startsWith(INDEX_PREFIX) || name.startsWith(SEGMENT_PREFIX)) {
+                if (!f.delete())
+                    Log.warn("couldn't delete " + f);
+            }
+        }
+    }
+
+    //-----------------------------------------------------------------------------
+    // segments
+    //-----------------------------------------------------------------------------
+
+    private static long location(int segment, int offset) {
+        return ((long) segment << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static int segmentIndex(long loc) {
+        return (int) (loc >>> 32);
+    }
+
+    private static int offset(long loc) {
+        return (int) loc;
+    }
+
+    private File segmentFile(int n) {
+        return new File(dir, SEGMENT_PREFIX + n);
+    }
+
+    /**
+     * @return the segment buffer holding the record at the given location, or null if
+     * the location isn't valid for a record of at least the given size.
+     */
+    private ByteBuffer segmentFor(long loc, int size)
+        throws IOException
+    {
+        final int n = segmentIndex(loc);
+        final int off = offset(loc);
+        if (n < 0 || n >= index.getInt(H_SEGMENTS) || off < SEGMENT_HEADER || off + (long) size > SEGMENT_BYTES)
+            return null;
+        return segment(n);
+    }
+
+    /** segments are only mapped the first time they're needed */
+    private ByteBuffer segment(int n)
+        throws IOException
+    {
+        while (segments.size() <= n)
+            segments.add(null);
+        ByteBuffer segment = segments.get(n);
+        if (segment == null) {
+            segment = map(segmentFile(n), SEGMENT_BYTES);
+            segments.set(n, segment);
+        }
+        return segment;
+    }
+
+    /** @return the location of a newly reserved space in the current segment, starting a new segment if needed */
+    private long allocate(int bytes)
+        throws IOException
+    {
+        if (bytes > SEGMENT_BYTES - SEGMENT_HEADER)
+            throw new IOException("icon record too large: " + bytes + " bytes");
+        int n = index.getInt(H_SEGMENTS) - 1;
+        int pos = index.getInt(H_WRITE_POS);
+        if (n < 0 || pos + bytes > SEGMENT_BYTES) {
+            n++;
+            segmentFile(n).delete(); // in case of any leftovers from a discarded store
+            final ByteBuffer segment = segment(n);
+            segment.putInt(0, SEGMENT_MAGIC);
+            segment.putInt(4, VERSION);
+            index.putInt(H_SEGMENTS, n + 1);
+            pos = SEGMENT_HEADER;
+            if (DEBUG.IMAGE || DEBUG.IO) Log.debug("started icon segment " + n);
+        }
+        index.putInt(H_WRITE_POS, pos + bytes);
+        return location(n, pos);
+    }
+
+    private static MappedByteBuffer map(File file, long size)
+        throws IOException
+    {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buf.order(ByteOrder.nativeOrder());
+            return buf;
+        } finally {
+            raf.close(); // the mapping remains valid after the channel is closed
+        }
+    }
+
+    private static IntBuffer intView(ByteBuffer segment, int offset, int count) {
+        final ByteBuffer view = segment.duplicate();
+        view.position(offset);
+        view.limit(offset + count * 4);
+        return view.slice().order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    //-----------------------------------------------------------------------------
+    // images
+    //-----------------------------------------------------------------------------
+
+    /**
+     * Create an image holding a copy of the pixels at the given offset into a mapped
+     * segment.  We don't hand out images backed by the mapped data itself: with a custom
+     * DataBuffer they're TYPE_CUSTOM images, which Java2D can only draw with it's slow,
+     * generic per-pixel loops.  The pixels are set through the raster, rather than the
+     * DataBufferInt's array, so the image remains eligible to be cached as a managed image.
+     */
+    private static BufferedImage createImage(ByteBuffer segment, int offset, int width, int height, boolean alpha) {
+        final BufferedImage image = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        final int[] pixels = new int[width * height];
+        intView(segment, offset, pixels.length).get(pixels);
+        image.getRaster().setDataElements(0, 0, width, height, pixels);
+        return image;
+    }
+
+    //-----------------------------------------------------------------------------
+    // hashing
+    //-----------------------------------------------------------------------------
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static byte[] toBytes(URI key) {
+        try {
+            return key.toString().getBytes("UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new Error(e); // UTF-8 is always supported
+        }
+    }
+
+    /** 64 bit FNV-1a */
+    private static long hash(byte[] bytes) {
+        long h = FNV_OFFSET;
+        for (byte b : bytes) {
+            h ^= (b & 0xff);
+            h *= FNV_PRIME;
+        }
+        return h;
+    }
+
+    private static long contentHash(int width, int height, int[] pixels) {
+        long h = FNV_OFFSET;
+        h = (h ^ width) * FNV_PRIME;
+        h = (h ^ height) * FNV_PRIME;
+        for (int p : pixels)
+            h = (h ^ p) * FNV_PRIME;
+        return h;
+    }
+
+    private static int pad(int bytes) {
+        return (bytes + 3) & ~3;
+    }
+
+    @Override public synchronized String toString() {
+        final int segmentCount = index.getInt(H_SEGMENTS);
+        final long used = segmentCount == 0 ? 0 : (long) (segmentCount - 1) * SEGMENT_BYTES + index.getInt(H_WRITE_POS);
+        return String.format("IconStore[%s icons=%d images=%d segments=%d used=%.1fMB slots=%d]",
+                             dir,
+                             index.getInt(H_KEYS),
+                             index.getInt(H_CONTENTS),
+                             segmentCount,
+                             used / (1024.0 * 1024.0),
+                             slots);
+    }
+}
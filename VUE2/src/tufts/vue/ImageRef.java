@@ -462,6 +462,12 @@ public class ImageRef
         }
     }
     
+    /** the Images cache evicted the image data for the given rep (always our full rep): we'll draw the icon till it's needed again */
+    void notifyRepWasEvicted(final ImageRep rep) {
+        if (DEBUG.IMAGE) debug("evicted: " + rep + "; icon available: " + _icon.available());
+        repaint();
+    }
+    
     /** the ImageRep is done loading -- it has all the renderable image data, unless hardImageRef is null,
      in which case we had an error */
     public void notifyRepHasArrived(final ImageRep freshRep, final Images.Handle hardImageRef)
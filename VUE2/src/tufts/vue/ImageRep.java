@@ -89,6 +89,7 @@ public abstract class ImageRep implements /*ImageRef.Rep,*/ Images.Listener
             super(ref, src);
         }
         Ref newRef(Image o) { return new SoftRef(o); }
+        @Override boolean isEvictable() { return !src().isImageSourceForIcon(); }
     }
 
     public static final ImageRep UNAVAILABLE = new ImageRep() {
@@ -131,6 +132,15 @@ public abstract class ImageRep implements /*ImageRef.Rep,*/ Images.Listener
 
     abstract Ref<Image> newRef(Image o);
 
+    /** @return true if the Images cache may ask us to drop our image data to stay within it's memory budget */
+    boolean isEvictable() {
+        return false;
+    }
+
+    ImageSource src() {
+        return _data;
+    }
+
     private synchronized void setSize(final int w, final int h) {
         if (w <= 0 || h <= 0) {
             Log.warn("bad size " + w + "x" + h);
@@ -353,6 +363,9 @@ public abstract class ImageRep implements /*ImageRef.Rep,*/ Images.Listener
             setHandle(newRef(image), "[cacheData/"+cause+"]");
         }
 
+        if (isEvictable())
+            Images.trackFullRep(_data.key, this);
+
         // (at this point we could null local stack image var for potential GC help)
 
         // We do not include the below notify in the sync.  AWT blocks we're avoiding:
@@ -431,6 +444,21 @@ public abstract class ImageRep implements /*ImageRef.Rep,*/ Images.Listener
         //_ref.notifyRepHasProgress(this, -1); // force a repaint (don't: can create thrashing loop us during low-memory conditions)
     }
 
+    /**
+     * Called by Images when it evicts the given image from it's memory cache to stay
+     * within budget.  If it's still our image, we drop it, so it can actually be
+     * freed, and our ImageRef will draw it's icon rep until we're needed again.
+     */
+    void evicted(Image image) {
+        synchronized (this) {
+            if (_handle.get() != image)
+                return;
+            setHandle(IMG_UNLOADED, "evicted");
+        }
+        if (_ref != null)
+            _ref.notifyRepWasEvicted(this);
+    }
+
     private Image get(final Ref<Image> handle) {
         final Image image = handle.get();
         if (image == null) {
@@ -493,6 +521,8 @@ public abstract class ImageRep implements /*ImageRef.Rep,*/ Images.Listener
 //                 reconstitute(); // could pass handle as arg to improve coherency?  Or would we just miss updates we want to see?
             
         } else {
+            if (isEvictable())
+                Images.touch(_data.key);
             ImageRef.renderImage(g, image, toWidth, toHeight);
         }
     }
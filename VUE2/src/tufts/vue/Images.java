@@ -48,8 +48,9 @@ import org.w3c.dom.NodeList;
  *
  * Handle the loading of images in background threads, making callbacks to deliver
  * results to multiple listeners that can be added at any time during the image fetch,
- * and caching (memory and disk) with a URI key, using a HashMap with SoftReference's
- * for the BufferedImage's so if we run low on memory they just drop out of the cache.
+ * and caching (memory and disk) with a URI key.  Full-size images are held in memory
+ * up to a byte budget with least-recently-used eviction, and icons are always held
+ * (see CacheMap).
  *
  * @version $Revision: 1.85 $ / $Date: 2010-02-03 19:17:40 $ / $Author: mike $
  * @author Scott Fraize
@@ -69,6 +70,10 @@ public class Images
     // we're just going with immediately created icons.
     static final boolean DELAYED_ICONS = false;
 
+    /** if true, icons are cached to disk in the memory-mapped IconStore instead of one PNG file per icon */
+    private static final boolean USE_ICON_STORE = true;
+    private static final String ICON_STORE_DIR = "icons";
+
     public static void setLowMemory(Object cause) {
         synchronized (Images.class) {
             if (LOW_MEMORY_COUNT == 0) {
@@ -82,6 +87,11 @@ public class Images
             LOW_MEMORY_COUNT++;
             ProcessingPool.shrinkIfPossible(first);
         }
+        // Give back a quarter of the image budget each time: this evicts the least
+        // recently used images now, rather than leaving it to the GC to throw away
+        // whatever soft references it likes.
+        final long budget = RawCache.getBudget();
+        RawCache.setBudget(budget - budget / 4);
         // we do this out side of the sync just in case, as
         // below will obtain it's own sync
         //TaskQueue.flushCachingRequests(); // needs testing
@@ -104,7 +114,10 @@ public class Images
     }
     
     public static VueAction ClearCacheAction = new VueAction("Empty Image Cache") {
-            public void act() { RawCache.clear(); }
+            public void act() {
+                Log.info("clearing image cache: " + getCacheStatistics());
+                RawCache.clear();
+            }
         };
     
     
@@ -215,15 +228,20 @@ public class Images
         if (dir == null)
             return;
 
+        final IconStore iconStore = getIconStore();
+
         Log.debug("listing disk cache...");
         File[] files = dir.listFiles();
         Log.debug("listing disk cache: done; entries=" + files.length);
+
+        // icon cache files from before we had the IconStore
+        final List<URI> legacyIcons = new ArrayList();
         
         synchronized (RawCache) {
             for (int i = 0; i < files.length; i++) {
                 File file = files[i];
                 String name = file.getName();
-                if (name.charAt(0) == '.')
+                if (name.charAt(0) == '.' || name.equals(ICON_STORE_DIR))
                     continue;
                 //out("found cache file " + file);
                 URI key = null;
@@ -231,6 +249,14 @@ public class Images
                     key = cacheFileNameToKey(name);
                     if (DEBUG.IMAGE && DEBUG.META) out("made cache key: " + key);
                     if (key != null) {
+                        if (iconStore != null && isIconKey(key)) {
+                            if (iconStore.contains(key)) {
+                                // already migrated
+                                file.delete();
+                                continue;
+                            }
+                            legacyIcons.add(key);
+                        }
                         RawCache.put(key, new CacheEntry(file));
                         //RefCache.put(key, file);
                    }
@@ -239,6 +265,153 @@ public class Images
                 }
             }
         }
+
+        if (legacyIcons.size() > 0)
+            migrateLegacyIcons(legacyIcons);
+    }
+
+    private static final java.util.regex.Pattern IconKeyPattern = java.util.regex.Pattern.compile(".*\\.i[0-9]+\\.png$");
+
+    /** @return true if the given cache key is for an icon (see ImageSource.makeIconKey) */
+    private static boolean isIconKey(URI key) {
+        return IconKeyPattern.matcher(key.toString()).matches();
+    }
+
+    private static final Object IconStoreLock = new Object();
+    private static IconStore IconDiskStore;
+    private static boolean IconStoreOpened;
+
+    /** @return the persistent icon store, or null if it's not in use or couldn't be opened */
+    private static IconStore getIconStore() {
+        synchronized (IconStoreLock) {
+            if (!IconStoreOpened) {
+                IconStoreOpened = true;
+                final File dir = getCacheDirectory();
+                if (USE_ICON_STORE && dir != null) {
+                    IconDiskStore = IconStore.open(new File(dir, ICON_STORE_DIR));
+                    if (IconDiskStore != null)
+                        Log.info("opened " + IconDiskStore);
+                }
+            }
+            return IconDiskStore;
+        }
+    }
+
+    /**
+     * If the given source is for an icon we have in the IconStore, enter it in the
+     * memory cache and return it.  This should only be called from within a Cache lock.
+     */
+    private static Handle getStoredIcon(ImageSource imageSRC) {
+        if (!imageSRC.isImageSourceForIcon())
+            return null;
+        final IconStore iconStore = getIconStore();
+        if (iconStore == null)
+            return null;
+        final Handle icon = iconStore.get(imageSRC.key);
+        if (icon != null) {
+            if (DEBUG.IMAGE) out("found in icon store: " + imageSRC);
+            RawCache.put(imageSRC.key, new CacheEntry(icon, null, true));
+        }
+        return icon;
+    }
+
+    /**
+     * Move an icon loaded from a per-file disk cache entry into the IconStore,
+     * and delete the old cache file.
+     */
+    private static boolean storeLegacyIcon(URI key, Handle icon) {
+        final IconStore iconStore = getIconStore();
+        if (iconStore == null)
+            return false;
+        final Object sourcePixels = icon.data.get("sourcePixels");
+        final int[] sourceSize = sourcePixels instanceof int[] ? (int[]) sourcePixels : new int[2];
+        if (!iconStore.contains(key) && !iconStore.put(key, icon.image, sourceSize[0], sourceSize[1]))
+            return false;
+        final File legacyFile = new File(getCacheDirectory(), keyToCacheFileName(key));
+        if (legacyFile.exists() && !legacyFile.delete())
+            Log.warn("couldn't delete migrated icon cache file " + legacyFile);
+        return true;
+    }
+
+    /**
+     * Move all the given one-file-per-icon disk cache entries into the IconStore, in a
+     * low priority background thread.  Any that are requested for loading in the
+     * meantime are moved into the store when that load completes.
+     */
+    private static void migrateLegacyIcons(final List<URI> keys)
+    {
+        Log.info("migrating " + keys.size() + " icon cache files to " + getIconStore());
+        
+        final Thread thread = new Thread("IconStoreMigration") {
+                public void run() {
+                    int moved = 0;
+                    for (URI key : keys) {
+                        try {
+                            if (migrateLegacyIcon(key))
+                                moved++;
+                        } catch (Throwable t) {
+                            Log.warn("migrating icon " + key + ": " + t);
+                        }
+                    }
+                    getIconStore().flush();
+                    Log.info("migrated " + moved + " of " + keys.size() + " icon cache files; " + getIconStore());
+                }
+            };
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private static boolean migrateLegacyIcon(URI key)
+        throws IOException
+    {
+        final Object entry = RawCache.get(key);
+        if (!(entry instanceof CacheEntry) || !((CacheEntry)entry).isPreloadedDiskEntry()) {
+            // it's been loaded (or is loading) since startup, and will be migrated once loaded
+            return false;
+        }
+        final File file = ((CacheEntry)entry).file;
+        final Handle icon = readLegacyIcon(file);
+        if (icon == null)
+            return false;
+        synchronized (RawCache) {
+            // Only if no one has since kicked a load for this icon from the old cache file
+            // can we safely delete it.  If a load did start, it will migrate the icon itself.
+            if (RawCache.remove(key, entry))
+                return storeLegacyIcon(key, icon);
+            else
+                return false;
+        }
+    }
+
+    /** read a PNG icon file written by cacheIconToDisk, with it's source size meta-data */
+    private static Handle readLegacyIcon(File file)
+        throws IOException
+    {
+        final ImageInputStream input = ImageIO.createImageInputStream(file);
+        if (input == null)
+            return null;
+        ImageReader reader = null;
+        try {
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext())
+                return null;
+            reader = readers.next();
+            reader.setInput(input, true, false);
+            final Image image = reader.read(0);
+            Map<String,Object> data = Collections.EMPTY_MAP;
+            final String sourceSize = (String) extractVueImageMetaData(reader.getImageMetadata(0)).get("sourceSize");
+            if (sourceSize != null) {
+                final String[] dim = sourceSize.split(",");
+                data = new HashMap(1);
+                data.put("sourcePixels", new int[] { Integer.parseInt(dim[0]), Integer.parseInt(dim[1]) });
+            }
+            return new Handle(image, data);
+        } finally {
+            if (reader != null)
+                reader.dispose();
+            input.close();
+        }
     }
     
     /** @return the cache file for the given resource, or null if none exists */
@@ -265,6 +438,16 @@ public class Images
         private final Reference<Image> ref;
         private final Map<String,?> data;
         private final File file;
+        /** hard reference to the image while it's within the memory budget of the cache (full-size images only) */
+        private volatile Image hard;
+        /** estimated bytes of image data held by this entry */
+        private final long weight;
+        /** true if this entry holds an icon: icons are never evicted to stay within the memory budget */
+        private final boolean isIcon;
+        /** the value of the CacheMap access clock the last time this entry was used */
+        private volatile long lastAccess;
+        /** true while our weight is counted in the CacheMap totals: guarded by the CacheMap lock */
+        private boolean accounted;
         // Loader loader;
         // todo: add loader here so we can always have CacheEntry's in the cache, and
         // so file is information always available, tho that could be extracted from the
@@ -273,31 +456,38 @@ public class Images
         // want a separate icon cache.
 
         /** image should only be null for startup init with existing cache files */
-        CacheEntry(Image image, File cacheFile, Map<String,?> props)
+        CacheEntry(Image image, File cacheFile, Map<String,?> props, boolean isIcon)
         {
             if (image == null && cacheFile == null)
                 throw new IllegalArgumentException("CacheEntry: at least one of image or file must be non null");
-            if (image != null)
+            if (image != null) {
                 this.ref = new SoftReference(image);
-            else
+                this.weight = estimateBytes(image);
+                if (!isIcon)
+                    this.hard = image;
+            } else {
                 this.ref = null;
+                this.weight = 0;
+            }
             this.file = cacheFile;
             this.data = props;
+            this.isIcon = isIcon;
             if (DEBUG.IMAGE) out("new " + this);
         }
 
-        CacheEntry(Image image, File cacheFile) {
-            this(image, cacheFile, Collections.EMPTY_MAP);
-        }
-        
-        CacheEntry(Handle handle, File cacheFile) {
-            this(handle.image, cacheFile, handle.data);
+        CacheEntry(Handle handle, File cacheFile, boolean isIcon) {
+            this(handle.image, cacheFile, handle.data, isIcon);
         }
         
         // for startup disk entries: note that props can't change (is final), so this
         // entry must be replaced once the image is loaded.
         CacheEntry(File cacheFile) {
-            this(null, cacheFile, Collections.EMPTY_MAP); 
+            this(null, cacheFile, Collections.EMPTY_MAP, false); 
+        }
+
+        /** @return true if this entry is currently counted against the memory budget */
+        boolean isBudgeted() {
+            return hard != null;
         }
         
 
@@ -311,6 +501,10 @@ public class Images
             if (ref == null)
                 return null;
 
+            final Image hardImage = hard;
+            if (hardImage != null)
+                return hardImage;
+
             Image image = ref.get();
             // will be null if was cleared
             if (image == null) {
@@ -334,12 +528,28 @@ public class Images
         }
 
         void clear() {
+            hard = null;
             if (ref != null)
                 ref.clear();
         }
 
         public String toString() {
-            return "CacheEntry[" + tag(getCachedImage()) + "; file=" + file + "]";
+            return "CacheEntry[" + tag(getCachedImage()) + "; file=" + file + (isIcon ? "; icon" : "") + "]";
+        }
+    }
+
+    /** @return an estimate of the bytes of pixel data held by the given image */
+    private static long estimateBytes(Image image) {
+        if (image instanceof BufferedImage) {
+            final java.awt.image.DataBuffer buffer = ((BufferedImage)image).getRaster().getDataBuffer();
+            return (long) buffer.getSize() * buffer.getNumBanks() * java.awt.image.DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+        } else {
+            final int w = image.getWidth(null);
+            final int h = image.getHeight(null);
+            if (w > 0 && h > 0)
+                return (long) w * h * 4;
+            else
+                return 0;
         }
     }
 
@@ -411,32 +621,222 @@ public class Images
         //===================================================================================================
         
 
-    /*
-     * Not all HashMap methods covered: only safe to use
-     * the ones explicity implemented here.
+    /**
+     * The memory cache.  Lookups (by far the most common operation, as they happen
+     * during painting) go straight to a ConcurrentHashMap and never lock.
+     * Modifications are synchronized on the CacheMap itself, which is also the lock
+     * used by callers that need to make compound cache transactions (see
+     * getCacheLock()), so those transactions still see no modifications while they
+     * hold the lock.
+     *
+     * Full-size images are held with hard references up to a memory budget, beyond
+     * which the least recently used are evicted.  This way the memory held by image
+     * data stays steady, as opposed to having the GC throw away whole sets of
+     * SoftReference'd images at once.  Any full-size ImageRep's holding an evicted
+     * image are told to drop it, and their ImageRef's fall back to their icon rep, as
+     * icon images aren't subject to eviction.
+     *
+     * Not all Map methods are covered: only the ones explicity implemented here.
      */
-    private static class CacheMap extends HashMap {
+    private static final class CacheMap {
+
+        /** below this, we won't shrink the budget any further in low-memory conditions */
+        private static final long MIN_BUDGET = 16L * 1024 * 1024;
+
+        private final ConcurrentHashMap<Object,Object> map = new ConcurrentHashMap(256, 0.75f, 16);
+
+        /** full-size ImageRep's, weakly held, that are holding images for a given key */
+        private final ConcurrentHashMap<Object,List<Reference<ImageRep>>> holders = new ConcurrentHashMap();
 
-        public synchronized Object get(Object key) {
-            return super.get(key);
+        private final AtomicLong clock = new AtomicLong();
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+
+        // guarded by this:
+        private long budget;
+        private long bytesInUse;
+        private long iconBytes;
+
+        CacheMap() {
+            final String mb = System.getProperty("tufts.vue.imageCacheMB");
+            long initialBudget = Runtime.getRuntime().maxMemory() / 3;
+            if (mb != null) {
+                try {
+                    initialBudget = Long.parseLong(mb) * 1024 * 1024;
+                } catch (NumberFormatException e) {
+                    Log.warn("bad value for tufts.vue.imageCacheMB: " + mb);
+                }
+            }
+            budget = Math.max(MIN_BUDGET, initialBudget);
         }
-        
-        public synchronized boolean containsKey(Object key) {
-            return super.containsKey(key);
+
+        public Object get(Object key) {
+            return map.get(key);
         }
         
-        public synchronized Object put(Object key, Object value) {
-            return super.put(key, value);
+        public boolean containsKey(Object key) {
+            return map.containsKey(key);
+        }
+
+        /** Record a use of the given entry for the LRU ordering.  Does not lock. */
+        void touch(CacheEntry entry) {
+            entry.lastAccess = clock.incrementAndGet();
+        }
+
+        void recordHit() { hits.incrementAndGet(); }
+        void recordMiss() { misses.incrementAndGet(); }
+
+        public Object put(Object key, Object value) {
+            final List<Evicted> evicted;
+            final Object old;
+            synchronized (this) {
+                old = map.put(key, value);
+                unaccount(old);
+                if (value instanceof CacheEntry) {
+                    final CacheEntry entry = (CacheEntry) value;
+                    touch(entry);
+                    account(entry);
+                }
+                evicted = bytesInUse > budget ? trim() : null;
+            }
+            if (evicted != null)
+                notifyEvicted(evicted);
+            return old;
         }
 
         public synchronized Object remove(Object key) {
-            return super.remove(key);
+            final Object old = map.remove(key);
+            unaccount(old);
+            return old;
+        }
+
+        /** remove the entry for the given key only if it's still the given entry */
+        synchronized boolean remove(Object key, Object entry) {
+            if (map.remove(key, entry)) {
+                unaccount(entry);
+                return true;
+            } else
+                return false;
+        }
+
+        /** must be called with the lock held */
+        private void account(CacheEntry entry) {
+            if (entry.accounted)
+                return;
+            entry.accounted = true;
+            if (entry.isBudgeted())
+                bytesInUse += entry.weight;
+            else if (entry.isIcon)
+                iconBytes += entry.weight;
+        }
+
+        /** must be called with the lock held: each entry is only ever un-accounted once */
+        private void unaccount(Object old) {
+            if (old instanceof CacheEntry) {
+                final CacheEntry entry = (CacheEntry) old;
+                if (!entry.accounted)
+                    return;
+                entry.accounted = false;
+                if (entry.isBudgeted())
+                    bytesInUse -= entry.weight;
+                else if (entry.isIcon)
+                    iconBytes -= entry.weight;
+            }
+        }
+
+        /** Change the memory budget for full-size images, evicting as needed */
+        void setBudget(long bytes) {
+            final List<Evicted> evicted;
+            synchronized (this) {
+                budget = Math.max(MIN_BUDGET, bytes);
+                evicted = bytesInUse > budget ? trim() : null;
+            }
+            if (evicted != null)
+                notifyEvicted(evicted);
         }
         
+        synchronized long getBudget() {
+            return budget;
+        }
+        
+        synchronized long getBytesInUse() {
+            return bytesInUse;
+        }
+
+        /**
+         * Evict the least recently used full-size images until we're at 90% of
+         * budget, so we're not evicting again on every subsequent put.  Must be called
+         * with the lock held.
+         * @return the evicted entries, whose holders have yet to be notified
+         */
+        private List<Evicted> trim() {
+            final List<Evicted> budgeted = new ArrayList();
+            for (Map.Entry<Object,Object> e : map.entrySet()) {
+                final Object value = e.getValue();
+                if (value instanceof CacheEntry && ((CacheEntry)value).isBudgeted())
+                    budgeted.add(new Evicted(e.getKey(), (CacheEntry) value));
+            }
+
+            Collections.sort(budgeted);
+
+            final long target = budget - budget / 10;
+            final List<Evicted> evicted = new ArrayList();
+            for (Evicted e : budgeted) {
+                if (bytesInUse <= target)
+                    break;
+                unaccount(e.entry);
+                e.entry.hard = null; // no longer budgeted
+                if (e.entry.getFile() == null) {
+                    // nothing left to reload from in the cache: the original source will be used
+                    map.remove(e.key, e.entry);
+                }
+                evicted.add(e);
+            }
+            if (DEBUG.IMAGE || DEBUG.Enabled)
+                Log.debug(String.format("evicting %d of %d images; in-use now %.1fMB of %.1fMB budget",
+                                        evicted.size(), budgeted.size(), bytesInUse / 1048576.0, budget / 1048576.0));
+            return evicted;
+        }
+
+        /** Drop the image data for the evicted entries and tell any holders.  Done outside the cache lock. */
+        private void notifyEvicted(List<Evicted> evicted) {
+            for (Evicted e : evicted) {
+                e.entry.clear();
+                evictions.incrementAndGet();
+                final List<Reference<ImageRep>> reps = holders.remove(e.key);
+                if (reps != null) {
+                    for (Reference<ImageRep> ref : reps) {
+                        final ImageRep rep = ref.get();
+                        if (rep != null)
+                            rep.evicted(e.image);
+                    }
+                }
+            }
+        }
+
+        /** note that the given full-size rep is holding image data that may later be evicted */
+        void addHolder(Object key, ImageRep rep) {
+            List<Reference<ImageRep>> reps = holders.get(key);
+            if (reps == null) {
+                reps = new CopyOnWriteArrayList();
+                final List<Reference<ImageRep>> existing = holders.putIfAbsent(key, reps);
+                if (existing != null)
+                    reps = existing;
+            }
+            for (Reference<ImageRep> ref : reps) {
+                final ImageRep held = ref.get();
+                if (held == rep)
+                    return;
+                else if (held == null)
+                    reps.remove(ref);
+            }
+            reps.add(new WeakReference(rep));
+        }
 
         // for now, only clears memory cache
         public synchronized void clear() {
-            final Iterator i = values().iterator();
+            final Iterator i = map.values().iterator();
             while (i.hasNext()) {
                 Object entry = i.next();
 
@@ -450,6 +850,9 @@ public class Images
                 
                 if (entry instanceof CacheEntry) {
                     CacheEntry ce = (CacheEntry) entry;
+                    // any entry kept for it's file no longer holds it's image: it mustn't
+                    // be subtracted from the totals again when it's later replaced
+                    unaccount(ce);
                     ce.clear();
                     if (ce.getFile() == null)
                         i.remove();
@@ -469,12 +872,77 @@ public class Images
                     //((Loader)entry).interrupt();
                 }
             }
-
             //super.clear();
         }
+
+        synchronized String stats() {
+            final long h = hits.get();
+            final long m = misses.get();
+            return String.format("entries=%d hits=%d misses=%d (%.1f%% hit) evictions=%d images=%.1fMB budget=%.1fMB icons=%.1fMB",
+                                 map.size(), h, m, (h + m) == 0 ? 0f : (100f * h / (h + m)),
+                                 evictions.get(),
+                                 bytesInUse / 1048576.0,
+                                 budget / 1048576.0,
+                                 iconBytes / 1048576.0);
+        }
         
     }
 
+    /** an entry chosen for eviction: sorts least recently used first */
+    private static final class Evicted implements Comparable<Evicted> {
+        final Object key;
+        final CacheEntry entry;
+        final Image image;
+        final long lastAccess;
+        Evicted(Object key, CacheEntry entry) {
+            this.key = key;
+            this.entry = entry;
+            this.image = entry.hard;
+            this.lastAccess = entry.lastAccess; // fetch the volatile once so the sort is stable
+        }
+        public int compareTo(Evicted e) {
+            return lastAccess < e.lastAccess ? -1 : (lastAccess == e.lastAccess ? 0 : 1);
+        }
+    }
+
+    /** @return a one-line summary of the memory cache's hit, miss and eviction counts and memory use */
+    public static String getCacheStatistics() {
+        final IconStore iconStore = getIconStore();
+        if (iconStore == null)
+            return RawCache.stats();
+        else
+            return RawCache.stats() + "; " + iconStore;
+    }
+
+    /** @return the current memory budget in bytes for full-size images held in the memory cache */
+    public static long getCacheBudget() {
+        return RawCache.getBudget();
+    }
+
+    /**
+     * Set the memory budget in bytes for full-size images in the memory cache.  If
+     * already over the new budget, the least recently used images will be evicted.
+     * Icons are not counted against the budget.
+     */
+    public static void setCacheBudget(long bytes) {
+        RawCache.setBudget(bytes);
+    }
+
+    /** ImageRep's holding full-size image data register here to be told if it's evicted from the cache */
+    static void trackFullRep(URI key, ImageRep rep) {
+        if (key != null)
+            RawCache.addHolder(key, rep);
+    }
+
+    /** ImageRep's call this when their image is drawn to keep it in the recently used part of the cache */
+    static void touch(URI key) {
+        if (key == null)
+            return;
+        final Object entry = RawCache.get(key);
+        if (entry instanceof CacheEntry)
+            RawCache.touch((CacheEntry) entry);
+    }
+
     /**
      * flush any cache BufferedImages we have for the give file: future requests
      * will force the image data to be reloaded from the file (useful if we know
@@ -489,6 +957,10 @@ public class Images
         // TODO: sync icon key 128 size with size in ImageRef, or better yet, search
         // cache for all cache keys of any size (tho we only have one size for now)
         
+        final IconStore iconStore = getIconStore();
+        if (iconStore != null && iconStore.remove(iconKey))
+            Log.info("removed stored icon " + iconKey);
+        
         if (flushEntry(iconKey, "ic128")) {
             File iconFile = new File(getCacheDirectory(), keyToCacheFileName(iconKey));
             Log.info("looking for cache file " + iconFile);
@@ -2065,8 +2537,15 @@ public class Images
         
         final Object entry = RawCache.get(imageSRC.key);
 
-        if (entry == null)
+        if (entry == null) {
+            final Handle storedIcon = getStoredIcon(imageSRC);
+            if (storedIcon != null) {
+                RawCache.recordHit();
+                return storedIcon;
+            }
+            RawCache.recordMiss();
             return null;
+        }
         
         if (DEBUG.IMAGE) out("found cache entry for key " + tag(imageSRC.key) + ": " + entry);
                 
@@ -2113,13 +2592,23 @@ public class Images
             // image was garbage collected: we need to remove this entry
             // from the cache completely and start from scratch:
             if (DEBUG.IMAGE) out("REMOVING FROM CACHE: " + imageSRC);
-            RawCache.remove(imageSRC.key);
+            RawCache.remove(imageSRC.key, ce);
         }
 
-        if (cachedImage == null)
+        if (cachedImage == null) {
+            // the icon store is preferred over any old per-file icon cache entry
+            final Handle storedIcon = getStoredIcon(imageSRC);
+            if (storedIcon != null) {
+                RawCache.recordHit();
+                return storedIcon;
+            }
+            RawCache.recordMiss();
             return null;
-        else
+        } else {
+            RawCache.recordHit();
+            RawCache.touch(ce);
             return new Handle(cachedImage, ce.data);
+        }
         
         //return cachedImage;
 
@@ -2144,7 +2633,12 @@ public class Images
      */
     public static boolean hasCacheEntry(URI cacheKey)
     {
-        return cacheKey != null && RawCache.get(cacheKey) != null;
+        if (cacheKey == null)
+            return false;
+        if (RawCache.get(cacheKey) != null)
+            return true;
+        final IconStore iconStore = getIconStore();
+        return iconStore != null && iconStore.contains(cacheKey);
     }
     
     private static Handle createAndCacheIcon(Listener listener, ImageSource iconSource)
@@ -2218,6 +2712,16 @@ public class Images
             listener.gotImage(iconSource, iconHandle);
         }
 
+        final IconStore iconStore = getIconStore();
+        if (iconStore != null && iconHandle.image != null
+            && iconStore.put(iconSource.key, iconHandle.image, originalSize.width, originalSize.height))
+        {
+            RawCache.put(iconSource.key, new CacheEntry(iconHandle, null, true));
+            return iconHandle;
+        }
+        
+        // fall back to the old one-file-per-icon disk cache
+
         File cacheFile = null;
         try {
             cacheFile = makePermanentCacheFile(iconSource.key);
@@ -2225,7 +2729,7 @@ public class Images
             Log.error("creating cache file for " + iconSource, t);
         }
         // if for any reason the disk cache has failed, we can still create the CacheEntry with a null file
-        RawCache.put(iconSource.key, new CacheEntry(iconHandle, cacheFile));
+        RawCache.put(iconSource.key, new CacheEntry(iconHandle, cacheFile, true));
         
         // TODO: Make sure size data is in icon cache entry to be consistent with state of cache on re-init.
         // Some code is actually sensitive to this.  Oh -- wait -- maybe the problem is that it is NOT
@@ -2538,7 +3042,7 @@ public class Images
                     permanentCacheFile = ensurePermanentCacheFile(imageSRC.getCacheFile());
                 
                 if (DEBUG.IMAGE) out("getting cache lock for storing result; " + imageSRC);
-                RawCache.put(imageSRC.key, new CacheEntry(imageData, permanentCacheFile));
+                RawCache.put(imageSRC.key, new CacheEntry(imageData, permanentCacheFile, imageSRC.isImageSourceForIcon()));
                 
                 // If the cache file has moved from tmp to permanent, we'd need to do this to keep imageSRC
                 // current, tho at the moment this is a bit overkill as we should no longer need imageSRC
@@ -2551,8 +3055,13 @@ public class Images
 //                     imageSRC.resource.setCacheFile(permanentCacheFile);
             }
         } else {
-            if (imageData.image != null)
-                RawCache.put(imageSRC.key, new CacheEntry(imageData, null));
+            if (imageData.image != null) {
+                RawCache.put(imageSRC.key, new CacheEntry(imageData, null, imageSRC.isImageSourceForIcon()));
+                if (imageSRC.isImageSourceForIcon() && imageSRC.isDiskCacheEntry()) {
+                    // this icon was just read from an old per-file cache entry
+                    storeLegacyIcon(imageSRC.key, imageData);
+                }
+            }
             //RawCache.put(imageSRC.key, new CacheEntry(image, null));
         }
 
@@ -2904,6 +3413,8 @@ public class Images
 
         } else if (imageSRC.readable instanceof java.io.File) {
             if (DEBUG.IMAGE) Log.debug("Loading local file " + imageSRC.readable);
+            // data for a resource in a VUE package may not have been extracted yet
+            PackageEntryFile.extract((File) imageSRC.readable);
             if (imageSRC.resource != null)
                 setResourceMetaData(imageSRC.resource, (File) imageSRC.readable);
         }
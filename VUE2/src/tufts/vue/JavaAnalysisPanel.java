@@ -720,8 +720,8 @@ public class JavaAnalysisPanel extends JPanel implements ActionListener {
 		node.setFillColor(Color.WHITE);
 		node.setTextColor(UNDECLARED_COLOR);
 		node.setStrokeColor(UNDECLARED_COLOR);
-		node.mStrokeStyle.setTo(NONABSTRACT_STROKE_STYLE);
-		node.mStrokeWidth.setTo(NONFINAL_STROKE_WIDTH);
+		LWComponent.KEY_StrokeStyle.set(node, NONABSTRACT_STROKE_STYLE);
+		LWComponent.KEY_StrokeWidth.set(node, NONFINAL_STROKE_WIDTH);
 
 		metadataList.add(METADATA_CATEGORY, metadata);
 		metadataList.add(METADATA_CATEGORY, METADATA_KEYWORD_UNDECLARED);
@@ -756,12 +756,12 @@ public class JavaAnalysisPanel extends JPanel implements ActionListener {
 		}
 
 		if (isAbstract && !metadataList.contains(METADATA_CATEGORY, ABSTRACT_KEYWORD)) {
-			node.mStrokeStyle.setTo(ABSTRACT_STROKE_STYLE);
+			LWComponent.KEY_StrokeStyle.set(node, ABSTRACT_STROKE_STYLE);
 			metadataList.add(METADATA_CATEGORY, ABSTRACT_KEYWORD);
 		}
 
 		if (isFinal && !metadataList.contains(METADATA_CATEGORY, FINAL_KEYWORD)) {
-			node.mStrokeWidth.setTo(FINAL_STROKE_WIDTH);
+			LWComponent.KEY_StrokeWidth.set(node, FINAL_STROKE_WIDTH);
 			metadataList.add(METADATA_CATEGORY, FINAL_KEYWORD);
 		}
 
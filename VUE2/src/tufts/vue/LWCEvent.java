@@ -80,6 +80,12 @@ public class LWCEvent
     /** a LWCevent can either hold a single component or an array of components: one of them is always null */
     private List<LWComponent> components = null;
     public final LWComponent component;
+
+    /** for LWKey.EventBatch events only: the events in the batch, and the last event before they were coalesced */
+    private final List<LWCEvent> events;
+    private final LWCEvent lastEvent;
+    /** for LWKey.EventBatch events only: how many events, before they were coalesced, LWMap counted as changes */
+    private final int changeCount;
     
     // todo: we still using both src & component?
     public LWCEvent(Object source, LWComponent c, Object key, Object oldValue)
@@ -88,6 +94,9 @@ public class LWCEvent
         this.component = c;
         this.key = key;
         this.oldValue = oldValue;
+        this.events = null;
+        this.lastEvent = null;
+        this.changeCount = 0;
     }
 
     public LWCEvent(Object source, LWComponent c, Object key) {
@@ -101,6 +110,51 @@ public class LWCEvent
         this.component = null;
         this.key = key;
         this.oldValue = NO_OLD_VALUE;
+        this.events = null;
+        this.lastEvent = null;
+        this.changeCount = 0;
+    }
+
+    /**
+     * Create an LWKey.EventBatch event.
+     * @param events - the events in the batch, at most one per component per key
+     * @param lastEvent - the last event that was added to the batch (which may have been coalesced
+     * into an earlier event for the same component and key)
+     * @param changeCount - how many of the events added, coalesced or not, the map counted toward it's change state
+     */
+    LWCEvent(Object source, List<LWComponent> components, List<LWCEvent> events, LWCEvent lastEvent, int changeCount)
+    {
+        this.source = source;
+        this.components = components;
+        this.component = null;
+        this.key = LWKey.EventBatch;
+        this.oldValue = NO_OLD_VALUE;
+        this.events = events;
+        this.lastEvent = lastEvent;
+        this.changeCount = changeCount;
+    }
+
+    /** @return true if this is a batch of events delivered all at once (see LWMap.beginEventBatch) */
+    public boolean isBatch() {
+        return events != null;
+    }
+
+    /** @return the events in this batch, in the order they first happened, or null if this isn't a batch */
+    public List<LWCEvent> getBatchedEvents() {
+        return events;
+    }
+
+    /** @return the last event issued in this batch, or null if this isn't a batch */
+    public LWCEvent getLastBatchedEvent() {
+        return lastEvent;
+    }
+
+    /**
+     * @return for a batch, the number of events that went into it, including those coalesced
+     * away, that LWMap counted toward it's change state (see LWMap.getChangeState)
+     */
+    public int getBatchedChangeCount() {
+        return changeCount;
     }
     
     public Object getSource()
@@ -22,6 +22,9 @@ import java.util.List;
 import java.util.Iterator;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Handle dispatching of LWCEvents, mainly for LWComponents, but any client
@@ -224,7 +227,17 @@ public class LWChangeSupport
             if (DEBUG.EVENTS) System.out.println(e + " (dispatch skipped: events disabled)");
             return;
         }
-        
+
+        notifyListeners(client, listeners, e);
+    }
+
+    /**
+     * Deliver the event to the given listeners, if any, and pass it up to the client's parent.
+     * LWComponent's that have never had any listeners of their own have no LWChangeSupport,
+     * and call this directly with null listeners.
+     */
+    static void notifyListeners(LWComponent client, List listeners, LWCEvent e)
+    {
         if (client.isDeleted() && !client.permitZombieEvent(e)) {
             String msg =
                 "FYI, ZOMBIE EVENT: notifyListeners; deleted component attempting event notification:"
@@ -358,6 +371,13 @@ public class LWChangeSupport
         LWComponent.Listener[] listener_array = new LWComponent.Listener[listeners.size()];
         listeners.toArray(listener_array);
         for (int i = 0; i < listener_array.length; i++) {
+            if (e.isBatch() && !(listener_array[i] instanceof LWComponent.BatchListener)) {
+                // deliver the events in the batch one at a time
+                final List<LWComponent.Listener> target = java.util.Collections.singletonList(listener_array[i]);
+                for (LWCEvent batched : e.getBatchedEvents())
+                    dispatchLWCEvent(source, target, batched);
+                continue;
+            }
             if (DEBUG.EVENTS && DEBUG.META) {
                 if (e.getSource() != source)
                     eout(e + " " + i + " => " + source + " >> ");
@@ -393,6 +413,9 @@ public class LWChangeSupport
             }
             if (e.getSource() == target) // this prevents events from going back to their source
                 continue;
+            final Map<LWComponent.Listener,int[]> counts = sDeliveryCounts;
+            if (counts != null)
+                countDelivery(counts, target);
             sEventDepth++;
             try {
                 if (DEBUG.EVENTS && DEBUG.THREAD)
@@ -417,4 +440,51 @@ public class LWChangeSupport
             if (DEBUG.EVENTS && DEBUG.META) eoutln(e + " disptach returned from: " + target);
         }
     }
-}
\ No newline at end of file
+
+    //-----------------------------------------------------------------------------
+    // Instrumentation: counts of LWCChanged calls per listener
+    //-----------------------------------------------------------------------------
+
+    /** events may be dispatched from any thread (e.g., image loaders): always lock the map itself to use it */
+    private static volatile Map<LWComponent.Listener,int[]> sDeliveryCounts;
+
+    /**
+     * Start or stop counting the events delivered to each listener.  The counts hold
+     * on to every listener they've seen, so counting should be stopped when done.
+     */
+    public static synchronized void setCountingDeliveries(boolean counting) {
+        if (counting) {
+            if (sDeliveryCounts == null)
+                sDeliveryCounts = new IdentityHashMap();
+        } else
+            sDeliveryCounts = null;
+    }
+
+    public static boolean isCountingDeliveries() {
+        return sDeliveryCounts != null;
+    }
+
+    /** @return the number of events delivered to each listener since the last call, and reset the counts */
+    public static Map<LWComponent.Listener,Integer> takeDeliveryCounts() {
+        final Map<LWComponent.Listener,int[]> deliveries = sDeliveryCounts;
+        if (deliveries == null)
+            return java.util.Collections.EMPTY_MAP;
+        final Map<LWComponent.Listener,Integer> counts = new LinkedHashMap();
+        synchronized (deliveries) {
+            for (Map.Entry<LWComponent.Listener,int[]> e : deliveries.entrySet())
+                counts.put(e.getKey(), e.getValue()[0]);
+            deliveries.clear();
+        }
+        return counts;
+    }
+
+    private static void countDelivery(Map<LWComponent.Listener,int[]> counts, LWComponent.Listener target) {
+        synchronized (counts) {
+            final int[] count = counts.get(target);
+            if (count == null)
+                counts.put(target, new int[] { 1 });
+            else
+                count[0]++;
+        }
+    }
+}
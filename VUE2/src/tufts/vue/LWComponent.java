@@ -263,6 +263,14 @@ public class LWComponent
         public void LWCChanged(LWCEvent e);
     }
 
+    /**
+     * A Listener that can handle LWKey.EventBatch events: if a map listener is a
+     * BatchListener, the events in a batch are delivered to it all at once in a single
+     * event.  Other listeners are delivered each event in the batch.
+     * @see LWMap#beginEventBatch
+     */
+    public interface BatchListener extends Listener {}
+
     /*
      * Meta-data persistant information
      */
@@ -305,7 +313,9 @@ public class LWComponent
     protected transient double scale = 1.0;
     private transient AffineTransform mTemporaryTransform;
 
-    protected transient TextBox labelBox = null;
+    protected transient LabelBox labelBox = null;
+    /** only non-null while the label is being interactively edited */
+    protected transient TextBox labelEditor = null;
     protected transient BasicStroke stroke = STROKE_ZERO;
     //protected transient boolean selected = false;
 
@@ -339,12 +349,17 @@ public class LWComponent
 
     private transient long mSupportedPropertyKeys;
 
-    // TODO PERFORMANCE: change support could be handled generically, and we could at least lazy-create
-    protected transient final LWChangeSupport mChangeSupport = new LWChangeSupport(this);
+    /** created on demand: most components never have listeners of their own */
+    protected transient LWChangeSupport mChangeSupport;
+
+    /** our style property values: the record is shared by every component with the same values */
+    private StyleValues mStyle = StyleValues.DEFAULT;
 
     protected transient boolean mXMLRestoreUnderway = false; // are we in the middle of a restore?
 
     protected transient BufferedImage mImageBuffer;
+    /** our rasters in the RenderCache, if any: managed entirely by the RenderCache */
+    transient RenderCache.Entry mRenderCache;
 
     public static final Comparator XSorter = new Comparator<LWComponent>() {
             public int compare(LWComponent c1, LWComponent c2) {
@@ -656,8 +671,7 @@ public class LWComponent
         }
 
         private static final LWComponent EmptyStyle = new LWComponent();
-        static final Property NO_SLOT_PROVIDED = EmptyStyle.mFillColor; // any slot will do
-        //private static final Property BAD_SLOT = EmptyStyle.mStrokeColor; // any (different) slot will do
+        static final Property NO_SLOT_PROVIDED = EmptyStyle.new StringProperty(null); // any slot will do
         /** If this isn't overriden to return non-null, getValue & setValue must be overriden to provide the setter/getter impl  */
         Property getSlot(TSubclass c) { return NO_SLOT_PROVIDED; }
 
@@ -1040,84 +1054,6 @@ public class LWComponent
         void setBy(String s) { set(new Float(s)); }
     }
 
-    public class FontProperty extends Property<java.awt.Font> {
-        FontProperty(Key key) {
-            super(key);
-            value = VueConstants.FONT_DEFAULT;
-        }
-        final void setBy(String s) {
-        	//check for underline
-
-        	String p = s.substring(s.indexOf("-")+1,s.length());
-        	p = p.substring(0,p.indexOf("-"));
-
-        	if (p.endsWith("underline"))
-        	{	//do something
-        		LWComponent.this.mFontUnderline.set("underline");
-        		s= s.replaceAll(p, p.substring(0,p.indexOf("underline")));
-        	}
-        	Font f = Font.decode(s);
-
-        	set(f);
-        	}
-        final String asString() {
-            //if (this.font == null || this.font == getParent().getFont())
-            //return null;
-
-            final Font font = get();
-            String strStyle;
-
-            if (font.isBold()) {
-                strStyle = font.isItalic() ? "bolditalic" : "bold";
-            } else {
-                strStyle = font.isItalic() ? "italic" : "plain";
-            }
-
-            if (LWComponent.this.mFontUnderline.get().equals("underline"))
-            	strStyle = strStyle.concat("underline");
-            return font.getName() + "-" + strStyle + "-" + font.getSize();
-        }
-    }
-
-    /**
-     * Handles CSS font-style value "italic" ("normal", or anything else, has no effect as of yet)
-     * Also handles CSS font-weight value of "bold" (anything else is ignored for now)
-     * todo: no hook for font-weight yet, permits invalid CSS
-     */
-    public class CSSFontStyleProperty extends IntProperty {
-        CSSFontStyleProperty(Key key) { super(key); }
-        void setFromCSS(String cssKey, String value) {
-            // todo: this ignoring the key, which will permit non-confomant CSS
-            if ("italic".equalsIgnoreCase(value))
-                set(java.awt.Font.ITALIC);
-            else if ("bold".equalsIgnoreCase(value))
-                set(java.awt.Font.BOLD);
-            else
-                set(0);
-        }
-    }
-
-    /*
-    public class CSSFontSizeProperty extends IntProperty {
-        CSSFontSizeProperty(Key key) { super(key); }
-        void setFromCSS(String cssKey, String value) {
-            if (value.endsWith("pt"))
-                setBy(value.substring(0, value.length()-2));
-            else
-                throw new IllegalArgumentException("unhandled CSS font size [" + value + "]");
-
-        }
-    }
-    */
-
-    public class CSSFontFamilyProperty extends StringProperty {
-        CSSFontFamilyProperty(Key key) { super(key); }
-        void setFromCSS(String cssKey, String value) {
-            // no translation needed for now: just use the raw name -- if it's a preference list tho, we'll need to handle it
-            setBy(value);
-        }
-    }
-
 
 
 
@@ -1233,6 +1169,14 @@ public class LWComponent
         }
     }
 
+    private static boolean IsTransparent(Color c) {
+        return c == null || c.getAlpha() == 0;
+    }
+
+    private static boolean IsTranslucent(Color c) {
+        return c == null || c.getAlpha() != 0xFF;
+    }
+
     public static Color StringToColor(final String s)
     {
         if (s.trim().length() < 1)
@@ -1270,15 +1214,265 @@ public class LWComponent
 
     public enum Alignment { LEFT, CENTER, RIGHT }
 
-    public static final Key KEY_FillColor   = new Key("fill.color", "background")       { final Property getSlot(LWComponent c) { return c.mFillColor; } };
-    public static final Key KEY_TextColor   = new Key("text.color", "font-color")       { final Property getSlot(LWComponent c) { return c.mTextColor; } };
-    public static final Key KEY_StrokeColor = new Key("stroke.color", "border-color")   { final Property getSlot(LWComponent c) { return c.mStrokeColor; } };
+    /**
+     * A Key for one of the style properties.  These keep their values in the
+     * LWComponent's shared StyleValues record, not in a Property object, so there's one
+     * of these per property, and the component it applies to is always passed in.
+     * Setting a value through here handles undo and change notification just as
+     * Property.set does.
+     */
+    public static class StyleKey<TValue> extends Key<LWComponent,TValue> {
+
+        /** where in the StyleValues record our value is kept */
+        final StyleSlot slot;
+
+        StyleKey(String name, String cssName, KeyType keyType, StyleSlot slot) {
+            super(name, cssName, keyType);
+            this.slot = slot;
+        }
+
+        public final TValue get(LWComponent c) {
+            return (TValue) c.mStyle.get(slot);
+        }
+
+        boolean isChanged(LWComponent c, TValue newValue) {
+            final TValue value = get(c);
+            return value != newValue && (newValue == null || !newValue.equals(value));
+        }
+
+        public void set(LWComponent c, TValue newValue) {
+            if (!isChanged(c, newValue))
+                return;
+            final Object oldValue = get(c);
+            take(c, newValue);
+            onChange(c);
+            // RAISE CHANGE EVENT (for observers -- e.g., repaint, UndoManager, editors, etc)
+            c.notify(this, oldValue);
+        }
+
+        /** This JUST changes the stored value: no notifications of any kind will be triggered, no undo recorded. */
+        void take(LWComponent c, TValue value) {
+            c.mStyle = c.mStyle.with(slot, value);
+            if (DEBUG.TOOL) System.out.printf("     TAKING: %-30s -> %s\n", vtag(this, value, null), c);
+        }
+
+        /** impl's can override this to do something after the value has changed (after take() has been called),
+         * and before listeners have been notified */
+        void onChange(LWComponent c) {}
+
+        void setFromString(LWComponent c, String s) {
+            try {
+                setBy(c, s);
+            } catch (Throwable t) {
+                Log.error("bad value for " + this + ": [" + s + "] " + t);
+            }
+        }
+
+        void setBy(LWComponent c, String s) {
+            Log.error("unimplememnted: " + this + " setBy " + s);
+        }
+
+        void setFromCSS(LWComponent c, String cssKey, String value) {
+            throw new UnsupportedOperationException(this + " unimplemented setFromCSS " + cssKey + " = " + value);
+        }
+
+        /** override to provide an impl other than value.toString() */
+        String asString(LWComponent c) {
+            final TValue value = get(c);
+            return value == null ? null : value.toString();
+        }
+
+        @Override boolean isSlotted(LWComponent c) { return true; }
+        @Override TValue getValue(LWComponent c) { return get(c); }
+        @Override protected void setValue(LWComponent c, TValue value) {
+            if (value instanceof String) {
+                // If a String value comes in, this allows us to auto-parse it
+                setFromString(c, (String) value);
+            } else {
+                set(c, value);
+            }
+        }
+        @Override String getStringValue(LWComponent c) { return asString(c); }
+        @Override void setStringValue(LWComponent c, String s) { setFromString(c, s); }
+        @Override boolean setValueFromCSS(LWComponent c, String cssKey, String cssValue) {
+            try {
+                setFromCSS(c, cssName, cssValue);
+                return true;
+            } catch (Throwable t) {
+                tufts.Util.printStackTrace(new Throwable(t), "failed to apply CSS key/value " + cssName + "=" + cssValue);
+            }
+            return false;
+        }
+    }
+
+    public static class EnumKey<T extends Enum> extends StyleKey<T> {
+        EnumKey(String name, StyleSlot slot) { super(name, null, KeyType.STYLE, slot); }
+        // note: value can never be null, or we'll need to store the Enum class reference elsewhere
+        void setBy(LWComponent c, String s) { set(c, (T) Enum.valueOf(get(c).getClass(), s.trim())); }
+    }
+
+    public static class StringKey extends StyleKey<String> {
+        StringKey(String name, KeyType keyType, StyleSlot slot) { super(name, null, keyType, slot); }
+        void setBy(LWComponent c, String s) { set(c, s); }
+    }
+
+    public static class IntKey extends StyleKey<Integer> {
+        IntKey(String name, KeyType keyType, StyleSlot slot) { super(name, null, keyType, slot); }
+        void setBy(LWComponent c, String s) { set(c, new Integer(s)); }
+        void setFromCSS(LWComponent c, String cssKey, String value) { SetNumberFromCSS(this, c, value); }
+    }
+
+    public static class FloatKey extends StyleKey<Float> {
+        FloatKey(String name, String cssName, StyleSlot slot) { super(name, cssName, KeyType.STYLE, slot); }
+        void setBy(LWComponent c, String s) { set(c, new Float(s)); }
+        void setFromCSS(LWComponent c, String cssKey, String value) { SetNumberFromCSS(this, c, value); }
+    }
+
+    private static void SetNumberFromCSS(StyleKey key, LWComponent c, String value) {
+        if (value.endsWith("pt") || value.endsWith("px"))
+            key.setBy(c, value.substring(0, value.length()-2));
+        else
+            throw new IllegalArgumentException("unhandled CSS number conversion for [" + value + "]");
+    }
+
+    public static class ColorKey extends StyleKey<Color> {
+        private static final short ALPHA_NOT_PERMITTED = Short.MIN_VALUE;
+        private static final short NO_ALPHA_SET = -1;
+
+        /** where in the StyleValues record the fixed alpha for our color is kept */
+        private final StyleSlot alphaSlot;
+
+        ColorKey(String name, String cssName, StyleSlot slot, StyleSlot alphaSlot) {
+            super(name, cssName, KeyType.STYLE, slot);
+            this.alphaSlot = alphaSlot;
+        }
+
+        private short fixedAlpha(LWComponent c) {
+            return (Short) c.mStyle.get(alphaSlot);
+        }
+
+        void setAllowAlpha(LWComponent c, boolean allow) {
+            c.mStyle = c.mStyle.with(alphaSlot, allow ? NO_ALPHA_SET : ALPHA_NOT_PERMITTED);
+        }
+
+        /** alpha should be in the range 0-255 */
+        void setFixedAlpha(LWComponent c, int alpha) {
+            if (alpha > 255)
+                alpha = 255;
+            else if (alpha < 0)
+                alpha = 0;
+            c.mStyle = c.mStyle.with(alphaSlot, (short) alpha);
+        }
+
+        @Override
+        public void set(LWComponent c, Color newColor) {
+
+            final short fixedAlpha = fixedAlpha(c);
+
+            if (fixedAlpha < 0) {
+                // the common case
+                super.set(c, newColor);
+            } else {
+
+                if (get(c) == newColor)
+                    return;
+
+                // enforce the fixed alpha on any incoming color:
+                if (newColor != null && newColor.getAlpha() != fixedAlpha && newColor.getAlpha() != 0)
+                    newColor = new Color((newColor.getRGB() & 0xFFFFFF) + (fixedAlpha << 24), true);
+                super.set(c, newColor);
+            }
+        }
+
+        @Override
+        void take(LWComponent c, Color color) {
+            if (fixedAlpha(c) < NO_ALPHA_SET && (color == null || color.getAlpha() != 0xFF))
+                throw new PropertyValueVeto(this + "; color with translucence: "
+                                            + color
+                                            + " alpha=" + color.getAlpha()
+                                            + " not allowed on " + c);
+            super.take(c, color);
+        }
+
+        @Override
+        void setBy(LWComponent c, String s) {
+            set(c, StringToColor(s));
+        }
+
+        @Override
+        void setFromCSS(LWComponent c, String cssKey, String value) {
+            // we ignore key: assume that whatever it is is a color value
+            setBy(c, value);
+        }
+
+        /** @return a value between 0.0 and 1.0 representing brightness: the saturation % of the strongest channel
+         * e.g.: white returns 1, black returns 0
+         */
+        public float brightness(LWComponent c) {
+            return Util.brightness(get(c));
+        }
+
+        @Override
+        String asString(LWComponent c) {
+            return ColorToString(get(c));
+        }
+    }
+
+    public static class FontKey extends StyleKey<Font> {
+        FontKey(String name, StyleSlot slot) { super(name, null, KeyType.STYLE, slot); }
+
+        @Override
+        void setBy(LWComponent c, String s) {
+        	//check for underline
+
+        	String p = s.substring(s.indexOf("-")+1,s.length());
+        	p = p.substring(0,p.indexOf("-"));
+
+        	if (p.endsWith("underline"))
+        	{	//do something
+        		KEY_FontUnderline.set(c, "underline");
+        		s= s.replaceAll(p, p.substring(0,p.indexOf("underline")));
+        	}
+        	Font f = Font.decode(s);
+
+        	set(c, f);
+        }
+
+        @Override
+        String asString(LWComponent c) {
+            final Font font = get(c);
+            String strStyle;
+
+            if (font.isBold()) {
+                strStyle = font.isItalic() ? "bolditalic" : "bold";
+            } else {
+                strStyle = font.isItalic() ? "italic" : "plain";
+            }
+
+            if (c.getFontUnderline().equals("underline"))
+            	strStyle = strStyle.concat("underline");
+            return font.getName() + "-" + strStyle + "-" + font.getSize();
+        }
+    }
+
+    public static final ColorKey KEY_FillColor   = new ColorKey("fill.color", "background", StyleSlot.FILL_COLOR, StyleSlot.FILL_ALPHA);
+    public static final ColorKey KEY_TextColor   = new ColorKey("text.color", "font-color", StyleSlot.TEXT_COLOR, StyleSlot.TEXT_ALPHA) {
+            void onChange(LWComponent c) {
+                if (c.labelBox != null)
+                    c.labelBox.copyStyle(c); // todo better: handle thru style.textColor notification?
+            }
+        };
+    public static final ColorKey KEY_StrokeColor = new ColorKey("stroke.color", "border-color", StyleSlot.STROKE_COLOR, StyleSlot.STROKE_ALPHA);
     //public static final Key KEY_StrokeStyle = new Key("stroke.style", "border-style")   { final Property getSlot(LWComponent c) { return null; } };
-    public static final Key KEY_StrokeWidth = new Key("stroke.width", "stroke-width")   { final Property getSlot(LWComponent c) { return c.mStrokeWidth; } };
-    public static final Key KEY_StrokeStyle = new Key<LWComponent,StrokeStyle>
-        ("stroke.style", KeyType.STYLE)   { final Property getSlot(LWComponent c) { return c.mStrokeStyle; } };
-    public static final Key KEY_Alignment = new Key<LWComponent,Alignment>
-        ("alignment", KeyType.STYLE)   { final Property getSlot(LWComponent c) { return c.mAlignment; } };
+    public static final FloatKey KEY_StrokeWidth = new FloatKey("stroke.width", "stroke-width", StyleSlot.STROKE_WIDTH) {
+            void onChange(LWComponent c) { c.rebuildStroke(); }
+        };
+    public static final EnumKey<StrokeStyle> KEY_StrokeStyle = new EnumKey<StrokeStyle>("stroke.style", StyleSlot.STROKE_STYLE) {
+            void onChange(LWComponent c) { c.rebuildStroke(); }
+        };
+    public static final EnumKey<Alignment> KEY_Alignment = new EnumKey<Alignment>("alignment", StyleSlot.ALIGNMENT) {
+            void onChange(LWComponent c) { c.layout(this); }
+        };
 
 
     /* font.size: point size for font */
@@ -1286,11 +1480,59 @@ public class LWComponent
     /* font.name: family name of the font */
 
     /** Aggregate font key, which represents the combination of it's three sub-properties */
-    public static final Key KEY_Font = new Key("font", KeyType.STYLE)                   { final Property getSlot(LWComponent c) { return c.mFont; } };
-    public static final Key KEY_FontSize  = new Key("font.size", KeyType.SUB_STYLE)     { final Property getSlot(LWComponent c) { return c.mFontSize; } };
-    public static final Key KEY_FontStyle = new Key("font.style", KeyType.SUB_STYLE)    { final Property getSlot(LWComponent c) { return c.mFontStyle; } };
-    public static final Key KEY_FontUnderline = new Key("font.underline", KeyType.SUB_STYLE)    { final Property getSlot(LWComponent c) { return c.mFontUnderline; } };
-    public static final Key KEY_FontName  = new Key("font.name", KeyType.SUB_STYLE)     { final Property getSlot(LWComponent c) { return c.mFontName; } };
+    public static final FontKey KEY_Font = new FontKey("font", StyleSlot.FONT) {
+            void onChange(LWComponent c) {
+                if (!c.fontIsRebuilding) {
+                    final Font f = get(c);
+                    KEY_FontStyle.take(c, f.getStyle());
+                    KEY_FontSize.take(c, f.getSize());
+                    KEY_FontName.take(c, f.getName());
+                }
+                if (c.labelBox != null) {
+                    c.labelBox.copyStyle(c);
+                    c.layout(this); // could make this generic: add a key bit that says "layout needed on-change";
+                }
+            }
+        };
+    public static final IntKey KEY_FontSize  = new IntKey("font.size", KeyType.SUB_STYLE, StyleSlot.FONT_SIZE) {
+            void onChange(LWComponent c) { c.rebuildFont(); }
+        };
+    /**
+     * Handles CSS font-style value "italic" ("normal", or anything else, has no effect as of yet)
+     * Also handles CSS font-weight value of "bold" (anything else is ignored for now)
+     * todo: no hook for font-weight yet, permits invalid CSS
+     */
+    public static final IntKey KEY_FontStyle = new IntKey("font.style", KeyType.SUB_STYLE, StyleSlot.FONT_STYLE) {
+            void onChange(LWComponent c) { c.rebuildFont(); }
+            void setFromCSS(LWComponent c, String cssKey, String value) {
+                // todo: this ignoring the key, which will permit non-confomant CSS
+                if ("italic".equalsIgnoreCase(value))
+                    set(c, java.awt.Font.ITALIC);
+                else if ("bold".equalsIgnoreCase(value))
+                    set(c, java.awt.Font.BOLD);
+                else
+                    set(c, 0);
+            }
+        };
+    public static final StringKey KEY_FontUnderline = new StringKey("font.underline", KeyType.SUB_STYLE, StyleSlot.FONT_UNDERLINE) {
+            boolean isChanged(LWComponent c, String newValue) {
+                return true;
+            }
+            void onChange(LWComponent c) {
+                c.rebuildFont();
+                if (c.labelBox != null) {
+                    c.labelBox.copyStyle(c);
+                    c.layout(this); // could make this generic: add a key bit that says "layout needed on-change";
+                }
+            }
+        };
+    public static final StringKey KEY_FontName  = new StringKey("font.name", KeyType.SUB_STYLE, StyleSlot.FONT_NAME) {
+            void onChange(LWComponent c) { c.rebuildFont(); }
+            void setFromCSS(LWComponent c, String cssKey, String value) {
+                // no translation needed for now: just use the raw name -- if it's a preference list tho, we'll need to handle it
+                setBy(c, value);
+            }
+        };
 
     public static final Key KEY_Collapsed =
         new Key<LWComponent,Boolean>("collapsed") {
@@ -1314,22 +1556,6 @@ public class LWComponent
 
 
 
-    public final ColorProperty mFillColor = new ColorProperty(KEY_FillColor);
-    public final ColorProperty mTextColor = new ColorProperty(KEY_TextColor, java.awt.Color.black) {
-            //{ color = java.awt.Color.black; } // default value
-            void onChange() {
-                if (labelBox != null)
-                    labelBox.copyStyle(LWComponent.this); // todo better: handle thru style.textColor notification?
-            }
-        };
-    public final ColorProperty mStrokeColor = new ColorProperty(KEY_StrokeColor, java.awt.Color.darkGray);
-    public final FloatProperty mStrokeWidth = new FloatProperty(KEY_StrokeWidth) { void onChange() { rebuildStroke(); }};
-    public final EnumProperty<Alignment> mAlignment = new EnumProperty(KEY_Alignment, Alignment.LEFT) {
-            void onChange() { layout(KEY_Alignment); }
-        };
-
-    public final EnumProperty<StrokeStyle> mStrokeStyle = new EnumProperty(KEY_StrokeStyle, StrokeStyle.SOLID) { void onChange() { rebuildStroke(); }};
-
     public enum StrokeStyle {
 
         SOLID   (1,0),
@@ -1363,14 +1589,26 @@ public class LWComponent
                                        , dashPattern
                                        , 0f); // dash-phase (offset to start of pattern -- apparently pixels, not index)
         }
-        // todo opt: better: could cache the strokes here for each dash pattern/size
+        private final Map<Float,BasicStroke> sharedStrokes = new HashMap();
+
+        /** @return a stroke for the given width that may be shared: we only expect a handful of distinct widths in use */
+        BasicStroke sharedStroke(float width) {
+            synchronized (sharedStrokes) {
+                BasicStroke stroke = sharedStrokes.get(width);
+                if (stroke == null) {
+                    stroke = makeStroke(width);
+                    sharedStrokes.put(width, stroke);
+                }
+                return stroke;
+            }
+        }
 
     }
 
     private void rebuildStroke() {
-        final float width = mStrokeWidth.get();
+        final float width = getStrokeWidth();
         if (width > 0)
-            this.stroke = mStrokeStyle.get().makeStroke(width);
+            this.stroke = getStrokeStyle().sharedStroke(width);
         else
             this.stroke = STROKE_ZERO;
         /*/ below code was broken in previous code.  Node child layout does NOT
@@ -1386,56 +1624,104 @@ public class LWComponent
     }
 
 
-    public final IntProperty mFontStyle = new CSSFontStyleProperty(KEY_FontStyle)       { void onChange() { rebuildFont(); } };
-    public final IntProperty mFontSize = new IntProperty(KEY_FontSize)                  { void onChange() { rebuildFont(); } };
-    public final StringProperty mFontName = new CSSFontFamilyProperty(KEY_FontName)     { void onChange() { rebuildFont(); } };
-
-    public final StringProperty mFontUnderline = new StringProperty(KEY_FontUnderline) {
-    	boolean isChanged(String newValue) {
-    		return true;
-    	}
-
-    	@Override void onChange() {
-            rebuildFont();
-            if (labelBox != null) {
-                labelBox.copyStyle(LWComponent.this);
-                layout(this.key); // could make this generic: add a key bit that says "layout needed on-change";
-            }
-    	}
-
-    	};
-
     private boolean fontIsRebuilding; // todo: use a bit flag
     private void rebuildFont() {
         // This so at least for now we have backward compat with the old font property (esp. for tools & persistance)
     	fontIsRebuilding = true;
         try  {
-            Font f =new Font(mFontName.get(), mFontStyle.get(), mFontSize.get());
-            mFont.set(f);
+            Font f =new Font(getFontName(), getFontStyle(), getFontSize());
+            KEY_Font.set(this, f);
 
         } finally {
             fontIsRebuilding = false;
         }
     }
 
-    public final FontProperty mFont = new FontProperty(KEY_Font) {
-            @Override void onChange() {
-                if (!fontIsRebuilding) {
-                    final Font f = get();
+    /** Which of the style property values is kept where in a StyleValues record */
+    enum StyleSlot {
+        FILL_COLOR, TEXT_COLOR, STROKE_COLOR, STROKE_WIDTH, STROKE_STYLE, ALIGNMENT,
+        FONT, FONT_SIZE, FONT_STYLE, FONT_NAME, FONT_UNDERLINE,
+        // the fixed alpha of each color (see ColorKey.setFixedAlpha)
+        FILL_ALPHA, TEXT_ALPHA, STROKE_ALPHA
+    }
 
-                    mFontStyle.take(f.getStyle());
+    /**
+     * An immutable record of the values of all the style properties of an LWComponent.
+     * Records are interned, so every component with the same style (e.g., all the nodes
+     * created by a data import) shares a single instance, and changing a value copies
+     * the record.
+     */
+    static final class StyleValues {
+
+        private static final Map<StyleValues,java.lang.ref.WeakReference<StyleValues>> Interned = new WeakHashMap();
+
+        /** the values of a newly constructed LWComponent */
+        static final StyleValues DEFAULT = intern(new StyleValues(new Object[] {
+                    null,                       // FILL_COLOR
+                    Color.black,                // TEXT_COLOR
+                    Color.darkGray,             // STROKE_COLOR
+                    Float.valueOf(0f),          // STROKE_WIDTH
+                    StrokeStyle.SOLID,          // STROKE_STYLE
+                    Alignment.LEFT,             // ALIGNMENT
+                    VueConstants.FONT_DEFAULT,  // FONT
+                    Integer.valueOf(0),         // FONT_SIZE
+                    Integer.valueOf(0),         // FONT_STYLE
+                    "",                         // FONT_NAME
+                    "",                         // FONT_UNDERLINE
+                    Short.valueOf((short)-1),   // FILL_ALPHA  (ColorKey.NO_ALPHA_SET)
+                    Short.valueOf((short)-1),   // TEXT_ALPHA
+                    Short.valueOf((short)-1),   // STROKE_ALPHA
+                }));
+
+        private final Object[] values;
+        private final int hash;
+
+        private StyleValues(Object[] values) {
+            this.values = values;
+            this.hash = Arrays.hashCode(values);
+        }
+
+        Object get(StyleSlot slot) {
+            return values[slot.ordinal()];
+        }
+
+        /** @return the record with the given value in place of ours */
+        StyleValues with(StyleSlot slot, Object value) {
+            if (values[slot.ordinal()] == value)
+                return this;
+            final Object[] copy = values.clone();
+            copy[slot.ordinal()] = value;
+            return intern(new StyleValues(copy));
+        }
+
+        private static StyleValues intern(StyleValues v) {
+            synchronized (Interned) {
+                final java.lang.ref.WeakReference<StyleValues> ref = Interned.get(v);
+                final StyleValues existing = (ref == null ? null : ref.get());
+                if (existing != null)
+                    return existing;
+                Interned.put(v, new java.lang.ref.WeakReference(v));
+                return v;
+            }
+        }
 
-                    mFontSize.take(f.getSize());
-                    mFontName.take(f.getName());
-                }
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof StyleValues
+                && ((StyleValues)o).hash == hash
+                && Arrays.equals(((StyleValues)o).values, values);
+        }
 
-                if (labelBox != null) {
-                    labelBox.copyStyle(LWComponent.this);
-                    layout(this.key); // could make this generic: add a key bit that says "layout needed on-change";
-                }
-            }
-        };
+        @Override
+        public int hashCode() {
+            return hash;
+        }
 
+        @Override
+        public String toString() {
+            return "StyleValues" + Arrays.asList(values);
+        }
+    }
 
     public static final String KEY_LabelFormat = "label.format";
     public static final Key KEY_Label = new Key<LWComponent,String>("label", KeyType.DATA) {
@@ -2255,7 +2541,11 @@ public class LWComponent
      **/
     public void setFiltered(boolean filtered) {
         //if (DEBUG.SEARCH&&DEBUG.TEST) Log.debug("setFiltered " + filtered + "; " + this);
-        setFlag(Flag.FILTERED, filtered);
+        if (filtered != isFiltered()) {
+            setFlag(Flag.FILTERED, filtered);
+            // so anything keeping what's been drawn (e.g., MapPanner, DensityTiles) knows
+            notify(LWKey.Filtered);
+        }
     }
 
 //     protected void setFilterBits(int bits) {
@@ -2530,13 +2820,13 @@ public class LWComponent
 
 
 
-    protected tufts.vue.TextBox getLabelBox()
+    protected tufts.vue.LabelBox getLabelBox()
     {
         try {
             if (this.labelBox == null) {
                 synchronized (this) {
                     if (this.labelBox == null)
-                        this.labelBox = new tufts.vue.TextBox(this, this.label);
+                        this.labelBox = new tufts.vue.LabelBox(this, this.label);
                 }
             }
         } catch (Throwable t) {
@@ -2548,6 +2838,26 @@ public class LWComponent
         return this.labelBox;
     }
 
+    /**
+     * @return a TextBox for interactively editing our label, sized and located
+     * as our LabelBox currently is.  The TextBox is only kept for the duration
+     * of the edit: it releases itself via releaseLabelEditor when the edit completes.
+     */
+    protected tufts.vue.TextBox getLabelEditor()
+    {
+        final LabelBox box = getLabelBox();
+        if (this.labelEditor == null)
+            this.labelEditor = new tufts.vue.TextBox(this, this.label);
+        this.labelEditor.setSize(box.getSize());
+        this.labelEditor.setBoxLocation(box.getBoxX(), box.getBoxY());
+        return this.labelEditor;
+    }
+
+    void releaseLabelEditor(TextBox editor) {
+        if (this.labelEditor == editor && editor.getParent() == null)
+            this.labelEditor = null;
+    }
+
     public void setNotes(String pNotes)
     {
         pNotes = cleanControlChars(pNotes);
@@ -2939,6 +3249,7 @@ public class LWComponent
         if (!mEntries.contains(e))
             mEntries.add(e);
         addPathwayRef(e.pathway);
+        SpatialIndex.boundsChanged(this); // we may now be drawing a slide icon
     }
 
     protected void removeEntryRef(LWPathway.Entry e) {
@@ -2949,6 +3260,7 @@ public class LWComponent
         if (!mEntries.remove(e))
             Util.printStackTrace(this + "; Warning: didn't contain entry " + e);
         removePathwayRef(e.pathway);
+        SpatialIndex.boundsChanged(this);
     }
 
 
@@ -3178,9 +3490,9 @@ public class LWComponent
             bad = true;
         }
 
-        if (supportsProperty(KEY_FontSize) && mFontSize.get() < 1) {
-            Log.warn("bad font size " + mFontSize.get() + " " + this);
-            mFontSize.take(1); // don't risk triggering an event at a bad time
+        if (supportsProperty(KEY_FontSize) && getFontSize() < 1) {
+            Log.warn("bad font size " + getFontSize() + " " + this);
+            KEY_FontSize.take(this, 1); // don't risk triggering an event at a bad time
             bad = true;
         }
 
@@ -3205,11 +3517,16 @@ public class LWComponent
     }
 
     public boolean isTransparent() {
-        return mFillColor.isTransparent();
+        return IsTransparent(getFillColor());
     }
 
     public boolean isTranslucent() {
-        return mFillColor.isTranslucent();
+        return IsTranslucent(getFillColor());
+    }
+
+    /** @return true if our fill color is fully transparent, whatever isTransparent may be overridden to report */
+    protected final boolean hasTransparentFill() {
+        return IsTransparent(getFillColor());
     }
 
     /**
@@ -3217,7 +3534,7 @@ public class LWComponent
      * We also use this for the background color in active on-map text edits.
      */
     public Color getRenderFillColor(DrawContext dc) {
-        if (mFillColor.isTransparent()) {
+        if (hasTransparentFill()) {
             if (dc != null && dc.focal == this) {
                 //System.out.println("     DC FILL: " + dc.getFill() + " " + this);
                 return dc.getBackgroundFill();
@@ -3226,12 +3543,12 @@ public class LWComponent
                 return parent.getRenderFillColor(dc);
             }
         }
-        //System.out.println("DEFAULT FILL: " + mFillColor.get() + " " + this);
-        return mFillColor.get();
+        //System.out.println("DEFAULT FILL: " + getFillColor() + " " + this);
+        return getFillColor();
     }
 
     public Color getFinalFillColor(DrawContext dc) {
-        if (mFillColor.isTransparent()) {
+        if (hasTransparentFill()) {
             Color c = null;
             if (getParent() != null)
                 return getParent().getFinalFillColor(dc);
@@ -3284,61 +3601,68 @@ public class LWComponent
 
 
     void takeFillColor(Color color) {
-        mFillColor.take(color);
+        KEY_FillColor.take(this, color);
     }
 
     // We still need these standard style setters & getters for backward compat
     // with all sorts of old code, and espcially for persistance (the castor
     // mapping, which refers to these methods)
 
-    public float        getStrokeWidth()                { return mStrokeWidth.get(); }
-    public void         setStrokeWidth(float w)         { mStrokeWidth.set(w); }
+    public float        getStrokeWidth()                { return KEY_StrokeWidth.get(this); }
+    public void         setStrokeWidth(float w)         { KEY_StrokeWidth.set(this, w); }
 
     /** @return null for SOLID (ordinal 0, the default, as for old save files), or otherwise, the ordinal of the style enum
      * Castor will not bother to generate the attribute/element when it's value is null. */
     public Integer getXMLstrokeStyle() {
-        int code = mStrokeStyle.get().ordinal();
+        int code = getStrokeStyle().ordinal();
         return code == 0 ? null : code;
     }
     public void setXMLstrokeStyle(Integer ordinal)  {
         // todo: have the Key class process enum's generically, caching the results of Class<? extends Enum>.getEnumConstants()
         for (StrokeStyle ss : StrokeStyle.values()) {
             if (ss.ordinal() == ordinal) {
-                mStrokeStyle.set(ss);
+                KEY_StrokeStyle.set(this, ss);
                 break;
             }
         }
     }
 
-    public Color        getFillColor()                  { return mFillColor.get(); }
-    public void         setFillColor(Color c)           { mFillColor.set(c); }
-    public String       getXMLfillColor()               { return mFillColor.asString(); }
-    public void         setXMLfillColor(String xml)     { mFillColor.setFromString(xml); }
+    public Color        getFillColor()                  { return KEY_FillColor.get(this); }
+    public void         setFillColor(Color c)           { KEY_FillColor.set(this, c); }
+    public String       getXMLfillColor()               { return KEY_FillColor.asString(this); }
+    public void         setXMLfillColor(String xml)     { KEY_FillColor.setFromString(this, xml); }
+
+    public Color        getTextColor()                  { return KEY_TextColor.get(this); }
+    public void         setTextColor(Color c)           { KEY_TextColor.set(this, c); }
+    public String       getXMLtextColor()               { return KEY_TextColor.asString(this); }
+    public void         setXMLtextColor(String xml)     { KEY_TextColor.setFromString(this, xml); }
 
-    public Color        getTextColor()                  { return mTextColor.get(); }
-    public void         setTextColor(Color c)           { mTextColor.set(c); }
-    public String       getXMLtextColor()               { return mTextColor.asString(); }
-    public void         setXMLtextColor(String xml)     { mTextColor.setFromString(xml); }
+    public Color        getStrokeColor()                { return KEY_StrokeColor.get(this); }
+    public void         setStrokeColor(Color c)         { KEY_StrokeColor.set(this, c); }
+    public String       getXMLstrokeColor()             { return KEY_StrokeColor.asString(this); }
+    public void         setXMLstrokeColor(String xml)   { KEY_StrokeColor.setFromString(this, xml); }
 
-    public Color        getStrokeColor()                { return mStrokeColor.get(); }
-    public void         setStrokeColor(Color c)         { mStrokeColor.set(c); }
-    public String       getXMLstrokeColor()             { return mStrokeColor.asString(); }
-    public void         setXMLstrokeColor(String xml)   { mStrokeColor.setFromString(xml); }
+    public Font         getFont()               { return KEY_Font.get(this); }
+    public void         setFont(Font font)      { KEY_Font.set(this, font); }
+    public String       getXMLfont()            { return KEY_Font.asString(this); }
+    public void         setXMLfont(String xml)  { KEY_Font.setFromString(this, xml); }
 
-    public Font         getFont()               { return mFont.get(); }
-    public void         setFont(Font font)      { mFont.set(font); }
-    public String       getXMLfont()            { return mFont.asString(); }
-    public void         setXMLfont(String xml)  { mFont.setFromString(xml); }
+    StrokeStyle         getStrokeStyle()        { return KEY_StrokeStyle.get(this); }
+    Alignment           getAlignment()          { return KEY_Alignment.get(this); }
+    int                 getFontSize()           { return KEY_FontSize.get(this); }
+    int                 getFontStyle()          { return KEY_FontStyle.get(this); }
+    String              getFontName()           { return KEY_FontName.get(this); }
+    String              getFontUnderline()      { return KEY_FontUnderline.get(this); }
 
 
 
     /**
-     * The first time a TextBox is created for edit, it may not have been laid out
+     * The first time a label is edited, it may not have been laid out
      * by it's parent, which is where it normally gets it's location.  This
-     * initializes the location of the TextBox for first usage.  The default
-     * impl here centers the TextBox in the LWComponent.
+     * initializes the location of the label box for first usage.  The default
+     * impl here centers the label box in the LWComponent.
      */
-    public void initTextBoxLocation(TextBox textBox) {
+    public void initTextBoxLocation(LabelBox textBox) {
         textBox.setBoxCenter(getWidth() / 2,
                              getHeight() / 2);
     }
@@ -4924,9 +5248,9 @@ public class LWComponent
     public float getMapHeight()         { return (float) (this.height * getMapScale()); }
 
     /** @return local width including any border stroke ((width + stroke) * scale) */
-    public float getLocalBorderWidth() { return (float) ((this.width + mStrokeWidth.get()) * getScale()); }
+    public float getLocalBorderWidth() { return (float) ((this.width + getStrokeWidth()) * getScale()); }
     /** @return local height including any border stroke ((height + stroke) * scale) */
-    public float getLocalBorderHeight() { return (float) ((this.height + mStrokeWidth.get()) * getScale()); }
+    public float getLocalBorderHeight() { return (float) ((this.height + getStrokeWidth()) * getScale()); }
 
     /** convenience */
     public Size getSize() {
@@ -5445,6 +5769,7 @@ public class LWComponent
     void setZoomedFocus(AffineTransform tx) {
 
          mTemporaryTransform = tx;
+         SpatialIndex.boundsChanged(this);
 
         //linkNotificationDisabled = isZoomedFocus;
     }
@@ -6386,7 +6711,10 @@ public class LWComponent
             	}
             }
 
-            drawImpl(dc);
+            if (dc.isRenderCaching() && RenderCache.isEnabled() && isRenderCacheable(dc) && RenderCache.draw(this, dc))
+                ; // drawn from a cached raster
+            else
+                drawImpl(dc);
 
         } catch (RuntimeException e) {
             Log.error("drawImpl failed: " + e);
@@ -6743,6 +7071,17 @@ public class LWComponent
     /** default impl: does nothing -- meant to be overriden */
     protected void drawImpl(DrawContext dc) {}
 
+    /**
+     * @return true if the output of drawImpl for the given DrawContext may be drawn from
+     * a raster kept in the RenderCache.  Only worth it for components that are expensive to
+     * draw, and only safe if our drawImpl output depends on nothing but our own state (any
+     * change to which must deliver an LWCEvent), our size, and the on-screen scale.
+     * Default impl: false.
+     */
+    protected boolean isRenderCacheable(DrawContext dc) {
+        return false;
+    }
+
     /** default impl: does nothing -- meant to be overriden -- meant to potentially cache all children */
     public void preCacheContent() {}
     protected void preCacheImpl() {}
@@ -6757,23 +7096,26 @@ public class LWComponent
         }
     }
 
-    protected LWChangeSupport getChangeSupport() {
+    protected synchronized LWChangeSupport getChangeSupport() {
+        if (mChangeSupport == null)
+            mChangeSupport = new LWChangeSupport(this);
         return mChangeSupport;
     }
     public synchronized void addLWCListener(Listener listener) {
-        mChangeSupport.addListener(listener, null);
+        getChangeSupport().addListener(listener, null);
     }
 
     public synchronized void addLWCListener(Listener listener, LWComponent.Key singleEventKey) {
-        mChangeSupport.addListener(listener, singleEventKey);
+        getChangeSupport().addListener(listener, singleEventKey);
     }
     /** @param eventMask is a string constant (from LWKey) or an array of such. If one
      of these non-null values, only events matching those keys will be delievered */
     public synchronized void addLWCListener(Listener listener, Object... eventsDesired) {
-        mChangeSupport.addListener(listener, eventsDesired);
+        getChangeSupport().addListener(listener, eventsDesired);
     }
     public synchronized void removeLWCListener(Listener listener) {
-        mChangeSupport.removeListener(listener);
+        if (mChangeSupport != null)
+            mChangeSupport.removeListener(listener);
     }
 
     /** convenince method for remove a (possible) old listener, and attaching a (possible) new listener */
@@ -6785,7 +7127,8 @@ public class LWComponent
     }
 
     public synchronized void removeAllLWCListeners() {
-        mChangeSupport.removeAllListeners();
+        if (mChangeSupport != null)
+            mChangeSupport.removeAllListeners();
     }
 
     private boolean isStyling(Key key) {
@@ -6796,6 +7139,18 @@ public class LWComponent
 
     protected synchronized void notifyLWCListeners(LWCEvent e)
     {
+        // even silent & zombie events mean we may look different
+        if (mRenderCache != null) {
+            if (e.key == LWKey.UserActionCompleted || e.key == LWKey.Location && e.source == this) {
+                // only keep if the location event is on us:
+                // if this is our child that moved, obviously
+                // clear the cache (we look different)
+                ; // keep the cached image
+            } else {
+                RenderCache.invalidate(this);
+            }
+        }
+
         if (isDeleted() && !permitZombieEvent(e)) {
             // note: this test shortcuts much more detailed diagnostics in LWChangeSupport
             // for tracking zombie events -- comment out for advanced debugging
@@ -6806,19 +7161,10 @@ public class LWComponent
         if (hasFlag(Flag.EVENT_SILENT))
             return;
 
-//         //if (e.key.isSignal || e.key == LWKey.Location && e.source == this) {
-//         if (e.key == LWKey.UserActionCompleted || e.key == LWKey.Location && e.source == this) {
-//             // only keep if the location event is on us:
-//             // if this is our child that moved, obviously
-//             // clear the cache (we look different)
-//             //out("*** KEEPING IMAGE CACHE ***");
-//             ; // keep the cached image
-//         } else {
-//             //out("*** CLEARING IMAGE CACHE");
-//             //mImageBuffer = null;
-//         }
-
-        mChangeSupport.notifyListeners(this, e);
+        if (mChangeSupport != null)
+            mChangeSupport.notifyListeners(this, e);
+        else
+            LWChangeSupport.notifyListeners(this, null, e);
 
         if (e.component == this && e.key instanceof Key) {
             // if parent is null, we're still initializing
@@ -7955,6 +8301,66 @@ public class LWComponent
 
     }
 
+    /**
+     * @return the pixel size of the image that createImage would produce at the given zoom.
+     * Also makes sure all bounds (e.g., link paths) have been computed before any
+     * concurrent calls to drawImageTile.
+     */
+    public Dimension getImageSize(double zoomRequest) {
+        final Rectangle2D.Float bounds = getImageBounds();
+        final Size size = new Size(bounds);
+        computeZoomAndSize(bounds, null, zoomRequest, size);
+        return new Dimension(size.pixelWidth(), size.pixelHeight());
+    }
+
+    /**
+     * Draw one region of the image that drawImage would produce at the given zoom, so that
+     * very large images can be produced a piece at a time.  Only components that intersect
+     * the tile are drawn.  May be called concurrently for different tiles as long as
+     * nothing is being modified, and getImageSize has been called first.
+     *
+     * @param g -- a GC with it's origin at the upper left of the tile
+     * @param fillColor -- if non-null, will be rendered as background for the tile.
+     * @param tile -- the region of the full image to draw, in image pixel coordinates
+     */
+    public void drawImageTile(Graphics2D g, Color fillColor, double zoom, Rectangle tile)
+    {
+        final Rectangle2D.Float bounds = getImageBounds();
+
+        if (fillColor != null) {
+            g.setColor(fillColor);
+            g.fillRect(0, 0, tile.width, tile.height);
+        } else {
+            final java.awt.Composite composite = g.getComposite();
+            g.setComposite(AlphaComposite.Clear);
+            g.fillRect(0, 0, tile.width, tile.height);
+            g.setComposite(composite);
+        }
+
+        final DrawContext dc = new DrawContext(g, this);
+
+        dc.setInteractive(false);
+        dc.setPrintQuality();
+        dc.setBackgroundFill(getRenderFillColor(null));
+
+        g.translate(-tile.x, -tile.y);
+        if (zoom != 1.0)
+            g.scale(zoom, zoom);
+        g.translate(-bounds.getX(),
+                    -bounds.getY());
+
+        // The region of the map covered by this tile (plus a pixel for anti-aliasing) --
+        // unlike drawImage, we're clip optimized so components outside the tile are skipped.
+        final double pixel = 1 / zoom;
+        dc.setMasterClip(new Rectangle2D.Double(bounds.getX() + tile.x / zoom - pixel,
+                                                bounds.getY() + tile.y / zoom - pixel,
+                                                tile.width / zoom + pixel * 2,
+                                                tile.height / zoom + pixel * 2));
+        dc.setClipOptimized(true);
+
+        draw(dc);
+    }
+
     private String cleanControlChars(String s) {
     	if (s == null)
     		return null;
@@ -1334,7 +1334,13 @@ public abstract class LWContainer extends LWComponent
         if (hasChildren() == false)
             return;
 
-        for (LWComponent c : getChildren()) {
+        drawChildren(dc, getChildren());
+    }
+
+    /** draw the given children, which are expected to be in paint order, and are only drawn if they require painting */
+    protected final void drawChildren(DrawContext dc, Iterable<LWComponent> children)
+    {
+        for (LWComponent c : children) {
 
             //-------------------------------------------------------
             // Using a requiresPaint is a huge speed optimzation.
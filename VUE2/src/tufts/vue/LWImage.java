@@ -918,7 +918,7 @@ public class LWImage extends LWComponent
     // old experimental on-map text label code
     //----------------------------------------------------------------------------------------
     
-    @Override protected TextBox getLabelBox()
+    @Override protected LabelBox getLabelBox()
     {
         if (super.labelBox == null) {
             initTextBoxLocation(super.getLabelBox());
@@ -928,7 +928,7 @@ public class LWImage extends LWComponent
     }
     
     
-    @Override public void initTextBoxLocation(TextBox textBox) {
+    @Override public void initTextBoxLocation(LabelBox textBox) {
         textBox.setBoxLocation(0, -textBox.getHeight());
     }
 
@@ -64,6 +64,7 @@ public interface LWKey {
     public String Scale = "scale"; 
     public String Resource = "resource"; 
     public String Hidden = "hidden";
+    public String Filtered = "filtered"; // a change in filtered state: like Hidden, not undoable
 
 
     public String Created = "new.component"; // any LWComponent's creation event
@@ -82,6 +83,7 @@ public interface LWKey {
     public String RepaintComponent = "repaint.component"; // IMMEDIATELY repaint (don't wait for AWT), but just the component
     public String RepaintAsync = "repaint.async"; // a repaint from an auxillary thread: all visual listeners need immediate repaint
     public String RepaintRegion = "repaint.region";
+    public String EventBatch = "event.batch"; // a batch of property changes delivered at once: see LWMap.beginEventBatch
 
     /** link arrow state: 0=none, 1=start arrow, 2=end arrow, 3=both arrows */
     //public String LinkArrows = "link.arrows";
@@ -101,6 +101,69 @@ public class LWLink extends LWComponent
         //RectangularShape shape; // e.g. an arrow -- null means none
         
         final Point2D.Float mapPoint = new Point2D.Float();
+
+        // The inputs and result of the last intersection of a ray with the shape at
+        // this end.  The intersection is only recomputed when one of these changes.
+        private Shape hitShape;
+        private double hitShapeX, hitShapeY, hitShapeW, hitShapeH;
+        private double hitM00, hitM01, hitM02, hitM10, hitM11, hitM12;
+        private float hitRayX1, hitRayY1, hitRayX2, hitRayY2;
+        private final float[] hit = { java.lang.Float.NaN, java.lang.Float.NaN };
+        
+        /**
+         * Move this end to where the given ray crosses the given shape in the given
+         * transform, if it does -- otherwise leave it where it is.
+         */
+        void moveToIntersection(float rayX1, float rayY1, float rayX2, float rayY2, Shape shape, AffineTransform tx)
+        {
+            if (!isCachedIntersection(rayX1, rayY1, rayX2, rayY2, shape, tx)) {
+                if (VueUtil.computeIntersection(rayX1, rayY1, rayX2, rayY2, shape, tx, hit, 1) == VueUtil.NoIntersection)
+                    hit[0] = hit[1] = java.lang.Float.NaN;
+                if (shape instanceof RectangularShape) {
+                    // RectangularShapes are re-framed in place, so record the frame
+                    final RectangularShape r = (RectangularShape) shape;
+                    hitShape = shape;
+                    hitShapeX = r.getX();
+                    hitShapeY = r.getY();
+                    hitShapeW = r.getWidth();
+                    hitShapeH = r.getHeight();
+                } else {
+                    // we can't tell if any other kind of shape has changed: always recompute
+                    hitShape = null;
+                }
+                hitM00 = tx.getScaleX(); hitM01 = tx.getShearX(); hitM02 = tx.getTranslateX();
+                hitM10 = tx.getShearY(); hitM11 = tx.getScaleY(); hitM12 = tx.getTranslateY();
+                hitRayX1 = rayX1;
+                hitRayY1 = rayY1;
+                hitRayX2 = rayX2;
+                hitRayY2 = rayY2;
+            }
+            // If intersection fails for any reason, leave endpoint where it is (the center of the object)
+            if (hit[0] == hit[0]) { // not NaN
+                x = hit[0];
+                y = hit[1];
+            }
+        }
+
+        private boolean isCachedIntersection(float rayX1, float rayY1, float rayX2, float rayY2, Shape shape, AffineTransform tx) {
+            if (shape != hitShape)
+                return false;
+            final RectangularShape r = (RectangularShape) shape;
+            return rayX1 == hitRayX1
+                && rayY1 == hitRayY1
+                && rayX2 == hitRayX2
+                && rayY2 == hitRayY2
+                && r.getX() == hitShapeX
+                && r.getY() == hitShapeY
+                && r.getWidth() == hitShapeW
+                && r.getHeight() == hitShapeH
+                && tx.getScaleX() == hitM00
+                && tx.getShearX() == hitM01
+                && tx.getTranslateX() == hitM02
+                && tx.getShearY() == hitM10
+                && tx.getScaleY() == hitM11
+                && tx.getTranslateY() == hitM12;
+        }
         
         // for control points
         float getX(LWContainer focal) {
@@ -1960,6 +2023,7 @@ public class LWLink extends LWComponent
             // inside a collective parent context (or we already marked)
         } else {
             mRecompute = true;
+            SpatialIndex.boundsChanged(this);
         }
 
         if (DEBUG.CONTAINMENT) {
@@ -2281,7 +2345,6 @@ public class LWLink extends LWComponent
 //     }
 
 
-    private final float[] intersection = new float[2]; // result cache for intersection coords
 
 //     void markAsComputed() {
 //         mRecompute = false;
@@ -2407,13 +2470,8 @@ public class LWLink extends LWComponent
                 srcX = tail.x;
                 srcY = tail.y;
             }
-            final float[] result =
-                VueUtil.computeIntersection(head.x, head.y, srcX, srcY, headShape, headTransform, intersection, 1);
             // If intersection fails for any reason, leave endpoint as center of object at the head.
-            if (result != VueUtil.NoIntersection) {
-                 head.x = intersection[0];
-                 head.y = intersection[1];
-            }
+            head.moveToIntersection(head.x, head.y, srcX, srcY, headShape, headTransform);
         }
         
         //-----------------------------------------------------------------------------
@@ -2443,13 +2501,8 @@ public class LWLink extends LWComponent
                 srcX = head.x;
                 srcY = head.y;
             }
-            final float[] result =
-                VueUtil.computeIntersection(srcX, srcY, tail.x, tail.y, tailShape, tailTransform, intersection, 1);
             // If intersection fails for any reason, leave endpoint as center of object at tail.
-            if (result != VueUtil.NoIntersection) {
-                 tail.x = intersection[0];
-                 tail.y = intersection[1];
-            }
+            tail.moveToIntersection(srcX, srcY, tail.x, tail.y, tailShape, tailTransform);
         }
         
         mCenterX = head.x - (head.x - tail.x) / 2;
@@ -2799,10 +2852,10 @@ public class LWLink extends LWComponent
         // we currently use the stroke width drawn around the arrows
         // to keep them reasonably sized relative to the line, but
         // we don't want any dash-pattern in the stroke for this
-        if (mStrokeStyle.get() == StrokeStyle.SOLID)
+        if (getStrokeStyle() == StrokeStyle.SOLID)
             dc.g.setStroke(this.stroke);
         else
-            dc.g.setStroke(StrokeStyle.SOLID.makeStroke(mStrokeWidth.get()));
+            dc.g.setStroke(StrokeStyle.SOLID.makeStroke(getStrokeWidth()));
             
         if ((mArrowState.get() & ARROW_HEAD) != 0) {
             dc.g.setColor(getStrokeColor());
@@ -3044,7 +3097,7 @@ public class LWLink extends LWComponent
         //-------------------------------------------------------
         
         if (mArrowState.get() != 0) {
-            if (dc.zoom <= 0.125 && dc.isLODEnabled())
+            if (dc.zoom <= DrawContext.LODLinkZoom && dc.isLODEnabled())
                 ; // don't draw arrows
             else
                 drawArrows(dc);
@@ -3058,20 +3111,20 @@ public class LWLink extends LWComponent
         // modifying the drawn stroke width, as well as the text box.
         // -------------------------------------------------------
 
-        float strokeWidth = mStrokeWidth.get();
+        float strokeWidth = getStrokeWidth();
         if (strokeWidth <= 0)
             strokeWidth = 0.5f;
 
 //         if (dc.drawAbsoluteLinks) {
 //             //dc.setAbsoluteStroke(stroke.getLineWidth() * getMapScale());
-//             g.setStroke(mStrokeStyle.get().makeStroke(strokeWidth / g.getTransform().getScaleX()));
+//             g.setStroke(getStrokeStyle().makeStroke(strokeWidth / g.getTransform().getScaleX()));
 //         } else {
-        if (stroke == STROKE_ZERO) { // mStrokeWidth.get() was 0
+        if (stroke == STROKE_ZERO) { // getStrokeWidth() was 0
             // never draw an invisible link: draw zero strokes at small absolute scale tho
             float curScale = (float) dc.g.getTransform().getScaleX();
             if (curScale > 1)
                 strokeWidth /= curScale;
-            dc.g.setStroke(mStrokeStyle.get().makeStroke(strokeWidth));
+            dc.g.setStroke(getStrokeStyle().makeStroke(strokeWidth));
         } else {
             dc.g.setStroke(stroke);
         }
@@ -3205,7 +3258,7 @@ public class LWLink extends LWComponent
             QuadCurve2D right = new QuadCurve2D.Float();
             mQuad.subdivide(left,right);
             g.setColor(Color.green);
-            g.setStroke(new BasicStroke(mStrokeWidth.get()+4));
+            g.setStroke(new BasicStroke(getStrokeWidth()+4));
             g.draw(left);
             g.setColor(Color.red);
             g.draw(right);
@@ -3214,7 +3267,7 @@ public class LWLink extends LWComponent
             CubicCurve2D right = new CubicCurve2D.Float();
             mCubic.subdivide(left,right);
             g.setColor(Color.green);
-            g.setStroke(new BasicStroke(mStrokeWidth.get()+4));
+            g.setStroke(new BasicStroke(getStrokeWidth()+4));
             g.draw(left);
             g.setColor(Color.red);
             g.draw(right);
@@ -3255,9 +3308,9 @@ public class LWLink extends LWComponent
         //-------------------------------------------------------
         
         
-        if (DisplayLabels && hasLabel() && getLabelBox().getParent() == null) {
+        if (DisplayLabels && hasLabel() && !getLabelBox().isEditing()) {
             // todo perf minor: only get/check label box once (also done in drawLabel)
-            // only draw if we have a label, and it's not an active edit on the map (parent == null)
+            // only draw if we have a label, and it's not an active edit on the map
             drawLabel(dc);
         }
 
@@ -3290,7 +3343,7 @@ public class LWLink extends LWComponent
 
     private void drawLabel(DrawContext dc)
     {
-        final TextBox textBox = getLabelBox();
+        final LabelBox textBox = getLabelBox();
         
         // We force a fill color on link labels to make sure we create
         // a contrast between the text and the background, which otherwise
@@ -3504,7 +3557,7 @@ public class LWLink extends LWComponent
     }
 
     @Override
-    public void initTextBoxLocation(TextBox textBox) {
+    public void initTextBoxLocation(LabelBox textBox) {
         if (mRecompute)
             computeLink();
         out("setboxcenter " + Util.fmt(new Point2D.Float(getZeroCenterX(), getZeroCenterY())));
@@ -3622,7 +3675,7 @@ public class LWLink extends LWComponent
     @Override
     public String paramString()
     {
-        String s = String.format("%s %.0f,%.0f-->%.0f,%.0f", mStrokeStyle.get(), head.x, head.y, tail.x, tail.y);
+        String s = String.format("%s %.0f,%.0f-->%.0f,%.0f", getStrokeStyle(), head.x, head.y, tail.x, tail.y);
         if (getControlCount() == 1)
             s += String.format(" (%.0f,%.0f)", mQuad.ctrlx,  mQuad.ctrly);
         else if (getControlCount() == 2)
@@ -3697,4 +3750,88 @@ public class LWLink extends LWComponent
     }
     
     
+    /**
+     * Benchmark of link relayout during a drag: a hub node linked to a ring of nodes
+     * of each of the standard shapes is repeatedly moved, and every link recomputed.
+     * Also times the intersection of each shape alone, computed in closed form, and
+     * computed by walking the flattened path of the same shape as a GeneralPath.
+     * args: [link-count] [drag-steps]
+     */
+    public static void main(String args[]) {
+        DEBUG.Enabled = false;
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        final int steps = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        final RectangularShape[] shapes = {
+            new Rectangle2D.Float(),
+            new Ellipse2D.Float(),
+            new tufts.vue.shape.RoundRect2D(),
+            new tufts.vue.shape.RectangularPoly2D.Diamond(),
+            new tufts.vue.shape.RectangularPoly2D.Hexagon(),
+            new tufts.vue.shape.RectangularPoly2D.Chevron(),
+        };
+
+        final LWMap map = new LWMap("links");
+        final LWNode hub = new LWNode("hub");
+        hub.setShape(shapes[2].getClass());
+        final List<LWComponent> all = new ArrayList<LWComponent>();
+        final List<LWLink> links = new ArrayList<LWLink>();
+        all.add(hub);
+        for (int i = 0; i < count; i++) {
+            final double angle = 2 * Math.PI * i / count;
+            final LWNode node = new LWNode("node " + i);
+            node.setShape(shapes[i % shapes.length].getClass());
+            node.setLocation((float) (Math.cos(angle) * 1000), (float) (Math.sin(angle) * 1000));
+            final LWLink link = new LWLink(hub, node);
+            all.add(node);
+            all.add(link);
+            links.add(link);
+        }
+        map.addChildren(all);
+
+        for (int pass = 0; pass < 3; pass++) {
+            long t = System.nanoTime();
+            for (int step = 0; step < steps; step++) {
+                hub.setLocation(step % 50, step % 30);
+                for (LWLink link : links)
+                    link.getZeroShape();
+            }
+            t = System.nanoTime() - t;
+            System.out.format("drag relayout: %d links x %d steps: %.0f ns/link\n", count, steps, t / (double) (count * steps));
+        }
+
+        final float[] result = new float[2];
+        final AffineTransform tx = AffineTransform.getTranslateInstance(10, 20);
+        tx.scale(1.5, 1.5);
+        final int reps = 200000;
+        for (RectangularShape shape : shapes) {
+            shape.setFrame(0, 0, 120, 60);
+            final Shape path = new GeneralPath(shape);
+            double maxError = 0;
+            long analytic = 0, flattened = 0;
+            for (int pass = 0; pass < 2; pass++) {
+                long t = System.nanoTime();
+                for (int i = 0; i < reps; i++) {
+                    final double angle = i * 0.01;
+                    VueUtil.computeIntersection(100, 65, (float) (100 + Math.cos(angle) * 500), (float) (65 + Math.sin(angle) * 500), shape, tx, result, 1);
+                }
+                analytic = System.nanoTime() - t;
+                t = System.nanoTime();
+                for (int i = 0; i < reps; i++) {
+                    final double angle = i * 0.01;
+                    VueUtil.computeIntersection(100, 65, (float) (100 + Math.cos(angle) * 500), (float) (65 + Math.sin(angle) * 500), path, tx, result, 1);
+                }
+                flattened = System.nanoTime() - t;
+            }
+            final float[] check = new float[2];
+            for (int i = 0; i < 628; i++) {
+                final float x2 = (float) (100 + Math.cos(i * 0.01) * 500), y2 = (float) (65 + Math.sin(i * 0.01) * 500);
+                VueUtil.computeIntersection(100, 65, x2, y2, shape, tx, result, 1);
+                VueUtil.computeIntersection(100, 65, x2, y2, path, tx, check, 1);
+                maxError = Math.max(maxError, Point2D.distance(result[0], result[1], check[0], check[1]));
+            }
+            System.out.format("%-24s closed-form %4.0f ns, flattened path %5.0f ns, max difference %.2f\n",
+                              shape.getClass().getName().replaceFirst(".*\\.", ""), analytic / (double) reps, flattened / (double) reps, maxError);
+        }
+    }
+    
 }
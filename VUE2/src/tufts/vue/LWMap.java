@@ -171,7 +171,7 @@ public class LWMap extends LWContainer
         disablePropertyTypes(KeyType.STYLE);
         enableProperty(LWKey.FillColor);
         disableProperty(LWKey.Label);
-        mFillColor.setAllowAlpha(false);
+        KEY_FillColor.setAllowAlpha(this, false);
 // //         // TODO: need to handle persistance -- could match via a special name, for maybe persistIsStyle
 // //         mInternalLayer = new Layer("*Internal*");
 // //         mInternalLayer.setVisible(false);
@@ -745,6 +745,12 @@ public class LWMap extends LWContainer
     }
 
     private final java.util.concurrent.atomic.AtomicInteger mNextID = new java.util.concurrent.atomic.AtomicInteger();
+    /** every component in the map by ID: see findByID */
+    private final Map<String,LWComponent> mComponentsByID = new HashMap<String,LWComponent>();
+    /** if true, mComponentsByID may be missing components, and is rebuilt on the next lookup */
+    private boolean mIDIndexStale = true;
+    /** for drawing when zoomed far out, created once we're large enough to need it: see DensityTiles */
+    private volatile DensityTiles mDensityTiles;
     protected String getNextUniqueID() {
         return Integer.toString(mNextID.getAndIncrement(), 10);
     }
@@ -865,6 +871,9 @@ public class LWMap extends LWContainer
      */
     public static final class Layer extends LWContainer {
 
+        /** lazily created spatial index of our children for picking and paint culling */
+        private transient SpatialIndex mSpatialIndex;
+
         /** for persistance only */
         public Layer() {
             initLayer();
@@ -1000,6 +1009,64 @@ public class LWMap extends LWContainer
         }
         
 
+        /** @return our spatial index, or null if we currently don't have enough children to make use of one */
+        SpatialIndex getSpatialIndex() {
+            if (!SpatialIndex.Enabled || numChildren() < SpatialIndex.MinIndexedChildren)
+                return null;
+            if (mSpatialIndex == null)
+                mSpatialIndex = new SpatialIndex(this);
+            return mSpatialIndex;
+        }
+
+        /** the given child of ours, or any of it's descendents, may have changed bounds */
+        void spatialChange(LWComponent child) {
+            if (mSpatialIndex != null)
+                mSpatialIndex.markDirty(child);
+        }
+
+        /** our child list has or is about to change */
+        void spatialInvalidate() {
+            if (mSpatialIndex != null)
+                mSpatialIndex.invalidate();
+        }
+
+        /**
+         * @return only those children that could be picked in the pick region, if we
+         * have a spatial index, otherwise all children
+         */
+        @Override
+        public List<LWComponent> getPickList(PickContext pc, List<LWComponent> stored) {
+            final SpatialIndex index = getSpatialIndex();
+            if (index == null)
+                return super.getPickList(pc, stored);
+
+            final Rectangle2D.Float region;
+            if (pc.isRegionPick()) {
+                region = new Rectangle2D.Float(pc.x, pc.y, pc.width, pc.height);
+            } else {
+                // allow for the maximum close-hit slop in LWTraversal.PointPick
+                final float slop = (pc.zoom < 1 ? 8 / pc.zoom : 8) + 1;
+                region = new Rectangle2D.Float(pc.x - slop, pc.y - slop, slop * 2, slop * 2);
+            }
+            stored.clear();
+            return index.query(region, stored);
+        }
+
+        /** only consider children that intersect the master clip region, if we have a spatial index */
+        @Override
+        protected void drawChildren(DrawContext dc) {
+            final SpatialIndex index;
+            if (dc.isClipOptimized() && (index = getSpatialIndex()) != null) {
+                final List<LWComponent> visible = index.query(dc.getMasterClipRect(), new ArrayList());
+                if (dc.focal != null && dc.focal.getParent() == this && !visible.contains(dc.focal))
+                    super.drawChildren(dc); // the focal always draws: just in case, keep the full paint order
+                else
+                    drawChildren(dc, visible);
+            } else {
+                super.drawChildren(dc);
+            }
+        }
+
         @Override
         protected Rectangle2D.Float getZeroBounds() {
             Util.printStackTrace(this + "; Layer getZeroBounds; always empty");
@@ -1345,78 +1412,120 @@ public class LWMap extends LWContainer
      */
     private void layoutAllAfterRestore(final Collection<LWComponent> components, final Object key)
     {
-        Object layoutKey;
+        new RestoreLayout(components, key).run(Long.MAX_VALUE);
+    }
 
-        if (key == INIT_LAYOUT)
-            layoutKey = NODE_INIT_LAYOUT;
-        else
-            layoutKey = key;
-        
-        //-----------------------------------------------------------------------------
-        // First, we layout all NON links, so we can layout the links afterwords, and when
-        // the links recompute, they'll be able to know for certian the borders of what
-        // they're connected to.  Note that this means that the layout of a container
-        // should not depend on a link be current yet.  Groups depend on knowing the size
-        // of their children, but that's not handled via the layout code -- that's handled
-        // via group normalization.
-        //-----------------------------------------------------------------------------
+    /**
+     * The layout of restored components (see layoutAllAfterRestore), which can be done
+     * a piece at a time.
+     */
+    private final class RestoreLayout
+    {
+        private static final int NODES = 0, LINKS = 1, GROUPS = 2;
 
-        for (LWComponent c : components) {
-            // mark all, including links, now, as when we get to them, links-to-links may
-            // cause cascading recomputes that would warn us they're still being restored otherwise.
-            c.mXMLRestoreUnderway = false;
-            if (c instanceof LWLink)
-                continue;
-            if (DEBUG.LAYOUT||DEBUG.INIT) out("LAYOUT NODE: in " +  c.getParent() + ": " + c);
-            try {
-                c.layout(layoutKey);
-            } catch (Throwable t) {
-                Log.warn("LAYOUT-NODE/" + layoutKey + ": " + c, t);
-            }
+        private final Collection<LWComponent> components;
+        private final Object key;
+        private int pass = NODES;
+        private Iterator<LWComponent> iter;
+
+        RestoreLayout(Collection<LWComponent> components, Object key) {
+            this.components = components;
+            this.key = key;
         }
 
-        if (key == INIT_LAYOUT)
-            layoutKey = LINK_INIT_LAYOUT;
-        else
-            layoutKey = key;
-        
-        //-----------------------------------------------------------------------------
-        // Layout links -- will trigger recomputes & layout any link-labels that need it.
-        //-----------------------------------------------------------------------------
-        
-        //if (!tufts.vue.action.SaveAction.PACKAGE_DEBUG) // tmp hack
-            
-        for (LWComponent c : components) {
-            if (c instanceof LWLink == false)
-                continue;
-            if (DEBUG.LAYOUT||DEBUG.INIT) out("LAYOUT LINK: in " +  c.getParent() + ": " + c);
-            try {
-                c.layout(layoutKey);
-            } catch (Throwable t) {
-                Log.warn("LAYOUT-LINK/" + layoutKey + ": " + c, t);
+        /**
+         * Lay out components until done, or until the given time has passed.
+         * @return true if the layout is complete
+         */
+        boolean run(long maxNanos)
+        {
+            final long start = System.nanoTime();
+            for (;;) {
+                if (iter == null) {
+                    if (pass > GROUPS)
+                        return true;
+                    iter = components.iterator();
+                }
+                while (iter.hasNext()) {
+                    layout(iter.next());
+                    if (System.nanoTime() - start >= maxNanos)
+                        return false;
+                }
+                iter = null;
+                pass++;
             }
         }
-        
-        //-----------------------------------------------------------------------------
-        // Just to be sure, re-normalize all groups.  This shouldn't be required, except
-        // perhaps if we're updating from an old model version.
-        //-----------------------------------------------------------------------------
-        
-        for (LWComponent c : components) {
-            try {
-                if (c instanceof LWGroup)
-                    ((LWGroup)c).normalize();
-            } catch (Throwable t) {
-                Log.warn("GROUP-NORMALIZE/"   + key + ": " + c, t);
+
+        private void layout(LWComponent c)
+        {
+            //-----------------------------------------------------------------------------
+            // First, we layout all NON links, so we can layout the links afterwords, and when
+            // the links recompute, they'll be able to know for certian the borders of what
+            // they're connected to.  Note that this means that the layout of a container
+            // should not depend on a link be current yet.  Groups depend on knowing the size
+            // of their children, but that's not handled via the layout code -- that's handled
+            // via group normalization.
+            //-----------------------------------------------------------------------------
+
+            if (pass == NODES) {
+                // mark all, including links, now, as when we get to them, links-to-links may
+                // cause cascading recomputes that would warn us they're still being restored otherwise.
+                c.mXMLRestoreUnderway = false;
+                MapLoadMetrics.checkCancelled();
+                if (c instanceof LWLink)
+                    return;
+                final Object layoutKey = (key == INIT_LAYOUT ? NODE_INIT_LAYOUT : key);
+                if (DEBUG.LAYOUT||DEBUG.INIT) out("LAYOUT NODE: in " +  c.getParent() + ": " + c);
+                try {
+                    c.layout(layoutKey);
+                } catch (Throwable t) {
+                    Log.warn("LAYOUT-NODE/" + layoutKey + ": " + c, t);
+                }
+            }
+
+            //-----------------------------------------------------------------------------
+            // Layout links -- will trigger recomputes & layout any link-labels that need it.
+            //-----------------------------------------------------------------------------
+
+            else if (pass == LINKS) {
+                if (c instanceof LWLink == false)
+                    return;
+                MapLoadMetrics.checkCancelled();
+                final Object layoutKey = (key == INIT_LAYOUT ? LINK_INIT_LAYOUT : key);
+                if (DEBUG.LAYOUT||DEBUG.INIT) out("LAYOUT LINK: in " +  c.getParent() + ": " + c);
+                try {
+                    c.layout(layoutKey);
+                } catch (Throwable t) {
+                    Log.warn("LAYOUT-LINK/" + layoutKey + ": " + c, t);
+                }
+            }
+
+            //-----------------------------------------------------------------------------
+            // Just to be sure, re-normalize all groups.  This shouldn't be required, except
+            // perhaps if we're updating from an old model version.
+            //-----------------------------------------------------------------------------
+
+            else {
+                try {
+                    if (c instanceof LWGroup)
+                        ((LWGroup)c).normalize();
+                } catch (Throwable t) {
+                    Log.warn("GROUP-NORMALIZE/"   + key + ": " + c, t);
+                }
             }
         }
     }
 
+    /** the layout still to be done for a restore completed in the background: see continueRestoreLayout */
+    private RestoreLayout mRestoreLayout;
+
     public void completeXMLRestore(Object context)
     {
         if (DEBUG.INIT || DEBUG.IO || DEBUG.XML)
             Log.debug(getLabel() + ": completing restore...");
 
+        MapLoadMetrics.stage(MapLoadMetrics.Stage.RESTORE);
+
         if (mChildren == NO_CHILDREN || mChildren == Collections.EMPTY_LIST || mChildren == null) {
             // If there was NO content in the map, we need to make sure we manually set
             // the child list to a real list before we do anything else.  Note
@@ -1471,6 +1580,12 @@ public class LWMap extends LWContainer
             ensureID(pathway);
         }
 
+        synchronized (mComponentsByID) {
+            mComponentsByID.clear();
+            indexIDs(allRestored);
+            mIDIndexStale = false;
+        }
+
         //----------------------------------------------------------------------------------------
         // Now update the model to the most recent data version
         //----------------------------------------------------------------------------------------
@@ -1490,6 +1605,8 @@ public class LWMap extends LWContainer
             mModelVersion = getCurrentModelVersion();
         }
 
+        MapLoadMetrics.stage(MapLoadMetrics.Stage.RESOURCES);
+        
         final Collection allResources = getAllResources();
 
         // Note: by this time, some duplicate resources have been removed from the map/
@@ -1545,6 +1662,8 @@ public class LWMap extends LWContainer
 
         mResourceFactory.loadResources(allResources);
 
+        MapLoadMetrics.stage(MapLoadMetrics.Stage.RESTORE);
+
         Schema.restoreSavedMapSchemas(this, mRestoredSchemas, allRestored);
 
         // for now, any restored may is assumed to have already done an auto-cluster
@@ -1566,14 +1685,48 @@ public class LWMap extends LWContainer
         // tmp hack: we were geting exceptions when testing just SaveAction on this code?
         //if (!tufts.vue.action.SaveAction.PACKAGE_DEBUG)
 
+        MapLoadMetrics.stage(MapLoadMetrics.Stage.LAYOUT);
+
+        if (MapLoadMetrics.inBackground()) {
+            // Laying out labels measures them via Swing, which must only be done on
+            // AWT: leave the layout to be completed there (see continueRestoreLayout)
+            mRestoreLayout = new RestoreLayout(allRestored, INIT_LAYOUT);
+            return;
+        }
+
         layoutAllAfterRestore(allRestored, INIT_LAYOUT);
 
+        finishRestore();
+    }
+
+    private void finishRestore() {
         if (DEBUG.INIT || DEBUG.IO || DEBUG.XML) Log.debug("RESTORE COMPLETED; nextID=" + mNextID.get());
         
         mXMLRestoreUnderway = false;
         markAsSaved();
     }
 
+    /** @return true if this map was restored in the background, and it's layout has yet to be completed */
+    public boolean isRestoreLayoutPending() {
+        return mRestoreLayout != null;
+    }
+
+    /**
+     * Continue the layout of a map whose restore was completed in the background, for
+     * up to about the given time.  Must be called on the AWT thread.
+     * @return true if the layout, and so the restore, is complete
+     */
+    public boolean continueRestoreLayout(long maxMillis) {
+        if (mRestoreLayout == null)
+            return true;
+        if (mRestoreLayout.run(maxMillis * 1000000L)) {
+            mRestoreLayout = null;
+            finishRestore();
+            return true;
+        } else
+            return false;
+    }
+
     class ResourceFactory extends Resource.DefaultFactory {
 
         private final Map<String,Resource> resourceMap = new java.util.concurrent.ConcurrentHashMap();
@@ -1853,12 +2006,112 @@ public class LWMap extends LWContainer
         
     
 
-    LWComponent findByID(Collection<LWComponent> allRestored, String id) {
-        for (LWComponent c : allRestored)
-            if (id.equals(c.getID()))
-                return c;
-        tufts.Util.printStackTrace("Failed to child child with id [" + id + "]");
-        return null;
+    /**
+     * @return the component anywhere in this map (including layers, pathways & slides)
+     * with the given ID, or null if there is none.  This is a constant time lookup in
+     * an index that's filled at the end of restore, and kept current as components are
+     * added to and removed from the map.  A miss is authoritative.  Changes we can't
+     * follow one component at a time (undo/redo of the hierarchy, pathway & slide
+     * changes) only mark the index stale, and it's rebuilt on the next lookup.
+     */
+    public LWComponent findByID(String id) {
+        if (id == null)
+            return null;
+        synchronized (mComponentsByID) {
+            if (mIDIndexStale)
+                rebuildIDIndex();
+            LWComponent c = mComponentsByID.get(id);
+            if (c != null && !(id.equals(c.getID()) && isInMap(c))) {
+                // the index is out of date: shouldn't happen, but never return a stale hit
+                Log.warn(this + "; stale ID index entry for [" + id + "]: " + c);
+                rebuildIDIndex();
+                c = mComponentsByID.get(id);
+            }
+            return c;
+        }
+    }
+
+    private boolean isInMap(LWComponent c) {
+        return !c.isDeleted() && c.getMap() == this;
+    }
+
+    private void rebuildIDIndex() {
+        if (DEBUG.WORK || DEBUG.UNDO) Log.debug(this + "; rebuilding ID index of " + mComponentsByID.size());
+        mComponentsByID.clear();
+        indexIDs(getAllDescendents(ChildKind.ANY));
+        mIDIndexStale = false;
+    }
+
+    /** must be called holding the mComponentsByID lock */
+    private void indexIDs(Collection<LWComponent> components) {
+        for (LWComponent c : components) {
+            final String id = c.getID();
+            if (id != null)
+                mComponentsByID.put(id, c);
+        }
+    }
+
+    /** must be called holding the mComponentsByID lock */
+    private void unindexID(LWComponent c) {
+        final String id = c.getID();
+        if (id != null && mComponentsByID.get(id) == c)
+            mComponentsByID.remove(id);
+    }
+
+    /** keep the ID index current with components joining and leaving the map */
+    private void updateIDIndex(LWCEvent e) {
+        final Object key = e.key;
+
+        if (mUndoManager != null && mUndoManager.isUndoing()) {
+            // undo restores parent & child pointers directly, in any order: just rebuild when next needed
+            if (key == LWKey.ChildrenAdded || key == LWKey.ChildrenRemoved || key == LWKey.HierarchyChanged)
+                markIDIndexStale();
+            return;
+        }
+
+        if (isPathwayChange(e)) {
+            // pathways, and the slides of their entries, aren't children we see added or removed
+            markIDIndexStale();
+        }
+        else if (key == LWKey.ChildrenAdded) {
+            synchronized (mComponentsByID) {
+                indexIDs(e.getComponents());
+                for (LWComponent c : e.getComponents())
+                    indexIDs(c.getAllDescendents(ChildKind.ANY));
+            }
+        }
+        else if (key == LWKey.ChildrenRemoved) {
+            final Object container = e.getSource();
+            synchronized (mComponentsByID) {
+                for (LWComponent c : e.getComponents()) {
+                    // On a move, the add to the new parent may already have been seen.  Note
+                    // that a REDO of a delete leaves the children with the old parent set.
+                    if (c.getParent() != container && isInMap(c))
+                        continue;
+                    unindexID(c);
+                    for (LWComponent d : c.getAllDescendents(ChildKind.ANY))
+                        unindexID(d);
+                }
+            }
+        }
+        else if (key == LWKey.Created && e.component != null && e.component.getID() != null) {
+            synchronized (mComponentsByID) {
+                mComponentsByID.put(e.component.getID(), e.component);
+            }
+        }
+    }
+
+    private void markIDIndexStale() {
+        synchronized (mComponentsByID) {
+            mIDIndexStale = true;
+        }
+    }
+
+    private static boolean isPathwayChange(LWCEvent e) {
+        if (e.getSource() instanceof LWPathwayList)
+            return true;
+        final String name = e.getName();
+        return name != null && (name.startsWith("pathway.") || name.startsWith("slide."));
     }
     
 
@@ -1947,7 +2200,11 @@ public class LWMap extends LWContainer
         // We don't draw the pathways on top if we're zoomed in: otherwise
         // they may obscure a pseudo-focal (e.g., a slide)
         
-        if (dc.zoom > PathwayOnTopZoomThreshold || dc.isPresenting()) { // VUE-1177
+        if (dc.isClusterDrawing() && dc.focal == this && drawDensityTiles(dc)) {
+            // zoomed far out: clusters instead of all the layers
+            drawPathways(dc);
+        }
+        else if (dc.zoom > PathwayOnTopZoomThreshold || dc.isPresenting()) { // VUE-1177
             drawPathways(dc);
             super.drawChildren(dc); // draw all layers
         } else {
@@ -1967,6 +2224,32 @@ public class LWMap extends LWContainer
         
     }
 
+    /** @return true if we drew ourself from our DensityTiles, false if we're not large enough, or they're not ready */
+    private boolean drawDensityTiles(DrawContext dc)
+    {
+        if (!DensityTiles.Enabled)
+            return false;
+        
+        if (mDensityTiles == null) {
+            int nodes = 0;
+            for (LWComponent layer : getChildren())
+                nodes += layer.numChildren();
+            if (nodes < DensityTiles.MinNodes)
+                return false;
+            synchronized (this) {
+                if (mDensityTiles == null)
+                    mDensityTiles = new DensityTiles(this);
+            }
+        }
+        
+        return mDensityTiles.draw(dc);
+    }
+
+    /** @return our density tiles, if we've needed them yet */
+    public DensityTiles getDensityTiles() {
+        return mDensityTiles;
+    }
+
     private void drawPathways(DrawContext dc)
     {
                     
@@ -2253,13 +2536,19 @@ public class LWMap extends LWContainer
      */
     @Override
     protected void notifyLWCListeners(LWCEvent e) {
-        if (mChangeSupport.eventsDisabled()) {
+
+        // do this even if events are disabled, so the indexes never go stale
+        updateSpatialIndexes(e);
+        updateIDIndex(e);
+        if (mDensityTiles != null)
+            mDensityTiles.update(e);
+        
+        if (mChangeSupport != null && mChangeSupport.eventsDisabled()) {
             if (DEBUG.EVENTS) System.out.println(e + " SKIPPING (events disabled)");
             return;
         }
         
-        if (e.isUndoable())
-            markChange(e);
+        final boolean changed = e.isUndoable() && markChange(e);
 
         if (mCachedBounds != null) {
             Rectangle2D.Float outside = null;
@@ -2289,10 +2578,200 @@ public class LWMap extends LWContainer
                     flushBounds(); 
             }
         }
+        if (mBatchDepth > 0 && mBatchThread == Thread.currentThread()) {
+            if (isBatchable(e)) {
+                mBatch.add(e, changed);
+                return;
+            } else if (!mBatch.isEmpty()) {
+                // deliver what we've collected before anything that isn't a simple
+                // property change, so listeners see everything in order
+                flushEventBatch();
+            }
+        }
+        
         super.notifyLWCListeners(e);
 
     }
 
+    //----------------------------------------------------------------------------------------
+    // Event batching
+    //----------------------------------------------------------------------------------------
+
+    private int mBatchDepth;
+    private Thread mBatchThread;
+    /** true if we turned on delivery counting for the current batch, and so must turn it off */
+    private boolean mBatchCounting;
+    private EventBatch mBatch;
+
+    /**
+     * Begin collecting property change events from anywhere in the map, to be
+     * delivered to the listeners of this map all at once when the outermost
+     * endEventBatch is called, instead of one at a time as they happen.  Repeat
+     * changes to the same property of the same component are coalesced into the first
+     * of them (which has the oldest old value), so the UndoManager captures exactly
+     * the same changes.  BatchListeners get a single LWKey.EventBatch event,
+     * other listeners get each of the coalesced events.
+     *
+     * Only single-component property changes are batched: any other event
+     * (e.g., hierarchy changes, or a UserActionCompleted) first delivers what's
+     * been collected, and is then delivered immediately as usual.  Events issued
+     * from other threads are never batched.  Listeners on individual components
+     * (as opposed to the map) are not affected.
+     *
+     * Batches may be nested, and must always be ended:
+     *
+     *     map.beginEventBatch();
+     *     try {
+     *         ...
+     *     } finally {
+     *         map.endEventBatch();
+     *     }
+     */
+    public void beginEventBatch() {
+        if (mBatchDepth == 0) {
+            mBatchThread = Thread.currentThread();
+            if (mBatch == null)
+                mBatch = new EventBatch();
+            mBatch.seen = mBatch.kept = 0;
+            if (DEBUG.EVENTS && !LWChangeSupport.isCountingDeliveries()) {
+                LWChangeSupport.setCountingDeliveries(true);
+                mBatchCounting = true;
+            }
+            if (LWChangeSupport.isCountingDeliveries())
+                LWChangeSupport.takeDeliveryCounts(); // reset for this gesture
+        } else if (mBatchThread != Thread.currentThread()) {
+            Log.warn("event batch already underway in " + mBatchThread + "; ignoring batch from " + Thread.currentThread());
+            return;
+        }
+        mBatchDepth++;
+    }
+
+    /** @see #beginEventBatch */
+    public void endEventBatch() {
+        if (mBatchThread != Thread.currentThread())
+            return;
+        if (mBatchDepth <= 0) {
+            Log.warn("unpaired endEventBatch", new Throwable("HERE"));
+            return;
+        }
+        if (--mBatchDepth == 0) {
+            flushEventBatch();
+            mBatchThread = null;
+            if (LWChangeSupport.isCountingDeliveries() && mBatch.seen > 0)
+                Log.info(this + "; gesture batched " + mBatch.seen + " events into " + mBatch.kept
+                         + "; deliveries per listener (including unbatched): " + LWChangeSupport.takeDeliveryCounts());
+            if (mBatchCounting) {
+                // don't keep holding on to every listener seen
+                LWChangeSupport.setCountingDeliveries(false);
+                mBatchCounting = false;
+            }
+        }
+    }
+
+    /** deliver any batched events now */
+    public void flushEventBatch() {
+        if (mBatch == null || mBatch.isEmpty() || mBatchThread != Thread.currentThread())
+            return;
+        final LWCEvent batch = mBatch.produceEvent(this);
+        super.notifyLWCListeners(batch);
+    }
+
+    /** @return true if the given event is a simple property change that can be delivered late */
+    private boolean isBatchable(LWCEvent e) {
+        final Object key = e.key;
+        return e.component != null
+            && e.component != this
+            && e.source == e.component
+            && (key instanceof Key
+                || key == LWKey.Location
+                || key == LWKey.Size
+                || key == LWKey.Frame
+                || key == LWKey.Scale
+                || key == LWKey.Repaint);
+    }
+
+    /** the events collected for a batch, coalesced per component per key */
+    private static final class EventBatch {
+        private final Map<LWComponent,Object> keysByComponent = new IdentityHashMap();
+        private List<LWCEvent> events = new ArrayList();
+        private LWCEvent last;
+        /** events seen and kept (not coalesced) since the start of the gesture */
+        int seen, kept;
+        /** events added since the last batch was produced that were counted as map changes */
+        private int changes;
+
+        void add(LWCEvent e, boolean changed) {
+            seen++;
+            if (changed)
+                changes++;
+            last = e;
+            // values are either a single key, or a Set of keys
+            final Object keys = keysByComponent.get(e.component);
+            if (keys == null) {
+                keysByComponent.put(e.component, e.key);
+            } else if (keys instanceof Set) {
+                if (!((Set)keys).add(e.key))
+                    return;
+            } else if (keys == e.key) {
+                return;
+            } else {
+                final Set<Object> set = new HashSet(4);
+                set.add(keys);
+                set.add(e.key);
+                keysByComponent.put(e.component, set);
+            }
+            events.add(e);
+            kept++;
+        }
+
+        boolean isEmpty() {
+            return events.isEmpty();
+        }
+
+        /** produce the LWKey.EventBatch event for the collected events, and reset */
+        LWCEvent produceEvent(LWMap map) {
+            final LWCEvent batch = new LWCEvent(map,
+                                                new ArrayList(keysByComponent.keySet()),
+                                                events,
+                                                last,
+                                                changes);
+            events = new ArrayList();
+            keysByComponent.clear();
+            last = null;
+            changes = 0;
+            return batch;
+        }
+    }
+
+    /** keep the layer spatial indexes current with what may have changed */
+    private void updateSpatialIndexes(LWCEvent e) {
+        final Object key = e.key;
+        
+        if (key == LWKey.UserActionCompleted || key == LWKey.Repaint || key == LWKey.RepaintAsync)
+            return;
+        
+        if (key == LWKey.HierarchyChanging || key == LWKey.HierarchyChanged
+            || key == LWKey.ChildrenAdded || key == LWKey.ChildrenRemoved
+            || (key instanceof String && ((String)key).startsWith("hier."))) {
+            // for these events, the source is always the container whose child list changed
+            final Object src = e.getSource();
+            if (src instanceof Layer)
+                ((Layer)src).spatialInvalidate();
+            else if (src instanceof LWComponent)
+                SpatialIndex.boundsChanged((LWComponent) src);
+            return;
+        }
+
+        if (e.component != null) {
+            SpatialIndex.boundsChanged(e.component);
+        } else {
+            final List<LWComponent> list = e.getComponents();
+            if (list != null)
+                for (LWComponent c : list)
+                    SpatialIndex.boundsChanged(c);
+        }
+    }
+
     /** javac should be smart enough to automatically create a single instance of these closures
      ** when used inline for its enclosing class instance (LWMap in this case) when nothing other
      ** than "this" is used, but it's not, so here it is not inline. (For that matter, it should
@@ -2305,7 +2784,8 @@ public class LWMap extends LWContainer
         if (DEBUG.EVENTS&&DEBUG.META) out(this + " flushed cached bounds");
     }
     
-    private void markChange(LWCEvent e) {
+    /** @return true if the event was counted as a change to the map */
+    private boolean markChange(LWCEvent e) {
 
         if (!javax.swing.SwingUtilities.isEventDispatchThread()) {
             
@@ -2326,7 +2806,7 @@ public class LWMap extends LWContainer
             // as modified...
             
             if (DEBUG.WORK || DEBUG.EVENTS || DEBUG.INIT) Log.debug("staying clean for non-AWT event: " + e);
-            return;
+            return false;
         }
         
         if (mChanges == 0) {
@@ -2347,6 +2827,7 @@ public class LWMap extends LWContainer
             else
                 Log.debug(msg, new Throwable("HERE"));
         }
+        return true;
     }
 
     @Override
@@ -2756,5 +3237,107 @@ public class LWMap extends LWContainer
         } else
             super.addObject(o);
     }
+
+    /**
+     * Benchmark: restore a map whose pathway names its members by old-style ID, then
+     * compare ID lookups through the index against a scan of all components, for
+     * both present and absent IDs.  Usage: LWMap [node-count member-count ...]
+     * (default is 20000 5000 50000 20000).
+     */
+    public static void main(String args[]) throws Exception
+    {
+        DEBUG.Enabled = false;
+
+        final int[] sizes = args.length >= 2 ? new int[args.length] : new int[] { 20000, 5000, 50000, 20000 };
+        for (int i = 0; i < args.length; i++)
+            sizes[i] = Integer.parseInt(args[i]);
+
+        final int iterations = Integer.getInteger("iterations", 3);
+
+        for (int s = 0; s + 1 < sizes.length; s += 2) {
+            final int size = sizes[s];
+            final int members = sizes[s + 1];
+
+            final LWMap map = new LWMap("findByID benchmark " + size);
+            final List<LWComponent> nodes = new ArrayList(size);
+            for (int i = 0; i < size; i++) {
+                final LWNode n = new LWNode("node " + i);
+                n.setLocation((i % 100) * 120, (i / 100) * 60);
+                nodes.add(n);
+            }
+            map.addChildren(nodes);
+            final LWPathway pathway = new LWPathway(map, "pathway");
+            map.addPathway(pathway);
+            pathway.add(nodes.get(0));
+
+            // save, then re-write the pathway's entries as a list of old-style member ID's
+            final File file = File.createTempFile("vue-findByID", ".vue");
+            tufts.vue.action.ActionUtil.marshallMap(file, map);
+            final StringBuilder xml = new StringBuilder();
+            final java.io.Reader in = new java.io.InputStreamReader(new java.io.FileInputStream(file), "UTF-8");
+            final char[] buf = new char[65536];
+            for (int n; (n = in.read(buf)) > 0;)
+                xml.append(buf, 0, n);
+            in.close();
+            final String[] ids = new String[members];
+            final StringBuilder idList = new StringBuilder();
+            for (int i = 0; i < members; i++) {
+                ids[i] = nodes.get((int) ((long) i * 7919 % size)).getID();
+                idList.append("<id>").append(ids[i]).append("</id>\n");
+            }
+            final String oldStyle =
+                xml.toString().replaceAll("(?s)<pathEntry[^>]*?(/>|>.*?</pathEntry>)",
+                                          java.util.regex.Matcher.quoteReplacement(idList.toString()));
+            final java.io.Writer out = new java.io.OutputStreamWriter(new java.io.FileOutputStream(file), "UTF-8");
+            out.write(oldStyle);
+            out.close();
+
+            System.out.format("%d nodes, pathway of %d old-style member ID's:\n", size, members);
+
+            LWMap restored = null;
+            for (int i = 0; i < iterations; i++) {
+                final long start = System.nanoTime();
+                restored = tufts.vue.action.ActionUtil.unmarshallMap(file);
+                System.out.format("    restore: %6.0fms\n", (System.nanoTime() - start) / 1e6);
+            }
+            file.delete();
+
+            LWPathway restoredPathway = null;
+            for (LWPathway p : restored.getPathwayList())
+                restoredPathway = p;
+            System.out.format("    pathway entries restored: %d\n", restoredPathway.length());
+
+            final String[] absent = new String[members];
+            for (int i = 0; i < members; i++)
+                absent[i] = "absent-" + i;
+
+            for (String[] probe : new String[][] { ids, absent }) {
+                final long indexStart = System.nanoTime();
+                int indexHits = 0;
+                for (String id : probe)
+                    if (restored.findByID(id) != null)
+                        indexHits++;
+                final double indexMs = (System.nanoTime() - indexStart) / 1e6;
+
+                // what pathway restore did before the index: a scan of all components per ID
+                final Collection<LWComponent> all = restored.getAllDescendents(ChildKind.ANY);
+                final long scanStart = System.nanoTime();
+                int scanHits = 0;
+                for (String id : probe) {
+                    for (LWComponent c : all) {
+                        if (id.equals(c.getID())) {
+                            scanHits++;
+                            break;
+                        }
+                    }
+                }
+                final double scanMs = (System.nanoTime() - scanStart) / 1e6;
+
+                System.out.format("    %d %s ID's: index %8.2fms (%d found)   scan %8.0fms (%d found)\n",
+                                  probe.length, probe == ids ? "present" : "absent",
+                                  indexMs, indexHits, scanMs, scanHits);
+            }
+        }
+    }
     
 }
@@ -1188,7 +1188,7 @@ public class LWNode extends LWContainer
         isCenterLayout = !isRectShape;
 
 //         if (isRectShape) {
-//             isCenterLayout = (mAlignment.get() == Alignment.CENTER);
+//             isCenterLayout = (getAlignment() == Alignment.CENTER);
 //         } else {
 //             isCenterLayout = true;
 //         }
@@ -2068,7 +2068,7 @@ public class LWNode extends LWContainer
 //         if (isPresentationContext())
 //             layoutChildrenGrid(baseX, baseY, result, 1, minWidth);
 //         else
-        if (hasFlag(Flag.SLIDE_STYLE) && mAlignment.get() != Alignment.LEFT && isImageNode(this))
+        if (hasFlag(Flag.SLIDE_STYLE) && getAlignment() != Alignment.LEFT && isImageNode(this))
             layoutChildrenColumnAligned(baseX, baseY, result);
         else
             layoutChildrenSingleColumn(baseX, baseY, result);
@@ -2108,9 +2108,9 @@ public class LWNode extends LWContainer
             else
                 y += ChildVerticalGap * getScale();
 
-            if (mAlignment.get() == Alignment.RIGHT)
+            if (getAlignment() == Alignment.RIGHT)
                 c.setLocation(baseX + maxLayoutWidth - c.getLocalWidth(), y);
-            else if (mAlignment.get() == Alignment.CENTER)
+            else if (getAlignment() == Alignment.CENTER)
                 c.setLocation(baseX + (maxLayoutWidth - c.getLocalWidth()) / 2, y);
             else
                 c.setLocation(baseX, y);
@@ -2307,6 +2307,25 @@ public class LWNode extends LWContainer
     
 
 
+    /**
+     * Our full-detail rendering (label, icons) is worth caching, but we don't cache if we
+     * have children, or if there's anything drawn that depends on state that isn't
+     * ours, such as selection, or a parent node whose fill color may darken ours.
+     */
+    @Override protected boolean isRenderCacheable(DrawContext dc)
+    {
+        if (hasChildren() || isSelected() || isFiltered() || dc.focal == this || dc.isPresenting() || dc.isIndicated(this))
+            return false;
+
+        if (getParent() instanceof LWNode || (labelBox != null && labelBox.isEditing()))
+            return false;
+
+        // if we'd draw with reduced LOD, that's already cheap
+        final float renderScale = (float) dc.getAbsoluteScale();
+        return (hasLabel() && getFontSize() * renderScale >= DrawContext.LODTextSize)
+            || (iconShowing() && LWIcon.FONT_ICON.getSize() * renderScale >= DrawContext.LODTextSize);
+    }
+
     /** Draw without rendering any textual glyphs, possibly without children, possibly as a rectanlge only */
     private void drawNodeWithReducedLOD(final DrawContext dc, final float renderScale)
     {
@@ -2362,7 +2381,7 @@ public class LWNode extends LWContainer
         final int hh = (int) ((getHeight() / 2f) + 0.5f);
         //dc.setAntiAlias(false); // too crappy
         dc.g.setStroke(STROKE_SEVEN);
-        dc.g.setColor(mTextColor.get());
+        dc.g.setColor(getTextColor());
         dc.g.drawLine(0, hh, getLabelBox().getWidth(), hh);
     }
     
@@ -2436,12 +2455,12 @@ public class LWNode extends LWContainer
             // with reduced LOD (level-of-detail)
             
             final float renderScale = (float) dc.getAbsoluteScale();            
-            final float renderFont = mFontSize.get() * renderScale;
-            final boolean canSkipLabel = renderFont < 5; 
+            final float renderFont = getFontSize() * renderScale;
+            final boolean canSkipLabel = renderFont < DrawContext.LODTextSize;
             final boolean canSkipIcon;
             
             if (iconShowing())
-                canSkipIcon = LWIcon.FONT_ICON.getSize() * renderScale < 5;
+                canSkipIcon = LWIcon.FONT_ICON.getSize() * renderScale < DrawContext.LODTextSize;
             else
                 canSkipIcon = true;
 
@@ -2537,9 +2556,9 @@ public class LWNode extends LWContainer
         // this.label is still getting set -- maybe we have to null it out
         // manually (and maybe labelBox also)
         
-        if (hasLabel() && this.labelBox != null && this.labelBox.getParent() == null) {
+        if (hasLabel() && this.labelBox != null && !this.labelBox.isEditing()) {
             
-            // if parent is not null, this box is an active edit on the map
+            // if editing, a TextBox is an active edit on the map
             // and we don't want to paint it here as AWT/Swing is handling
             // that at the moment (and at a possibly slightly different offset)
 
@@ -2594,7 +2613,7 @@ public class LWNode extends LWContainer
     }
 
     @Override
-    public void initTextBoxLocation(TextBox textBox) {
+    public void initTextBoxLocation(LabelBox textBox) {
         textBox.setBoxLocation(relativeLabelX(), relativeLabelY());
     }
     
@@ -2611,7 +2630,7 @@ public class LWNode extends LWContainer
         //return mLabelPos.x;
         if (isCenterLayout) { // non-rectangular shapes
             return mLabelPos.x;
-//         } else if (isTextNode() && mStrokeWidth.get() == 0) {
+//         } else if (isTextNode() && getStrokeWidth() == 0) {
 //             return 1;
 //             //return 1 + (strokeWidth == 0 ? 0 : strokeWidth / 2);
         } else if (iconShowing()) {
@@ -2629,9 +2648,9 @@ public class LWNode extends LWContainer
                 // is center label, left children: when we move to generally
                 // suporting left/center/right alignment, that configuration won't
                 // be supported: we may need a special "old-style" alignment style
-                if (mAlignment.get() == Alignment.LEFT && hasFlag(Flag.SLIDE_STYLE)) {
+                if (getAlignment() == Alignment.LEFT && hasFlag(Flag.SLIDE_STYLE)) {
                     return ChildPadX;
-                } else if (mAlignment.get() == Alignment.RIGHT) {
+                } else if (getAlignment() == Alignment.RIGHT) {
                     return (this.width - getTextSize().width) - 1;
                 } else {
                     // CENTER:
@@ -2708,7 +2727,7 @@ public class LWNode extends LWContainer
             baseY = mBoxedLayoutChildY;
             if (DEBUG.LAYOUT) out("*** childOffsetY starting with precomputed " + baseY + " to produce " + (baseY + ChildOffsetY));
         } else {
-            final TextBox labelBox = getLabelBox();
+            final LabelBox labelBox = getLabelBox();
             int labelHeight = labelBox == null ? 12 : labelBox.getHeight();
             //if (DEBUG.WORK) out("labelHeight: " + labelHeight);
             baseY = relativeLabelY() + labelHeight;
@@ -2818,7 +2837,99 @@ public class LWNode extends LWContainer
         n.isAutoSized = true;
         return n;
     }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try { Thread.sleep(50); } catch (InterruptedException e) {}
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long allocatedBytes() {
+        final java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        else
+            return -1;
+    }
+
+    /**
+     * Benchmark: retained heap per default node & link, how many strokes they share,
+     * and the garbage produced by style reads & writes through the
+     * style Keys (as done by copyStyle, undo and the inspectors).  Usage: LWNode [count]
+     * (default is 100000).
+     */
+    public static void main(String args[])
+    {
+        DEBUG.Enabled = false;
+
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+        // make sure all the classes & shared defaults are initialized before measuring
+        new LWLink(new LWNode("warm-up"), new LWNode("warm-up"));
+
+        final List<LWComponent> nodes = new java.util.ArrayList(count);
+        long before = usedHeap();
+        for (int i = 0; i < count; i++)
+            nodes.add(new LWNode(null));
+        final double nodeBytes = (double) (usedHeap() - before) / count;
+
+        final List<LWComponent> links = new java.util.ArrayList(count);
+        before = usedHeap();
+        for (int i = 0; i < count; i++)
+            links.add(new LWLink());
+        final double linkBytes = (double) (usedHeap() - before) / count;
+
+        final java.util.Set strokes = new java.util.HashSet();
+        for (LWComponent c : nodes)
+            strokes.add(c.stroke);
+
+        System.out.format("%d components:\n", count);
+        System.out.format("    LWNode: %6.0f bytes each\n", nodeBytes);
+        System.out.format("    LWLink: %6.0f bytes each\n", linkBytes);
+        System.out.format("    nodes share %d strokes\n", strokes.size());
+
+        final LWNode plain = new LWNode(null);
+        final LWNode styled = new LWNode("styled");
+        styled.setFillColor(java.awt.Color.red);
+        styled.setFont(new Font("Serif", Font.BOLD, 18));
+        styled.setStrokeWidth(2);
+
+        final int reads = Math.min(count, 100000);
+        for (int pass = 0; pass < 2; pass++) { // the first pass is a warm-up
+            for (int i = 0; i < reads; i++)
+                nodes.get(i).copyStyle(plain);
+
+            long start = System.nanoTime();
+            long alloc = allocatedBytes();
+            int found = 0;
+            for (int i = 0; i < reads; i++) {
+                final LWComponent c = nodes.get(i);
+                if (KEY_FillColor.getValue(c) != null) found++;
+                if (KEY_Font.getValue(c) != null) found++;
+                if (KEY_StrokeWidth.getValue(c) != null) found++;
+                if (KEY_Alignment.getValue(c) != null) found++;
+            }
+            final long readAlloc = allocatedBytes() - alloc;
+            final double readMs = (System.nanoTime() - start) / 1e6;
+
+            start = System.nanoTime();
+            alloc = allocatedBytes();
+            for (int i = 0; i < reads; i++)
+                nodes.get(i).copyStyle(styled);
+            final long copyAlloc = allocatedBytes() - alloc;
+            final double copyMs = (System.nanoTime() - start) / 1e6;
+
+            if (pass == 0)
+                continue;
+            System.out.format("    %d style reads: %6.1fms, %s\n", reads * 4, readMs,
+                              readAlloc < 0 ? "allocation unknown" : String.format("%.1f bytes allocated per read", readAlloc / (reads * 4.0)));
+            System.out.format("    %d copyStyle: %6.1fms, %s\n", reads, copyMs,
+                              copyAlloc < 0 ? "allocation unknown" : String.format("%.0f bytes allocated per copy", copyAlloc / (double) reads));
+            if (found < 0) System.out.println(found); // keep the reads live
+        }
+    }
     
-    
-    
-}
\ No newline at end of file
+}
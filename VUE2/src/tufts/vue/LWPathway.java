@@ -583,7 +583,7 @@ public class LWPathway extends LWContainer
 
     private void initPathway() {
         disablePropertyTypes(KeyType.STYLE);
-        mStrokeColor.setFixedAlpha(PathwayAlpha);
+        KEY_StrokeColor.setFixedAlpha(this, PathwayAlpha);
     }
     
     /** @return null -- will prevent participating in auto-styling system */
@@ -1174,7 +1174,8 @@ public class LWPathway extends LWContainer
         } else {
             // rebroadcast our child events so that the LWPathwayList which is
             // listening to us can pass them on to the PathwayTableModel
-            mChangeSupport.dispatchEvent(e);
+            if (mChangeSupport != null)
+                mChangeSupport.dispatchEvent(e);
         }
     }
 
@@ -1538,9 +1539,10 @@ public class LWPathway extends LWContainer
         // This is for backward compat with older save files where
         // Pathway elements were stored only by ID
         if (mOldStyleMemberIDList.size() > 0) {
-            final Collection<LWComponent> allRestored = map.getAllDescendents(ChildKind.ANY);
             for (String id : mOldStyleMemberIDList) {
-                LWComponent c = map.findByID(allRestored, id);
+                final LWComponent c = map.findByID(id);
+                if (c == null)
+                    Log.warn(this + "; no component in " + map + " with old-style member ID [" + id + "]");
                 if (DEBUG.XML || DEBUG.PATHWAY) out("RESTORING old-style path element " + c);
                 newEntries.add(new Entry(this, c));
             }
@@ -1672,7 +1674,7 @@ public class LWPathway extends LWContainer
     
     /** @return the color of the pathway (same as stroke-color) */
     public Color getColor() {
-        return mStrokeColor.get();
+        return getStrokeColor();
     }
 
     public static void decorateOver(final LWComponent node, final DrawContext dc)
@@ -37,8 +37,8 @@ public class LWPortal extends LWNode
 {
     public LWPortal() {
         updateCapabilities();
-        mFillColor.setFixedAlpha(64);
-        mStrokeColor.setFixedAlpha(64);
+        KEY_FillColor.setFixedAlpha(this, 64);
+        KEY_StrokeColor.setFixedAlpha(this, 64);
     }
 
     @Override
@@ -144,14 +144,14 @@ public class LWPortal extends LWNode
     
     @Override
     public Color getRenderFillColor(DrawContext dc) {
-        if (mFillColor.isTransparent())
-            return getMap().mFillColor.brightness() > 0.5 ? DarkFill : LightFill;
+        if (hasTransparentFill())
+            return Util.brightness(getMap().getFillColor()) > 0.5 ? DarkFill : LightFill;
         else
             return getFillColor();
 //         if (false&&dc != null && dc.focal != null)
-//             return dc.focal.mFillColor.brightness() > 0.5 ? DarkFill : LightFill;
+//             return Util.brightness(dc.focal.getFillColor()) > 0.5 ? DarkFill : LightFill;
 //         else
-//             return getMap().mFillColor.brightness() > 0.5 ? DarkFill : LightFill;
+//             return Util.brightness(getMap().getFillColor()) > 0.5 ? DarkFill : LightFill;
     }
 
     @Override
@@ -243,7 +243,7 @@ public class LWPortal extends LWNode
             }
         } else {
 
-            if (this.stroke == STROKE_ZERO || !mFillColor.isTransparent()) {
+            if (this.stroke == STROKE_ZERO || !hasTransparentFill()) {
                 // Show the portal region:
                 dc.g.setColor(getRenderFillColor(dc));
                 dc.g.fill(getZeroShape());
@@ -366,7 +366,7 @@ public class LWSlide extends LWContainer
         }
         
         c.setFlag(Flag.SLIDE_STYLE);
-        c.mAlignment.set(Alignment.LEFT);
+        KEY_Alignment.set(c, Alignment.LEFT);
 
         final LWComponent style;
         
@@ -417,7 +417,7 @@ public class LWSlide extends LWContainer
             applyMasterStyle(c, resetStyle);
 
 //         if (LWNode.isImageNode(c))
-//             c.mAlignment.set(Alignment.RIGHT);
+//             KEY_Alignment.set(c, Alignment.RIGHT);
 
     }
 
@@ -498,7 +498,7 @@ public class LWSlide extends LWContainer
     /** implemented to return the bg color of the master slide (for proper on-slide text edit fill color) */
     @Override
     public Color getRenderFillColor(DrawContext dc) {
-         if (mFillColor.isTransparent()) {
+         if (hasTransparentFill()) {
              final LWSlide master = getMasterSlide();
              if (master == null)
                  return getFillColor();
@@ -334,7 +334,7 @@ public class LWText extends LWComponent {
             // with reduced LOD (level-of-detail)
             final float renderScale = (float) dc.getAbsoluteScale(); 
             final float renderFont = getAverageTextSize() * renderScale;
-            if (renderFont < 5) {
+            if (renderFont < DrawContext.LODTextSize) {
                 drawTextWithReducedLOD(dc, renderScale);
                 return; // WE'RE DONE
             }
@@ -343,6 +343,18 @@ public class LWText extends LWComponent {
         drawNode(dc);
     }
 
+    /** rich text is expensive to draw: it's worth caching unless it's selected or being edited */
+    @Override protected boolean isRenderCacheable(DrawContext dc)
+    {
+        if (isSelected() || isFiltered() || dc.focal == this || dc.isPresenting() || dc.isIndicated(this))
+            return false;
+
+        if (richLabelBox != null && richLabelBox.getParent() != null) // an active edit
+            return false;
+
+        return getAverageTextSize() * dc.getAbsoluteScale() >= DrawContext.LODTextSize;
+    }
+
     private final static Line2D.Float xline = new Line2D.Float();
 
     private void drawTextWithReducedLOD(final DrawContext dc, final float renderScale) {
@@ -524,9 +536,9 @@ public class LWText extends LWComponent {
     public float getMapHeight()         { return (float) (getHeight() * getMapScale()); }
 
     @Override
-    public float getLocalBorderWidth() { return (float) ((getWidth() + mStrokeWidth.get()) * getScale()); }
+    public float getLocalBorderWidth() { return (float) ((getWidth() + getStrokeWidth()) * getScale()); }
     @Override
-    public float getLocalBorderHeight() { return (float) ((getHeight() + mStrokeWidth.get()) * getScale()); }
+    public float getLocalBorderHeight() { return (float) ((getHeight() + getStrokeWidth()) * getScale()); }
 
 
 	private boolean inLayout = false;
@@ -0,0 +1,605 @@
+/*
+* Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.vue;
+
+import tufts.vue.gui.TextRow;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.font.FontRenderContext;
+import java.awt.font.TextAttribute;
+import java.awt.font.TextLayout;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.text.AttributedString;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.JTextPane;
+import javax.swing.text.DefaultStyledDocument;
+import javax.swing.text.GlyphView;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.StyleContext;
+import javax.swing.text.StyledDocument;
+import javax.swing.text.View;
+
+/**
+ * The non-editing representation of an LWComponent label: measures and paints
+ * multi-line, aligned text the same way a {@link TextBox} does, but without
+ * allocating a JTextPane (and its Document, View tree, listeners, etc) for
+ * every component on the map.
+ *
+ * All measurement is done through a single shared JTextPane configured exactly
+ * as a TextBox would be, so sizes and line breaks match what the user sees
+ * when editing.  (Measuring with a java.awt.font LineBreakMeasurer instead would
+ * break lines and round sizes a little differently than the editor does, and
+ * labels would jump when an edit begins.)  The results -- the preferred size at a
+ * given wrap width, and the resulting rows as TextLayouts -- are kept in a small
+ * LRU cache keyed by text, font and wrap width, and each LabelBox holds on to the
+ * entry for its current size, so identical labels share the same layout.
+ *
+ * When the user edits a label, a real TextBox is created for the duration of
+ * the edit only (see {@link LWComponent#getLabelEditor}).
+ *
+ * @see tufts.vue.TextBox
+ */
+
+public class LabelBox implements VueConstants
+{
+    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(LabelBox.class);
+
+    /** max number of measured layouts kept around that aren't referenced by a LabelBox */
+    private static final int CacheSize = 2048;
+
+    private final LWComponent lwc;
+    /** bounds: generally used by the component as local coordinates (same as TextBox.getBoxBounds) */
+    private final Rectangle2D.Float mBounds = new Rectangle2D.Float(Float.NaN, Float.NaN, 0, 0);
+    private String mText = "";
+    private Style mStyle;
+    /** the layout for our text and style at our current size: cleared whenever any of them change */
+    private Layout mLayout;
+    private int mWidth;
+    private int mHeight;
+    private float mMaxWordWidth;
+    private Color mBackground;
+    private boolean mOpaque;
+
+    LabelBox(LWComponent lwc, String text)
+    {
+        if (DEBUG.TEXT && DEBUG.LAYOUT) tufts.Util.printClassTrace("tufts.vue.", "NEW LabelBox, txt=" + text);
+        this.lwc = lwc;
+        if (text != null)
+            setText(text);
+        else
+            copyStyle(lwc);
+    }
+
+    LWComponent getLWC() {
+        return lwc;
+    }
+
+    public String getText() {
+        return mText;
+    }
+
+    public void setText(String text)
+    {
+        if (DEBUG.TEXT) out("setText[" + text + "]");
+        mText = text == null ? "" : text;
+        copyStyle(lwc);
+    }
+
+    /** take on the text and final size of a just completed edit */
+    void setEditedText(String text, Dimension size)
+    {
+        mText = text == null ? "" : text;
+        mLayout = null; // the size may well be the same
+        mMaxWordWidth = computeMaxWordWidth(mStyle.font, mText);
+        setSize(size);
+    }
+
+    /** @return true if a TextBox is currently active on the map editing our label */
+    public boolean isEditing() {
+        final TextBox editor = lwc.labelEditor;
+        return editor != null && editor.getParent() != null;
+    }
+
+    // this called every time setText is called to ensure we get
+    // the font style encoded in our owning LWComponent
+    void copyStyle(LWComponent c)
+    {
+        if (DEBUG.TEXT) out("copyStyle " + c);
+        mStyle = Style.instance(c.getFont(),
+                                "underline".equals(c.getFontUnderline()),
+                                c instanceof LWNode && ((LWNode)c).isTextNode()
+                                ? StyleConstants.ALIGN_LEFT
+                                : StyleConstants.ALIGN_CENTER);
+        mLayout = null; // the text or style may have changed without changing our size
+        mMaxWordWidth = computeMaxWordWidth(mStyle.font, c.getLabel());
+        setSize(getPreferredSize());
+        setSize(getPreferredSize());
+
+        if (c.labelEditor != null)
+            c.labelEditor.copyStyle(c);
+    }
+
+    private static float computeMaxWordWidth(Font font, String text) {
+        final float maxCharWidth = (float) font.getMaxCharBounds(DefaultFontContext).getWidth();
+        try {
+            return TextBox.maxWordWidth(font, text, maxCharWidth);
+        } catch (Exception e) {
+            return maxCharWidth;
+        }
+    }
+
+    public float getMaxWordWidth() {
+        return mMaxWordWidth;
+    }
+
+    /** @return the unwrapped width of our text, and the height needed to contain it at our current width */
+    public Dimension getPreferredSize() {
+        final Layout layout = layout(mText, mStyle, mWidth, mHeight);
+        return new Dimension(layout.prefWidth, layout.prefHeight);
+    }
+
+    public Dimension getSize() {
+        return new Dimension(mWidth, mHeight);
+    }
+
+    public int getWidth() { return mWidth; }
+    public int getHeight() { return mHeight; }
+
+    public void setSize(Size s) {
+        setSize(s.dim());
+    }
+
+    public void setSize(float w, float h) {
+        setSize(new Dimension((int)w, (int)h));
+    }
+
+    public void setSize(Dimension s) {
+        if (DEBUG.TEXT) out("setSize " + s.width + "x" + s.height);
+        setSizeImpl(s.width, s.height);
+        mBounds.width = s.width;
+        mBounds.height = s.height;
+    }
+
+    private void setSizeImpl(int w, int h) {
+        if (w != mWidth || h != mHeight) {
+            mWidth = w;
+            mHeight = h;
+            mLayout = null;
+        }
+    }
+
+    /**
+     * Set the size to the given size, increasing or decreasing height as
+     * needed to provide a fit around our text
+     */
+    public void setSizeFlexHeight(Size newSize) {
+        setSize(newSize);
+        // as with TextBox, the box bounds keep the requested height
+        setSizeImpl(mWidth, getPreferredSize().height);
+    }
+
+    public void setBackground(Color c) {
+        mBackground = c;
+    }
+
+    public void setOpaque(boolean opaque) {
+        mOpaque = opaque;
+    }
+
+    public Rectangle2D getBoxBounds() {
+        return mBounds;
+    }
+
+    public boolean boxContains(float x, float y)
+    {
+        return x >= mBounds.x
+            && y >= mBounds.y
+            && x <= mBounds.x + mBounds.width
+            && y <= mBounds.y + mBounds.height;
+    }
+
+    public boolean boxIntersects(Rectangle2D rect)
+    {
+        return rect.intersects(mBounds);
+    }
+
+    public void setBoxLocation(float x, float y)
+    {
+        mBounds.x = x;
+        mBounds.y = y;
+    }
+
+    public void setBoxLocation(Point2D p)
+    {
+        setBoxLocation((float) p.getX(), (float) p.getY());
+    }
+
+    public void setBoxCenter(float x, float y) {
+        setBoxLocation(x - getBoxWidth() / 2,
+                       y - getBoxHeight() / 2);
+    }
+
+    public Point2D.Float getBoxPoint()
+    {
+        return new Point2D.Float(mBounds.x, mBounds.y);
+    }
+
+    public float getBoxWidth() { return mBounds.width; };
+    public float getBoxHeight() { return mBounds.height; }
+    public float getBoxX() { return mBounds.x; };
+    public float getBoxY() { return mBounds.y; }
+
+    public void draw(DrawContext dc)
+    {
+        final Graphics2D g = dc.g;
+
+        if (DEBUG.BOXES && DEBUG.META) {
+            if (lwc.getLabel().indexOf('\n') < 0) {
+                TextRow r = new TextRow(lwc.getLabel(), lwc.getFont(), g.getFontRenderContext());
+                g.setColor(Color.lightGray);
+                r.draw(dc, 0, 0);
+            }
+        }
+
+        if (mOpaque && mBackground != null) {
+            g.setColor(mBackground);
+            g.fillRect(0, 0, mWidth, mHeight);
+        }
+
+        Layout layout = mLayout;
+        if (layout == null || layout.rows == null)
+            mLayout = layout = rows(mText, mStyle, mWidth, mHeight);
+
+        g.setColor(getRenderTextColor(dc));
+        for (int i = 0; i < layout.rows.length; i++)
+            layout.rows[i].draw(g, layout.rowX[i], layout.rowY[i]);
+
+        if (DEBUG.BOXES) {
+            g.setColor(Color.red);
+            dc.setAbsoluteStroke(0.5);
+            g.drawRect(0,0, layout.prefWidth, layout.prefHeight);
+            g.setColor(Color.blue);
+            g.drawRect(0,0, mWidth, mHeight);
+        }
+    }
+
+    private Color getRenderTextColor(DrawContext dc)
+    {
+        if (dc.isPresenting() && lwc.isTransparent()) {
+            // if the text color equals the background color when in a presentation
+            // (e.g. the master slide has a black background), and the text box
+            // has to fill of it's own for contrast, then temporarily swap
+            // the text color to white or black so it can be seen.
+            if (LWComponent.KEY_TextColor.valueEquals(lwc, dc.getBackgroundFill())) {
+                if (LWComponent.KEY_TextColor.brightness(lwc) > 0.5)
+                    return DEBUG.Enabled ? Color.blue  : Color.black;
+                else
+                    return DEBUG.Enabled ? Color.green : Color.white;
+            }
+        }
+        final Color c = lwc.getTextColor();
+        return c == null ? Color.black : c;
+    }
+
+    public String toString()
+    {
+        return "LabelBox[" + lwc + "]";
+    }
+
+    private void out(String s) {
+        Log.debug(String.format("%08x[%s] %s", System.identityHashCode(this), mText, s));
+    }
+
+    //----------------------------------------------------------------------------------------
+    // Shared measurement & layout
+    //----------------------------------------------------------------------------------------
+
+    /** an immutable, shared font/alignment combination */
+    private static final class Style {
+        private static final Map<Style,Style> Instances = new HashMap<Style,Style>();
+
+        final Font font;
+        final boolean underline;
+        final int alignment;
+        final SimpleAttributeSet attributes = new SimpleAttributeSet();
+
+        private Style(Font f, boolean underline, int alignment) {
+            // this is the font the document will actually resolve to: it's built from
+            // the family/style/size attributes, which is all a TextBox passes along
+            this.font = StyleContext.getDefaultStyleContext().getFont(f.getFamily(), f.getStyle(), f.getSize());
+            this.underline = underline;
+            this.alignment = alignment;
+            StyleConstants.setAlignment(attributes, alignment);
+            StyleConstants.setFontFamily(attributes, f.getFamily());
+            StyleConstants.setFontSize(attributes, f.getSize());
+            StyleConstants.setItalic(attributes, f.isItalic());
+            StyleConstants.setBold(attributes, f.isBold());
+            StyleConstants.setUnderline(attributes, underline);
+        }
+
+        static synchronized Style instance(Font f, boolean underline, int alignment) {
+            final Style s = new Style(f, underline, alignment);
+            final Style existing = Instances.get(s);
+            if (existing != null)
+                return existing;
+            Instances.put(s, s);
+            return s;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof Style))
+                return false;
+            final Style s = (Style) o;
+            return font.equals(s.font) && underline == s.underline && alignment == s.alignment;
+        }
+
+        @Override public int hashCode() {
+            return font.hashCode() * 31 + alignment * 2 + (underline ? 1 : 0);
+        }
+    }
+
+    /** the measured size, and (once drawn) rows, for a given text & style at a given wrap width */
+    private static final class Layout {
+        final String text;
+        final Style style;
+        final int width;
+        private final int hash;
+
+        int prefWidth;
+        int prefHeight;
+        TextLayout[] rows;
+        float[] rowX;
+        float[] rowY;
+
+        Layout(String text, Style style, int width) {
+            this.text = text;
+            this.style = style;
+            this.width = width;
+            this.hash = (text.hashCode() * 31 + style.hashCode()) * 31 + width;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof Layout))
+                return false;
+            final Layout l = (Layout) o;
+            return width == l.width && style == l.style && text.equals(l.text);
+        }
+
+        @Override public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final Map<Layout,Layout> Cache = new LinkedHashMap<Layout,Layout>(CacheSize, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<Layout,Layout> eldest) {
+                return size() > CacheSize;
+            }
+        };
+
+    private static JTextPane Pane;
+    private static Layout PaneContent;
+
+    /** @return the layout entry for the given text & style at the given size, measuring it if needed */
+    private static synchronized Layout layout(String text, Style style, int width, int height)
+    {
+        // JTextPane only wraps to it's current width if it has a real size, otherwise
+        // it reports it's unwrapped size
+        if (width <= 0 || height <= 0)
+            width = 0;
+        final Layout key = new Layout(text, style, width);
+        Layout layout = Cache.get(key);
+        if (layout == null) {
+            layout = key;
+            load(layout);
+            try {
+                final Dimension s = Pane.getPreferredSize();
+                layout.prefWidth = s.width;
+                layout.prefHeight = s.height;
+            } catch (Throwable t) {
+                Log.error("getPreferredSize " + tufts.Util.tags(text), t);
+                layout.prefWidth = 200;
+                layout.prefHeight = 100;
+            }
+            Cache.put(layout, layout);
+        }
+        return layout;
+    }
+
+    /** @return the layout entry for the given text & style at the given size, with it's rows computed */
+    private static synchronized Layout rows(String text, Style style, int width, int height)
+    {
+        final Layout layout = layout(text, style, width, height);
+        if (layout.rows != null)
+            return layout;
+
+        final List<TextLayout> rows = new ArrayList<TextLayout>();
+        final List<Rectangle> positions = new ArrayList<Rectangle>();
+        try {
+            load(layout);
+            // paint at our real size: the text will wrap as it would when drawn by a TextBox of this size
+            final int w = layout.width > 0 ? layout.width : layout.prefWidth;
+            Pane.setSize(w, Math.max(height, layout.prefHeight));
+            final View root = Pane.getUI().getRootView(Pane);
+            // a model->view lookup makes sure the whole view hierarchy has been flowed at
+            // this size: the View's setSize alone doesn't re-flow paragraphs
+            Pane.modelToView(0);
+            final FontRenderContext frc = Pane.getFontMetrics(style.font).getFontRenderContext();
+            collectRows(root, new Rectangle(0, 0, w, Pane.getHeight()), layout, frc, rows, positions);
+        } catch (Throwable t) {
+            Log.error("layout " + tufts.Util.tags(text), t);
+        }
+
+        final int ascent = Pane.getFontMetrics(style.font).getAscent();
+        final int count = rows.size();
+        layout.rowX = new float[count];
+        layout.rowY = new float[count];
+        for (int i = 0; i < count; i++) {
+            final Rectangle r = positions.get(i);
+            layout.rowX[i] = r.x;
+            layout.rowY[i] = r.y + ascent; // baseline
+        }
+        layout.rows = rows.toArray(new TextLayout[count]);
+        return layout;
+    }
+
+    /** find the rows of text the view hierarchy has produced, and build a TextLayout for each */
+    private static void collectRows(View view, Shape alloc, Layout layout, FontRenderContext frc,
+                                    List<TextLayout> rows, List<Rectangle> positions)
+        throws javax.swing.text.BadLocationException
+    {
+        final int count = view.getViewCount();
+        if (count == 0)
+            return;
+        if (view.getView(0) instanceof GlyphView) {
+            // a row (line) of text
+            final StyledDocument doc = Pane.getStyledDocument();
+            final int start = view.getStartOffset();
+            final int end = Math.min(view.getEndOffset(), doc.getLength());
+            String s = doc.getText(start, end - start);
+            int len = s.length();
+            while (len > 0 && Character.isWhitespace(s.charAt(len - 1)))
+                len--;
+            if (len == 0)
+                return;
+            if (len < s.length())
+                s = s.substring(0, len);
+            final AttributedString as = new AttributedString(s);
+            as.addAttribute(TextAttribute.FONT, layout.style.font);
+            if (layout.style.underline)
+                as.addAttribute(TextAttribute.UNDERLINE, TextAttribute.UNDERLINE_ON);
+            rows.add(new TextLayout(as.getIterator(), frc));
+            positions.add(view.getChildAllocation(0, alloc).getBounds());
+        } else {
+            for (int i = 0; i < count; i++)
+                collectRows(view.getView(i), view.getChildAllocation(i, alloc), layout, frc, rows, positions);
+        }
+    }
+
+    /** configure the shared JTextPane as a TextBox with the given text & style would be */
+    private static void load(Layout layout)
+    {
+        if (Pane == null) {
+            Pane = new JTextPane();
+            Pane.setBorder(null);
+            Pane.setMargin(null);
+            Pane.setOpaque(false);
+        }
+        if (PaneContent == null || PaneContent.style != layout.style || !PaneContent.text.equals(layout.text)) {
+            Pane.setStyledDocument(new DefaultStyledDocument());
+            Pane.setText(layout.text);
+            final StyledDocument doc = Pane.getStyledDocument();
+            doc.setParagraphAttributes(0, doc.getEndPosition().getOffset(), layout.style.attributes, false);
+            PaneContent = layout;
+        }
+        Pane.setSize(layout.width, layout.width > 0 ? 1 : 0);
+    }
+
+    //----------------------------------------------------------------------------------------
+    // heap usage test
+    //----------------------------------------------------------------------------------------
+
+    private static long usedHeap() {
+        final Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try { Thread.sleep(50); } catch (InterruptedException e) {}
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static void drawAll(List<LWNode> nodes, boolean textBoxes, List<TextBox> boxes) {
+        final java.awt.image.BufferedImage image = new java.awt.image.BufferedImage(200, 200, java.awt.image.BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D g = image.createGraphics();
+        g.setClip(0, 0, 200, 200);
+        final DrawContext dc = new DrawContext(g);
+        for (int i = 0; i < nodes.size(); i++) {
+            if (textBoxes)
+                boxes.get(i).draw(dc);
+            else
+                nodes.get(i).getLabelBox().draw(dc);
+        }
+        g.dispose();
+    }
+
+    /**
+     * Generate a large map of labeled nodes and report heap used per node for label
+     * rendering with a TextBox per node (the old way) v.s. a LabelBox per node.
+     * args: [node-count]
+     */
+    public static void main(String args[]) {
+        DEBUG.Enabled = false;
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        final String[] words = { "alpha", "beta", "gamma", "delta", "concept", "map", "node", "label", "idea", "topic" };
+        final java.util.Random random = new java.util.Random(42);
+        final LWMap map = new LWMap("labels");
+        final List<LWNode> nodes = new ArrayList<LWNode>(count);
+        for (int i = 0; i < count; i++) {
+            final StringBuilder label = new StringBuilder();
+            final int nwords = 1 + random.nextInt(6);
+            for (int w = 0; w < nwords; w++) {
+                if (w > 0) label.append(w == 3 ? '\n' : ' ');
+                label.append(words[random.nextInt(words.length)]);
+            }
+            label.append(' ').append(i % 100);
+            final LWNode node = new LWNode(label.toString());
+            nodes.add(node);
+        }
+        map.addChildren(nodes);
+
+        // Make sure every node has measured/laid out it's label, and drop any shared state
+        drawAll(nodes, false, null);
+        for (LWNode n : nodes) n.labelBox = null;
+        synchronized (LabelBox.class) { Cache.clear(); PaneContent = null; }
+
+        long base = usedHeap();
+        long t = System.nanoTime();
+        final List<TextBox> boxes = new ArrayList<TextBox>(count);
+        for (LWNode n : nodes) {
+            final TextBox box = new TextBox(n, n.getLabel());
+            box.setSize(box.getPreferredSize());
+            boxes.add(box);
+        }
+        drawAll(nodes, true, boxes);
+        final double textBoxSecs = (System.nanoTime() - t) / 1e9;
+        final long textBoxBytes = usedHeap() - base;
+        boxes.clear();
+
+        base = usedHeap();
+        t = System.nanoTime();
+        for (LWNode n : nodes)
+            n.getLabelBox().setSize(n.getLabelBox().getPreferredSize());
+        drawAll(nodes, false, null);
+        final double labelBoxSecs = (System.nanoTime() - t) / 1e9;
+        final long labelBoxBytes = usedHeap() - base;
+
+        System.out.format("%d nodes\n", count);
+        System.out.format("  TextBox: %7.1f KB/node %6.2fs\n", textBoxBytes / 1024.0 / count, textBoxSecs);
+        System.out.format(" LabelBox: %7.1f KB/node %6.2fs\n", labelBoxBytes / 1024.0 / count, labelBoxSecs);
+        System.exit(0);
+    }
+}
@@ -105,6 +105,9 @@ public abstract  class LayoutAction extends Actions.LWCAction
     public static final LayoutAction force = new LayoutAction(new ForceLayout(),VueResources.getString("menu.format.layout.force"), KeyEvent.VK_QUOTE) {
         boolean supportsSingleMover() { return false; }
     };
+    public static final LayoutAction forceDirected = new LayoutAction(new ForceDirectedLayout(),VueResources.getString("menu.format.layout.forcedirected")) {
+        boolean supportsSingleMover() { return false; }
+    };
     public static final LayoutAction hierarchical = new LayoutAction(new HierarchicalLayout(),VueResources.getString("menu.format.layout.hierarchical"), KeyEvent.VK_BACK_SLASH) {
         boolean supportsSingleMover() { return false; }
         boolean enabledFor(LWSelection selection ) { return true;}
@@ -147,6 +150,7 @@ public abstract  class LayoutAction extends Actions.LWCAction
         hierarchical2,
         hierarchical3,
         force,
+        forceDirected,
         null,
         Actions.PullInLinked,
         Actions.PushOutLinked,
@@ -0,0 +1,199 @@
+/*
+* Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.vue;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Timing for each stage of loading a map, so we can see which dominates for a given
+ * file.  An instance is installed for the thread doing the load with begin(), and the
+ * code doing the work marks where each stage starts with the static stage() method,
+ * which does nothing if no load is being timed on the current thread.  The time for a
+ * stage accumulates if it's entered more than once.
+ *
+ * A load being timed may also be cancelled from another thread: the next call to
+ * stage() or checkCancelled() on the loading thread will then throw a
+ * CancellationException.
+ *
+ * A load may also be marked as running in the background, in which case anything
+ * in it that must be done on the AWT thread is left for the loader to finish there:
+ * see inBackground().
+ */
+public final class MapLoadMetrics
+{
+    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(MapLoadMetrics.class);
+
+    public enum Stage {
+        /** extracting the map and resources from a package file */
+        UNPACK,
+        /** reading the XML into a model */
+        PARSE,
+        /** completing the restore of the model */
+        RESTORE,
+        /** initializing the resources in the model */
+        RESOURCES,
+        /** laying out every component in the model */
+        LAYOUT,
+        /** creating the viewers for the map */
+        DISPLAY
+    }
+
+    private static final ThreadLocal<MapLoadMetrics> Current = new ThreadLocal<MapLoadMetrics>();
+
+    private final Object source;
+    private final long[] nanos = new long[Stage.values().length];
+    private final long created = System.nanoTime();
+    private Stage stage;
+    private long stageStart;
+    private long totalNanos = -1;
+    private volatile boolean cancelled;
+    private final boolean background;
+
+    public MapLoadMetrics(Object source) {
+        this(source, false);
+    }
+
+    /** @param background - true if the load is running on a background thread */
+    public MapLoadMetrics(Object source, boolean background) {
+        this.source = source;
+        this.background = background;
+    }
+
+    /** Install the given metrics for timing a load on the current thread. */
+    public static MapLoadMetrics begin(MapLoadMetrics metrics) {
+        Current.set(metrics);
+        return metrics;
+    }
+
+    /** Start timing a new load on the current thread. */
+    public static MapLoadMetrics begin(Object source) {
+        return begin(new MapLoadMetrics(source));
+    }
+
+    /** Stop timing on the current thread, leaving the load being timed to be ended elsewhere. */
+    public static void detach() {
+        Current.remove();
+    }
+
+    /** @return the metrics for the load being timed on the current thread, if any */
+    public static MapLoadMetrics current() {
+        return Current.get();
+    }
+
+    /**
+     * @return true if the load underway on the current thread is running in the background,
+     * and must leave anything that needs the AWT thread (e.g., measuring labels, alerts)
+     * to be completed there
+     */
+    public static boolean inBackground() {
+        final MapLoadMetrics m = Current.get();
+        return m != null && m.background;
+    }
+
+    /**
+     * Mark the start of the given stage of the load underway on the current thread, if
+     * any, ending the current stage.
+     * @throws CancellationException if the load has been cancelled
+     */
+    public static void stage(Stage s) {
+        final MapLoadMetrics m = Current.get();
+        if (m != null) {
+            m.enter(s);
+            m.checkNotCancelled();
+        }
+    }
+
+    /** @throws CancellationException if the load underway on the current thread has been cancelled */
+    public static void checkCancelled() {
+        final MapLoadMetrics m = Current.get();
+        if (m != null)
+            m.checkNotCancelled();
+    }
+
+    private void checkNotCancelled() {
+        if (cancelled)
+            throw new CancellationException("load cancelled: " + source);
+    }
+
+    public synchronized void enter(Stage s) {
+        final long now = System.nanoTime();
+        if (stage != null)
+            nanos[stage.ordinal()] += now - stageStart;
+        stage = s;
+        stageStart = now;
+        if (DEBUG.IO) Log.debug(source + ": " + s);
+    }
+
+    /**
+     * Stop timing.  If these metrics are installed on the current thread, they're removed.
+     * Calling this more than once is harmless.
+     */
+    public synchronized void end() {
+        if (totalNanos < 0) {
+            enter(null);
+            totalNanos = System.nanoTime() - created;
+        }
+        if (Current.get() == this)
+            Current.remove();
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /** @return the stage underway, or null if none has started or we've ended */
+    public synchronized Stage getStage() {
+        return stage;
+    }
+
+    public synchronized long getMillis(Stage s) {
+        long n = nanos[s.ordinal()];
+        if (s == stage)
+            n += System.nanoTime() - stageStart;
+        return n / 1000000;
+    }
+
+    public synchronized long getTotalMillis() {
+        return (totalNanos < 0 ? System.nanoTime() - created : totalNanos) / 1000000;
+    }
+
+    /** @return the stage that has taken the longest so far */
+    public Stage getDominantStage() {
+        Stage max = null;
+        for (Stage s : Stage.values())
+            if (max == null || getMillis(s) > getMillis(max))
+                max = s;
+        return max;
+    }
+
+    public String toString() {
+        final StringBuilder b = new StringBuilder("MapLoadMetrics[");
+        b.append(source).append(' ').append(getTotalMillis()).append("ms");
+        for (Stage s : Stage.values()) {
+            final long ms = getMillis(s);
+            if (ms > 0 || s == stage)
+                b.append("; ").append(s.name().toLowerCase()).append('=').append(ms);
+        }
+        b.append("; dominant=").append(getDominantStage().name().toLowerCase());
+        if (cancelled)
+            b.append(" CANCELLED");
+        return b.append(']').toString();
+    }
+}
@@ -17,14 +17,29 @@ package tufts.vue;
 
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Implements a panel for displaying a map overview, including
  * the currently visible viewport, and moving (panning) the currently
  * visible viewport.
  *
+ * The map itself is drawn into a cached raster.  The drawing is recorded on the AWT
+ * thread, where the model is safe to read, and rasterized on a low-priority background
+ * thread.  As the map changes, only the regions of the raster covering the components
+ * named in the LWCEvents are re-drawn.  The whole raster is only re-drawn when the zoom needed
+ * to fit the map in the panner changes, and until then, the old raster is shown scaled
+ * to the new fit.  See getRenderMetrics for render timing.
+ *
  * @version $Revision: 1.70 $ / $Date: 2010-02-03 19:17:41 $ / $Author: mike $
  * @author Scott Fraize
  *
@@ -64,6 +79,42 @@ public class MapPanner extends javax.swing.JPanel
     
     private static final int MapMargin = 0;
     //private static final int MapMargin = ViewerViewportAlwaysVisible ? 5 : 50;
+
+    /** a render that fails is re-tried at most this many times in a row */
+    private static final int MaxRenderFailures = 3;
+
+    private static final RenderMetrics Metrics = new RenderMetrics();
+
+    private static final ExecutorService Renderer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread it = new Thread(r, "MapPanner-render");
+                it.setDaemon(true);
+                it.setPriority(Thread.MIN_PRIORITY);
+                return it;
+            }
+        });
+
+    // All the raster state is guarded by mRasterLock, as LWCEvents may arrive off AWT.
+    // The Renderer thread never touches it, nor the model: it only rasterizes a
+    // RecordedDrawing of the map, made on AWT.
+    private final Object mRasterLock = new Object();
+    /** the map as last drawn: map content only, on a transparent background */
+    private BufferedImage mRaster;
+    /** how mRaster was drawn */
+    private Fit mRasterFit;
+    /** the map region changed since mRaster was drawn (or the render underway started), if any */
+    private Rectangle2D.Float mDirtyRegion;
+    /** something may have changed that no event has told us about: see reconcileDrawnBounds */
+    private boolean mReconcileNeeded;
+    private boolean mFullRenderNeeded;
+    private boolean mRenderUnderway;
+    private int mRenderFailures;
+    /**
+     * The map paint bounds of each component, as last seen: when the raster was last
+     * drawn, or the component was last named in an event.  This is where to erase a
+     * component from when it changes.
+     */
+    private Map<LWComponent,Rectangle2D.Float> mDrawnBounds = new IdentityHashMap();
     
     /**
      * Get's global (thru AWT hierarchy) MapViewerEvent's
@@ -145,17 +196,86 @@ public class MapPanner extends javax.swing.JPanel
             if (this.map != null)
                 this.map.removeLWCListener(this);
             this.map = map;
-            // if (DEBUG.Enabled) this.map.addLWCListener(this); else // GAA -- very confusing...
-            this.map.addLWCListener(this, LWKey.UserActionCompleted, LWKey.Repaint);
+            // we need every event for tracking what's changed in the raster
+            this.map.addLWCListener(this);
+            synchronized (mRasterLock) {
+                mRaster = null;
+                mRasterFit = null;
+                mDirtyRegion = null;
+                mDrawnBounds = new IdentityHashMap();
+            }
         }
     }
 
     public void LWCChanged(LWCEvent e) {
-        repaint();
-        // //if (DEBUG.Enabled) Log.debug("LWCChanged: " + e);
-        // Log.info("LWCChanged: " + e);
-        // if (DEBUG.DYNAMIC_UPDATE || e.key == LWKey.UserActionCompleted || e.key == LWKey.RepaintAsync)
-        //     repaint();
+        if (e.getSource() instanceof DensityTiles)
+            return; // they've been updated: we never draw from them, so nothing we've drawn has changed
+        if (e.isBatch()) {
+            for (LWCEvent batched : e.getBatchedEvents())
+                markDirty(batched);
+        } else {
+            markDirty(e);
+        }
+        // As always, we only update once the user has finished whatever they're doing.
+        // The paint will start a render of whatever's changed.
+        if (e.key == LWKey.UserActionCompleted || e.key == LWKey.Repaint || e.key == LWKey.RepaintAsync) {
+            synchronized (mRasterLock) {
+                mReconcileNeeded = true;
+            }
+            repaint();
+        }
+    }
+
+    private void markDirty(LWCEvent e) {
+        final Object key = e.key;
+        if (key == LWKey.UserActionCompleted || key == LWKey.HierarchyChanging || key == LWKey.HierarchyChanged)
+            return; // the last two name the parent: the children come with ChildrenAdded/ChildrenRemoved
+        synchronized (mRasterLock) {
+            if (mFullRenderNeeded)
+                return;
+            if (e.component != null) {
+                markDirty(e.component);
+            } else {
+                final List<LWComponent> list = e.getComponents();
+                if (list == null) {
+                    mFullRenderNeeded = true;
+                } else {
+                    for (LWComponent c : list)
+                        markDirty(c);
+                }
+            }
+        }
+    }
+
+    /** must be called holding mRasterLock */
+    private void markDirty(LWComponent c) {
+        if (c instanceof LWMap || c instanceof LWMap.Layer || c instanceof LWPathway || c.inDrawnPathway()) {
+            // these can cover the whole map
+            mFullRenderNeeded = true;
+            return;
+        }
+        // Anything else that moves along with this (descendents, connected links) will be
+        // found by reconcileDrawnBounds, as will anything that changes without an event.
+        final Rectangle2D.Float drawn = mDrawnBounds.get(c);
+        if (drawn != null)
+            mDirtyRegion = union(mDirtyRegion, drawn);
+        if (c.isDeleted() || c.getParent() == null) {
+            mDrawnBounds.remove(c);
+        } else {
+            final Rectangle2D.Float now = c.getPaintBounds();
+            mDirtyRegion = union(mDirtyRegion, now);
+            mDrawnBounds.put(c, now);
+        }
+    }
+
+    /** @return r added to region, or a copy of r if region is null, or just region if r is null */
+    private static Rectangle2D.Float union(Rectangle2D.Float region, Rectangle2D.Float r) {
+        if (r == null)
+            return region;
+        if (region == null)
+            return new Rectangle2D.Float(r.x, r.y, r.width, r.height);
+        region.add(r);
+        return region;
     }
 
     public void mousePressed(MouseEvent e)
@@ -321,6 +441,8 @@ public class MapPanner extends javax.swing.JPanel
                                                 final Rectangle paintRect,
                                                 final boolean drawViewerReticle)
     {
+        final long start = System.nanoTime();
+
         if (viewer.getVisibleWidth() < 1 || viewer.getVisibleHeight() < 1) {
             if (DEBUG.Enabled)
                 System.out.println("MapPanner: paintViewerIntoRectangle: nothing to paint; visible size="
@@ -398,10 +520,16 @@ public class MapPanner extends javax.swing.JPanel
         }
         
         /*
-         * Now tell the active LWMap to draw itself here on the panner.
+         * Now tell the active LWMap to draw itself here on the panner, or
+         * for the panner itself, draw the cached raster of the map.
          */
-        
-        map.draw(dc);
+
+        if (panner != null) {
+            panner.drawRaster(dc, new Fit(map, zoomFactor, offset, paintRect, viewer.AA_ON));
+        } else {
+            map.draw(dc);
+            Metrics.record(RenderMetrics.DIRECT, System.nanoTime() - start);
+        }
 
         if (drawViewerReticle) {
             /*
@@ -421,6 +549,311 @@ public class MapPanner extends javax.swing.JPanel
 
     
 
+    /**
+     * Draw the cached raster of the map, starting a render if it's out of date.  If
+     * it was drawn for a different fit, it's scaled to fit until the new one is done.
+     */
+    private void drawRaster(DrawContext dc, Fit fit) {
+        final BufferedImage raster;
+        final Fit rasterFit;
+        synchronized (mRasterLock) {
+            raster = mRaster;
+            rasterFit = mRasterFit;
+            startRender(fit);
+        }
+        if (raster == null)
+            return;
+
+        dc.setRawDrawing();
+        if (fit.equals(rasterFit)) {
+            dc.g.drawImage(raster, 0, 0, null);
+        } else {
+            // a raster pixel p shows map point (p + rasterOffset) / rasterZoom
+            final double scale = fit.zoom / rasterFit.zoom;
+            final AffineTransform tx = AffineTransform.getTranslateInstance(-fit.offsetX, -fit.offsetY);
+            tx.scale(scale, scale);
+            tx.translate(rasterFit.offsetX, rasterFit.offsetY);
+            dc.g.drawImage(raster, tx, null);
+        }
+        dc.setMapDrawing();
+    }
+
+    /**
+     * Start a render of the raster for the given fit, unless one is already underway
+     * (it'll check for more work when it's done), or the raster is up to date.
+     * Must be called holding mRasterLock, on AWT.
+     */
+    private void startRender(final Fit fit) {
+        if (mRenderUnderway || fit.width < 1 || fit.height < 1)
+            return;
+
+        final boolean full = mFullRenderNeeded || mRaster == null || !fit.equals(mRasterFit);
+        if (!full && mDirtyRegion == null && !mReconcileNeeded)
+            return;
+
+        final BufferedImage base = full ? null : mRaster;
+        final Rectangle2D.Float region = full ? null : mDirtyRegion;
+        mDirtyRegion = null;
+        mReconcileNeeded = false;
+        mFullRenderNeeded = false;
+        mRenderUnderway = true;
+
+        // let the paint that asked for this finish with the raster we have
+        VUE.invokeAfterAWT(new Runnable() { public void run() {
+            record(fit, base, region);
+        }});
+    }
+
+    /**
+     * Runs on AWT: record the drawing of what needs re-drawing, and hand it to the
+     * Renderer thread to rasterize.  Everything that reads the model (including the
+     * paint bounds, and the drawing itself, which can lazily re-compute links and
+     * label layouts) is done here.
+     *
+     * @param base -- if non-null, a raster for the same fit, of which only the
+     * given region of the map (if any), plus whatever reconcileDrawnBounds
+     * finds, needs re-drawing.  Otherwise, draw the whole map.
+     */
+    private void record(final Fit fit, final BufferedImage base, Rectangle2D.Float region)
+    {
+        final long start = System.nanoTime();
+        final LWMap map = fit.map;
+        final Map<LWComponent,Rectangle2D.Float> drawnBounds;
+        final Rectangle clip;
+        final RecordedDrawing drawing;
+
+        try {
+            if (base == null) {
+                drawnBounds = getDrawnBounds(map);
+                clip = new Rectangle(fit.width, fit.height);
+            } else {
+                drawnBounds = null;
+                region = union(region, reconcileDrawnBounds(map));
+                clip = region == null ? null : fit.mapToRaster(region).intersection(new Rectangle(fit.width, fit.height));
+            }
+            if (clip == null || clip.isEmpty()) {
+                finishRender(fit, base, null); // nothing visible has changed after all
+                return;
+            }
+            drawing = new RecordedDrawing();
+            final Graphics2D g = drawing.createGraphics(clip);
+            final DrawContext dc = new DrawContext(g, fit.zoom, -fit.offsetX, -fit.offsetY, null, map, false);
+            dc.g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, fit.antiAlias);
+            dc.setDraftQuality();
+            map.draw(dc);
+            g.dispose();
+        } catch (Throwable t) {
+            Log.error("render failed for " + map, t);
+            finishRender(fit, null, null);
+            return;
+        }
+
+        final long nanos = System.nanoTime() - start;
+        Metrics.record(RenderMetrics.RECORD, nanos);
+        if (DEBUG.PAINT) Log.debug(String.format("recorded %d calls for %s in %.1fms", drawing.size(), base == null ? "all" : clip, nanos / 1e6));
+
+        Renderer.execute(new Runnable() { public void run() {
+            rasterize(fit, base, clip, drawing, drawnBounds);
+        }});
+    }
+
+    /**
+     * Runs on the Renderer thread: draw the recording into a new raster, a copy of the
+     * base raster (if any) with the clip region cleared.
+     */
+    private void rasterize(final Fit fit, BufferedImage base, Rectangle clip, RecordedDrawing drawing,
+                           final Map<LWComponent,Rectangle2D.Float> drawnBounds)
+    {
+        final long start = System.nanoTime();
+        BufferedImage raster = new BufferedImage(fit.width, fit.height, BufferedImage.TYPE_INT_ARGB);
+
+        try {
+            final Graphics2D g = raster.createGraphics();
+            if (base != null) {
+                g.drawImage(base, 0, 0, null);
+                g.setComposite(AlphaComposite.Clear);
+                g.fill(clip);
+                g.setComposite(AlphaComposite.SrcOver);
+            }
+            g.setClip(clip); // drawing requires a clip
+            drawing.replay(g);
+            g.dispose();
+        } catch (Throwable t) {
+            Log.error("rasterizing failed for " + fit.map, t);
+            raster = null;
+        }
+
+        final long nanos = System.nanoTime() - start;
+        Metrics.record(base == null ? RenderMetrics.FULL : RenderMetrics.REGION, nanos);
+        if (DEBUG.PAINT) Log.debug(String.format("rasterized %s in %.1fms", base == null ? "all" : clip, nanos / 1e6));
+
+        final BufferedImage rendered = raster;
+        VUE.invokeAfterAWT(new Runnable() { public void run() {
+            finishRender(fit, rendered, drawnBounds);
+        }});
+    }
+
+    private void finishRender(Fit fit, BufferedImage raster, Map<LWComponent,Rectangle2D.Float> drawnBounds) {
+        synchronized (mRasterLock) {
+            mRenderUnderway = false;
+            if (fit.map != map) {
+                return; // the map changed while we were rendering
+            } else if (raster == null) {
+                mFullRenderNeeded = true;
+                if (++mRenderFailures > MaxRenderFailures)
+                    return; // wait for the next change to try again
+            } else {
+                mRenderFailures = 0;
+                mRaster = raster;
+                mRasterFit = fit;
+                if (drawnBounds != null)
+                    mDrawnBounds = drawnBounds;
+            }
+        }
+        repaint(); // will start the next render if there's more to do
+    }
+
+    /**
+     * Bring mDrawnBounds up to date with the map: on AWT only.  Not every change to where something
+     * is drawn comes with an event naming it: descendents move with their parent, links
+     * move with their endpoints, and a user-sized node being resized issues no Size event.
+     * @return the map region covering everything that's moved, appeared or gone, or null if nothing has
+     */
+    private Rectangle2D.Float reconcileDrawnBounds(LWMap map) {
+        final Map<LWComponent,Rectangle2D.Float> current = getDrawnBounds(map);
+        Rectangle2D.Float changed = null;
+        synchronized (mRasterLock) {
+            for (Map.Entry<LWComponent,Rectangle2D.Float> e : current.entrySet()) {
+                final Rectangle2D.Float drawn = mDrawnBounds.get(e.getKey());
+                if (drawn == null || !drawn.equals(e.getValue())) {
+                    changed = union(changed, drawn);
+                    changed = union(changed, e.getValue());
+                }
+            }
+            for (Map.Entry<LWComponent,Rectangle2D.Float> e : mDrawnBounds.entrySet())
+                if (!current.containsKey(e.getKey()))
+                    changed = union(changed, e.getValue());
+            mDrawnBounds = current;
+        }
+        return changed;
+    }
+
+    /**
+     * @return the paint bounds of everything that will be drawn in the map: on AWT only,
+     * as getting them may re-compute links
+     */
+    private static Map<LWComponent,Rectangle2D.Float> getDrawnBounds(LWMap map) {
+        final Map<LWComponent,Rectangle2D.Float> bounds = new IdentityHashMap();
+        for (LWComponent c : map.getAllDescendents(LWComponent.ChildKind.ANY))
+            bounds.put(c, c.getPaintBounds());
+        return bounds;
+    }
+
+    /** @return timing for the renders of the map overview done by the panner */
+    public static RenderMetrics getRenderMetrics() {
+        return Metrics;
+    }
+
+    /** How the panner shows a map: what paintViewerIntoRectangle computes to fit the map to the panner. */
+    private static final class Fit {
+        final LWMap map;
+        final double zoom;
+        final float offsetX, offsetY;
+        final int width, height;
+        final Object antiAlias;
+
+        Fit(LWMap map, double zoom, Point2D.Float offset, Rectangle paintRect, Object antiAlias) {
+            this.map = map;
+            this.zoom = zoom;
+            this.offsetX = offset.x;
+            this.offsetY = offset.y;
+            // paintRect is the panner size, less one
+            this.width = paintRect.width + 1;
+            this.height = paintRect.height + 1;
+            this.antiAlias = antiAlias;
+        }
+
+        /** @return the raster pixels that cover the given map region, with a margin for anti-aliasing */
+        Rectangle mapToRaster(Rectangle2D r) {
+            final int x0 = (int) Math.floor(r.getX() * zoom - offsetX) - 2;
+            final int y0 = (int) Math.floor(r.getY() * zoom - offsetY) - 2;
+            final int x1 = (int) Math.ceil((r.getX() + r.getWidth()) * zoom - offsetX) + 2;
+            final int y1 = (int) Math.ceil((r.getY() + r.getHeight()) * zoom - offsetY) + 2;
+            return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Fit))
+                return false;
+            final Fit f = (Fit) o;
+            return f.map == map
+                && f.zoom == zoom
+                && f.offsetX == offsetX
+                && f.offsetY == offsetY
+                && f.width == width
+                && f.height == height
+                && f.antiAlias == antiAlias;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) Double.doubleToLongBits(zoom) ^ width ^ (height << 16);
+        }
+    }
+
+    /** Counts and times the renders of the map done for the panner. */
+    public static final class RenderMetrics {
+        /** the whole map into the raster */
+        static final int FULL = 0;
+        /** a changed region of the map into the raster */
+        static final int REGION = 1;
+        /** the whole map straight to the screen, as for the presentation navigator */
+        static final int DIRECT = 2;
+        /** the recording, on AWT, of the drawing for a full or region render: the others are rasterizing only */
+        static final int RECORD = 3;
+
+        private static final String[] Names = { "full", "region", "direct", "recorded" };
+
+        private final int[] counts = new int[Names.length];
+        private final long[] nanos = new long[Names.length];
+        private final long[] lastNanos = new long[Names.length];
+
+        synchronized void record(int kind, long renderNanos) {
+            counts[kind]++;
+            nanos[kind] += renderNanos;
+            lastNanos[kind] = renderNanos;
+        }
+
+        /** @return the number of renders of the given kind: 0=full, 1=region, 2=direct, 3=recorded on AWT */
+        public synchronized int getCount(int kind) {
+            return counts[kind];
+        }
+
+        /** @return the total time spent in renders of the given kind, in nanoseconds */
+        public synchronized long getNanos(int kind) {
+            return nanos[kind];
+        }
+
+        /** @return the time taken by the last render of the given kind, in nanoseconds */
+        public synchronized long getLastNanos(int kind) {
+            return lastNanos[kind];
+        }
+
+        @Override
+        public synchronized String toString() {
+            final StringBuilder b = new StringBuilder("RenderMetrics[");
+            for (int i = 0; i < Names.length; i++) {
+                if (i > 0)
+                    b.append("; ");
+                b.append(Names[i]).append(' ').append(counts[i]);
+                if (counts[i] > 0)
+                    b.append(String.format(" avg %.1fms last %.1fms", nanos[i] / 1e6 / counts[i], lastNanos[i] / 1e6));
+            }
+            return b.append(']').toString();
+        }
+    }
+
     public void mouseClicked(MouseEvent e) { if (DEBUG.MOUSE) out(e); }
     public void mouseEntered(MouseEvent e) { if (DEBUG.MOUSE) out(e); }
     public void mouseExited(MouseEvent e) { if (DEBUG.MOUSE) out(e); }
@@ -93,7 +93,7 @@ import osid.dr.*;
 public class MapViewer extends TimedASComponent//javax.swing.JComponent
     implements VueConstants
                , FocusListener
-               , LWComponent.Listener
+               , LWComponent.BatchListener
                , LWSelection.Listener
                //, VueToolSelectionListener
                //, DragGestureListener
@@ -2445,6 +2445,16 @@ public class MapViewer extends TimedASComponent//javax.swing.JComponent
 //             }
 //         }
 
+        if (e.isBatch()) {
+            // a batch only holds single-component property changes: one canvas size
+            // check and repaint covers all of them
+            if (mUndoManager == null || !mUndoManager.hasCleanupTasks() || getFocal() != getMap()) {
+                adjustCanvasSize();
+                repaint();
+            }
+            return;
+        }
+
         if (e.key == LWKey.RepaintAsync) {
             setFastPaint("async paint request");
             repaint();
@@ -3768,7 +3778,10 @@ public class MapViewer extends TimedASComponent//javax.swing.JComponent
             //dc.setDrawPathways(false);
             dc.setInteractive(false);
             dc.disableAntiAlias(true); // prevent anyone else from setting it
-            dc.setAnimatingQuality();
+            // draft quality is animating quality with Level-Of-Detail rendering permitted
+            dc.setDraftQuality();
+            dc.setRenderCaching(RenderCache.isEnabled());
+            dc.setClusterDrawing(true);
             mThisPaintIsFast = true;
             
         } else {
@@ -3787,6 +3800,11 @@ public class MapViewer extends TimedASComponent//javax.swing.JComponent
             }
             
             dc.setDrawPathways(true);
+            dc.setClusterDrawing(true);
+
+            // while the view is moving (e.g., panning), expensive components can be drawn from cached rasters
+            if (RenderCache.isEnabled() && viewIsChanging())
+                dc.setRenderCaching(true);
 
             if (DEBUG.Enabled) {
 
@@ -4413,7 +4431,7 @@ public class MapViewer extends TimedASComponent//javax.swing.JComponent
         }
         else
         {
-        	activeTextEdit = lwc.getLabelBox();
+        	activeTextEdit = lwc.getLabelEditor();
         	activeTextEdit.saveCurrentText();
         	if (activeTextEdit.getText().length() < 1)
         		activeTextEdit.setText(VueResources.getString("mapviewer.label.tooltip"));
@@ -4435,8 +4453,8 @@ public class MapViewer extends TimedASComponent//javax.swing.JComponent
                 point = activeRichTextEdit.getBoxPoint();
             }
             else {
-                lwc.initTextBoxLocation(activeTextEdit);
-                point = activeTextEdit.getBoxPoint();
+                lwc.initTextBoxLocation(lwc.getLabelBox());
+                point = lwc.getLabelBox().getBoxPoint();
             }
             if (DEBUG.TEXT || DEBUG.WORK) out(" BOX POINT INIT: " + fmt(point));
         }
@@ -7451,6 +7469,19 @@ public class MapViewer extends TimedASComponent//javax.swing.JComponent
 
         //private int drags=0;
         public void mouseDragged(MouseEvent e) {
+            // deliver all the changes from each step of a drag to map listeners at once
+            final LWMap map = mMap;
+            if (map != null)
+                map.beginEventBatch();
+            try {
+                handleMouseDragged(e);
+            } finally {
+                if (map != null)
+                    map.endEventBatch();
+            }
+        }
+        
+        private void handleMouseDragged(MouseEvent e) {
 
             if (DEBUG.VIEWER) _mouse = e.getPoint();
 
@@ -9092,6 +9123,10 @@ public class MapViewer extends TimedASComponent//javax.swing.JComponent
         g.drawString("Focal " + this.mFocal, x, y+=15);
         g.drawString("Entry " + this.mFocalEntry, x, y+=15);
         g.drawString("  MAP " + this.mMap, x, y+=15);
+        g.drawString("panner " + MapPanner.getRenderMetrics(), x, y+=15);
+        g.drawString(RenderCache.getStats(), x, y+=15);
+        if (mMap != null && mMap.getDensityTiles() != null)
+            g.drawString(mMap.getDensityTiles().toString(), x, y+=15);
 
         Point2D center = getVisibleCenter();
         dc.setAbsoluteStroke(1);
@@ -197,7 +197,7 @@ public final class MasterSlide extends LWSlide
         linkStyle.setLabel("Links");
         initStyle(linkStyle);
 
-        //mFillColor.setAllowAlpha(false);
+        //KEY_FillColor.setAllowAlpha(this, false);
 
         final LWSelection s = new LWSelection(headerStyle);
         s.setTo(headerStyle);
@@ -321,7 +321,7 @@ public final class MasterSlide extends LWSlide
 
         if (dc.focal == this) {
             dc.g.setFont(EditLabelFont);
-            if (mFillColor.brightness() < 0.5)
+            if (KEY_FillColor.brightness(this) < 0.5)
                 dc.g.setColor(EditLabelColorDarkBG);
             else
                 dc.g.setColor(EditLabelColorLightBG);
@@ -207,11 +207,9 @@ public class MergeMapFactory {
             this.baseMapKeys = hashMergeKeys(baseMap);
         }
         
-        for (LWMap map : activeMaps) {
-            // if (map != getBaseMap()) // TODO: check -- really add baseMap matrix if ignoring baseMap?
-            // old comment had commented out check to skip baseMap...
-            cms.add(new ConnectivityMatrix(map));
-        }
+        // if (map != getBaseMap()) // TODO: check -- really add baseMap matrix if ignoring baseMap?
+        // old comment had commented out check to skip baseMap...
+        cms.addAll(ConnectivityMatrix.createAll(activeMaps));
         //-----------------------------------------------------------------------------
         // Create the desired aggregate
         //-----------------------------------------------------------------------------
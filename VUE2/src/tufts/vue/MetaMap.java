@@ -36,6 +36,10 @@ import com.google.common.collect.Iterators;
  * The insertion order of each key/value is preserved, even for each use of
  * the same key with different values.
  *
+ * A MetaMap may also be created as a view on a read-only Source of data, such as a
+ * row in a columnar data-set, in which case nothing is copied out of the source
+ * until the MetaMap is first modified.
+ *
  * @version $Revision: 1.19 $ / $Date: 2010-02-03 19:17:41 $ / $Author: mike $
  */
 
@@ -53,8 +57,26 @@ public class MetaMap implements TableBag, XMLUnmarshalListener, tufts.vue.ds.Rel
     // a given key is added.  Would need to either hack google collections for this,
     // or do as part of our own complete re-implementation.
     
-    /** the backing Multimap: deliberately un-typed */
-    private final Multimap mData = Multimaps.newLinkedHashMultimap();
+    /**
+     * A read-only source of flat key/value data: each key has at most one value.
+     * Keys are presented in order by index, and some keys may have no value.
+     */
+    public interface Source {
+        /** @return the number of keys, some of which may have no value */
+        int getKeyCount();
+        /** @return the key at the given index */
+        String getKey(int index);
+        /** @return the value for the key at the given index, or null if it has none */
+        Object getValue(int index);
+        /** @return the value for the given key, which is matched independent of case, or null if none */
+        Object getValue(String key);
+    }
+
+    /** the backing Multimap: deliberately un-typed.  Null while we're a view on mSource. */
+    private Multimap mData;
+
+    /** if non-null, we're a view on this source, and our data hasn't been copied into mData */
+    private volatile Source mSource;
 
     private volatile MapModel mTableModel;
     private boolean mHoldingChanges = false;
@@ -67,7 +89,32 @@ public class MetaMap implements TableBag, XMLUnmarshalListener, tufts.vue.ds.Rel
 
     private Schema mSchema;
     
-    public MetaMap() {}
+    public MetaMap() {
+        mData = Multimaps.newLinkedHashMultimap();
+    }
+
+    /** create a view on the given source -- it's data is only copied here if this MetaMap is modified */
+    public MetaMap(Source source) {
+        if (source == null)
+            throw new NullPointerException("source");
+        mSource = source;
+    }
+
+    /** @return the backing Multimap, copying in the data from any source we're a view on */
+    private synchronized Multimap data() {
+        final Source source = mSource;
+        if (source != null) {
+            mData = copy(source);
+            mSource = null; // volatile write: publishes mData
+            if (DEBUG.DATA) Log.debug("copied source data " + Util.tags(source));
+        }
+        return mData;
+    }
+
+    /** @return true if this map is still a view on a source whose data hasn't been copied */
+    public boolean isView() {
+        return mSource != null;
+    }
 
     public void setSchema(Schema schema) {
         //if (DEBUG.Enabled) Log.debug("setSchema " + schema);
@@ -94,7 +141,33 @@ public class MetaMap implements TableBag, XMLUnmarshalListener, tufts.vue.ds.Rel
     public boolean equals(Object o) {
         if (o instanceof MetaMap == false)
             return false;
-        return mData.equals( ((MetaMap)o).mData );
+        if (o == this)
+            return true;
+        final MetaMap other = (MetaMap) o;
+        final Source source = mSource;
+        if (source != null && source.equals(other.mSource))
+            return true;
+        if (size() != other.size())
+            return false;
+        // views are compared without copying their data into them
+        return asMultimap().equals(other.asMultimap());
+    }
+
+    /** @return our data, or a temporary copy of our source data, as a multimap: should only be read */
+    private Multimap asMultimap() {
+        final Source source = mSource;
+        return source == null ? mData : copy(source);
+    }
+
+    private static Multimap copy(Source source) {
+        final Multimap data = Multimaps.newLinkedHashMultimap();
+        final int count = source.getKeyCount();
+        for (int i = 0; i < count; i++) {
+            final Object value = source.getValue(i);
+            if (value != null)
+                data.put(Key.instance(source.getKey(i)), value);
+        }
+        return data;
     }
     
     /**
@@ -195,7 +268,7 @@ public class MetaMap implements TableBag, XMLUnmarshalListener, tufts.vue.ds.Rel
         
         if (DEBUG.DATA) Log.debug("put " + internalKey + " " + Util.tags(value));
         
-        if (mData.put(internalKey, value))
+        if (data().put(internalKey, value))
             markChange();
     }
 
@@ -206,7 +279,7 @@ public class MetaMap implements TableBag, XMLUnmarshalListener, tufts.vue.ds.Rel
 
         //mData.replaceValues(internalKey, Util.iterable(value));
         
-        final Collection bag = mData.get(internalKey);
+        final Collection bag = data().get(internalKey);
 
         if (bag.isEmpty()) {
             bag.add(value);
@@ -269,7 +342,7 @@ public class MetaMap implements TableBag, XMLUnmarshalListener, tufts.vue.ds.Rel
     /** remove ALL values having the given key */
     public synchronized Object remove(Object key) {
 
-        final Object prior = mData.removeAll(key);
+        final Object prior = data().removeAll(key);
 
         if (prior != null)
             markChange();
@@ -317,6 +390,14 @@ public class MetaMap implements TableBag, XMLUnmarshalListener, tufts.vue.ds.Rel
     }
     
     public Collection<String> getValues(String key) {
+        final Source source = mSource;
+        if (source != null) {
+            final Object value = source.getValue(key);
+            if (value == null)
+                return Collections.EMPTY_LIST;
+            else
+                return (Collection) Collections.singletonList(value);
+        }
         return mData.get(Key.instance(key));
     }
     
@@ -339,6 +420,9 @@ public class MetaMap implements TableBag, XMLUnmarshalListener, tufts.vue.ds.Rel
 
     /** @return the first value found for the given key */
     public synchronized Object getFirst(String key) {
+        final Source source = mSource;
+        if (source != null)
+            return source.getValue(key);
         return getFirst(Key.instance(key));
     }
     
@@ -378,16 +462,33 @@ public class MetaMap implements TableBag, XMLUnmarshalListener, tufts.vue.ds.Rel
 
     /** TableBag impl */
     public int size() {
+        final Source source = mSource;
+        if (source != null) {
+            final int count = source.getKeyCount();
+            int size = 0;
+            for (int i = 0; i < count; i++)
+                if (source.getValue(i) != null)
+                    size++;
+            return size;
+        }
         return mData.size();
     }
     
     public boolean hasKey(String key) {
+        final Source source = mSource;
+        if (source != null)
+            return source.getValue(key) != null;
         // can we optimize if the key-cache finds to key at all to look up?
         // I think only if we also case-fold the key-cache.
         return mData.containsKey(Key.instance(key));
         //return mData.containsKey(key);
     }
     public boolean hasEntry(String key, CharSequence value) {
+        final Source source = mSource;
+        if (source != null) {
+            final Object v = source.getValue(key);
+            return v != null && v.equals(value);
+        }
         return mData.containsEntry(Key.instance(key), value);
         //return mData.containsEntry(key, value);
     }
@@ -413,13 +514,36 @@ public class MetaMap implements TableBag, XMLUnmarshalListener, tufts.vue.ds.Rel
 //         return mData.asMap().entrySet();
 //     }
     
-    /** @return a flat collection of key-value pairs -- modifications to the collection will modify the map */
+    /** @return a flat collection of key-value pairs -- modifications to the collection will modify the map,
+     * unless this map is a view on a source, in which case the collection is an unmodifiable copy */
     //public Collection<Map.Entry<Key,Object>> entries() {
     public Collection<Map.Entry> entries() {
+        final Source source = mSource;
+        if (source != null) {
+            final int count = source.getKeyCount();
+            final List<Map.Entry> entries = new ArrayList(count);
+            for (int i = 0; i < count; i++) {
+                final Object value = source.getValue(i);
+                if (value != null)
+                    entries.add(new KVEntry(source.getKey(i), value));
+            }
+            return Collections.unmodifiableList(entries);
+        }
         return mData.entries();
     }
     
     public Collection values() {
+        final Source source = mSource;
+        if (source != null) {
+            final int count = source.getKeyCount();
+            final List values = new ArrayList(count);
+            for (int i = 0; i < count; i++) {
+                final Object value = source.getValue(i);
+                if (value != null)
+                    values.add(value);
+            }
+            return Collections.unmodifiableList(values);
+        }
         return mData.values();
     }
 
@@ -431,9 +555,9 @@ public class MetaMap implements TableBag, XMLUnmarshalListener, tufts.vue.ds.Rel
         if (mPersistEntries == null)
             mPersistEntries = new ArrayList();
         
-        if (mData.size() > 0) {
+        if (size() > 0) {
             mPersistEntries.clear();
-            if (DEBUG.XML) Log.debug("LOADING ENTRIES n=" + mData.size() + "; in " + Util.tag(this));
+            if (DEBUG.XML) Log.debug("LOADING ENTRIES n=" + size() + "; in " + Util.tag(this));
 
             // NOTE: at runtime, we sometimes put the actual object in the property map
             // E.g., URLResource will put a URI in the Resource properties for
@@ -610,7 +734,7 @@ public class MetaMap implements TableBag, XMLUnmarshalListener, tufts.vue.ds.Rel
         // mTableModel is volatile, so as of Java 1.5, the double-checked locking
         // idiom used here should work.
         if (mTableModel == null) {
-            synchronized (mData) { // sync on anything other than "this" just in case
+            synchronized (MapModel.class) { // sync on anything other than "this" just in case
                 if (mTableModel == null)
                     mTableModel = new MapModel();
             }
@@ -692,8 +816,17 @@ public class MetaMap implements TableBag, XMLUnmarshalListener, tufts.vue.ds.Rel
 
     @Override
     public MetaMap clone() {
-        final MetaMap clone = new MetaMap();
-        clone.mData.putAll(mData);
+        final Source source = mSource;
+        final MetaMap clone;
+        if (source != null) {
+            // a clone of a view is just another view on the same source
+            clone = new MetaMap(source);
+        } else {
+            clone = new MetaMap();
+            synchronized (this) {
+                clone.mData.putAll(mData);
+            }
+        }
         clone.mSchema = mSchema;
         return clone;
     }
@@ -0,0 +1,303 @@
+/*
+* Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.vue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The local file for the data of an entry in a VUE package (a zip archive), which
+ * isn't actually extracted from the package until something needs the data.  Until
+ * then, it reports the size and time of the zip entry, and that it exists.
+ *
+ * Code that reads the content of a data File that may be one of these should either
+ * get a stream for it with openStream(File), which reads straight from the package
+ * if the entry hasn't been extracted, or call extract(File) first, e.g., before
+ * handing the file to another application.
+ *
+ * Each package keeps track of which of its entries have yet to be extracted, so
+ * before a package file is replaced (e.g., by a save over it), every one of them
+ * can be extracted while the data is still there: see closePackage.
+ *
+ * @see tufts.vue.action.Archive#openVuePackage
+ */
+public class PackageEntryFile extends File
+{
+    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(PackageEntryFile.class);
+
+    /** open packages, by the absolute file of the package */
+    private static final Map<File,Package> Packages = new HashMap<File,Package>();
+
+    /**
+     * A package with entries that may be extracted.  The zip file is only opened
+     * when needed, and is closed once all its entries have been extracted.
+     */
+    public static final class Package {
+        private final File file;
+        private ZipFile zip;
+        /** the entries that still read from the package */
+        private final Map<PackageEntryFile,Boolean> unextracted = new IdentityHashMap<PackageEntryFile,Boolean>();
+
+        private Package(File file) {
+            this.file = file;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        private synchronized InputStream open(String entryName)
+            throws IOException
+        {
+            if (zip == null) {
+                if (DEBUG.IO) Log.debug("opening " + file);
+                zip = new ZipFile(file);
+            }
+            final ZipEntry entry = zip.getEntry(entryName);
+            if (entry == null)
+                throw new IOException("no entry " + entryName + " in " + file);
+            return zip.getInputStream(entry);
+        }
+
+        private synchronized void added(PackageEntryFile entry) {
+            unextracted.put(entry, Boolean.TRUE);
+        }
+
+        private synchronized void extracted(PackageEntryFile entry) {
+            unextracted.remove(entry);
+            if (unextracted.isEmpty())
+                close();
+        }
+
+        /** extract every entry that hasn't been yet: failures are logged */
+        public void extractAll() {
+            final List<PackageEntryFile> entries;
+            synchronized (this) {
+                entries = new ArrayList<PackageEntryFile>(unextracted.keySet());
+            }
+            if (entries.size() > 0)
+                Log.info("extracting remaining " + entries.size() + " entries from " + file);
+            for (PackageEntryFile entry : entries)
+                PackageEntryFile.extract(entry);
+        }
+
+        /** close the zip file, if it's open.  It's re-opened if needed. */
+        public synchronized void close() {
+            if (zip != null) {
+                if (DEBUG.IO) Log.debug("closing " + file);
+                try {
+                    zip.close();
+                } catch (IOException e) {
+                    Log.warn("closing " + file, e);
+                }
+                zip = null;
+            }
+        }
+
+        public String toString() {
+            return "Package[" + file + "; unextracted=" + unextracted.size() + (zip == null ? "" : " OPEN") + "]";
+        }
+    }
+
+    /** @return the package for the given file, which is created if needed */
+    public static Package getPackage(File file) {
+        file = file.getAbsoluteFile();
+        synchronized (Packages) {
+            Package p = Packages.get(file);
+            if (p == null) {
+                p = new Package(file);
+                Packages.put(file, p);
+            }
+            return p;
+        }
+    }
+
+    /**
+     * Prepare the given package file to be replaced: any of it's entries that haven't
+     * been extracted are extracted now, as the content they name won't be there
+     * afterwards (e.g., the data for a resource on a deleted node, that may yet come back
+     * via undo), and the package is closed.
+     * @return the package, if there was one
+     */
+    public static Package closePackage(File file) {
+        final Package p;
+        synchronized (Packages) {
+            p = Packages.get(file.getAbsoluteFile());
+        }
+        if (p != null) {
+            p.extractAll();
+            p.close();
+        }
+        return p;
+    }
+
+    /**
+     * Let go of the package for the given file, e.g., once no open map refers to it:
+     * it's zip file is closed, so it's no longer held open (which on Windows would
+     * prevent replacing or deleting it).  Any entries that are still read after this
+     * will re-open it as needed.
+     */
+    public static void releasePackage(File file) {
+        final Package p;
+        synchronized (Packages) {
+            p = Packages.remove(file.getAbsoluteFile());
+        }
+        if (p != null) {
+            if (DEBUG.IO) Log.debug("releasing " + p);
+            p.close();
+        }
+    }
+
+    private final Package pkg;
+    private final String entryName;
+    private final long size;
+    private final long time;
+    private volatile boolean extracted;
+
+    /**
+     * @param path -- where the entry is to be extracted to
+     */
+    public PackageEntryFile(String path, Package pkg, ZipEntry entry) {
+        super(path);
+        this.pkg = pkg;
+        this.entryName = entry.getName();
+        this.size = entry.getSize();
+        this.time = entry.getTime();
+        pkg.added(this);
+    }
+
+    public Package getPackage() {
+        return pkg;
+    }
+
+    public boolean isExtracted() {
+        return extracted;
+    }
+
+    /**
+     * Extract the entry to this file, if it hasn't been already.  Any file already at
+     * this location (e.g., left by an earlier session) is replaced.
+     */
+    public synchronized File extract()
+        throws IOException
+    {
+        if (extracted)
+            return this;
+
+        final File parent = getParentFile();
+        if (parent != null && !parent.exists())
+            parent.mkdirs();
+
+        if (DEBUG.IO) Log.debug("extracting " + entryName + " to " + this);
+
+        final InputStream in = pkg.open(entryName);
+        try {
+            final OutputStream out = new FileOutputStream(this);
+            try {
+                final byte[] buf = new byte[8192];
+                int len;
+                while ((len = in.read(buf)) > 0)
+                    out.write(buf, 0, len);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (time != -1)
+            setLastModified(time);
+
+        extracted = true;
+        pkg.extracted(this);
+        return this;
+    }
+
+    /** @return a stream of the data, straight from the package if it hasn't been extracted */
+    public InputStream openStream()
+        throws IOException
+    {
+        if (extracted)
+            return new FileInputStream(this);
+        else
+            return pkg.open(entryName);
+    }
+
+    /**
+     * If the given file is a PackageEntryFile, make sure it's been extracted.
+     * @return the given file
+     */
+    public static File extract(File file) {
+        if (file instanceof PackageEntryFile) {
+            try {
+                ((PackageEntryFile)file).extract();
+            } catch (Throwable t) {
+                Log.error("failed to extract " + file, t);
+            }
+        }
+        return file;
+    }
+
+    /** @return a stream of the data in the given file, which may be a PackageEntryFile */
+    public static InputStream openStream(File file)
+        throws IOException
+    {
+        if (file instanceof PackageEntryFile)
+            return ((PackageEntryFile)file).openStream();
+        else
+            return new FileInputStream(file);
+    }
+
+    @Override
+    public boolean exists() {
+        return extracted ? super.exists() : true;
+    }
+
+    @Override
+    public boolean isFile() {
+        return extracted ? super.isFile() : true;
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return extracted ? super.isDirectory() : false;
+    }
+
+    @Override
+    public boolean canRead() {
+        return extracted ? super.canRead() : true;
+    }
+
+    @Override
+    public long length() {
+        return extracted ? super.length() : size;
+    }
+
+    @Override
+    public long lastModified() {
+        return extracted ? super.lastModified() : time;
+    }
+}
@@ -809,7 +809,7 @@ public class PresentationTool extends VueTool
                 //final Color color = Util.alphaMix(pathway.getColor(), pathway.getMasterSlide().getFillColor());
                 final Color color = Util.alphaMix(pathway.getColor(), Color.gray);
                 //final Color color = pathway.getColor();
-                mFillColor.setFixedAlpha(224);
+                KEY_FillColor.setFixedAlpha(this, 224);
                 setFillColor(color);
                 setTextColor(Color.black);
                 setStrokeWidth(0);
@@ -0,0 +1,452 @@
+/*
+* Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.vue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.awt.geom.GeneralPath;
+import java.awt.geom.Line2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.geom.RectangularShape;
+import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
+import java.awt.image.ImageObserver;
+import java.awt.image.RenderedImage;
+import java.awt.image.renderable.RenderableImage;
+import java.text.AttributedCharacterIterator;
+import java.text.AttributedString;
+
+/**
+ * A drawing captured as a list of Graphics2D calls, to be replayed later, possibly on
+ * another thread.  This lets the model be drawn on the AWT thread, where it's safe to
+ * read (and where drawing may lazily compute things, such as link curves and label
+ * layouts), while the rasterizing, which is most of the cost, is done elsewhere.
+ *
+ * Everything recorded is copied or immutable: shapes are copied as they're drawn, and
+ * each drawing call keeps a snapshot of the graphics state it was made in (transform,
+ * clip, paint, stroke, composite, font, hints).  Images, glyph vectors and fonts are
+ * kept by reference, as nothing in VUE changes them once drawn.  Font metrics and the
+ * like come from a scratch image graphics, so text measures as it would drawing into
+ * an image.
+ */
+final class RecordedDrawing
+{
+    private final List<Op> mOps = new ArrayList<Op>();
+
+    /**
+     * @return a graphics that records into this drawing, with an identity transform
+     * and clipped to the given device bounds
+     */
+    Graphics2D createGraphics(Rectangle clip) {
+        final Graphics2D scratch = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics();
+        scratch.setClip(clip);
+        return new Recorder(this, scratch, new Rectangle(clip), null);
+    }
+
+    /** @return the number of drawing calls recorded */
+    int size() {
+        return mOps.size();
+    }
+
+    /**
+     * Draw everything recorded into g, which should have an identity transform.  The
+     * drawing is clipped to g's clip, if it has one, as well as the clip recorded.
+     */
+    void replay(Graphics2D g) {
+        final Shape baseClip = g.getClip();
+        final AffineTransform identity = new AffineTransform();
+        State current = null;
+        for (Op op : mOps) {
+            final State s = op.state;
+            if (s != current) {
+                // only what's changed is set: setting the hints in particular isn't cheap
+                if (current == null || s.clip != current.clip) {
+                    g.setTransform(identity);
+                    g.setClip(baseClip);
+                    if (s.clip != null)
+                        g.clip(s.clip);
+                }
+                g.setTransform(s.transform);
+                if (current == null || s.hints != current.hints) g.setRenderingHints(s.hints);
+                if (current == null || s.composite != current.composite) g.setComposite(s.composite);
+                if (current == null || s.paint != current.paint) g.setPaint(s.paint);
+                if (current == null || s.stroke != current.stroke) g.setStroke(s.stroke);
+                if (current == null || s.font != current.font) g.setFont(s.font);
+                if (current == null || s.background != current.background) g.setBackground(s.background);
+                current = s;
+            }
+            op.replay(g);
+        }
+    }
+
+    /** the graphics state a drawing call was made in: the clip is in device space */
+    private static final class State {
+        final AffineTransform transform;
+        final Shape clip;
+        final Paint paint;
+        final Stroke stroke;
+        final Composite composite;
+        final Font font;
+        final RenderingHints hints;
+        final Color background;
+
+        State(Graphics2D g, Shape clip, RenderingHints hints) {
+            this.transform = g.getTransform();
+            this.clip = clip;
+            this.paint = g.getPaint();
+            this.stroke = g.getStroke();
+            this.composite = g.getComposite();
+            this.font = g.getFont();
+            this.hints = hints;
+            this.background = g.getBackground();
+        }
+    }
+
+    private static abstract class Op {
+        final State state;
+        Op(State state) { this.state = state; }
+        abstract void replay(Graphics2D g);
+    }
+
+    private static final class ShapeOp extends Op {
+        final Shape shape;
+        final boolean fill;
+        ShapeOp(State state, Shape shape, boolean fill) {
+            super(state);
+            this.shape = shape;
+            this.fill = fill;
+        }
+        void replay(Graphics2D g) {
+            if (fill)
+                g.fill(shape);
+            else
+                g.draw(shape);
+        }
+    }
+
+    // the int primitives are replayed as they were called, so they rasterize exactly as they would have
+    private static final int DRAW_LINE = 0, DRAW_RECT = 1, FILL_RECT = 2, CLEAR_RECT = 3,
+        DRAW_ROUND_RECT = 4, FILL_ROUND_RECT = 5, DRAW_OVAL = 6, FILL_OVAL = 7,
+        DRAW_ARC = 8, FILL_ARC = 9, COPY_AREA = 10,
+        DRAW_POLYLINE = 11, DRAW_POLYGON = 12, FILL_POLYGON = 13;
+
+    private static final class PrimitiveOp extends Op {
+        final int kind;
+        final int[] a;
+        PrimitiveOp(State state, int kind, int... args) {
+            super(state);
+            this.kind = kind;
+            this.a = args;
+        }
+        void replay(Graphics2D g) {
+            switch (kind) {
+            case DRAW_LINE:         g.drawLine(a[0], a[1], a[2], a[3]); break;
+            case DRAW_RECT:         g.drawRect(a[0], a[1], a[2], a[3]); break;
+            case FILL_RECT:         g.fillRect(a[0], a[1], a[2], a[3]); break;
+            case CLEAR_RECT:        g.clearRect(a[0], a[1], a[2], a[3]); break;
+            case DRAW_ROUND_RECT:   g.drawRoundRect(a[0], a[1], a[2], a[3], a[4], a[5]); break;
+            case FILL_ROUND_RECT:   g.fillRoundRect(a[0], a[1], a[2], a[3], a[4], a[5]); break;
+            case DRAW_OVAL:         g.drawOval(a[0], a[1], a[2], a[3]); break;
+            case FILL_OVAL:         g.fillOval(a[0], a[1], a[2], a[3]); break;
+            case DRAW_ARC:          g.drawArc(a[0], a[1], a[2], a[3], a[4], a[5]); break;
+            case FILL_ARC:          g.fillArc(a[0], a[1], a[2], a[3], a[4], a[5]); break;
+            case COPY_AREA:         g.copyArea(a[0], a[1], a[2], a[3], a[4], a[5]); break;
+            }
+        }
+    }
+
+    private static final class PolyOp extends Op {
+        final int kind;
+        final int[] x, y;
+        PolyOp(State state, int kind, int[] x, int[] y, int n) {
+            super(state);
+            this.kind = kind;
+            this.x = copyOf(x, n);
+            this.y = copyOf(y, n);
+        }
+        void replay(Graphics2D g) {
+            switch (kind) {
+            case DRAW_POLYLINE:     g.drawPolyline(x, y, x.length); break;
+            case DRAW_POLYGON:      g.drawPolygon(x, y, x.length); break;
+            case FILL_POLYGON:      g.fillPolygon(x, y, x.length); break;
+            }
+        }
+        private static int[] copyOf(int[] a, int n) {
+            final int[] copy = new int[n];
+            System.arraycopy(a, 0, copy, 0, n);
+            return copy;
+        }
+    }
+
+    private static final class TextOp extends Op {
+        final String text;
+        final AttributedString attributed;
+        final float x, y;
+        final boolean atInts;
+        TextOp(State state, String text, AttributedString attributed, float x, float y, boolean atInts) {
+            super(state);
+            this.text = text;
+            this.attributed = attributed;
+            this.x = x;
+            this.y = y;
+            this.atInts = atInts;
+        }
+        void replay(Graphics2D g) {
+            if (text != null) {
+                if (atInts)
+                    g.drawString(text, (int) x, (int) y);
+                else
+                    g.drawString(text, x, y);
+            } else {
+                if (atInts)
+                    g.drawString(attributed.getIterator(), (int) x, (int) y);
+                else
+                    g.drawString(attributed.getIterator(), x, y);
+            }
+        }
+    }
+
+    private static final class GlyphOp extends Op {
+        final GlyphVector glyphs;
+        final float x, y;
+        GlyphOp(State state, GlyphVector glyphs, float x, float y) {
+            super(state);
+            this.glyphs = glyphs;
+            this.x = x;
+            this.y = y;
+        }
+        void replay(Graphics2D g) {
+            g.drawGlyphVector(glyphs, x, y);
+        }
+    }
+
+    private static final class ImageOp extends Op {
+        final Image image;
+        final int[] a;
+        final Color bg;
+        ImageOp(State state, Image image, Color bg, int... args) {
+            super(state);
+            this.image = image;
+            this.bg = bg;
+            this.a = args;
+        }
+        void replay(Graphics2D g) {
+            if (a.length == 2)
+                g.drawImage(image, a[0], a[1], bg, null);
+            else if (a.length == 4)
+                g.drawImage(image, a[0], a[1], a[2], a[3], bg, null);
+            else
+                g.drawImage(image, a[0], a[1], a[2], a[3], a[4], a[5], a[6], a[7], bg, null);
+        }
+    }
+
+    private static final class TransformedImageOp extends Op {
+        final Object image;
+        final AffineTransform xform;
+        TransformedImageOp(State state, Object image, AffineTransform xform) {
+            super(state);
+            this.image = image;
+            this.xform = xform == null ? new AffineTransform() : new AffineTransform(xform);
+        }
+        void replay(Graphics2D g) {
+            if (image instanceof Image)
+                g.drawImage((Image) image, xform, null);
+            else if (image instanceof RenderedImage)
+                g.drawRenderedImage((RenderedImage) image, xform);
+            else
+                g.drawRenderableImage((RenderableImage) image, xform);
+        }
+    }
+
+    /** @return a copy of the shape, unless it's one we know to be immutable */
+    private static Shape copy(Shape s) {
+        if (s instanceof RectangularShape)
+            return (Shape) ((RectangularShape) s).clone();
+        else if (s instanceof Line2D)
+            return (Shape) ((Line2D) s).clone();
+        else if (s instanceof GeneralPath)
+            return (Shape) ((GeneralPath) s).clone();
+        else if (s instanceof Area)
+            return (Shape) ((Area) s).clone();
+        else
+            return new GeneralPath(s);
+    }
+
+    /**
+     * Keeps all it's graphics state in a scratch image graphics, so that anything
+     * asked of it answers as it would when drawing into an image, and records each
+     * drawing call along with a snapshot of that state.
+     */
+    private static final class Recorder extends Graphics2D {
+        private final RecordedDrawing drawing;
+        private final Graphics2D scratch;
+        /** the current clip in device space, or null if none */
+        private Shape deviceClip;
+        /** the state as last snapshot: null once anything's changed it */
+        private State state;
+        private RenderingHints hints;
+
+        Recorder(RecordedDrawing drawing, Graphics2D scratch, Shape deviceClip, RenderingHints hints) {
+            this.drawing = drawing;
+            this.scratch = scratch;
+            this.deviceClip = deviceClip;
+            this.hints = hints;
+        }
+
+        private State state() {
+            if (state == null) {
+                if (hints == null)
+                    hints = scratch.getRenderingHints();
+                state = new State(scratch, deviceClip, hints);
+            }
+            return state;
+        }
+
+        private void changed() {
+            state = null;
+        }
+
+        private void clipChanged() {
+            state = null;
+            final Shape clip = scratch.getClip();
+            if (clip == null) {
+                deviceClip = null;
+            } else {
+                final AffineTransform tx = scratch.getTransform();
+                if (clip instanceof Rectangle2D && (tx.getType() & ~(AffineTransform.TYPE_TRANSLATION | AffineTransform.TYPE_MASK_SCALE)) == 0)
+                    deviceClip = tx.createTransformedShape(clip).getBounds2D();
+                else
+                    deviceClip = tx.createTransformedShape(clip);
+            }
+        }
+
+        private void add(Op op) {
+            drawing.mOps.add(op);
+        }
+
+        public Graphics create() {
+            return new Recorder(drawing, (Graphics2D) scratch.create(), deviceClip, hints);
+        }
+        public void dispose() { scratch.dispose(); }
+
+        public void draw(Shape s) { add(new ShapeOp(state(), copy(s), false)); }
+        public void fill(Shape s) { add(new ShapeOp(state(), copy(s), true)); }
+
+        public void drawLine(int x1, int y1, int x2, int y2) { add(new PrimitiveOp(state(), DRAW_LINE, x1, y1, x2, y2)); }
+        public void drawRect(int x, int y, int w, int h) { add(new PrimitiveOp(state(), DRAW_RECT, x, y, w, h)); }
+        public void fillRect(int x, int y, int w, int h) { add(new PrimitiveOp(state(), FILL_RECT, x, y, w, h)); }
+        public void clearRect(int x, int y, int w, int h) { add(new PrimitiveOp(state(), CLEAR_RECT, x, y, w, h)); }
+        public void drawRoundRect(int x, int y, int w, int h, int aw, int ah) { add(new PrimitiveOp(state(), DRAW_ROUND_RECT, x, y, w, h, aw, ah)); }
+        public void fillRoundRect(int x, int y, int w, int h, int aw, int ah) { add(new PrimitiveOp(state(), FILL_ROUND_RECT, x, y, w, h, aw, ah)); }
+        public void drawOval(int x, int y, int w, int h) { add(new PrimitiveOp(state(), DRAW_OVAL, x, y, w, h)); }
+        public void fillOval(int x, int y, int w, int h) { add(new PrimitiveOp(state(), FILL_OVAL, x, y, w, h)); }
+        public void drawArc(int x, int y, int w, int h, int start, int arc) { add(new PrimitiveOp(state(), DRAW_ARC, x, y, w, h, start, arc)); }
+        public void fillArc(int x, int y, int w, int h, int start, int arc) { add(new PrimitiveOp(state(), FILL_ARC, x, y, w, h, start, arc)); }
+        public void copyArea(int x, int y, int w, int h, int dx, int dy) { add(new PrimitiveOp(state(), COPY_AREA, x, y, w, h, dx, dy)); }
+        public void drawPolyline(int[] x, int[] y, int n) { add(new PolyOp(state(), DRAW_POLYLINE, x, y, n)); }
+        public void drawPolygon(int[] x, int[] y, int n) { add(new PolyOp(state(), DRAW_POLYGON, x, y, n)); }
+        public void fillPolygon(int[] x, int[] y, int n) { add(new PolyOp(state(), FILL_POLYGON, x, y, n)); }
+
+        public void drawString(String s, int x, int y) { add(new TextOp(state(), s, null, x, y, true)); }
+        public void drawString(String s, float x, float y) { add(new TextOp(state(), s, null, x, y, false)); }
+        public void drawString(AttributedCharacterIterator i, int x, int y) { add(new TextOp(state(), null, new AttributedString(i), x, y, true)); }
+        public void drawString(AttributedCharacterIterator i, float x, float y) { add(new TextOp(state(), null, new AttributedString(i), x, y, false)); }
+        public void drawGlyphVector(GlyphVector g, float x, float y) { add(new GlyphOp(state(), g, x, y)); }
+
+        public boolean drawImage(Image img, int x, int y, ImageObserver o) { return drawImage(img, x, y, null, o); }
+        public boolean drawImage(Image img, int x, int y, Color bg, ImageObserver o) {
+            add(new ImageOp(state(), img, bg, x, y));
+            return true;
+        }
+        public boolean drawImage(Image img, int x, int y, int w, int h, ImageObserver o) { return drawImage(img, x, y, w, h, null, o); }
+        public boolean drawImage(Image img, int x, int y, int w, int h, Color bg, ImageObserver o) {
+            add(new ImageOp(state(), img, bg, x, y, w, h));
+            return true;
+        }
+        public boolean drawImage(Image img, int dx1, int dy1, int dx2, int dy2, int sx1, int sy1, int sx2, int sy2, ImageObserver o) {
+            return drawImage(img, dx1, dy1, dx2, dy2, sx1, sy1, sx2, sy2, null, o);
+        }
+        public boolean drawImage(Image img, int dx1, int dy1, int dx2, int dy2, int sx1, int sy1, int sx2, int sy2, Color bg, ImageObserver o) {
+            add(new ImageOp(state(), img, bg, dx1, dy1, dx2, dy2, sx1, sy1, sx2, sy2));
+            return true;
+        }
+        public boolean drawImage(Image img, AffineTransform xform, ImageObserver o) {
+            add(new TransformedImageOp(state(), img, xform));
+            return true;
+        }
+        public void drawImage(BufferedImage img, BufferedImageOp op, int x, int y) {
+            drawImage(op == null ? img : op.filter(img, null), x, y, null);
+        }
+        public void drawRenderedImage(RenderedImage img, AffineTransform xform) { add(new TransformedImageOp(state(), img, xform)); }
+        public void drawRenderableImage(RenderableImage img, AffineTransform xform) { add(new TransformedImageOp(state(), img, xform)); }
+
+        public boolean hit(Rectangle rect, Shape s, boolean onStroke) { return scratch.hit(rect, s, onStroke); }
+        public GraphicsConfiguration getDeviceConfiguration() { return scratch.getDeviceConfiguration(); }
+        public FontMetrics getFontMetrics(Font f) { return scratch.getFontMetrics(f); }
+        public FontRenderContext getFontRenderContext() { return scratch.getFontRenderContext(); }
+
+        public Color getColor() { return scratch.getColor(); }
+        public void setColor(Color c) { scratch.setColor(c); changed(); }
+        public Paint getPaint() { return scratch.getPaint(); }
+        public void setPaint(Paint p) { scratch.setPaint(p); changed(); }
+        public void setPaintMode() { scratch.setPaintMode(); changed(); }
+        public void setXORMode(Color c) { scratch.setXORMode(c); changed(); }
+        public Font getFont() { return scratch.getFont(); }
+        public void setFont(Font f) { scratch.setFont(f); changed(); }
+        public Stroke getStroke() { return scratch.getStroke(); }
+        public void setStroke(Stroke s) { scratch.setStroke(s); changed(); }
+        public Composite getComposite() { return scratch.getComposite(); }
+        public void setComposite(Composite c) { scratch.setComposite(c); changed(); }
+        public Color getBackground() { return scratch.getBackground(); }
+        public void setBackground(Color c) { scratch.setBackground(c); changed(); }
+
+        public Object getRenderingHint(RenderingHints.Key key) { return scratch.getRenderingHint(key); }
+        public RenderingHints getRenderingHints() { return scratch.getRenderingHints(); }
+        public void setRenderingHint(RenderingHints.Key key, Object value) {
+            if (value != scratch.getRenderingHint(key)) {
+                // the hints are re-set on every draw, so only a real change gets a new snapshot
+                scratch.setRenderingHint(key, value);
+                hints = null;
+                changed();
+            }
+        }
+        public void setRenderingHints(Map<?,?> h) { scratch.setRenderingHints(h); hints = null; changed(); }
+        public void addRenderingHints(Map<?,?> h) { scratch.addRenderingHints(h); hints = null; changed(); }
+
+        public AffineTransform getTransform() { return scratch.getTransform(); }
+        public void setTransform(AffineTransform tx) { scratch.setTransform(tx); changed(); }
+        public void transform(AffineTransform tx) { scratch.transform(tx); changed(); }
+        public void translate(int x, int y) { scratch.translate(x, y); changed(); }
+        public void translate(double x, double y) { scratch.translate(x, y); changed(); }
+        public void rotate(double theta) { scratch.rotate(theta); changed(); }
+        public void rotate(double theta, double x, double y) { scratch.rotate(theta, x, y); changed(); }
+        public void scale(double sx, double sy) { scratch.scale(sx, sy); changed(); }
+        public void shear(double sx, double sy) { scratch.shear(sx, sy); changed(); }
+
+        public Shape getClip() { return scratch.getClip(); }
+        public Rectangle getClipBounds() { return scratch.getClipBounds(); }
+        public void setClip(Shape s) { scratch.setClip(s); clipChanged(); }
+        public void setClip(int x, int y, int w, int h) { scratch.setClip(x, y, w, h); clipChanged(); }
+        public void clip(Shape s) { scratch.clip(s); clipChanged(); }
+        public void clipRect(int x, int y, int w, int h) { scratch.clipRect(x, y, w, h); clipChanged(); }
+    }
+}
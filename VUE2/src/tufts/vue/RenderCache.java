@@ -0,0 +1,319 @@
+/*
+* Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.vue;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Retained-mode rendering for components that are expensive to draw (rich text, labels
+ * with icons, etc).  While the MapViewer is panning or animating, LWComponent.drawZero
+ * will ask us to draw a component from a raster of it's drawImpl output instead of
+ * re-rendering it from vectors on every paint.
+ *
+ * Rasters are rendered at the exact on-screen scale when the view isn't zooming (e.g.,
+ * panning), and at the next scale "bucket" up (a half-octave step) when it is, so that a
+ * raster can be re-used across the frames of a zoom animation.  Each component keeps at
+ * most two of them, and they're thrown out whenever the component delivers a change event
+ * (see LWComponent.notifyLWCListeners), so a raster is only ever drawn if nothing has
+ * changed since it was made.  The total pixel memory of all rasters is capped by a budget,
+ * after which the least recently drawn are discarded.
+ *
+ * Off by default: set renderCache.enabled=true in VueResources to turn it on.
+ *
+ * All methods are thread-safe, tho drawing is expected to happen on the AWT thread.
+ */
+final class RenderCache
+{
+    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(RenderCache.class);
+
+    private static volatile boolean Enabled = VueResources.getBool("renderCache.enabled");
+
+    /** Total bytes of raster pixels we'll hold on to.  Zero or less disables caching. */
+    private static long MemoryBudget = VueResources.getInt("renderCache.memoryBudgetKB", 24 * 1024) * 1024L;
+
+    /** scale buckets per doubling of scale when zooming */
+    private static final int BucketsPerOctave = 2;
+    /** rasters larger than this in either dimension aren't worth the memory: just draw it */
+    private static final int MaxRasterSide = 1024;
+    /** rasters with fewer pixels than this are cheap to draw directly */
+    private static final int MinRasterArea = 256;
+    /** rasters kept per component (e.g., the panning scale & the current zoom bucket) */
+    private static final int RastersPerEntry = 2;
+
+    /** every Entry with at least one raster, least recently drawn first */
+    private static final LinkedHashMap<Entry,Entry> Entries = new LinkedHashMap<Entry,Entry>(256, 0.75f, true);
+    private static long Bytes;
+
+    private static int Hits, Misses, Evictions, Invalidations;
+
+    /** The cached rasters for a single component.  All fields guarded by the RenderCache class lock. */
+    static final class Entry {
+        final LWComponent c;
+        final Raster[] rasters = new Raster[RastersPerEntry];
+        long bytes;
+
+        Entry(LWComponent c) {
+            this.c = c;
+        }
+
+        Raster find(double scale, double phaseX, double phaseY, boolean zooming) {
+            for (Raster r : rasters) {
+                if (r == null)
+                    continue;
+                // at the same scale and pixel alignment, the raster is exactly what we'd draw
+                if (r.scale == scale && samePhase(r.phaseX, phaseX) && samePhase(r.phaseY, phaseY))
+                    return r;
+                // when zooming, we'll take a raster of up to one bucket higher resolution and scale it down
+                if (zooming && r.scale > scale && r.scale <= scale * BucketStep)
+                    return r;
+            }
+            return null;
+        }
+
+        /** add the raster, replacing the least recently made if we're full: @return the change in bytes */
+        long add(Raster r) {
+            final Raster oldest = rasters[rasters.length - 1];
+            System.arraycopy(rasters, 0, rasters, 1, rasters.length - 1);
+            rasters[0] = r;
+            final long delta = r.bytes - (oldest == null ? 0 : oldest.bytes);
+            bytes += delta;
+            return delta;
+        }
+    }
+
+    private static final class Raster {
+        final BufferedImage image;
+        final double scale;
+        /** the local (zero-based) coordinates of the image origin */
+        final double x, y;
+        /** the fractional device pixel offset of our local origin when this was rendered */
+        final double phaseX, phaseY;
+        final long bytes;
+
+        Raster(BufferedImage image, double scale, double x, double y, double phaseX, double phaseY) {
+            this.image = image;
+            this.scale = scale;
+            this.x = x;
+            this.y = y;
+            this.phaseX = phaseX;
+            this.phaseY = phaseY;
+            this.bytes = image.getWidth() * image.getHeight() * 4L;
+        }
+    }
+
+    private static final double BucketStep = Math.pow(2, 1.0 / BucketsPerOctave);
+
+    private RenderCache() {}
+
+    public static boolean isEnabled() {
+        return Enabled && MemoryBudget > 0;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        Enabled = enabled;
+        if (!enabled)
+            clear();
+    }
+
+    /** @param bytes the total size of all cached rasters; zero or less disables caching */
+    public static synchronized void setMemoryBudget(long bytes) {
+        MemoryBudget = bytes;
+        trim();
+    }
+
+    public static synchronized long getMemoryBudget() {
+        return MemoryBudget;
+    }
+
+    /**
+     * Draw the given component's drawImpl output into the given DrawContext, which is
+     * expected to be transformed to the component's local coordinates, from a cached
+     * raster, making it first if needed.
+     *
+     * @return false if the component wasn't drawn, and the caller should draw it normally
+     */
+    static boolean draw(LWComponent c, DrawContext dc)
+    {
+        final AffineTransform transform = dc.g.getTransform();
+        final double drawScale = transform.getScaleX();
+
+        if (drawScale <= 0 || transform.getScaleY() != drawScale || transform.getShearX() != 0 || transform.getShearY() != 0)
+            return false;
+
+        final double phaseX = phase(transform.getTranslateX());
+        final double phaseY = phase(transform.getTranslateY());
+
+        final boolean zooming = dc.isAnimating();
+        Raster raster;
+        Entry entry;
+
+        synchronized (RenderCache.class) {
+            entry = c.mRenderCache;
+            raster = entry == null ? null : entry.find(drawScale, phaseX, phaseY, zooming);
+            if (raster != null) {
+                Hits++;
+                Entries.get(entry); // mark as recently used
+            } else {
+                Misses++;
+                if (entry == null)
+                    c.mRenderCache = entry = new Entry(c);
+            }
+        }
+
+        if (raster == null) {
+            raster = render(c, dc, zooming ? bucketScale(drawScale) : drawScale, phaseX, phaseY);
+            if (raster == null)
+                return false;
+            store(entry, raster);
+        }
+
+        final double inverse = 1.0 / raster.scale;
+        final AffineTransform imageTransform = new AffineTransform(inverse, 0, 0, inverse, raster.x, raster.y);
+
+        if (raster.scale == drawScale) {
+            // pixel aligned: nothing to interpolate
+            dc.g.drawImage(raster.image, imageTransform, null);
+        } else {
+            // scaling down a bucket raster: don't let glyph strokes drop out
+            final Object interpolation = dc.g.getRenderingHint(RenderingHints.KEY_INTERPOLATION);
+            dc.g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            dc.g.drawImage(raster.image, imageTransform, null);
+            if (interpolation != null)
+                dc.g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+        }
+
+        return true;
+    }
+
+    private static double phase(double deviceOffset) {
+        return deviceOffset - Math.floor(deviceOffset);
+    }
+
+    private static boolean samePhase(double p1, double p2) {
+        final double d = Math.abs(p1 - p2);
+        return d < 0.001 || d > 0.999;
+    }
+
+    /** @return the smallest bucket scale at least as large as the given scale */
+    static double bucketScale(double scale) {
+        final double bucket = Math.ceil(Math.log(scale) / Math.log(2) * BucketsPerOctave - 1e-9);
+        return Math.pow(2, bucket / BucketsPerOctave);
+    }
+
+    /**
+     * @param phaseX, phaseY -- the fractional device pixel offset of the local origin: the
+     * raster origin is placed on a device pixel boundary, so that a raster drawn at the
+     * same scale & phase lands exactly on the pixels it would have been rendered to
+     */
+    private static Raster render(LWComponent c, DrawContext dc, double scale, double phaseX, double phaseY)
+    {
+        // the stroke is centered on the shape, so half of it lies outside our bounds
+        final float pad = c.getStrokeWidth() / 2f + 1f;
+        final double originX = Math.floor(phaseX - pad * scale); // in device pixels from the local origin
+        final double originY = Math.floor(phaseY - pad * scale);
+        final double x = (originX - phaseX) / scale;
+        final double y = (originY - phaseY) / scale;
+        final int width = (int) Math.ceil((c.getWidth() + pad) * scale - x * scale);
+        final int height = (int) Math.ceil((c.getHeight() + pad) * scale - y * scale);
+
+        if (width <= 0 || height <= 0 || width > MaxRasterSide || height > MaxRasterSide || width * height < MinRasterArea)
+            return null;
+
+        if (width * height * 4L > MemoryBudget / 4) // never let a single raster take over the cache
+            return null;
+
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        final Graphics2D g = image.createGraphics();
+        try {
+            final DrawContext rdc = new DrawContext(g, scale, (float) (phaseX - originX), (float) (phaseY - originY), null, dc.focal, false);
+            rdc.setInteractiveQuality();
+            rdc.setInteractive(false);
+            rdc.setClipOptimized(false);
+            rdc.setBackgroundFill(dc.getBackgroundFill());
+            c.drawImpl(rdc);
+        } catch (Throwable t) {
+            Log.warn("render failed, drawing directly: " + c, t);
+            return null;
+        } finally {
+            g.dispose();
+        }
+
+        if (DEBUG.IMAGE) Log.debug("rendered " + width + "x" + height + " at " + (float) scale + ": " + c);
+
+        return new Raster(image, scale, x, y, phaseX, phaseY);
+    }
+
+    private static synchronized void store(Entry entry, Raster raster)
+    {
+        if (entry.c.mRenderCache != entry) {
+            // the component changed while we were rendering: the raster's no good
+            return;
+        }
+        Bytes += entry.add(raster);
+        Entries.put(entry, entry);
+        trim();
+    }
+
+    /** discard the least recently drawn entries until we're within budget */
+    private static void trim()
+    {
+        final Iterator<Entry> i = Entries.keySet().iterator();
+        while (Bytes > MemoryBudget && i.hasNext()) {
+            final Entry e = i.next();
+            i.remove();
+            Bytes -= e.bytes;
+            if (e.c.mRenderCache == e)
+                e.c.mRenderCache = null;
+            Evictions++;
+        }
+    }
+
+    /** throw out any rasters for the given component: it's appearance has changed */
+    static synchronized void invalidate(LWComponent c)
+    {
+        final Entry e = c.mRenderCache;
+        if (e == null)
+            return;
+        c.mRenderCache = null;
+        if (Entries.remove(e) != null)
+            Bytes -= e.bytes;
+        Invalidations++;
+    }
+
+    public static synchronized void clear()
+    {
+        for (Entry e : Entries.keySet()) {
+            if (e.c.mRenderCache == e)
+                e.c.mRenderCache = null;
+        }
+        Entries.clear();
+        Bytes = 0;
+    }
+
+    public static synchronized String getStats() {
+        return String.format("RenderCache[%s %d entries, %s of %s; hits=%d misses=%d evictions=%d invalidations=%d]",
+                             Enabled ? "on" : "off",
+                             Entries.size(),
+                             tufts.Util.abbrevBytes(Bytes),
+                             tufts.Util.abbrevBytes(MemoryBudget),
+                             Hits, Misses, Evictions, Invalidations);
+    }
+}
@@ -0,0 +1,483 @@
+/*
+* Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.vue;
+
+import tufts.Util;
+
+import java.util.*;
+import java.awt.geom.Rectangle2D;
+
+/**
+ * A uniform grid spatial index over the top-level children of an LWMap.Layer.  This
+ * is used to narrow down the children that need to be considered for picking (see
+ * LWTraversal) and for clip-culled painting, so that neither has to visit every
+ * child of every layer on every mouse move or repaint.
+ *
+ * The index is maintained lazily.  LWMap passes it every LWCEvent it sees, and any
+ * top-level child touched by an event (or any of its descendents) is only marked
+ * dirty.  Dirty children are re-bucketed the next time the index is queried.  Any
+ * change to the child list of the layer itself (adds, removes, re-ordering, undo)
+ * throws out the whole index, which is then rebuilt on the next query.  Query
+ * results are always returned in child order, so picking and painting see the
+ * children in exactly the same order as they would over the full child list.
+ *
+ * Anything we can't reliably bound -- e.g., components showing slide icons, which
+ * draw outside their bounds -- is kept on a list of items that are always
+ * returned.
+ */
+public final class SpatialIndex
+{
+    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(SpatialIndex.class);
+
+    /** layers with fewer children than this aren't indexed: a plain scan is already fast enough */
+    static final int MinIndexedChildren = 128;
+
+    /** any item that would span more than this many grid cells is kept on the always list instead */
+    private static final int MaxCellsPerItem = 256;
+
+    private static final float MinCellSize = 32;
+    private static final float MaxCellSize = 4096;
+
+    /** if false, no layer will make use of it's index: for debugging and benchmarking */
+    static boolean Enabled = true;
+
+    private static final class Entry {
+        final LWComponent c;
+        final int order;
+        final Rectangle2D.Float bounds = new Rectangle2D.Float();
+        /** the inclusive range of cells we're bucketed in, if we're not on the always list */
+        int x0, y0, x1, y1;
+        /** true if we're on the always list */
+        boolean always;
+        /** true if we couldn't determine any bounds for the component: always include in results */
+        boolean unbounded;
+        /** to prevent an entry from being reported more than once in a single query */
+        int stamp;
+
+        Entry(LWComponent c, int order) {
+            this.c = c;
+            this.order = order;
+        }
+    }
+
+    private static final Comparator<Entry> ChildOrder = new Comparator<Entry>() {
+        public int compare(Entry e1, Entry e2) {
+            return e1.order - e2.order;
+        }
+    };
+
+    private final LWMap.Layer layer;
+
+    private final Map<Long,List<Entry>> mCells = new HashMap();
+    private final Map<LWComponent,Entry> mEntries = new IdentityHashMap();
+    private final List<Entry> mAlways = new ArrayList();
+    private final Map<LWComponent,Boolean> mDirty = new IdentityHashMap();
+    private final List<Entry> mHits = new ArrayList();
+
+    private List<LWComponent> mIndexedList;
+    private int mIndexedSize;
+    private boolean mValid;
+    private float mCellSize = 256;
+    private int mQueryStamp;
+
+    SpatialIndex(LWMap.Layer layer) {
+        this.layer = layer;
+    }
+
+    /**
+     * Note that the given component may have changed it's map bounds.  If it's anywhere
+     * inside a layer, it's top-level ancestor (the child of the layer) is marked dirty in
+     * that layer's index.
+     */
+    static void boundsChanged(LWComponent c) {
+        LWComponent topLevel = c;
+        for (LWContainer parent = c.getParent(); parent != null; parent = parent.getParent()) {
+            if (parent instanceof LWMap.Layer) {
+                ((LWMap.Layer)parent).spatialChange(topLevel);
+                return;
+            }
+            topLevel = parent;
+        }
+    }
+
+    /** Throw out the entire index: it will be rebuilt on the next query */
+    synchronized void invalidate() {
+        if (mValid && DEBUG.PAINT) Log.debug("invalidated for " + layer);
+        mValid = false;
+        mDirty.clear();
+    }
+
+    /** @param topLevel a child of our layer that may have changed it's bounds */
+    synchronized void markDirty(LWComponent topLevel) {
+        if (mValid)
+            mDirty.put(topLevel, Boolean.TRUE);
+    }
+
+    /**
+     * Find all children of the layer that may intersect the given map region.
+     * @param mapRect the region to query, in map coordinates
+     * @param result the list to add the results to, in child (paint) order
+     * @return result
+     */
+    synchronized List<LWComponent> query(Rectangle2D mapRect, List<LWComponent> result)
+    {
+        ensureCurrent();
+
+        if (++mQueryStamp == 0)
+            mQueryStamp = 1;
+        final int stamp = mQueryStamp;
+        final List<Entry> hits = mHits;
+        hits.clear();
+
+        for (Entry e : mAlways) {
+            if (e.unbounded || overlaps(e.bounds, mapRect)) {
+                e.stamp = stamp;
+                hits.add(e);
+            }
+        }
+
+        final int x0 = cell(mapRect.getMinX());
+        final int y0 = cell(mapRect.getMinY());
+        final int x1 = cell(mapRect.getMaxX());
+        final int y1 = cell(mapRect.getMaxY());
+        final long cellCount = ((long)x1 - x0 + 1) * ((long)y1 - y0 + 1);
+
+        if (cellCount > mEntries.size()) {
+            // the region is so large in relation to our cell size (e.g., zoomed way out),
+            // it's faster to just check every entry
+            for (Entry e : mEntries.values()) {
+                if (e.stamp != stamp && overlaps(e.bounds, mapRect)) {
+                    e.stamp = stamp;
+                    hits.add(e);
+                }
+            }
+        } else {
+            for (int x = x0; x <= x1; x++) {
+                for (int y = y0; y <= y1; y++) {
+                    final List<Entry> bucket = mCells.get(key(x, y));
+                    if (bucket == null)
+                        continue;
+                    for (Entry e : bucket) {
+                        if (e.stamp != stamp && overlaps(e.bounds, mapRect)) {
+                            e.stamp = stamp;
+                            hits.add(e);
+                        }
+                    }
+                }
+            }
+        }
+
+        if (hits.size() > 1)
+            Collections.sort(hits, ChildOrder);
+
+        for (Entry e : hits)
+            result.add(e.c);
+
+        hits.clear();
+
+        if (DEBUG.PICK && DEBUG.META) Log.debug("query " + Util.fmt(mapRect) + " found " + result.size() + " of " + mIndexedSize);
+
+        return result;
+    }
+
+    /** @return the number of children currently indexed: for diagnostics */
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    private void ensureCurrent()
+    {
+        final List<LWComponent> children = layer.getChildren();
+
+        if (!mValid || children != mIndexedList || children.size() != mIndexedSize) {
+            rebuild(children);
+            return;
+        }
+
+        if (mDirty.isEmpty())
+            return;
+
+        // copy first: computing the bounds of a link may recompute it, which could mark it dirty again
+        final LWComponent[] dirty = mDirty.keySet().toArray(new LWComponent[mDirty.size()]);
+        mDirty.clear();
+
+        for (LWComponent c : dirty) {
+            final Entry e = mEntries.get(c);
+            if (e == null) {
+                // a child we've never seen: we must have missed a hierarchy event
+                if (DEBUG.Enabled) Log.debug("unindexed child " + c + "; rebuilding " + layer);
+                rebuild(children);
+                return;
+            }
+            remove(e);
+            computeBounds(e);
+            insert(e);
+        }
+    }
+
+    private void rebuild(List<LWComponent> children)
+    {
+        final long start = DEBUG.PERF ? System.nanoTime() : 0;
+
+        mCells.clear();
+        mEntries.clear();
+        mAlways.clear();
+        mDirty.clear();
+
+        final Entry[] entries = new Entry[children.size()];
+        double totalSize = 0;
+        int sized = 0;
+        int i = 0;
+        for (LWComponent c : children) {
+            final Entry e = new Entry(c, i);
+            computeBounds(e);
+            if (!e.unbounded) {
+                totalSize += Math.max(e.bounds.width, e.bounds.height);
+                sized++;
+            }
+            entries[i++] = e;
+        }
+
+        // Make the cells about twice the size of an average item: most items then
+        // land in one to four cells, and most point queries only touch one.
+        if (sized > 0)
+            mCellSize = (float) Math.min(MaxCellSize, Math.max(MinCellSize, 2 * totalSize / sized));
+
+        for (Entry e : entries) {
+            mEntries.put(e.c, e);
+            insert(e);
+        }
+
+        mIndexedList = children;
+        mIndexedSize = children.size();
+        mValid = true;
+
+        if (DEBUG.PERF) Log.debug(String.format("rebuilt %s: %d items, %d cells, %d always, cellSize %.0f in %.1fms",
+                                                layer, mEntries.size(), mCells.size(), mAlways.size(), mCellSize,
+                                                (System.nanoTime() - start) / 1e6));
+    }
+
+    private static void computeBounds(Entry e)
+    {
+        final LWComponent c = e.c;
+        e.unbounded = false;
+        try {
+            if (c.hasEntries() || c.isZoomedFocus()) {
+                // slide icons and zoomed rollovers can appear well outside our bounds
+                e.unbounded = true;
+                return;
+            }
+            final Rectangle2D.Float bounds = c.getPaintBounds();
+            if (c.hasChildren()) {
+                // children are normally inside the parent, but this isn't guaranteed
+                for (LWComponent child : c.getAllDescendents(LWComponent.ChildKind.PROPER)) {
+                    if (child.hasEntries()) {
+                        e.unbounded = true;
+                        return;
+                    }
+                    bounds.add(child.getPaintBounds());
+                }
+            }
+            if (Float.isNaN(bounds.x) || Float.isNaN(bounds.y) || Float.isNaN(bounds.width) || Float.isNaN(bounds.height))
+                e.unbounded = true;
+            else
+                e.bounds.setRect(bounds);
+        } catch (Throwable t) {
+            Log.warn("bounds failed for " + c + "; " + t);
+            e.unbounded = true;
+        }
+    }
+
+    private void insert(Entry e)
+    {
+        if (e.unbounded) {
+            e.always = true;
+            mAlways.add(e);
+            return;
+        }
+        e.x0 = cell(e.bounds.getMinX());
+        e.y0 = cell(e.bounds.getMinY());
+        e.x1 = cell(e.bounds.getMaxX());
+        e.y1 = cell(e.bounds.getMaxY());
+
+        if (((long)e.x1 - e.x0 + 1) * ((long)e.y1 - e.y0 + 1) > MaxCellsPerItem) {
+            e.always = true;
+            mAlways.add(e);
+            return;
+        }
+        e.always = false;
+        for (int x = e.x0; x <= e.x1; x++) {
+            for (int y = e.y0; y <= e.y1; y++) {
+                final Long key = key(x, y);
+                List<Entry> bucket = mCells.get(key);
+                if (bucket == null) {
+                    bucket = new ArrayList(4);
+                    mCells.put(key, bucket);
+                }
+                bucket.add(e);
+            }
+        }
+    }
+
+    private void remove(Entry e)
+    {
+        if (e.always) {
+            mAlways.remove(e);
+            return;
+        }
+        for (int x = e.x0; x <= e.x1; x++) {
+            for (int y = e.y0; y <= e.y1; y++) {
+                final Long key = key(x, y);
+                final List<Entry> bucket = mCells.get(key);
+                if (bucket != null) {
+                    bucket.remove(e);
+                    if (bucket.isEmpty())
+                        mCells.remove(key);
+                }
+            }
+        }
+    }
+
+    /** unlike Rectangle2D.intersects, this allows for empty bounds (e.g., perfectly horizontal links) */
+    private static boolean overlaps(Rectangle2D.Float b, Rectangle2D r) {
+        return b.x <= r.getMaxX()
+            && b.y <= r.getMaxY()
+            && b.x + b.width >= r.getMinX()
+            && b.y + b.height >= r.getMinY();
+    }
+
+    private int cell(double coord) {
+        final double c = Math.floor(coord / mCellSize);
+        if (c >= Integer.MAX_VALUE)
+            return Integer.MAX_VALUE - 1;
+        else if (c <= Integer.MIN_VALUE)
+            return Integer.MIN_VALUE + 1;
+        else
+            return (int) c;
+    }
+
+    private static Long key(int x, int y) {
+        return Long.valueOf(((long)x << 32) | (y & 0xFFFFFFFFL));
+    }
+
+    /**
+     * Benchmark: compare point-pick, region-pick and clip-culled paint times with and
+     * without the index on synthetic maps.  Usage: SpatialIndex [node-count ...]
+     * (default is 1000 10000 100000).
+     */
+    public static void main(String args[])
+    {
+        DEBUG.Enabled = false;
+
+        final int[] sizes;
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                sizes[i] = Integer.parseInt(args[i]);
+        } else {
+            sizes = new int[] { 1000, 10000, 100000 };
+        }
+
+        final java.awt.image.BufferedImage image =
+            new java.awt.image.BufferedImage(1024, 768, java.awt.image.BufferedImage.TYPE_INT_RGB);
+
+        for (int size : sizes) {
+            final Random random = new Random(size);
+            final LWMap map = new LWMap("SpatialIndex benchmark " + size);
+            final float side = (float) Math.sqrt(size) * 150;
+            final List<LWComponent> nodes = new ArrayList(size);
+            final List<LWComponent> links = new ArrayList(size / 4);
+            for (int i = 0; i < size; i++) {
+                final LWNode n = new LWNode("node " + i);
+                n.setLocation(random.nextFloat() * side, random.nextFloat() * side);
+                nodes.add(n);
+            }
+            for (int i = 0; i < size / 4; i++) {
+                final LWComponent head = nodes.get(random.nextInt(size));
+                final LWComponent tail = nodes.get(random.nextInt(size));
+                if (head != tail)
+                    links.add(new LWLink(head, tail));
+            }
+            map.addChildren(nodes);
+            map.addChildren(links);
+
+            final int picks = 1000;
+            final float[] px = new float[picks];
+            final float[] py = new float[picks];
+            for (int i = 0; i < picks; i++) {
+                px[i] = random.nextFloat() * side;
+                py[i] = random.nextFloat() * side;
+            }
+
+            System.out.format("%d nodes, %d links, %.0f x %.0f map:\n", size, links.size(), side, side);
+
+            for (boolean indexed : new boolean[] { false, true }) {
+                Enabled = indexed;
+
+                final java.awt.Graphics2D g = image.createGraphics();
+                final DrawContext dc = new DrawContext(g, map);
+
+                // warm-up (also builds the index when enabled)
+                pickPoint(map, dc, px[0], py[0]);
+
+                long start = System.nanoTime();
+                int hits = 0;
+                for (int i = 0; i < picks; i++)
+                    if (pickPoint(map, dc, px[i], py[i]) != null)
+                        hits++;
+                final double pointMs = (System.nanoTime() - start) / 1e6 / picks;
+
+                start = System.nanoTime();
+                int found = 0;
+                for (int i = 0; i < picks; i++) {
+                    final PickContext pc = new PickContext(dc, new Rectangle2D.Float(px[i], py[i], 500, 500));
+                    pc.root = map;
+                    found += LWTraversal.RegionPick.pick(pc).size();
+                }
+                final double regionMs = (System.nanoTime() - start) / 1e6 / picks;
+
+                final int paints = 50;
+                start = System.nanoTime();
+                for (int i = 0; i < paints; i++) {
+                    final java.awt.Graphics2D pg = image.createGraphics();
+                    pg.setClip(0, 0, image.getWidth(), image.getHeight());
+                    final DrawContext pdc = new DrawContext(pg, 1.0, -px[i], -py[i], null, map, false);
+                    map.draw(pdc);
+                    pg.dispose();
+                }
+                final double paintMs = (System.nanoTime() - start) / 1e6 / paints;
+
+                g.dispose();
+
+                System.out.format("    %-10s point-pick %8.3fms (%d hits)  region-pick %8.3fms (%d found)  paint %8.2fms\n",
+                                  indexed ? "indexed:" : "traversal:", pointMs, hits, regionMs, found, paintMs);
+            }
+        }
+        Enabled = true;
+    }
+
+    private static LWComponent pickPoint(LWMap map, DrawContext dc, float x, float y) {
+        final PickContext pc = new PickContext(dc, x, y);
+        pc.root = map;
+        return LWTraversal.PointPick.pick(pc);
+    }
+
+    @Override
+    public String toString() {
+        return "SpatialIndex[" + layer + " items=" + mEntries.size() + " cells=" + mCells.size() + " always=" + mAlways.size() + "]";
+    }
+
+}
@@ -79,6 +79,10 @@ import javax.swing.text.*;
  * (getParent() != null) as the AWT/Swing tree is dealing with that
  * while it's in its activated edit state.
  *
+ * Labels that aren't being edited are now measured and painted by a
+ * lightweight {@link LabelBox}: a TextBox is only created by
+ * {@link LWComponent#getLabelEditor} for the duration of an edit.
+ *
  * We use a JTextPane because it supports a StyledDocument, which is
  * what we need to be able to set left/center/right aligment for all
  * the paragraphs in the document.  This is a bit heavy weight for our
@@ -469,7 +473,7 @@ public class TextBox extends JTextPane
         StyleConstants.setBold(a, f.isBold());
        if (c !=null)
        {
-    	   String s =  c.mFontUnderline.get();
+    	   String s =  c.getFontUnderline();
     	   if (s.equals("underline"))
     	   	   StyleConstants.setUnderline(a, true);
     	   
@@ -517,7 +521,7 @@ public class TextBox extends JTextPane
     private void computeMinimumWidth(Font font, String text) {
         mMaxCharWidth = (float) font.getMaxCharBounds(DefaultFontContext).getWidth();
         try {
-            mMaxWordWidth = maxWordWidth(font, text);
+            mMaxWordWidth = maxWordWidth(font, text, mMaxCharWidth);
         } catch (Exception e) {
             mMaxWordWidth = mMaxCharWidth;
         }
@@ -525,13 +529,14 @@ public class TextBox extends JTextPane
 
     private static final boolean DebugWord = false;
     private static final int BigWordLen = 9;
-    private float maxWordWidth(Font font, String text) {
+    /** also used by LabelBox: must not depend on any TextBox instance state */
+    static float maxWordWidth(Font font, String text, float maxCharWidth) {
 
         if (text == null || text.length() == 0)
-            return mMaxCharWidth;
+            return maxCharWidth;
 
         if (text.length() > 512) // provide a rough figure if string is long
-            return mMaxCharWidth * BigWordLen;
+            return maxCharWidth * BigWordLen;
 
         if (text.indexOf(' ') < 0 && text.indexOf('\n') < 0) // if no spaces, specal case no wrapping
             return (float) font.getStringBounds(text, DefaultFontContext).getWidth();
@@ -552,7 +557,7 @@ public class TextBox extends JTextPane
             } else
                 c = 0;
 
-            if (DebugWord) out("char[" + c + "] ci="+curRunIdx + " cl=" + curRunLen);
+            if (DebugWord) Log.debug("char[" + c + "] ci="+curRunIdx + " cl=" + curRunLen);
 
             // add '/' as word break character if no whitespace?
             if (c == 0 || Character.isWhitespace(c) || c == '.' || c == ',')
@@ -566,10 +571,10 @@ public class TextBox extends JTextPane
                     do {
                         curRunLen++;
                         whiteChar = text.charAt(++i);
-                        if (DebugWord) out("char{" + whiteChar + "} ci="+curRunIdx + " cl=" + curRunLen);
+                        if (DebugWord) Log.debug("char{" + whiteChar + "} ci="+curRunIdx + " cl=" + curRunLen);
                     } while (Character.isWhitespace(whiteChar));
                 } catch (StringIndexOutOfBoundsException e) {
-                    if (DebugWord) out("charEOS ci="+curRunIdx + " cl=" + curRunLen);
+                    if (DebugWord) Log.debug("charEOS ci="+curRunIdx + " cl=" + curRunLen);
                 }
                 curRunLen--;
                 i--;
@@ -580,24 +585,24 @@ public class TextBox extends JTextPane
                                      curRunIdx + curRunLen,
                                      DefaultFontContext).getWidth();
             
-            if (DebugWord) out("word[" + text.substring(curRunIdx, curRunIdx + curRunLen) + "] w=" + wordWidth);
+            if (DebugWord) Log.debug("word[" + text.substring(curRunIdx, curRunIdx + curRunLen) + "] w=" + wordWidth);
                 
             if (wordWidth > maxWidth) {
                 if (c == 0 && curRunIdx == 0) {
                     // If no whitespace in the whole thing, allow some breaking (should never happen currently)
-                    return wordWidth < mMaxCharWidth * BigWordLen ? wordWidth : mMaxCharWidth * BigWordLen;
+                    return wordWidth < maxCharWidth * BigWordLen ? wordWidth : maxCharWidth * BigWordLen;
                 } else {
                     maxWidth = wordWidth;
                     maxRunIdx = curRunIdx;
                     maxRunLen = curRunLen;
-                    if (DebugWord) out("MI="+curRunIdx + " ML=" + curRunLen + " w=" + wordWidth);
+                    if (DebugWord) Log.debug("MI="+curRunIdx + " ML=" + curRunLen + " w=" + wordWidth);
                 }
             }
             curRunIdx = i + 1;
             curRunLen = 0;
         }
         
-        if (DebugWord || DEBUG.TEXT) out("maxWord[" + text.substring(maxRunIdx, maxRunIdx + maxRunLen) + "] w=" + maxWidth);
+        if (DebugWord || DEBUG.TEXT) Log.debug("maxWord[" + text.substring(maxRunIdx, maxRunIdx + maxRunLen) + "] w=" + maxWidth);
 
         return maxWidth;
     }
@@ -751,9 +756,12 @@ public class TextBox extends JTextPane
             if (TestDebug||DEBUG.FOCUS) out("key was pressed; setting label to: [" + getText() + "]");
             final String text = getText();
             computeMinimumWidth(lwc.getFont(), text); // do before setLabel
+            lwc.getLabelBox().setEditedText(text, getSize()); // do before setLabel
             lwc.setLabel0(text, false);
             VUE.getUndoManager().mark();
         }
+        if (TestHarness == false)
+            lwc.releaseLabelEditor(this);
         lwc.notify(this, LWKey.Repaint);
     }
 
@@ -1034,9 +1042,9 @@ public class TextBox extends JTextPane
             // (e.g. the master slide has a black background), and the text box
             // has to fill of it's own for contrast, then temporarily swap
             // the text color to white or black so it can be seen.
-            if (lwc.mTextColor.equals(dc.getBackgroundFill())) {
+            if (LWComponent.KEY_TextColor.valueEquals(lwc, dc.getBackgroundFill())) {
                 restoreTextColor = true;
-                if (lwc.mTextColor.brightness() > 0.5) {
+                if (LWComponent.KEY_TextColor.brightness(lwc) > 0.5) {
                     setDocumentColor(DEBUG.Enabled ? Color.blue  : Color.black);
                 } else {
                     setDocumentColor(DEBUG.Enabled ? Color.green : Color.white);
@@ -1064,7 +1072,7 @@ public class TextBox extends JTextPane
 
         if (restoreTextColor) {
             // return document color to black
-            setDocumentColor(lwc.mTextColor.get());
+            setDocumentColor(lwc.getTextColor());
         }
 
         // draw a border for links -- why?
@@ -1328,6 +1328,9 @@ public class URLResource extends Resource implements XMLUnmarshalListener
 
         out("displayContent: " + Util.tags(contentRef));
 
+        if (contentRef instanceof File)
+            PackageEntryFile.extract((File) contentRef);
+
         final String systemSpec = contentRef.toString();
         
         try {
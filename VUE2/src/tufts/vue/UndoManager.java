@@ -22,6 +22,14 @@ import java.util.*;
 import java.awt.Point;
 import java.awt.Color;
 import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import javax.swing.Action;
 
 /**
@@ -39,7 +47,7 @@ import javax.swing.Action;
  */
 
 public class UndoManager
-    implements LWComponent.Listener
+    implements LWComponent.BatchListener
 {
     private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(UndoManager.class);
     
@@ -70,6 +78,18 @@ public class UndoManager
     /** The current collector of changes, to be permanently recorded and named when a user "mark" is established by a GUI */
     private UndoAction mCurrentUndo;
 
+    /**
+     * Heap budget for the undo history.  When the estimated size of the resident
+     * UndoActions exceeds this, the oldest are spilled to a journal on disk,
+     * and paged back in if they're undone.  Zero or less means no limit.
+     */
+    private static long MemoryBudget = VueResources.getInt("undo.memoryBudgetKB", 32 * 1024) * 1024L;
+
+    /** where spilled UndoActions go: created on first spill */
+    private UndoJournal mJournal;
+    /** every UndoAction in UndoList below this index has been spilled */
+    private int mSpillCursor;
+
     /** map of threads currently attched to a particular undo mark */
     private Map<Thread,UndoMark> mThreadsWithMark = Collections.synchronizedMap(new HashMap());
 
@@ -103,6 +123,14 @@ public class UndoManager
         private int eventCount = 0;
         private boolean sorted = false;
         private List<Thread> attachedThreads;
+        /** estimated heap footprint of undoSequence, or -1 if it needs computing */
+        private long estimatedBytes = -1;
+        /** if spilled (undoSequence is null), the location of our changes in the UndoJournal */
+        private long spillOffset = -1;
+        private int spillLength;
+        private int spilledSize;
+        /** if spilled, what the journal record refers to that can't be written out: the components, keys, etc */
+        private Object[] spillRefs;
 
         UndoAction() {
             undoSequence = new ArrayList();
@@ -121,10 +149,42 @@ public class UndoManager
         }
 
         int changeCount() {
-            return undoSequence.size();
+            return size();
         }
 
-        int size() { return undoSequence.size(); }
+        int size() { return undoSequence == null ? spilledSize : undoSequence.size(); }
+
+        boolean isSpilled() {
+            return undoSequence == null;
+        }
+
+        /** @return true if any thread that may still deliver changes to us is running */
+        synchronized boolean hasLiveThreads() {
+            if (attachedThreads != null) {
+                for (Thread t : attachedThreads)
+                    if (t.isAlive())
+                        return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return a rough estimate of the heap used by our recorded changes, or if we've
+         * been spilled, by what we still refer to.  This is cached once we're marked and
+         * can no longer change.
+         */
+        long estimateBytes() {
+            if (estimatedBytes >= 0)
+                return estimatedBytes;
+            if (undoSequence == null)
+                return 0;
+            long bytes = 64 + 8L * undoSequence.size();
+            for (Object o : undoSequence)
+                bytes += 40 + estimateValueBytes(((UndoItem)o).oldValue);
+            if (name != null && !hasLiveThreads())
+                estimatedBytes = bytes;
+            return bytes;
+        }
 
         void mark(String name) {
             this.name = name;
@@ -267,6 +327,54 @@ public class UndoManager
         }
     }
 
+    /** roughly the heap taken by a labeled node (see LWNode.main) */
+    private static final int ComponentBytes = 2048;
+
+    /** @return a rough estimate of the heap held only by the undo history for the given value */
+    private static long estimateValueBytes(Object value) {
+        if (value == null)
+            return 0;
+        else if (value instanceof String)
+            return 40 + 2 * ((String)value).length();
+        else if (value instanceof LWComponent)
+            return estimateComponentBytes((LWComponent) value);
+        else if (value instanceof Collection) {
+            long bytes = 24 + 8 * ((Collection)value).size();
+            for (Object o : (Collection) value)
+                if (o instanceof LWComponent)
+                    bytes += estimateComponentBytes((LWComponent) o);
+            return bytes;
+        }
+        else if (value instanceof Number || value instanceof Boolean)
+            return 16;
+        else if (value instanceof Color)
+            return 28;
+        else if (value instanceof Point2D || value instanceof Size)
+            return 24;
+        else if (value instanceof Undoable)
+            return 48;
+        else
+            return 32;
+    }
+
+    /** a component still in the map costs us nothing: a deleted one is ours alone, along with it's descendents */
+    private static long estimateComponentBytes(LWComponent c) {
+        if (!c.isDeleted())
+            return 0;
+        long bytes = ComponentBytes + estimateTextBytes(c);
+        if (c.hasChildren()) {
+            for (LWComponent d : c.getAllDescendents())
+                bytes += ComponentBytes + estimateTextBytes(d);
+        }
+        return bytes;
+    }
+
+    private static long estimateTextBytes(LWComponent c) {
+        final String label = c.getLabel();
+        final String notes = c.getNotes();
+        return (label == null ? 0 : 2 * label.length()) + (notes == null ? 0 : 2 * notes.length());
+    }
+
     /**
      * A single property change on a single component.
      */
@@ -632,6 +740,12 @@ public class UndoManager
             current = -1;
         }
 
+        /** forget the given number of actions from the bottom of the list */
+        void removeOldest(int count) {
+            removeRange(0, count);
+            current -= count;
+        }
+
         int top() {
             return current;
         }
@@ -648,6 +762,374 @@ public class UndoManager
         public Object remove(int index) { throw new UnsupportedOperationException(); }
     }
 
+    /**
+     * An append-only file of spilled UndoActions.  Each is written as a single
+     * record of its UndoItems in a compact binary form.  Common property values are written out in
+     * full, and everything else -- the components themselves, the property keys, and
+     * any values we don't know how to write (e.g., Undoables or Resources) -- is
+     * written as an index into a table of references that the spilled UndoAction
+     * itself keeps, so they go when it does.  Once no spilled actions remain, the file
+     * is closed and deleted.
+     */
+    private static final class UndoJournal
+    {
+        private static final int NULL = 0, REF = 1, STRING = 2, BOOLEAN = 3, INTEGER = 4, FLOAT = 5, DOUBLE = 6,
+            LONG = 7, COLOR = 8, POINT_FLOAT = 9, POINT_DOUBLE = 10, SIZE = 11, RECT_FLOAT = 12, LIST = 13, NO_CHILDREN = 14;
+
+        /** the references for the record being written, and the estimated heap they hold */
+        private final List<Object> refs = new ArrayList();
+        private final Map<Object,Integer> refIndex = new IdentityHashMap();
+        private long refBytes;
+        private final ByteArrayOutputStream buf = new ByteArrayOutputStream(4096);
+        private final DataOutputStream out = new DataOutputStream(buf);
+        private File path;
+        private RandomAccessFile file;
+        private int spilledActions;
+
+        synchronized void spill(UndoAction action) throws IOException
+        {
+            buf.reset();
+            refs.clear();
+            refIndex.clear();
+            refBytes = 64;
+            final List sequence = action.undoSequence;
+            out.writeInt(sequence.size());
+            for (Object o : sequence) {
+                final UndoItem item = (UndoItem) o;
+                out.writeInt(item.order);
+                writeRef(out, item.component);
+                writeRef(out, item.propKey); // keys may be compared by identity
+                writeValue(out, item.oldValue);
+            }
+            out.flush();
+            final Object[] actionRefs = refs.toArray();
+            refs.clear();
+            refIndex.clear();
+
+            if (file == null) {
+                path = File.createTempFile("vue-undo", ".journal");
+                path.deleteOnExit();
+                file = new RandomAccessFile(path, "rw");
+            }
+            final long offset = file.length();
+            file.seek(offset);
+            file.write(buf.toByteArray());
+
+            action.spillOffset = offset;
+            action.spillLength = buf.size();
+            action.spilledSize = sequence.size();
+            action.spillRefs = actionRefs;
+            action.estimatedBytes = refBytes;
+            action.undoSequence = null;
+            spilledActions++;
+        }
+
+        synchronized void restore(UndoAction action) throws IOException
+        {
+            final byte[] bytes = new byte[action.spillLength];
+            file.seek(action.spillOffset);
+            file.readFully(bytes);
+
+            final Object[] refs = action.spillRefs;
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            final int size = in.readInt();
+            final List sequence = new ArrayList(size);
+            for (int i = 0; i < size; i++) {
+                final int order = in.readInt();
+                final LWComponent component = (LWComponent) refs[in.readInt()];
+                final Object propKey = refs[in.readInt()];
+                final Object oldValue = readValue(in, refs);
+                sequence.add(new UndoItem(component, propKey, oldValue, order));
+            }
+
+            action.undoSequence = sequence;
+            action.spillOffset = -1;
+            action.spillRefs = null;
+            action.estimatedBytes = -1;
+            if (--spilledActions == 0)
+                reset();
+        }
+
+        synchronized long length() {
+            try {
+                return file == null ? 0 : file.length();
+            } catch (IOException e) {
+                return 0;
+            }
+        }
+
+        /** close and delete the file: every spilled action has been restored or discarded */
+        synchronized void reset() {
+            spilledActions = 0;
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    Log.warn("closing " + path, e);
+                }
+                path.delete();
+                file = null;
+                path = null;
+            }
+        }
+
+        /** a spilled action has been discarded without being restored */
+        synchronized void discard(UndoAction action) {
+            action.spillRefs = null;
+            action.estimatedBytes = 0;
+            if (--spilledActions == 0)
+                reset();
+        }
+
+        private void writeValue(DataOutputStream out, Object value) throws IOException
+        {
+            final Class type = value == null ? null : value.getClass();
+            
+            if (value == null) {
+                out.writeByte(NULL);
+            } else if (value == LWComponent.NO_CHILDREN) {
+                out.writeByte(NO_CHILDREN);
+            } else if (type == String.class) {
+                out.writeByte(STRING);
+                final byte[] utf8 = ((String)value).getBytes("UTF-8");
+                out.writeInt(utf8.length);
+                out.write(utf8);
+            } else if (type == Boolean.class) {
+                out.writeByte(BOOLEAN);
+                out.writeBoolean((Boolean) value);
+            } else if (type == Integer.class) {
+                out.writeByte(INTEGER);
+                out.writeInt((Integer) value);
+            } else if (type == Float.class) {
+                out.writeByte(FLOAT);
+                out.writeFloat((Float) value);
+            } else if (type == Double.class) {
+                out.writeByte(DOUBLE);
+                out.writeDouble((Double) value);
+            } else if (type == Long.class) {
+                out.writeByte(LONG);
+                out.writeLong((Long) value);
+            } else if (type == Color.class) {
+                out.writeByte(COLOR);
+                out.writeInt(((Color)value).getRGB());
+            } else if (type == Point2D.Float.class) {
+                final Point2D.Float p = (Point2D.Float) value;
+                out.writeByte(POINT_FLOAT);
+                out.writeFloat(p.x);
+                out.writeFloat(p.y);
+            } else if (type == Point2D.Double.class) {
+                final Point2D.Double p = (Point2D.Double) value;
+                out.writeByte(POINT_DOUBLE);
+                out.writeDouble(p.x);
+                out.writeDouble(p.y);
+            } else if (type == Size.class) {
+                final Size s = (Size) value;
+                out.writeByte(SIZE);
+                out.writeFloat(s.width);
+                out.writeFloat(s.height);
+            } else if (type == Rectangle2D.Float.class) {
+                final Rectangle2D.Float r = (Rectangle2D.Float) value;
+                out.writeByte(RECT_FLOAT);
+                out.writeFloat(r.x);
+                out.writeFloat(r.y);
+                out.writeFloat(r.width);
+                out.writeFloat(r.height);
+            } else if (type == ArrayList.class) {
+                // e.g., the old list of children for a hierarchy change
+                final List list = (List) value;
+                out.writeByte(LIST);
+                out.writeInt(list.size());
+                for (Object o : list)
+                    writeValue(out, o);
+            } else {
+                out.writeByte(REF);
+                writeRef(out, value);
+            }
+        }
+
+        private void writeRef(DataOutputStream out, Object value) throws IOException
+        {
+            Integer index = refIndex.get(value);
+            if (index == null) {
+                index = refs.size();
+                refs.add(value);
+                refIndex.put(value, index);
+                // property keys (Key objects or Strings) are shared, and cost us nothing
+                if (!(value instanceof LWComponent.Key || value instanceof String))
+                    refBytes += 8 + estimateValueBytes(value);
+            }
+            out.writeInt(index);
+        }
+
+        private Object readValue(DataInputStream in, Object[] refs) throws IOException
+        {
+            final int tag = in.readByte();
+            switch (tag) {
+            case NULL: return null;
+            case NO_CHILDREN: return LWComponent.NO_CHILDREN;
+            case REF: return refs[in.readInt()];
+            case STRING:
+                final byte[] utf8 = new byte[in.readInt()];
+                in.readFully(utf8);
+                return new String(utf8, "UTF-8");
+            case BOOLEAN: return Boolean.valueOf(in.readBoolean());
+            case INTEGER: return Integer.valueOf(in.readInt());
+            case FLOAT: return Float.valueOf(in.readFloat());
+            case DOUBLE: return Double.valueOf(in.readDouble());
+            case LONG: return Long.valueOf(in.readLong());
+            case COLOR: return new Color(in.readInt(), true);
+            case POINT_FLOAT: return new Point2D.Float(in.readFloat(), in.readFloat());
+            case POINT_DOUBLE: return new Point2D.Double(in.readDouble(), in.readDouble());
+            case SIZE: return new Size(in.readFloat(), in.readFloat());
+            case RECT_FLOAT: return new Rectangle2D.Float(in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat());
+            case LIST:
+                final int size = in.readInt();
+                final List list = new ArrayList(size);
+                for (int i = 0; i < size; i++)
+                    list.add(readValue(in, refs));
+                return list;
+            default:
+                throw new IOException("bad tag " + tag + " in undo journal " + path);
+            }
+        }
+    }
+
+    /** A snapshot of how much memory the undo history is using. */
+    public static final class Footprint {
+        /** number of UndoActions in memory, and their estimated total size in bytes */
+        public final int residentActions;
+        public final long residentBytes;
+        /**
+         * number of UndoActions spilled to disk, the estimated heap they still hold (the
+         * components, fonts, etc they refer to), and the size of the journal file holding them
+         */
+        public final int spilledActions;
+        public final long spilledBytes;
+        public final long journalBytes;
+
+        Footprint(int residentActions, long residentBytes, int spilledActions, long spilledBytes, long journalBytes) {
+            this.residentActions = residentActions;
+            this.residentBytes = residentBytes;
+            this.spilledActions = spilledActions;
+            this.spilledBytes = spilledBytes;
+            this.journalBytes = journalBytes;
+        }
+
+        public String toString() {
+            return "Footprint[resident=" + residentActions + "/" + (residentBytes / 1024) + "KB"
+                + " spilled=" + spilledActions + "/" + (spilledBytes / 1024) + "KB+" + (journalBytes / 1024) + "KB on disk]";
+        }
+    }
+
+    public synchronized Footprint getFootprint() {
+        int resident = 0, spilled = 0;
+        long bytes = mCurrentUndo.estimateBytes();
+        long spilledBytes = 0;
+        for (Object o : UndoList) {
+            final UndoAction a = (UndoAction) o;
+            if (a.isSpilled()) {
+                spilled++;
+                spilledBytes += a.estimateBytes();
+            } else {
+                resident++;
+                bytes += a.estimateBytes();
+            }
+        }
+        for (Object o : RedoList) {
+            resident++;
+            bytes += ((UndoAction)o).estimateBytes();
+        }
+        return new Footprint(resident, bytes, spilled, spilledBytes, mJournal == null ? 0 : mJournal.length());
+    }
+
+    /** @param bytes the heap budget for undo history of every map; zero or less for no limit */
+    public static void setMemoryBudget(long bytes) {
+        MemoryBudget = bytes;
+    }
+
+    public static long getMemoryBudget() {
+        return MemoryBudget;
+    }
+
+    /**
+     * If the undo history is over budget, spill the oldest UndoActions to the journal
+     * until it isn't.  The action on the top of the undo list, and any that still have
+     * running threads that may add changes to them, are always kept in memory.  If even
+     * what the spilled actions still refer to (e.g., deleted components) is over budget,
+     * the oldest of them are dropped from the history.
+     */
+    private void enforceMemoryBudget()
+    {
+        final long budget = MemoryBudget;
+        if (budget <= 0)
+            return;
+        
+        long resident = mCurrentUndo.estimateBytes();
+        for (Object o : UndoList)
+            resident += ((UndoAction)o).estimateBytes();
+        for (Object o : RedoList)
+            resident += ((UndoAction)o).estimateBytes();
+        
+        final int top = UndoList.top();
+        
+        for (int i = mSpillCursor; i < top && resident > budget; i++) {
+            final UndoAction action = (UndoAction) UndoList.get(i);
+            if (action.isSpilled()) {
+                if (i == mSpillCursor)
+                    mSpillCursor++;
+                continue;
+            }
+            if (action.hasLiveThreads())
+                continue;
+            final long bytes = action.estimateBytes();
+            try {
+                if (mJournal == null)
+                    mJournal = new UndoJournal();
+                mJournal.spill(action);
+                if (i == mSpillCursor)
+                    mSpillCursor++;
+            } catch (IOException e) {
+                Log.warn("couldn't spill undo history to disk; keeping it in memory", e);
+                MemoryBudget = 0;
+                return;
+            }
+            resident -= bytes - action.estimateBytes();
+        }
+
+        int dropped = 0;
+        while (resident > budget && dropped < mSpillCursor && dropped < top) {
+            final UndoAction action = (UndoAction) UndoList.get(dropped);
+            if (!action.isSpilled())
+                break;
+            resident -= action.estimateBytes();
+            mJournal.discard(action);
+            dropped++;
+        }
+        if (dropped > 0) {
+            UndoList.removeOldest(dropped);
+            mSpillCursor -= dropped;
+            if (DEBUG.UNDO) out("dropped the oldest " + dropped + " undo actions");
+        }
+        
+        if (DEBUG.UNDO) out("memory budget " + (budget/1024) + "KB: " + getFootprint());
+    }
+
+    /**
+     * Make sure the given action has its changes in memory.
+     * @return false if they couldn't be read back from the journal
+     */
+    private boolean ensureResident(UndoAction action) {
+        if (!action.isSpilled())
+            return true;
+        try {
+            mJournal.restore(action);
+            return true;
+        } catch (Throwable t) {
+            Log.error("couldn't restore " + action + " from the undo journal", t);
+            return false;
+        }
+    }
+
 //     public void activeChanged(ActiveEvent<LWMap> e)
 //     {
 //         // We really don't need every undo manager listening for
@@ -677,6 +1159,7 @@ public class UndoManager
      * we want to know if this is happening.)
      */
     private boolean checkAndHandleUnmarkedChanges() {
+        mMap.flushEventBatch();
         if (mCurrentUndo.isIncomplete()) {
             new Throwable(this + " UNMARKED CHANGES! " + mComponentChanges).printStackTrace();
             java.awt.Toolkit.getDefaultToolkit().beep();
@@ -701,6 +1184,7 @@ public class UndoManager
                 mRedoUnderway = true;
                 mUndoUnderway = true;
                 redoAction.undoAggregateUserAction();
+                mMap.flushEventBatch();
                 //runCleanupTaskPhase(false);
             } finally {
                 mUndoUnderway = false;
@@ -718,11 +1202,21 @@ public class UndoManager
         
         UndoAction undoAction = UndoList.pop();
         if (DEBUG.UNDO) System.out.println("\n" + this + " undoing " + undoAction);
+        if (undoAction != null && undoAction.isSpilled()) {
+            if (!ensureResident(undoAction)) {
+                // the history before this point is lost
+                flush();
+                return;
+            }
+            mSpillCursor = Math.min(mSpillCursor, UndoList.top() + 1);
+        }
         if (undoAction != null) {
             mRedoCaptured = false;
             try {
                 mUndoUnderway = true;
                 undoAction.undoAggregateUserAction();
+                // capture any batched changes for the redo
+                mMap.flushEventBatch();
                 //runCleanupTaskPhase(false);
             } finally {
                 mUndoUnderway = false;
@@ -1028,6 +1522,9 @@ public class UndoManager
     
     public synchronized void markChangesAsUndo(String name)
     {
+        // make sure we've seen everything that's happened
+        mMap.flushEventBatch();
+        
         synchronized (mCleanupTasks) {
             synchronized (mLastTasks) {
 
@@ -1055,6 +1552,7 @@ public class UndoManager
         if (addUndoable) {
             UndoList.add(collectChangesAsUndoAction(name));
             RedoList.clear();
+            enforceMemoryBudget();
             fireUserActionCompleted();
             updateGlobalActionLabels();
         } else {
@@ -1068,6 +1566,8 @@ public class UndoManager
 
         final UndoAction markedUndo = mCurrentUndo;
         markedUndo.mark(name);
+        // estimate (and cache) now: components deleted later mustn't be charged to us
+        markedUndo.estimateBytes();
         resetMark();
         return markedUndo;
     }
@@ -1086,6 +1586,9 @@ public class UndoManager
         UndoList.clear();
         RedoList.clear();
         mComponentChanges.clear();
+        if (mJournal != null)
+            mJournal.reset();
+        mSpillCursor = 0;
         if (VUE.getActiveMap() == mMap)
             updateGlobalActionLabels();
     }
@@ -1282,6 +1785,18 @@ public class UndoManager
 
     public void LWCChanged(final LWCEvent e) {
 
+        if (e.isBatch()) {
+            final LWCEvent lastRecorded = mLastEvent;
+            for (LWCEvent batched : e.getBatchedEvents())
+                LWCChanged(batched);
+            // As repeat changes were coalesced into the first of them, the last
+            // event recorded may not have been the last to happen: use the last
+            // to happen, as we would have without batching (it names the undo action).
+            if (mLastEvent != lastRecorded)
+                mLastEvent = e.getLastBatchedEvent();
+            return;
+        }
+
         if (isSuspended) {
             if (DEBUG.Enabled) Log.debug("suspended for: " + e);
             return;
@@ -1433,6 +1948,18 @@ public class UndoManager
             perComponentChanges = mComponentChanges;
         }
 
+        if (relevantUndoAction != mCurrentUndo) {
+            // a thread delivering changes late to an older action: it may have been spilled
+            synchronized (this) {
+                if (relevantUndoAction.isSpilled()) {
+                    if (!ensureResident(relevantUndoAction))
+                        return;
+                    mSpillCursor = 0;
+                }
+                relevantUndoAction.estimatedBytes = -1;
+            }
+        }
+
         if (hierarchyEvent)
             recordUndoableChangeEvent(relevantUndoAction,
                                       perComponentChanges,
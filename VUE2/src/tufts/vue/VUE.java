@@ -100,6 +100,7 @@ import tufts.Util;
 import tufts.vue.NodeTool.NodeModeTool;
 import tufts.vue.action.AboutAction;
 import tufts.vue.action.ExitAction;
+import tufts.vue.action.MapLoader;
 import tufts.vue.action.OpenAction;
 import tufts.vue.action.SaveAction;
 import tufts.vue.gui.DockWindow;
@@ -3276,6 +3277,28 @@ public class VUE
     public static void closeMap(LWMap map) {
         closeMap(map,false);
     }
+
+    /** if the map was closed, and it was opened from a package no other open map is, let go of the package */
+    private static void releasePackageIfClosed(LWMap map) {
+        final File file = map.getFile();
+        if (file == null)
+            return;
+        for (LWMap open : getAllMaps())
+            if (open == map || file.equals(open.getFile()))
+                return;
+        PackageEntryFile.releasePackage(file);
+    }
+
+    /** if the map was closed, let go of it's undo history, and any of it spilled to disk */
+    private static void releaseUndoIfClosed(LWMap map) {
+        final UndoManager undo = map.getUndoManager();
+        if (undo == null)
+            return;
+        for (LWMap open : getAllMaps())
+            if (open == map)
+                return;
+        undo.flush();
+    }
     
     public static void closeMap(LWMap map, boolean reverting) {
     
@@ -3304,6 +3327,10 @@ public class VUE
     				mMapTabsRight.closeMap(map);
     		}	
     	}    	
+
+        releasePackageIfClosed(map);
+        releaseUndoIfClosed(map);
+        
     	if (mMapTabsRight !=null)
     	{
     		int selectedIndex = mMapTabsRight.getTabCount();
@@ -3440,6 +3467,15 @@ public class VUE
 
         final RecentlyOpenedFilesManager rofm = RecentlyOpenedFilesManager.getInstance();
         rofm.updateRecentlyOpenedFiles(file.getAbsolutePath());
+
+        if (java.awt.EventQueue.isDispatchThread() && !VUE.isStartupUnderway()) {
+            // Load in the background so the UI stays live, displaying the map once it's
+            // ready.  During startup, we load synchronously so the startup code sees
+            // the map as soon as we return.
+            MapLoader.loadAndDisplay(file);
+            return;
+        }
+        
         VUE.activateWaitCursor();
         LWMap loadedMap = null;
         boolean alerted = false;
@@ -357,8 +357,17 @@ public class VueAction extends javax.swing.AbstractAction
         try {
 
             if (isUserEnabled()) {
-                
-                act();
+
+                // deliver the changes made by the action to map listeners all at once
+                final LWMap map = VUE.getActiveMap();
+                if (map != null)
+                    map.beginEventBatch();
+                try {
+                    act();
+                } finally {
+                    if (map != null)
+                        map.endEventBatch();
+                }
 
                 final Boolean state = getToggleState();
                 if (state != IS_NOT_A_TOGGLER) {
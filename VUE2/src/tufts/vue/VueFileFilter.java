@@ -31,6 +31,7 @@ public class VueFileFilter extends javax.swing.filechooser.FileFilter
 	public static final String XML_DESCRIPTION=VueResources.getString("vueFileFilter.vue.text");
 	public static final String ZIP_DESCRIPTION=VueResources.getString("vueFileFilter.zip.text");
 	public static final String PNG_DESCRIPTION=VueResources.getString("vueFileFilter.png.text");
+	public static final String DZI_DESCRIPTION=VueResources.getString("vueFileFilter.dzi.text");
 	public static final String VPK_DESCRIPTION=VueResources.getString("vueFileFilter.vpk.text");
 
     public static final String VuePackage = VueUtil.VueArchiveExtension.substring(1);
@@ -43,6 +44,7 @@ public class VueFileFilter extends javax.swing.filechooser.FileFilter
             html = {"html","htm"},
             imap = {"imap"},
             png = {"png"},
+            dzi = {"dzi"},
             vue = {"vue", "xml", VuePackage },
             rdf = {"rdf","owl","rdfs"},
             txt = {"txt"},
@@ -101,6 +103,8 @@ public class VueFileFilter extends javax.swing.filechooser.FileFilter
         }
         else if (description.equalsIgnoreCase(PNG_DESCRIPTION))
     			extensions = png;
+        else if (description.equalsIgnoreCase(DZI_DESCRIPTION))
+    			extensions = dzi;
         else if (description.equalsIgnoreCase(IMS_DESCRIPTION))
 			extensions = rli;
         
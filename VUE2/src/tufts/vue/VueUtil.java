@@ -322,6 +322,12 @@ public class VueUtil extends tufts.Util
      * with an endpoint (rayX2,rayY2) that ends in the center of the
      * shape, tho that's not required.
      *
+     * When only one intersection is requested and the shape is one of the standard
+     * node shapes (see ShapeIntersection), the intersection is computed in closed form,
+     * and is the crossing nearest to segX1,segY1.  Otherwise the path of the shape is
+     * walked, with any curves flattened in place, and the first crossings in path
+     * order are returned.
+     *
      * @param max - max number of intersections to compute. An x/y
      * pair of coords will put into result up to max times. Must be >= 1.
      *
@@ -333,51 +339,163 @@ public class VueUtil extends tufts.Util
                                               java.awt.Shape shape, java.awt.geom.AffineTransform shapeTransform,
                                               float[] result, int max)
     {
-        java.awt.geom.PathIterator i = shape.getPathIterator(shapeTransform);
-        // todo performance: if this shape has no curves (CUBICTO or QUADTO)
-        // this flattener is redundant.  Also, it would be faster to
-        // actually do the math for arcs and compute the intersection
-        // of the arc and the line, tho we can save that for another day.
-        i = new java.awt.geom.FlatteningPathIterator(i, 0.5);
+        if (max <= 1 && tufts.vue.shape.ShapeIntersection.isAnalytic(shape))
+            return computeAnalyticIntersection(segX1, segY1, segX2, segY2, shape, shapeTransform, result);
         
-        float[] seg = new float[6];
-        float firstX = 0f;
-        float firstY = 0f;
-        float lastX = 0f;
-        float lastY = 0f;
-        int cnt = 0;
-        int hits = 0;
-        while (!i.isDone()) {
-            int segType = i.currentSegment(seg);
-            if (cnt == 0) {
-                firstX = seg[0];
-                firstY = seg[1];
-            } else if (segType == PathIterator.SEG_CLOSE) {
-                seg[0] = firstX; 
-                seg[1] = firstY; 
+        final PathScan scan = PathScans.get();
+        try {
+            return scan.computeIntersection(segX1, segY1, segX2, segY2, shape.getPathIterator(shapeTransform), result, max);
+        } finally {
+            scan.result = null;
+        }
+    }
+
+    private static float[] computeAnalyticIntersection(float segX1, float segY1,
+                                                       float segX2, float segY2,
+                                                       java.awt.Shape shape, java.awt.geom.AffineTransform tx,
+                                                       float[] result)
+    {
+        double x1 = segX1, y1 = segY1, x2 = segX2, y2 = segY2;
+
+        if (tx != null && !tx.isIdentity()) {
+            // bring the segment into the coordinate space of the shape
+            final double m00 = tx.getScaleX(), m01 = tx.getShearX(), m02 = tx.getTranslateX();
+            final double m10 = tx.getShearY(), m11 = tx.getScaleY(), m12 = tx.getTranslateY();
+            final double det = m00 * m11 - m01 * m10;
+            if (det == 0 || Double.isNaN(det))
+                return NoIntersection;
+            x1 -= m02; y1 -= m12;
+            x2 -= m02; y2 -= m12;
+            final double lx1 = ( m11 * x1 - m01 * y1) / det;
+            final double ly1 = (-m10 * x1 + m00 * y1) / det;
+            final double lx2 = ( m11 * x2 - m01 * y2) / det;
+            final double ly2 = (-m10 * x2 + m00 * y2) / det;
+            x1 = lx1; y1 = ly1;
+            x2 = lx2; y2 = ly2;
+        }
+
+        final double t = tufts.vue.shape.ShapeIntersection.intersect(shape, x1, y1, x2, y2);
+
+        if (Double.isNaN(t))
+            return NoIntersection;
+
+        // the position along the segment is the same in either coordinate space
+        result[0] = (float) (segX1 + t * (segX2 - segX1));
+        result[1] = (float) (segY1 + t * (segY2 - segY1));
+        return result;
+    }
+
+    private static final ThreadLocal<PathScan> PathScans = new ThreadLocal<PathScan>() {
+        protected PathScan initialValue() { return new PathScan(); }
+    };
+
+    /**
+     * Walks a shape path looking for crossings with a line segment.  Curves are
+     * flattened by recursive subdivision as they're encountered (to the same
+     * flatness and limit as a FlatteningPathIterator of 0.5), so nothing is
+     * allocated per segment.
+     */
+    private static final class PathScan {
+        private static final double FlatnessSq = 0.5 * 0.5;
+        private static final int Limit = 10;
+        
+        final float[] seg = new float[6];
+        float segX1, segY1, segX2, segY2;
+        float lastX, lastY;
+        float[] result;
+        int max;
+        int hits;
+
+        float[] computeIntersection(float segX1, float segY1, float segX2, float segY2,
+                                    PathIterator i, float[] result, int max)
+        {
+            this.segX1 = segX1;
+            this.segY1 = segY1;
+            this.segX2 = segX2;
+            this.segY2 = segY2;
+            this.result = result;
+            this.max = max;
+            this.hits = 0;
+            
+            float firstX = 0f;
+            float firstY = 0f;
+            boolean started = false;
+            
+            for (; !i.isDone(); i.next()) {
+                final int segType = i.currentSegment(seg);
+                final boolean done;
+                switch (segType) {
+                case PathIterator.SEG_MOVETO:
+                    firstX = lastX = seg[0];
+                    firstY = lastY = seg[1];
+                    started = true;
+                    continue;
+                case PathIterator.SEG_CLOSE:
+                    done = lineTo(firstX, firstY);
+                    break;
+                case PathIterator.SEG_QUADTO:
+                    done = quadTo(seg[0], seg[1], seg[2], seg[3], 0);
+                    break;
+                case PathIterator.SEG_CUBICTO:
+                    done = cubicTo(seg[0], seg[1], seg[2], seg[3], seg[4], seg[5], 0);
+                    break;
+                default:
+                    if (!started) {
+                        // some iterators don't start with a MOVETO
+                        firstX = lastX = seg[0];
+                        firstY = lastY = seg[1];
+                        started = true;
+                        continue;
+                    }
+                    done = lineTo(seg[0], seg[1]);
+                }
+                if (done)
+                    return result;
             }
-            float endX = seg[0];
-            float endY = seg[1];
-                
-            // at cnt == 0, we have only the first point from the path iterator, and so no line yet.
-            if (cnt > 0 && Line2D.linesIntersect(segX1, segY1, segX2, segY2, lastX, lastY, seg[0], seg[1])) {
-                //System.out.println("intersection at segment #" + cnt + " " + SegTypes[segType]);
+            return NoIntersection;
+        }
+
+        /** @return true if we've found all the intersections we're looking for */
+        private boolean lineTo(float x, float y) {
+            boolean done = false;
+            if (Line2D.linesIntersect(segX1, segY1, segX2, segY2, lastX, lastY, x, y)) {
                 if (max <= 1) {
-                    return computeLineIntersection(segX1, segY1, segX2, segY2, lastX, lastY, seg[0], seg[1], result);
+                    computeLineIntersection(segX1, segY1, segX2, segY2, lastX, lastY, x, y, result);
+                    done = true;
                 } else {
-                    float[] tmp = computeLineIntersection(segX1, segY1, segX2, segY2, lastX, lastY, seg[0], seg[1], new float[2]);
+                    final float[] tmp = computeLineIntersection(segX1, segY1, segX2, segY2, lastX, lastY, x, y, new float[2]);
                     result[hits*2 + 0] = tmp[0];
                     result[hits*2 + 1] = tmp[1];
-                    if (++hits >= max)
-                        return result;
+                    done = ++hits >= max;
                 }
             }
-            cnt++;
-            lastX = endX;
-            lastY = endY;
-            i.next();
+            lastX = x;
+            lastY = y;
+            return done;
+        }
+
+        private boolean quadTo(float cx, float cy, float x, float y, int level) {
+            if (level >= Limit || java.awt.geom.QuadCurve2D.getFlatnessSq(lastX, lastY, cx, cy, x, y) < FlatnessSq)
+                return lineTo(x, y);
+            final float c1x = (lastX + cx) / 2, c1y = (lastY + cy) / 2;
+            final float c2x = (cx + x) / 2,     c2y = (cy + y) / 2;
+            final float mx = (c1x + c2x) / 2,   my = (c1y + c2y) / 2;
+            return quadTo(c1x, c1y, mx, my, level + 1)
+                || quadTo(c2x, c2y, x, y, level + 1);
+        }
+
+        private boolean cubicTo(float c1x, float c1y, float c2x, float c2y, float x, float y, int level) {
+            if (level >= Limit || java.awt.geom.CubicCurve2D.getFlatnessSq(lastX, lastY, c1x, c1y, c2x, c2y, x, y) < FlatnessSq)
+                return lineTo(x, y);
+            final float ax = (lastX + c1x) / 2, ay = (lastY + c1y) / 2;
+            final float bx = (c1x + c2x) / 2,   by = (c1y + c2y) / 2;
+            final float cx = (c2x + x) / 2,     cy = (c2y + y) / 2;
+            final float abx = (ax + bx) / 2,    aby = (ay + by) / 2;
+            final float bcx = (bx + cx) / 2,    bcy = (by + cy) / 2;
+            final float mx = (abx + bcx) / 2,   my = (aby + bcy) / 2;
+            return cubicTo(ax, ay, abx, aby, mx, my, level + 1)
+                || cubicTo(bcx, bcy, cx, cy, x, y, level + 1);
         }
-        return NoIntersection;
     }
 
     /** compute the first two y value crossings of the given x_axis and shape */
@@ -20,16 +20,16 @@ import tufts.vue.VueUtil;
 import tufts.vue.VUE;
 import tufts.vue.UrlAuthentication;
 import tufts.vue.LWMap;
+import tufts.vue.MapLoadMetrics;
 import tufts.vue.VueFileFilter;
 import tufts.vue.VueResources;
-import tufts.vue.XMLUnmarshalListener;
 import tufts.vue.DEBUG;
+import tufts.vue.gui.GUI;
 import tufts.vue.gui.VueFileChooser;
 
 import org.exolab.castor.xml.Marshaller;
 import org.exolab.castor.xml.MarshalListener;
 import org.exolab.castor.xml.Unmarshaller;
-import org.exolab.castor.xml.UnmarshalListener;
 import org.exolab.castor.xml.MarshalException;
 import org.exolab.castor.xml.ValidationException;
 
@@ -57,6 +57,7 @@ import java.net.URL;
 import java.net.URI;
 import java.util.HashMap;
 import java.util.Locale;
+import java.util.concurrent.CancellationException;
 import java.awt.Component;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
@@ -97,6 +98,13 @@ public class ActionUtil
      * and right-quote).
      */
     private final static String DEFAULT_INPUT_ENCODING = "UTF-8"; // safest default input encoding
+
+    /**
+     * If true, maps saved with the current mapping version are read & written with
+     * the MapStreamCodec, with castor used as a fallback.  Run with
+     * -Dtufts.vue.castorOnly to always use castor.
+     */
+    static boolean StreamCodecEnabled = (System.getProperty("tufts.vue.castorOnly") == null);
     
     // Note: the encoding format of the incoming file will normally either be UTF-8 for
     // older VUE save files, or US-ASCII for newer files.  In any case, the encoding is
@@ -130,6 +138,7 @@ public class ActionUtil
         { 
         	saveChooser.addChoosableFileFilter(new VueFileFilter(VueFileFilter.JPEG_DESCRIPTION));
         	saveChooser.addChoosableFileFilter(new VueFileFilter(VueFileFilter.PNG_DESCRIPTION));
+        	saveChooser.addChoosableFileFilter(new VueFileFilter(VueFileFilter.DZI_DESCRIPTION));
             saveChooser.addChoosableFileFilter(new VueFileFilter(VueFileFilter.SVG_DESCRIPTION));        	
         	saveChooser.addChoosableFileFilter(new VueFileFilter(VueFileFilter.IMS_DESCRIPTION));
         	saveChooser.addChoosableFileFilter(new VueFileFilter(VueFileFilter.IMAGEMAP_DESCRIPTION));
@@ -353,10 +362,13 @@ public class ActionUtil
     {
         Object result = _loadMapping(XML_MAPPING_DEFAULT);
         if (result instanceof Exception) {
-            VueUtil.alert(null, VueResources.getString("dialog.mappingfile.message")
-                                          + "\n"+ VueResources.getString("dialog.mappingurl.message") + XML_MAPPING_DEFAULT
-                                          + "\n" + result,
-                                          VueResources.getString("dialog.mappingfile.title"), JOptionPane.ERROR_MESSAGE);
+            final String message = VueResources.getString("dialog.mappingfile.message")
+                + "\n"+ VueResources.getString("dialog.mappingurl.message") + XML_MAPPING_DEFAULT
+                + "\n" + result;
+            // we may be loading a map in the background (see MapLoader)
+            GUI.invokeOnEDT(new Runnable() { public void run() {
+                VueUtil.alert(null, message, VueResources.getString("dialog.mappingfile.title"), JOptionPane.ERROR_MESSAGE);
+            }});
         }
         return (Mapping) result;
     }
@@ -783,7 +795,8 @@ public class ActionUtil
             //-----------------------------------------------------------------------------
             //-----------------------------------------------------------------------------
 
-            marshaller.marshal(map);
+            if (!StreamCodecEnabled || !marshallMapStreaming(map, writer))
+                marshaller.marshal(map);
             writer.flush();
             if (DEBUG.Enabled) Log.debug("marshalled " + map + " to " + writer + "; file=" + tmpFile);
         } catch (Throwable t) {
@@ -828,6 +841,54 @@ public class ActionUtil
         }
     }
 
+    /**
+     * Write the map XML using the MapStreamCodec.
+     *
+     * The codec may discover part way through the map that it can't handle something,
+     * and we must then fall back to castor with nothing yet written.  Rather than hold
+     * the whole document in memory (for large maps, tens of megabytes of chars), it's
+     * spooled to a temporary file, and only copied to the writer once it's complete.
+     *
+     * @return false if the codec couldn't handle the map, or failed, in which case nothing was written
+     */
+    private static boolean marshallMapStreaming(final LWMap map, final Writer writer)
+        throws java.io.IOException
+    {
+        final File spool = File.createTempFile("vue-save", ".xml");
+        try {
+            try {
+                final long start = System.currentTimeMillis();
+                final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spool), OUTPUT_ENCODING), 64 * 1024);
+                try {
+                    MapStreamCodec.forMapping(XML_MAPPING_DEFAULT).writeMap(map, OUTPUT_ENCODING, out);
+                } finally {
+                    out.close();
+                }
+                if (DEBUG.IO) Log.debug("stream-codec wrote " + map + " in " + (System.currentTimeMillis() - start) + "ms");
+            } catch (MapStreamCodec.UnsupportedContentException e) {
+                Log.warn("stream-codec can't write " + map + ", using castor: " + e);
+                return false;
+            } catch (Exception e) {
+                // anything else is a bug in the codec: castor can still save the map
+                Log.error("stream-codec failed writing " + map + ", using castor", e);
+                return false;
+            }
+            final Reader in = new InputStreamReader(new FileInputStream(spool), OUTPUT_ENCODING);
+            try {
+                final char[] buf = new char[64 * 1024];
+                int len;
+                while ((len = in.read(buf)) > 0)
+                    writer.write(buf, 0, len);
+            } finally {
+                in.close();
+            }
+            return true;
+        } finally {
+            if (!spool.delete())
+                spool.deleteOnExit();
+        }
+    }
+
     public static LWMap unmarshallMap(File file)
         throws IOException
     {
@@ -1168,7 +1229,14 @@ public class ActionUtil
     {
         LWMap map = null;
 
+        if (StreamCodecEnabled && mapping == getDefaultMapping()) {
+            map = unmarshallMapStreaming(url, charsetEncoding, savingVersion, mapHandler);
+            if (map != null)
+                return map;
+        }
+
         Log.info("unmarshalling: " + url + "; charset=" + charsetEncoding);
+        MapLoadMetrics.stage(MapLoadMetrics.Stage.PARSE);
         
         // TODO: now that we support opening maps via HTTP URL's, it's a bit obscene to
         // open the URL twice just to support old maps where we might need to detect the
@@ -1180,25 +1248,7 @@ public class ActionUtil
         
         final BufferedReader reader = mapReader.reader;
 
-        // Skip over comments to get to start of XML
-
-        for (;;) {
-            reader.mark(2048); // a single comment line can't be longer than this...
-            String line = reader.readLine();
-            if (line == null) {
-                Log.error("Unexpected end-of-stream in [" + url + "]");
-                throw new java.io.IOException("end of stream in " + url);
-            }
-            if (line.startsWith("<!--") == false) {
-                // we should have just hit thie "<?xml ..." line -- done with comments
-                break;
-            }
-            if (DEBUG.META && (DEBUG.CASTOR || DEBUG.IO)) Log.debug("Skipping[" + line + "]");
-        }
-
-        // Reset the reader to the start of the last line read, which should be the <?xml line,
-        // which is what castor needs to see at start (it can't handle ignoring comments...)
-        reader.reset();
+        skipHeaderComments(reader, url);
 
         final String sourceName = url.toString();
 
@@ -1245,6 +1295,8 @@ public class ActionUtil
             Log.debug("completed: " + map);
         }
         catch (Exception e) {
+            // castor may have wrapped a cancellation: if so, just pass it on
+            MapLoadMetrics.checkCancelled();
             tufts.Util.printStackTrace(e, "Exception restoring map from [" + url + "]: " + e.getClass().getName());
             Log.info("map-as-is: " + Util.tags(map)); // presumably null
             map = null;
@@ -1256,252 +1308,96 @@ public class ActionUtil
     }
 
     /**
-     * This class is only there to provide something for the old mapping description for LWMergeMap to refer
-     * to. XMLObjectFactory will turn it into an LWMap.  For the re-mapping to work, it must be a subclass of LWMap.
-     * Castor should never need to actuall instance or load this class.
-     */ public static final class OLD_MERGE_MAP_STUB extends tufts.vue.LWMap {static{if(true)throw new Error("should-not-classload");}}
-
-}
-
-
-/**
- * This class serves as both an UnmarshalListener impl for VUE LWMap's and their components,
- * as well as a handles what to do to / with a map once it's been unmarshalled to get
- * it into it's final, completed state (e.g., in some cases, transformations may need to be performed).
- */
-
-class MapUnmarshalHandler implements UnmarshalListener {
-
-    public static final Object CONTEXT_NONE = "NONE";
-
-    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(MapUnmarshalHandler.class);
-
-    final Object source;
-    final Object context;
-
-    protected LWMap map;
-    protected File file;
-        
-    MapUnmarshalHandler(Object source, Object context) {
-        this.source = source;
-        if (context == null)
-            this.context = CONTEXT_NONE;
-        else
-            this.context = context;
-    }
-
-    /** This must be called first */
-    void notifyFile(final LWMap map, final File file)
-    {
-        this.map = map;
-        this.file = file;
-
-        map.setFile(file); // VUE-713: do this always
-
-        // Note: LWMap.setFile sets the map label
-        
-    }
-
-    /** This must be called in sequence after notifyFile */
-    void notifyVersionOfVueThatSavedMap(String savingVersion)
+     * Skip over the VUE header comments, leaving the reader positioned at the start of the
+     * XML (the <?xml line), which is what castor needs to see at start (it can't handle
+     * ignoring comments...)
+     */
+    private static void skipHeaderComments(final BufferedReader reader, final java.net.URL url)
+        throws IOException
     {
-        final String fileName = file.getName();
-
-        if (map.getModelVersion() > LWMap.getCurrentModelVersion()) {
-            VueUtil.alert(String.format(Locale.getDefault(),
-                                        VueResources.local("actionutil.notifyversion.message")+ "\n\n" +
-                                        VueResources.local("actionutil.notifyversion.datamodel")+" \n",
-                                        file, map.getModelVersion(), LWMap.getCurrentModelVersion())
-                          + "\n"+VueResources.local("actionutil.notifyversion.savedversion")   +"\n" + savingVersion
-                          + "\n"+VueResources.local("actionutil.notifyversion.currentversion") +"\n"
-                          + "        " + VueResources.local("actionutil.notifyversion.vuebuilt") + " " + tufts.vue.Version.AllInfo
-                          + " (public v" + VueResources.local("vue.version") + ")"
-                          + "\n"
-                          + "\n"+VueResources.local("actionutil.notifyversion.displaymap")
-                          + "\n"+VueResources.local("actionutil.notifyversion.corruptmap")
-                          ,
-                          String.format(Locale.getDefault(),VueResources.local("actionutil.notifyversion.versionwarning"), fileName));
-
-            map.setLabel(fileName + " (as available)");
-            // Skip setting the file: this will force save-as if they try to save.
-        } else {
-
-            // VUE-713: don't do this conditionallly
-            //                 // This setFile also sets the label name, so it appears as a modification in the map.
-            //                 // So be sure to do completeXMLRestore last, as it will reset the modification count.
-            //                 if (map.getModelVersion() < 1) {
-            //                     map.setLabel(file.getName());
-            //                     // force save as for old maps as they will no longer work in old stable versions of VUE (1.5 & prior)
-            //                     // if they're saved in this new version of VUE.
-            //                 } else {
-            //                     map.setFile(file);
-            //                 }
-                
-            if (DEBUG.DATA && DEBUG.META) map.setLabel("|" + map.getModelVersion() + "| " + map.getLabel());
-        }
-
-        Log.debug("label-set: " + map);
-        
-    }
-
-    /** This must be called last */
-    void notifyUnmarshallingCompleted() {
-        // note that map.setFile should normally have been completed before this is called
-        map.completeXMLRestore(context);
-    }
-    
-            
-    /** @see org.exolab.castor.xml.UnmarshalListener */
-    public void initialized(Object o) {
-        if (DEBUG.XML && DEBUG.META) Log.debug(" initialized: " + Util.tags(o));
-        if (o instanceof XMLUnmarshalListener) {
-            try {
-                ((XMLUnmarshalListener)o).XML_initialized(context);
-            } catch (Throwable t) {
-                Log.error(this, t);
+        for (;;) {
+            reader.mark(2048); // a single comment line can't be longer than this...
+            String line = reader.readLine();
+            if (line == null) {
+                Log.error("Unexpected end-of-stream in [" + url + "]");
+                throw new java.io.IOException("end of stream in " + url);
             }
-        }
-    }
-    
-    /** @see org.exolab.castor.xml.UnmarshalListener */
-    public void attributesProcessed(Object o) {
-        if (DEBUG.XML && DEBUG.META) Log.debug("  attributes: " + Util.tags(o));
-    }
-    
-    /** @see org.exolab.castor.xml.UnmarshalListener */
-    public void unmarshalled(Object o) {
-        if (DEBUG.XML && DEBUG.META) Log.debug("unmarshalled: " + Util.tags(o));
-            
-        if (o instanceof XMLUnmarshalListener) {
-            try {
-                ((XMLUnmarshalListener)o).XML_completed(context);
-            } catch (Throwable t) {
-                Log.error(this, t);
+            if (line.startsWith("<!--") == false) {
+                // we should have just hit thie "<?xml ..." line -- done with comments
+                break;
             }
+            if (DEBUG.META && (DEBUG.CASTOR || DEBUG.IO)) Log.debug("Skipping[" + line + "]");
         }
-    }
-
-    /** @see org.exolab.castor.xml.UnmarshalListener */
-    public void fieldAdded(String name, Object parent, Object child) {
-        if (DEBUG.XML) {
 
-            //final String field = "child[" + Util.TERM_YELLOW + name + Util.TERM_CLEAR + "] ";
-            //final String field = Util.TERM_YELLOW + name + Util.TERM_CLEAR + ": ";
-            final String field = Util.tag(parent) + "/" + Util.TERM_YELLOW + name + Util.TERM_CLEAR + " = ";
-            
-            if (DEBUG.META) {
-                Log.debug("  fieldAdded: parent: " + Util.tags(parent) + " " + field + Util.tags(child) + "\n");
-                //System.out.println("VUL fieldAdded: parent: " + parent.getClass().getName() + "\t" + tos(parent) + "\n"
-                //+ "             new child: " +  child.getClass().getName() + " \"" + name + "\" " + tos(child) + "\n");
-            } else {
-                if (child instanceof String)
-                    Log.debug(field + Util.TERM_RED + '"' + child + '"' + Util.TERM_CLEAR);
-                else
-                    Log.debug(field + Util.TERM_PURPLE + Util.tags(child) + Util.TERM_CLEAR);
-                //Log.debug(field + Util.tags(child));
-            }
-        }
-        if (parent instanceof XMLUnmarshalListener) {
-            try {
-                ((XMLUnmarshalListener)parent).XML_fieldAdded(context, name, child);
-            } catch (Throwable t) {
-                Log.error(this, t);
-            }
-        }
-        if (child instanceof XMLUnmarshalListener) {
-            try {
-                ((XMLUnmarshalListener)child).XML_addNotify(context, name, parent);
-            } catch (Throwable t) {
-                Log.error(this, t);
-            }
-        }
+        // Reset the reader to the start of the last line read, which should be the <?xml line
+        reader.reset();
     }
 
-    public String toString() {
-        return getClass().getName() + "[" + context + "; " + source + "]";
-    }
+    /**
+     * Read a map saved with the current mapping version using the MapStreamCodec.
+     * @return the completely restored map, or null if the codec couldn't handle
+     * the content, or failed, in which case the caller should fall back to castor.
+     */
+    private static LWMap unmarshallMapStreaming(final java.net.URL url,
+                                                final String charsetEncoding,
+                                                final String savingVersion,
+                                                MapUnmarshalHandler mapHandler)
+        throws IOException
+    {
+        Log.info("unmarshalling: " + url + "; charset=" + charsetEncoding + "; stream-codec");
+        MapLoadMetrics.stage(MapLoadMetrics.Stage.PARSE);
 
-//         // exception trapping toString in case the object isn't initialized enough
-//         // for it's toString to work...
-//         private String tos(Object o) {
-//             if (o == null)
-//                 return "<null-object>";
-            
-//             String s = o.getClass().getName() + " ";
-//             //String s = null;
-//             String txt = null;
-//             try {
-//                 txt = o.toString();
-//                 if (
-//             } catch (Throwable t) {
-//                 txt = t.toString();
-//                 // "[" + t.toString() + "]";
-//             }
-//             return s;
-//         }
-    
-}
+        final MapReader mapReader = getMapReaderForURL(url, charsetEncoding, true);
+        final BufferedReader reader = mapReader.reader;
+        final LWMap map;
 
-final class XMLObjectFactory extends org.exolab.castor.util.DefaultObjectFactory {
+        try {
+            skipHeaderComments(reader, url);
 
-    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(XMLObjectFactory.class);
+            if (mapHandler == null)
+                mapHandler = new MapUnmarshalHandler(url, tufts.vue.Resource.MANAGED_UNMARSHALLING); // managed is the default
 
-    final Object source;
+            final long start = System.currentTimeMillis();
+            map = MapStreamCodec.forMapping(XML_MAPPING_DEFAULT).readMap(reader, url.toString(), mapHandler);
+            Log.info("unmarshalled: " + map + " in " + (System.currentTimeMillis() - start) + "ms");
+        } catch (CancellationException e) {
+            throw e;
+        } catch (MapStreamCodec.UnsupportedContentException e) {
+            Log.warn("stream-codec can't read " + url + ", using castor: " + e);
+            return null;
+        } catch (Exception e) {
+            // anything else is a bug in the codec (or a bad file, which castor will report)
+            Log.error("stream-codec failed reading " + url + ", using castor", e);
+            return null;
+        } finally {
+            reader.close();
+        }
 
-    XMLObjectFactory(Object source) {
-        this.source = source;
-        if (DEBUG.Enabled) Log.debug("new " + Util.tags(this) + "; " + source); 
-    }
-		
-    @Override
-    public Object createInstance(Class type, Object[] args) throws IllegalAccessException, InstantiationException {
-        //System.err.println("VOF0 ASKED FOR " + type + " args=" + args);
-        Log.info("*** ASKED FOR " + type + " args=" + args); // apparently never called
-        return this.createInstance(type, null, null);
-    }
+        try {
+            // The below three notify calls must be called in exact sequence (file, then version, then completed)
+            mapHandler.notifyFile(map, mapReader.file);
+            mapHandler.notifyVersionOfVueThatSavedMap(savingVersion);
+            mapHandler.notifyUnmarshallingCompleted();
+            Log.debug("completed: " + map);
+        } catch (CancellationException e) {
+            throw e;
+        } catch (Exception e) {
+            tufts.Util.printStackTrace(e, "Exception restoring map from [" + url + "]: " + e.getClass().getName());
+            throw new Error("Exception restoring map from [" + url + "]", e);
+        }
 
-    @Override
-    public Object createInstance(Class type) throws IllegalAccessException, InstantiationException {
-        //System.err.println("VOF1 ASKED FOR " + type);
-        Log.info("*** ASKED FOR " + type); // apparently never called
-        return this.createInstance(type, null, null);
+        return map;
     }
 
+    /**
+     * This class is only there to provide something for the old mapping description for LWMergeMap to refer
+     * to. XMLObjectFactory will turn it into an LWMap.  For the re-mapping to work, it must be a subclass of LWMap.
+     * Castor should never need to actuall instance or load this class.
+     */ public static final class OLD_MERGE_MAP_STUB extends tufts.vue.LWMap {static{if(true)throw new Error("should-not-classload");}}
 
-    @Override
-    public Object createInstance(final Class _type, final Class[] argTypes, final Object[] args)
-        throws IllegalAccessException, InstantiationException
-    {
-            
-        final Class type;
-        if (_type == ActionUtil.OLD_MERGE_MAP_STUB.class) {
-            type = tufts.vue.LWMap.class;
-        }
-        // else if (_type == tufts.vue.MapResource.class || _type == tufts.vue.CabinetResource.class)
-        //     type = tufts.vue.URLResource.class;
-        else
-            type = _type;
-        
-        if (_type != type) Log.info("request for instance of " + _type.getName() + " yields: " + type);
-
-        //System.err.println("VOF ASKED FOR " + type + " argTypes=" + argTypes);
-        //Object o = super.createInstance(type);
-        final Object o = type.newInstance();
-        if (DEBUG.Enabled) {
-            if ((DEBUG.IO && DEBUG.META) ||
-                DEBUG.XML || DEBUG.CASTOR || (DEBUG.RESOURCE && DEBUG.META && o instanceof tufts.vue.Resource)) {
-                
-                // Do not use Util.tags(o) or allow toString to be called on object -- unmarshalling can fail
-                // if there are side-effects (!!!) due to calling it -- this happened at one point with an
-                // instance of FavoritesDataSource.  Util.tag(o) is fine tho.
-                
-                Log.debug("+= " + Util.tag(o));
-            }
-        }
-        return o;
-    }
 }
 
+
 class MapException extends IOException {
     public MapException(String s) {
         super(s);
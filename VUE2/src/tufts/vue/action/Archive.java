@@ -22,6 +22,8 @@ import java.util.zip.*;
 
 import tufts.Util;
 import tufts.vue.DEBUG;
+import tufts.vue.MapLoadMetrics;
+import tufts.vue.PackageEntryFile;
 import tufts.vue.VueUtil;
 import tufts.vue.Version;
 import tufts.vue.VUE;
@@ -48,7 +50,7 @@ public class Archive
     private static final String ZIP_IMPORT_LABEL ="Imported";
     
     private static final String MAP_ARCHIVE_KEY = "@(#)TUFTS-VUE-ARCHIVE";    
-    private static final String SPEC_KEY = "spec=";
+    static final String SPEC_KEY = "spec=";
     private static final int SPEC_KEY_LEN = SPEC_KEY.length();
 
     public static boolean isVueIMSCPArchive(File file) {
@@ -108,6 +110,11 @@ public class Archive
 
 
     /**
+     * Open a VUE package.  Only the map itself is extracted up front: the resource
+     * entries are each exposed as a PackageEntryFile, which isn't extracted until
+     * something actually reads it, so the time to open a package doesn't depend on
+     * how much resource data is in it.
+     *
      * @param zipFile should be a File pointing to a VUE Package -- a Zip Archive created by VUE
      */
 
@@ -115,23 +122,85 @@ public class Archive
         throws java.io.IOException,
                java.util.zip.ZipException
     {
-        Log.info("Unpacking VUE zip archive: " + zipFile);
+        Log.info("Opening VUE zip archive: " + zipFile);
+        MapLoadMetrics.stage(MapLoadMetrics.Stage.UNPACK);
         
-        final String unpackingDir;
-
-        //File folder = new File(VueUtil.getDefaultUserFolder().getAbsolutePath()+File.separator+"VueMapArchives";
-
-        final File parentDirectory = zipFile.getParentFile();
-        if (false && canCreateFiles(parentDirectory)) // for now, always unpack into the temp directory
-            unpackingDir = parentDirectory.toString();
-        else
-            unpackingDir = VUE.getSystemProperty("java.io.tmpdir");
+        final String unpackingDir = getUnpackingDirectory(zipFile);
         
         Log.info("Unpacking location: " + unpackingDir);
 
+        final ZipFile zip;
+        try {
+            zip = new ZipFile(zipFile);
+        } catch (ZipException e) {
+            // E.g., some JVM's refuse to open packages written by older versions of
+            // VUE via ZipFile, due to the format of the entry comments.
+            Log.warn("Couldn't open " + zipFile + " for random access, unpacking all of it instead; " + e);
+            return unpackVuePackage(zipFile, unpackingDir);
+        }
+
+        final PackageEntryFile.Package pkg = PackageEntryFile.getPackage(zipFile);
+        final Map<String,File> packagedResources = new HashMap();
+        final Map<String,File> packagedEntries = new HashMap();
+
+        ZipEntry mapEntry = null;
+        String mapFile = null;
+
+        try {
+            final Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                final String comment = Archive.getComment(entry);
+
+                if (comment != null) {
+                    if (comment.startsWith(MAP_ARCHIVE_KEY)) {
+                        mapEntry = entry;
+                        Log.info("Identified map entry: " + comment + " (" + entry.getName() + ")");
+                    } else {
+                        String spec = comment.substring(comment.indexOf(SPEC_KEY) + SPEC_KEY_LEN);
+                        if (DEBUG.IO) Log.debug("             [" + spec + "]");
+                        // This will convert "/" from the zip-entry package name to "\" on Windows
+                        // (ZipEntry pathnames always use '/', no matter what the platform).
+                        final File location = new PackageEntryFile(getEntryFileName(entry, unpackingDir), pkg, entry);
+                        if (packagedResources.put(spec, location) != null)
+                            Log.warn("repeated resource spec in archive! [" + spec + "]");
+                        packagedEntries.put(getPackageName(entry), location);
+                    }
+                } else {
+                    Log.warn("ENTRY WITH NO COMMENT: " + entry);
+                }
+            }
+
+            if (mapEntry == null)
+                throw new ZipException("no map found in VUE package " + zipFile);
+
+            final InputStream in = zip.getInputStream(mapEntry);
+            try {
+                mapFile = unzipEntryToFile(in, mapEntry, unpackingDir);
+            } finally {
+                in.close();
+            }
+        } finally {
+            zip.close();
+        }
+
+        Log.info("found " + packagedResources.size() + " packaged resources");
+
+        return restorePackageMap(zipFile, mapEntry, mapFile, packagedResources, packagedEntries);
+    }
+
+    /**
+     * Open a VUE package by first unpacking every entry in it.
+     */
+    private static LWMap unpackVuePackage(final File zipFile, final String unpackingDir)
+        throws java.io.IOException
+    {
+        Log.info("Unpacking VUE zip archive: " + zipFile);
+
         final ZipInputStream zin = new ZipInputStream(new FileInputStream(zipFile));
 
-        final Map<String,String> packagedResources = new HashMap();
+        final Map<String,File> packagedResources = new HashMap();
+        final Map<String,File> packagedEntries = new HashMap();
 
         ZipEntry entry;
         ZipEntry mapEntry = null;
@@ -151,8 +220,12 @@ public class Archive
                 } else {
                     String spec = comment.substring(comment.indexOf(SPEC_KEY) + SPEC_KEY_LEN);
                     Log.info("             [" + spec + "]"); // todo: revert to debug level eventually
-                    if (packagedResources.put(spec, location) != null)
+                    // This will convert "/" from the zip-entry package name to "\" on Windows
+                    // (ZipEntry pathnames always use '/', no matter what the platform).
+                    final File localFile = new File(location);
+                    if (packagedResources.put(spec, localFile) != null)
                         Log.warn("repeated resource spec in archive! [" + spec + "]");
+                    packagedEntries.put(getPackageName(entry), localFile);
                     //Log.debug("       spec= " + spec);
                 }
             } else {
@@ -161,7 +234,20 @@ public class Archive
         }
 
         zin.close();
-           
+
+        if (mapEntry == null)
+            throw new ZipException("no map found in VUE package " + zipFile);
+
+        return restorePackageMap(zipFile, mapEntry, mapFile, packagedResources, packagedEntries);
+    }
+
+    private static LWMap restorePackageMap(File zipFile,
+                                           ZipEntry mapEntry,
+                                           String mapFile,
+                                           Map<String,File> packagedResources,
+                                           Map<String,File> packagedEntries)
+        throws java.io.IOException
+    {
         // If this package map is being unmarshalled on the same machine it was created
         // on, all the URLResource's will initialize themseleves normally to their
         // original source files, not their package files.  This is a bit inefficient /
@@ -177,7 +263,8 @@ public class Archive
             ActionUtil.unmarshallMap(new File(mapFile),
                                      new ArchiveMapUnmarshalHandler(zipFile + "(" + mapEntry + ")",
                                                                     zipFile,
-                                                                    packagedResources));
+                                                                    packagedResources,
+                                                                    packagedEntries));
 
         map.setFile(zipFile);
         map.markAsSaved();
@@ -185,14 +272,35 @@ public class Archive
         return map;
     }
 
+    private static String getUnpackingDirectory(File zipFile) {
+
+        //File folder = new File(VueUtil.getDefaultUserFolder().getAbsolutePath()+File.separator+"VueMapArchives";
+
+        final File parentDirectory = zipFile.getParentFile();
+        if (false && canCreateFiles(parentDirectory)) // for now, always unpack into the temp directory
+            return parentDirectory.toString();
+        else
+            return VUE.getSystemProperty("java.io.tmpdir");
+    }
+
+    /** @return the name of the entry within the package directory */
+    private static String getPackageName(ZipEntry entry) {
+        return entry.getName().substring(entry.getName().indexOf('/') + 1);
+    }
+
     private static class ArchiveMapUnmarshalHandler  extends MapUnmarshalHandler
     {
-        final Map<String,String> packagedResources;
+        final Map<String,File> packagedResources;
+        final Map<String,File> packagedEntries;
         final File archiveFile;
         
-        ArchiveMapUnmarshalHandler(Object source, File archiveFile, Map<String,String> resourcesFoundInPackage) {
+        ArchiveMapUnmarshalHandler(Object source, File archiveFile,
+                                   Map<String,File> resourcesFoundInPackage,
+                                   Map<String,File> entriesFoundInPackage)
+        {
             super(source, Resource.MANAGED_UNMARSHALLING);
             this.packagedResources = resourcesFoundInPackage;
+            this.packagedEntries = entriesFoundInPackage;
             this.archiveFile = archiveFile;
         }
 
@@ -212,6 +320,7 @@ public class Archive
         @Override
         void notifyUnmarshallingCompleted()
         {
+            MapLoadMetrics.stage(MapLoadMetrics.Stage.RESOURCES);
             map.runResourceDeserializeInits(map.getAllResources());
             
             patchResourcesForPackage();
@@ -224,18 +333,26 @@ public class Archive
 
         private void patchResourcesForPackage() {
 
+            // Resources with identical content share a single entry in the package,
+            // which is annotated with only one of their specs: the rest are found via
+            // the manifest saved with the map.
+            final Collection<PropertyEntry> manifest = map.getArchiveManifest();
+            if (manifest != null) {
+                for (PropertyEntry e : manifest) {
+                    final String spec = e.getEntryKey();
+                    if (spec != null && !packagedResources.containsKey(spec)) {
+                        final File location = packagedEntries.get(String.valueOf(e.getEntryValue()));
+                        if (location != null)
+                            packagedResources.put(spec, location);
+                    }
+                }
+            }
+
             for (Resource r : map.getAllResources()) {
-                final String packageCacheFile = packagedResources.get(r.getSpec());
-                if (packageCacheFile != null) {
-                    //Log.debug("Found packaged resource: " + r + "; " + packageCacheFile);
-                    if (DEBUG.Enabled) Log.debug("patching packaged resource: " + packageCacheFile + "; into " + r);
-                
-                    // This will convert "/" from the zip-entry package name to "\" on Windows
-                    // (ZipEntry pathnames always use '/', no matter what the platform).
-                    final File localFile = new File(packageCacheFile);
-                    final String localPath = localFile.toString();
-                    if (DEBUG.RESOURCE && !localPath.equals(packageCacheFile))
-                        Log.info("       localized file path: " + localPath);
+                final File localFile = packagedResources.get(r.getSpec());
+                if (localFile != null) {
+                    //Log.debug("Found packaged resource: " + r + "; " + localFile);
+                    if (DEBUG.Enabled) Log.debug("patching packaged resource: " + localFile + "; into " + r);
 
                     if (r instanceof URLResource) {
                         ((URLResource)r).setPackageFile(localFile, archiveFile);
@@ -256,19 +373,10 @@ public class Archive
      * otherwise, entry will be unzipped at the given path location in the file system.
      * @return filename of unzipped file
      */
-    public static String unzipEntryToFile(ZipInputStream zin, ZipEntry entry, String location)
+    public static String unzipEntryToFile(InputStream zin, ZipEntry entry, String location)
         throws IOException
     {
-        final String filename;
-
-        if (location == null) {
-            filename = entry.getName();
-        } else {
-            if (location.endsWith(File.separator))
-                filename = location + entry.getName();
-            else
-                filename = location + File.separator + entry.getName();
-        }
+        final String filename = getEntryFileName(entry, location);
 
         if (true||DEBUG.IO) {
             // Note: entry.getSize() is not known until the entry is unpacked
@@ -290,6 +398,10 @@ public class Archive
             out.write(b,0,len);
         }
         out.close();
+        if (entry.getTime() != -1) {
+            // so an incremental write of the package can tell this data is unchanged
+            newFile.setLastModified(entry.getTime());
+        }
         if (DEBUG.IO) {
             Log.debug("    Unzipped " + filename + "; wrote=" + wrote + "; size=" + entry.getSize());
         }
@@ -298,6 +410,18 @@ public class Archive
         
     }
 
+    /** @return the name of the file the given entry is unzipped to at the given location */
+    private static String getEntryFileName(ZipEntry entry, String location) {
+        if (location == null) {
+            return entry.getName();
+        } else {
+            if (location.endsWith(File.separator))
+                return location + entry.getName();
+            else
+                return location + File.separator + entry.getName();
+        }
+    }
+
     public static File createFile(String name)
         throws IOException
     {
@@ -407,7 +531,7 @@ public class Archive
      * both when setting and getting.
      *
      */
-    private static void setComment(ZipEntry entry, String comment) {
+    static void setComment(ZipEntry entry, String comment) {
 
         // Using the default ZipEntry.setComment here is currently
         // only useful in that it provides for visual inspection of
@@ -638,13 +762,15 @@ public class Archive
         return packageName;
     }
 
-    private static class Item {
+    static class Item {
         final ZipEntry entry;
         final Resource resource;
         final File dataFile;
+        /** the name of the entry within the package directory */
+        final String packageName;
 
-        Item(ZipEntry e, Resource r, File f) {
-            entry = e; resource = r; dataFile = f;
+        Item(ZipEntry e, Resource r, File f, String name) {
+            entry = e; resource = r; dataFile = f; packageName = name;
         }
 
         public String toString() {
@@ -658,14 +784,26 @@ public class Archive
      * for which data can be found locally (local user files, or local image cache).
      * Entries for Resource data in the zip archive are annotated with their original
      * Resource spec, so they can be identified on unpacking, and associated with their
-     * original aResources.
+     * original aResources.  If the archive already exists, what it records about resource
+     * data that hasn't changed since is reused.
 
      */
     
     public static void writeArchive(LWMap map, File archive)
         throws java.io.IOException
     {
-        Log.info("Writing archive package " + archive);
+        writeArchive(map, archive, true);
+    }
+
+    /**
+     * @param incremental -- if true and the archive already exists, any resource data
+     * found in it that hasn't changed isn't hashed again.
+     * @see PackageWriter
+     */
+    public static void writeArchive(LWMap map, File archive, boolean incremental)
+        throws java.io.IOException
+    {
+        Log.info("Writing archive package " + archive + (incremental ? " (incremental)" : ""));
 
 //         final String label = map.getLabel();
 //         final String mapName;
@@ -689,7 +827,6 @@ public class Archive
         //-----------------------------------------------------------------------------
         
         final Collection<Resource> uniqueResources = map.getAllUniqueResources();
-        final Collection<PropertyEntry> manifest = new ArrayList();
         final List<Item> items = new ArrayList();
         final Set<String> uniqueEntryNames = new HashSet();
 
@@ -718,14 +855,13 @@ public class Archive
                 final String packageEntryName = generatePackageFileName(r, uniqueEntryNames);
 
                 final ZipEntry entry = new ZipEntry(dirName + "/" + packageEntryName);
-                Archive.setComment(entry, "\t" + SPEC_KEY + r.getSpec());
+                // the comment is set once the content hash is known: see PackageWriter
 
-                final Item item = new Item(entry, r, sourceFile);
+                final Item item = new Item(entry, r, sourceFile, packageEntryName);
                 
                 //Log.info("created: " + entry + "; " + description);
 
                 items.add(item);
-                manifest.add(new PropertyEntry(r.getSpec(), packageEntryName));
                 
                 if (DEBUG.Enabled) Log.info("created: " + item);
 
@@ -735,61 +871,100 @@ public class Archive
                 
         }
 
-
         //-----------------------------------------------------------------------------
-        // Write the map to the archive
+        // Write to a tmp file next to the archive, replacing the archive only if
+        // everything succeeds.  This also keeps any existing archive around to read
+        // from for an incremental write.
         //-----------------------------------------------------------------------------
 
-        final ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(archive)));
-        final ZipEntry mapEntry = new ZipEntry(dirName + "/" + mapName + "$map.vue");
-        final String comment = MAP_ARCHIVE_KEY + "; VERSION: 2;"
-            + " Saved " + new Date() + " by " + VUE.getName() + " built " + Version.AllInfo + "; items=" + items.size() + ";"
-            + ">" // /usr/bin/what terminatior
-            //+ "\n\tmap-name(" + mapName + ")"
-            //+ "\n\tunique-resources(" + resources.size() + ")"
-            ;
-        Archive.setComment(mapEntry, comment);
-        zos.putNextEntry(mapEntry);
+        File tmpFile = null;
+        try {
+            tmpFile = File.createTempFile(".vue-save-", VueUtil.VueArchiveExtension, archive.getAbsoluteFile().getParentFile());
+        } catch (Throwable t) {
+            Log.warn("Couldn't create tmp file for " + archive + "; writing in place; " + t);
+        }
 
-        final Writer mapOut = new OutputStreamWriter(zos);
+        ZipFile previous = null;
+        if (incremental && tmpFile != null && archive.exists()) {
+            try {
+                previous = new ZipFile(archive);
+            } catch (Throwable t) {
+                Log.warn("Couldn't open previous archive for re-use; " + archive + "; " + t);
+            }
+        }
 
-        // TODO: need to handle a map marshalling failure, in which case we want to
-        // abandon writing the entire archive -- this will require a big reorg here --
-        // we need to write the entire archive to a tmp archive first, and only create
-        // the new file if everything succeeds.
+        final File outputFile = (tmpFile == null ? archive : tmpFile);
+        final ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile)));
+        boolean completed = false;
 
         try {
-            map.setArchiveManifest(manifest);
-            ActionUtil.marshallMapToWriter(map, mapOut);
-        } catch (Throwable t) {
-            Log.error(t);
-            throw new RuntimeException(t);
-        } finally {
-            // TODO: do NOT reset this if this map is already a packaged map...
-            map.setArchiveManifest(null);
-        }
 
-        //-----------------------------------------------------------------------------
-        // Write the resources to the archive
-        //-----------------------------------------------------------------------------
-        
-        for (Item item : items) {
+            //-----------------------------------------------------------------------------
+            // Write the resources to the archive.  The map goes in last, as
+            // only then do we know which resources turned out to have identical
+            // content, and share a single entry in the manifest.
+            //-----------------------------------------------------------------------------
+
+            final PackageWriter packager = new PackageWriter(zos, archive, previous);
+            final Collection<PropertyEntry> manifest = packager.write(items);
+
+            //-----------------------------------------------------------------------------
+            // Write the map to the archive
+            //-----------------------------------------------------------------------------
+
+            final ZipEntry mapEntry = new ZipEntry(dirName + "/" + mapName + "$map.vue");
+            final String comment = MAP_ARCHIVE_KEY + "; VERSION: 2;"
+                + " Saved " + new Date() + " by " + VUE.getName() + " built " + Version.AllInfo + "; items=" + packager.getEntryCount() + ";"
+                + ">" // /usr/bin/what terminatior
+                //+ "\n\tmap-name(" + mapName + ")"
+                //+ "\n\tunique-resources(" + resources.size() + ")"
+                ;
+            Archive.setComment(mapEntry, comment);
+            zos.putNextEntry(mapEntry);
+
+            final Writer mapOut = new OutputStreamWriter(zos);
 
-            if (DEBUG.Enabled)
-                Log.debug("writing: " + item);
-            else
-                Log.info("writing: " + item.entry);
-            
             try {
-                zos.putNextEntry(item.entry);
-                copyBytesToZip(item.dataFile, zos);
+                map.setArchiveManifest(manifest);
+                ActionUtil.marshallMapToWriter(map, mapOut);
             } catch (Throwable t) {
-                Log.error("Failed to archive item: " + item, t);
+                Log.error(t);
+                throw new RuntimeException(t);
+            } finally {
+                // TODO: do NOT reset this if this map is already a packaged map...
+                map.setArchiveManifest(null);
+            }
+
+            zos.closeEntry();
+            zos.close();
+            completed = true;
+            
+        } finally {
+            if (!completed) {
+                try { zos.close(); } catch (Throwable t) {}
+            }
+            if (previous != null) {
+                try { previous.close(); } catch (Throwable t) { Log.warn(t); }
+            }
+            if (!completed && tmpFile != null)
+                tmpFile.delete();
+        }
+
+        if (tmpFile != null) {
+            // Any resource data still to be read from the package we're replacing must be
+            // extracted first -- including for resources no longer in the map, that undo could
+            // bring back -- and the package released if it's open.
+            PackageEntryFile.closePackage(archive);
+            // File.renameTo won't replace an existing file on all platforms
+            if (!tmpFile.renameTo(archive)) {
+                if (!archive.delete()) {
+                    tmpFile.delete();
+                    throw new IOException("Couldn't replace " + archive);
+                }
+                if (!tmpFile.renameTo(archive)) // leave the tmp file: it's the only copy now
+                    throw new IOException("Couldn't rename " + tmpFile + " to " + archive);
             }
         }
-        
-        zos.closeEntry();
-        zos.close();
 
         Log.info("Wrote " + archive);
 
@@ -985,10 +1160,10 @@ public class Archive
 
 //     }
 
-    private static void copyBytesToZip(File file, ZipOutputStream zos)
+    static void copyBytesToZip(File file, ZipOutputStream zos)
         throws java.io.IOException
     {
-        final BufferedInputStream fis = new BufferedInputStream(new FileInputStream(file));
+        final BufferedInputStream fis = new BufferedInputStream(PackageEntryFile.openStream(file));
         byte[] buf = new byte[2048];
         int len;
         int total = 0;
@@ -33,6 +33,7 @@ import javax.imageio.stream.*;
 
 /**a class which constructs a JPEG image of the current concept map*/
 public class ImageConversion extends VueAction {
+    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(ImageConversion.class);
     /**
 	 * 
 	 */
@@ -86,20 +87,61 @@ public class ImageConversion extends VueAction {
          return d;
     }
     
-    /**A method which sets up for converting the active viewer to a Jpeg file*/
+    /**A method which sets up for converting the active viewer to a Png file*/
     public static Dimension createActiveMapPng(File location,double zoomFactor)
+        throws IOException
     {
-    	BufferedImage bi = VUE.getActiveMap().getAsImage(zoomFactor);
-        convert(bi, location, PNG);
-        Dimension d = new Dimension(bi.getWidth(),bi.getHeight());
-        return d;
+        return createActiveMapPng(location, VUE.getActiveMap(), zoomFactor);
     }
     public static Dimension createActiveMapPng(File location,LWMap map,double zoomFactor)
+        throws IOException
+    {
+        return createMapImage(location, map, zoomFactor, PNG);
+    }
+
+    /**
+     * Write an image of the map in the given format.  Formats that can be written a
+     * piece at a time (e.g., PNG and TIFF) are rendered in tiles and streamed to the
+     * file, so the whole image is never in memory at once, no matter how large it is.
+     * If that fails, any partial file is removed and the failure is passed on: there's
+     * no falling back to rendering the whole image in memory, which would only fail
+     * again (with an OutOfMemoryError) for the large images this is here for.
+     */
+    public static Dimension createMapImage(File location, LWMap map, double zoomFactor, String format)
+        throws IOException
+    {
+        if (TiledImageWriter.isStreamable(format)) {
+            boolean written = false;
+            try {
+                final Dimension size = TiledImageWriter.write(map, map.getFillColor(), zoomFactor, location, format);
+                written = true;
+                return size;
+            } finally {
+                if (!written && location.exists() && !location.delete())
+                    Log.warn("couldn't remove partial image " + location);
+            }
+        }
+        
+        BufferedImage bi = map.getAsImage(zoomFactor);
+        convert(bi, location, format);
+        return new Dimension(bi.getWidth(),bi.getHeight());
+    }
+
+    /** Write a Deep Zoom tile pyramid of the active map (see createMapTilePyramid) */
+    public static Dimension createActiveMapTilePyramid(File dziLocation, double zoomFactor)
+        throws IOException
+    {
+        return createMapTilePyramid(dziLocation, VUE.getActiveMap(), zoomFactor);
+    }
+
+    /**
+     * Write a Deep Zoom tile pyramid of the map (a .dzi file plus a directory of tiles)
+     * for viewing very large maps.
+     */
+    public static Dimension createMapTilePyramid(File dziLocation, LWMap map, double zoomFactor)
+        throws IOException
     {
-    	BufferedImage bi = map.getAsImage(zoomFactor);
-        convert(bi, location, PNG);
-        Dimension d = new Dimension(bi.getWidth(),bi.getHeight());
-        return d;
+        return TiledImageWriter.writePyramid(map, map.getFillColor(), zoomFactor, dziLocation, PNG);
     }
     
     public void act() {
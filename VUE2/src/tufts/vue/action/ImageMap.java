@@ -72,11 +72,16 @@ public class ImageMap extends VueAction {
 	public void act() {
 		File selectedFile = ActionUtil.selectFile("Saving Imap", "html");
 
-		if (selectedFile != null)
-			createImageMap(selectedFile,1.0,"png");
+		if (selectedFile != null) {
+			try {
+				createImageMap(selectedFile,1.0,"png");
+			} catch (IOException e) {
+				VueUtil.alert(VueResources.getString("imagemap.mapnotsaved.error") + ":\n" + e, VueResources.getString("imagemap.mapnotsaved.title"));
+			}
+		}
 	}
 	
-	public void createImageMap(File file,LWMap map,double zoom) {
+	public void createImageMap(File file,LWMap map,double zoom) throws IOException {
 		String imageLocation = file.getAbsolutePath().substring(0,
 				file.getAbsolutePath().length() - 5)
 				+ ".png";
@@ -102,7 +107,7 @@ public class ImageMap extends VueAction {
 		createHtml(imageName, fileName,map,zoom);
 	}
 
-	public void createImageMap(File file, double zoom, String format) {
+	public void createImageMap(File file, double zoom, String format) throws IOException {
 		// See: VUE-536 in JIRA, If SaveAction Class still chooses "html" as the
 		// file type for image maps
 		// html file will already not be overwritten
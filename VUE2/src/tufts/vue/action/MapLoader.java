@@ -0,0 +1,246 @@
+/*
+* Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.vue.action;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import javax.swing.ProgressMonitor;
+import javax.swing.Timer;
+
+import tufts.Util;
+import tufts.vue.DEBUG;
+import tufts.vue.LWMap;
+import tufts.vue.MapLoadMetrics;
+import tufts.vue.VUE;
+import tufts.vue.VueResources;
+import tufts.vue.VueUtil;
+import tufts.vue.gui.GUI;
+
+/**
+ * Loads a map on a background thread, so the application stays live while a large
+ * map is read and restored, and it's resources initialized.  Laying out the map
+ * measures labels via Swing, so that is then completed on the AWT thread, a slice
+ * at a time, so other events are still handled in between.  Nothing is shared with
+ * the rest of VUE until the map is complete, at which point it's displayed.  Image
+ * content then continues to arrive via the low-priority Images thread pool, as
+ * usual.
+ *
+ * If the load takes a while, a progress monitor pops up showing the stage
+ * underway, from which the load can be cancelled.  Per-stage timing is logged when
+ * the load completes.
+ *
+ * @see tufts.vue.MapLoadMetrics
+ */
+public class MapLoader extends Thread
+{
+    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(MapLoader.class);
+
+    /** how long a load runs before we consider popping up a progress monitor */
+    private static final int PopupDelay = 750;
+
+    /** how long to lay out the map on AWT before letting it handle other events */
+    private static final int LayoutSlice = 50;
+
+    /** files being loaded right now: guards against opening the same file twice */
+    private static final Set<File> Loading = new HashSet<File>();
+
+    private final File file;
+    private final MapLoadMetrics metrics;
+
+    // only accessed from AWT:
+    private ProgressMonitor monitor;
+    private Timer monitorTimer;
+
+    /**
+     * Start loading the given file, displaying the map when done.  Must be called
+     * from the AWT thread.
+     *
+     * @return the loader, or null if the file is already being loaded
+     */
+    public static MapLoader loadAndDisplay(File file) {
+        synchronized (Loading) {
+            if (!Loading.add(file)) {
+                Log.info("already loading " + file);
+                return null;
+            }
+        }
+        final MapLoader loader = new MapLoader(file);
+        loader.startMonitor();
+        loader.start();
+        return loader;
+    }
+
+    private MapLoader(File file) {
+        super("MapLoader:" + file.getName());
+        this.file = file;
+        this.metrics = new MapLoadMetrics(file.getName(), true);
+        setDaemon(true);
+        // below the AWT thread, so painting & input for maps already open are never starved
+        setPriority(Thread.NORM_PRIORITY - 1);
+    }
+
+    public MapLoadMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** Abandon the load.  The partially loaded map is thrown away. */
+    public void cancel() {
+        if (DEBUG.IO) Log.debug("cancel requested: " + this);
+        metrics.cancel();
+    }
+
+    @Override
+    public void run() {
+        MapLoadMetrics.begin(metrics);
+
+        LWMap map = null;
+        Throwable failure = null;
+
+        try {
+            map = OpenAction.doLoadMap(file.getAbsolutePath());
+        } catch (Throwable t) {
+            failure = t;
+        } finally {
+            // timing continues on AWT for the display stage
+            MapLoadMetrics.detach();
+        }
+
+        final LWMap loadedMap = map;
+        final Throwable loadFailure = failure;
+
+        GUI.invokeAfterAWT(new Runnable() { public void run() {
+            layoutAndFinish(loadedMap, loadFailure);
+        }});
+    }
+
+    /**
+     * Complete the layout of the loaded map, a slice at a time, each in it's own AWT
+     * event, then display it.  Runs on AWT.
+     */
+    private void layoutAndFinish(final LWMap map, final Throwable failure) {
+        if (failure == null && map != null && !metrics.isCancelled()) {
+            final boolean done;
+            try {
+                done = map.continueRestoreLayout(LayoutSlice);
+            } catch (Throwable t) {
+                release(null, t);
+                return;
+            }
+            if (!done) {
+                GUI.invokeAfterAWT(new Runnable() { public void run() {
+                    layoutAndFinish(map, failure);
+                }});
+                return;
+            }
+        }
+        release(map, failure);
+    }
+
+    private void release(LWMap map, Throwable failure) {
+        try {
+            finish(map, failure);
+        } finally {
+            synchronized (Loading) {
+                Loading.remove(file);
+            }
+        }
+    }
+
+    /** Display the loaded map, or report the failure.  Runs on AWT. */
+    private void finish(LWMap map, Throwable failure) {
+        stopMonitor();
+
+        if (metrics.isCancelled()) {
+            metrics.end();
+            Log.info(metrics);
+            return;
+        }
+
+        if (failure != null) {
+            metrics.end();
+            map = OpenAction.handleLoadFailure(file.getAbsolutePath(), failure);
+        }
+
+        if (map != null) {
+            if (failure == null)
+                metrics.enter(MapLoadMetrics.Stage.DISPLAY);
+            try {
+                VUE.displayMap(map);
+                VUE.getMetadataSearchMainPanel().fillSavedSearch();
+            } catch (Throwable t) {
+                Util.printStackTrace(t, "failed to display map[" + file + "]");
+                alertDisplayFailure(t);
+            }
+        }
+
+        metrics.end();
+        Log.info(metrics);
+    }
+
+    private void alertDisplayFailure(Throwable t) {
+        VueUtil.alert(VueResources.getString("dialog.failedtoloadmap.message") + " " + file + "  \n"
+                      + (t.getCause() == null ? t : t.getCause()),
+                      VueResources.getString("dialog.failedtoloadmap.title") + " " + file);
+    }
+
+    private void startMonitor() {
+        monitor = new ProgressMonitor(VUE.getDialogParent(),
+                                      VueResources.getString("maploader.message") + " " + file.getName(),
+                                      VueResources.getString("maploader.stage.parse"),
+                                      0,
+                                      MapLoadMetrics.Stage.values().length);
+        monitor.setMillisToDecideToPopup(PopupDelay);
+        monitor.setMillisToPopup(PopupDelay);
+
+        // ProgressMonitor must be polled from AWT
+        monitorTimer = new Timer(PopupDelay / 3, new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    if (monitor == null)
+                        return;
+                    if (monitor.isCanceled()) {
+                        cancel();
+                        stopMonitor();
+                        return;
+                    }
+                    final MapLoadMetrics.Stage stage = metrics.getStage();
+                    if (stage != null) {
+                        monitor.setNote(VueResources.getString("maploader.stage." + stage.name().toLowerCase()));
+                        monitor.setProgress(stage.ordinal() + 1);
+                    }
+                }
+            });
+        monitorTimer.start();
+    }
+
+    private void stopMonitor() {
+        if (monitorTimer != null) {
+            monitorTimer.stop();
+            monitorTimer = null;
+        }
+        if (monitor != null) {
+            monitor.close();
+            monitor = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MapLoader[" + file + "; " + metrics.getStage() + "]";
+    }
+}
@@ -0,0 +1,1373 @@
+/*
+* Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.vue.action;
+
+import tufts.Util;
+import tufts.vue.LWMap;
+import tufts.vue.DEBUG;
+
+import java.util.*;
+import java.io.*;
+import java.net.URL;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.InvocationTargetException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * A streaming reader & writer for VUE map files saved with the current version of the
+ * castor mapping file.  The codec reads the very same mapping file castor uses (so there is
+ * still only one description of the save format), compiles it once into per-class tables
+ * of reflective accessors, and then reads maps with a StAX pull-parser and writes them with
+ * a minimal US-ASCII emitter, skipping castor's descriptor resolution, SAX event dispatch
+ * and per-object introspection.
+ *
+ * The codec follows castor's semantics for the subset of the mapping language our mapping
+ * file uses: field order, attribute vs element binding, get/set/add accessor naming,
+ * collection handling, xsi:type polymorphism, global ID / IDREF resolution (including
+ * forward references), and the unmarshal listener callbacks that drive XML_initialized,
+ * XML_fieldAdded, XML_addNotify and XML_completed.  Anything it cannot reproduce exactly
+ * (an unmapped runtime class, an unmapped value type, etc) raises an
+ * UnsupportedContentException, and callers fall back to castor.
+ *
+ * The XML produced is character for character what castor produces, down to where it
+ * breaks long start tags, and element text is read back with castor's white space
+ * handling, so a map saved or read by either one comes out the same.  (The one exception
+ * is the save date in the header comment.)  Run main on a few maps to check this.
+ */
+final class MapStreamCodec
+{
+    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(MapStreamCodec.class);
+
+    private static final String XSI_NS = "http://www.w3.org/2001/XMLSchema-instance";
+    private static final String JAVA_PREFIX = "java:";
+    private static final int INDENT = 4;
+    /** the line width castor's (xerces) serializer breaks start tags at */
+    private static final int LINE_WIDTH = 72;
+
+    /** thrown for any content the codec can't handle exactly as castor would */
+    static final class UnsupportedContentException extends IOException {
+        UnsupportedContentException(String s) {
+            super(s);
+        }
+    }
+
+    //========================================================================================
+    // The mapping model: a direct transcription of the castor mapping file
+    //========================================================================================
+
+    private static final class FieldMap {
+        String name;
+        String type;
+        String collection;
+        String getMethod;
+        String setMethod;
+        String xmlName;
+        String bindType;
+        boolean direct;
+        boolean isTransient;
+        boolean isAttribute;
+        boolean isReference;
+        boolean matchesAny;
+
+        public String toString() {
+            return "FieldMap[" + name + (isAttribute ? " @" : " <") + xmlName + (isReference ? " REF" : "") + "]";
+        }
+    }
+
+    private static final class ClassMap {
+        final String className;
+        String xmlName;
+        String extendsName;
+        String identity;
+        ClassMap parent;
+        final List<FieldMap> fields = new ArrayList<FieldMap>();
+
+        ClassMap(String className) {
+            this.className = className;
+        }
+
+        /** @return all fields, inherited first, with any redefined field names taking the subclass definition */
+        List<FieldMap> allFields() {
+            final List<FieldMap> all = new ArrayList<FieldMap>();
+            if (parent != null)
+                all.addAll(parent.allFields());
+            for (FieldMap f : fields) {
+                boolean replaced = false;
+                for (int i = 0; i < all.size(); i++) {
+                    if (all.get(i).name.equals(f.name)) {
+                        all.set(i, f);
+                        replaced = true;
+                        break;
+                    }
+                }
+                if (!replaced)
+                    all.add(f);
+            }
+            return all;
+        }
+
+        String identity() {
+            if (identity != null)
+                return identity;
+            else if (parent != null)
+                return parent.identity();
+            else
+                return null;
+        }
+
+        public String toString() {
+            return "ClassMap[" + className + " <" + xmlName + ">]";
+        }
+    }
+
+    //========================================================================================
+    // Runtime bindings: a mapping compiled against an actual runtime class
+    //========================================================================================
+
+    /** A reflective accessor for one mapped field of one runtime class */
+    private static final class Accessor {
+        final FieldMap map;
+        final Class declaredType;
+        final Field field;
+        final Method getter;
+        final Method setter;
+        final Method adder;
+        final boolean isCollection;
+        final boolean isSimple;
+
+        Accessor(Class owner, FieldMap map, Class mappedType) throws UnsupportedContentException {
+            this.map = map;
+            this.isCollection = map.collection != null;
+
+            final String cap = capitalize(map.name);
+
+            if (map.direct) {
+                field = findField(owner, map.name);
+                if (field == null)
+                    throw new UnsupportedContentException("no field " + map.name + " in " + owner);
+                field.setAccessible(true);
+                getter = null;
+                setter = null;
+                adder = null;
+            } else {
+                field = null;
+                if (map.getMethod != null) {
+                    getter = findMethod(owner, map.getMethod, 0, null);
+                    if (getter == null)
+                        throw new UnsupportedContentException("no " + map.getMethod + " in " + owner);
+                } else {
+                    Method m = findMethod(owner, "get" + cap, 0, null);
+                    if (m == null)
+                        m = findMethod(owner, "is" + cap, 0, null);
+                    getter = m;
+                }
+
+                final Class hint = mappedType != null ? mappedType : (getter == null ? null : getter.getReturnType());
+
+                if (isCollection) {
+                    Method set = null, add = null;
+                    if (map.setMethod != null) {
+                        final Method m = findMethod(owner, map.setMethod, 1, null);
+                        if (m == null)
+                            throw new UnsupportedContentException("no " + map.setMethod + " in " + owner);
+                        if (isCollectionType(m.getParameterTypes()[0]))
+                            set = m;
+                        else
+                            add = m;
+                    } else {
+                        add = findMethod(owner, "add" + cap, 1, mappedType);
+                        if (add != null && isCollectionType(add.getParameterTypes()[0]))
+                            add = null;
+                        if (add == null)
+                            set = findMethod(owner, "set" + cap, 1, null);
+                    }
+                    setter = set;
+                    adder = add;
+                } else {
+                    final String setName = map.setMethod != null ? map.setMethod : "set" + cap;
+                    setter = findMethod(owner, setName, 1, hint);
+                    if (setter == null && map.setMethod != null)
+                        throw new UnsupportedContentException("no " + map.setMethod + " in " + owner);
+                    adder = null;
+                }
+            }
+
+            if (mappedType != null)
+                declaredType = mappedType;
+            else if (isCollection)
+                declaredType = Object.class;
+            else if (field != null)
+                declaredType = field.getType();
+            else if (getter != null)
+                declaredType = getter.getReturnType();
+            else if (setter != null)
+                declaredType = setter.getParameterTypes()[0];
+            else
+                declaredType = Object.class;
+
+            isSimple = isSimpleType(declaredType);
+        }
+
+        boolean isReadable() {
+            return field != null || getter != null;
+        }
+
+        boolean isWritable() {
+            // collections may also be added to via the collection returned by the getter
+            return field != null || setter != null || adder != null || (isCollection && getter != null);
+        }
+
+        Object get(Object o) throws IOException {
+            try {
+                if (field != null)
+                    return field.get(o);
+                else if (getter != null)
+                    return getter.invoke(o);
+                else
+                    return null;
+            } catch (InvocationTargetException e) {
+                throw wrap(o, e.getCause());
+            } catch (IllegalAccessException e) {
+                throw wrap(o, e);
+            }
+        }
+
+        void set(Object o, Object value) throws IOException {
+            try {
+                if (!isCollection) {
+                    if (field != null)
+                        field.set(o, value);
+                    else if (setter != null)
+                        setter.invoke(o, value);
+                } else if (adder != null) {
+                    adder.invoke(o, value);
+                } else {
+                    Object c = field != null ? field.get(o) : (getter == null ? null : getter.invoke(o));
+                    if (c == null) {
+                        c = newCollection();
+                        if (field != null)
+                            field.set(o, c);
+                        else if (setter != null)
+                            setter.invoke(o, c);
+                        else
+                            throw new UnsupportedContentException("no way to store collection " + map + " in " + Util.tag(o));
+                    }
+                    ((Collection)c).add(value);
+                }
+            } catch (InvocationTargetException e) {
+                throw wrap(o, e.getCause());
+            } catch (IllegalAccessException e) {
+                throw wrap(o, e);
+            } catch (IllegalArgumentException e) {
+                throw wrap(o, e);
+            } catch (ClassCastException e) {
+                throw wrap(o, e);
+            }
+        }
+
+        private Collection newCollection() {
+            if ("vector".equals(map.collection))
+                return new Vector();
+            else if ("set".equals(map.collection) || "hashset".equals(map.collection))
+                return new HashSet();
+            else
+                return new ArrayList();
+        }
+
+        private IOException wrap(Object o, Throwable t) {
+            final IOException e = new IOException(map + " on " + Util.tag(o) + ": " + t);
+            e.initCause(t);
+            return e;
+        }
+
+        public String toString() {
+            return "Accessor[" + map + " " + declaredType.getName() + "]";
+        }
+    }
+
+    /** A mapping compiled against a single runtime class */
+    private static final class Binding {
+        final Class type;
+        final ClassMap map;
+        final String xmlName;
+        final Accessor[] attributes;
+        final Accessor[] elements;
+        final Map<String,Integer> attributeIndex = new HashMap<String,Integer>();
+        final Map<String,Accessor> elementIndex = new HashMap<String,Accessor>();
+        final String identityAttribute;
+        final Accessor identity;
+
+        Binding(Class type, ClassMap map, Map<String,Class> typeAliases) throws UnsupportedContentException {
+            this.type = type;
+            this.map = map;
+            this.xmlName = map.xmlName;
+
+            final List<Accessor> attrs = new ArrayList<Accessor>();
+            final List<Accessor> elts = new ArrayList<Accessor>();
+            final String identityName = map.identity();
+            Accessor identityAccessor = null;
+
+            for (FieldMap f : map.allFields()) {
+                if (f.isTransient || f.matchesAny)
+                    continue;
+                final Accessor a = new Accessor(type, f, resolveType(f.bindType != null ? f.bindType : f.type, typeAliases));
+                if (f.isAttribute) {
+                    attributeIndex.put(f.xmlName, attrs.size());
+                    attrs.add(a);
+                } else {
+                    if (!elementIndex.containsKey(f.xmlName))
+                        elementIndex.put(f.xmlName, a);
+                    elts.add(a);
+                }
+                if (f.name.equals(identityName))
+                    identityAccessor = a;
+            }
+            attributes = attrs.toArray(new Accessor[attrs.size()]);
+            elements = elts.toArray(new Accessor[elts.size()]);
+            identity = identityAccessor;
+            identityAttribute = (identity != null && identity.map.isAttribute) ? identity.map.xmlName : null;
+        }
+
+        public String toString() {
+            return "Binding[" + type.getName() + " <" + xmlName + "> attr=" + attributes.length + " elt=" + elements.length + "]";
+        }
+    }
+
+    //========================================================================================
+    // Codec instance: one per mapping file
+    //========================================================================================
+
+    private static final Map<URL,MapStreamCodec> Codecs = new HashMap<URL,MapStreamCodec>();
+
+    private final URL mappingSource;
+    private final Map<String,ClassMap> classMaps = new LinkedHashMap<String,ClassMap>();
+    private final Map<String,ClassMap> classMapsByXML = new HashMap<String,ClassMap>();
+    private final Map<String,Class> typeAliases = new HashMap<String,Class>();
+    private final Map<Class,Object> bindings = new HashMap<Class,Object>();
+    private final XMLInputFactory inputFactory;
+
+    /** @return the codec for the given castor mapping file, loading & compiling it if needed */
+    static synchronized MapStreamCodec forMapping(URL mappingSource) throws IOException {
+        MapStreamCodec codec = Codecs.get(mappingSource);
+        if (codec == null) {
+            codec = new MapStreamCodec(mappingSource);
+            Codecs.put(mappingSource, codec);
+        }
+        return codec;
+    }
+
+    private MapStreamCodec(URL mappingSource) throws IOException {
+        this.mappingSource = mappingSource;
+
+        typeAliases.put("string", String.class);
+        typeAliases.put("integer", Integer.class);
+        typeAliases.put("int", Integer.TYPE);
+        typeAliases.put("long", Long.TYPE);
+        typeAliases.put("short", Short.TYPE);
+        typeAliases.put("byte", Byte.TYPE);
+        typeAliases.put("float", Float.TYPE);
+        typeAliases.put("double", Double.TYPE);
+        typeAliases.put("boolean", Boolean.TYPE);
+        typeAliases.put("char", Character.TYPE);
+        typeAliases.put("other", Object.class);
+
+        inputFactory = XMLInputFactory.newInstance();
+        // not coalescing: readText needs the character data in the chunks castor would see
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+        inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        inputFactory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, Boolean.TRUE);
+
+        final long start = System.currentTimeMillis();
+        final InputStream in = mappingSource.openStream();
+        try {
+            loadMapping(in);
+        } catch (XMLStreamException e) {
+            final IOException io = new IOException("failed to parse mapping " + mappingSource + ": " + e);
+            io.initCause(e);
+            throw io;
+        } finally {
+            in.close();
+        }
+
+        for (ClassMap cm : classMaps.values()) {
+            if (cm.extendsName != null) {
+                cm.parent = classMaps.get(cm.extendsName);
+                if (cm.parent == null)
+                    Log.warn("mapping " + cm + " extends unmapped class " + cm.extendsName);
+            }
+            if (cm.xmlName == null)
+                cm.xmlName = defaultXMLName(cm.className);
+            if (!classMapsByXML.containsKey(cm.xmlName))
+                classMapsByXML.put(cm.xmlName, cm);
+        }
+
+        if (DEBUG.IO || DEBUG.INIT) Log.debug("compiled " + classMaps.size() + " class mappings from " + mappingSource
+                                              + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private void loadMapping(InputStream in) throws XMLStreamException {
+        final XMLStreamReader r = inputFactory.createXMLStreamReader(in);
+        ClassMap curClass = null;
+        FieldMap curField = null;
+        try {
+            while (r.hasNext()) {
+                final int event = r.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    final String tag = r.getLocalName();
+                    if ("class".equals(tag)) {
+                        curClass = new ClassMap(attr(r, "name"));
+                        curClass.extendsName = attr(r, "extends");
+                        curClass.identity = attr(r, "identity");
+                        classMaps.put(curClass.className, curClass);
+                    } else if ("map-to".equals(tag) && curClass != null) {
+                        final String xml = attr(r, "xml");
+                        // some mappings (e.g., the ontology classes) have stray white space in the name
+                        curClass.xmlName = xml == null ? null : xml.trim();
+                    } else if ("field".equals(tag) && curClass != null) {
+                        curField = new FieldMap();
+                        curField.name = attr(r, "name");
+                        curField.type = attr(r, "type");
+                        curField.collection = attr(r, "collection");
+                        curField.getMethod = attr(r, "get-method");
+                        curField.setMethod = attr(r, "set-method");
+                        curField.direct = "true".equals(attr(r, "direct"));
+                        curField.isTransient = "true".equals(attr(r, "transient"));
+                        curField.xmlName = curField.name;
+                        if (curField.name != null)
+                            curClass.fields.add(curField);
+                    } else if ("bind-xml".equals(tag) && curField != null) {
+                        final String name = attr(r, "name");
+                        if (name != null)
+                            curField.xmlName = name;
+                        curField.isAttribute = "attribute".equals(attr(r, "node"));
+                        curField.isReference = "true".equals(attr(r, "reference"));
+                        curField.matchesAny = "*".equals(attr(r, "matches"));
+                        curField.bindType = attr(r, "type");
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    final String tag = r.getLocalName();
+                    if ("class".equals(tag))
+                        curClass = null;
+                    else if ("field".equals(tag))
+                        curField = null;
+                }
+            }
+        } finally {
+            r.close();
+        }
+    }
+
+    private static String attr(XMLStreamReader r, String name) {
+        return r.getAttributeValue(null, name);
+    }
+
+    /**
+     * castor's default XML naming for classes without a map-to: the class name without the
+     * package, left alone if it starts with two upper case characters, otherwise lower-cased
+     * with dashes between words (e.g., MapResource becomes map-resource)
+     */
+    static String defaultXMLName(String className) {
+        String name = className.substring(className.lastIndexOf('.') + 1);
+        if (name.length() < 2)
+            return name.toLowerCase();
+        if (Character.isUpperCase(name.charAt(0)) && Character.isUpperCase(name.charAt(1)))
+            return name;
+        final StringBuilder buf = new StringBuilder(name.length() + 4);
+        buf.append(Character.toLowerCase(name.charAt(0)));
+        for (int i = 1; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if (Character.isUpperCase(c)) {
+                buf.append('-');
+                buf.append(Character.toLowerCase(c));
+            } else
+                buf.append(c);
+        }
+        return buf.toString();
+    }
+
+    private static Class resolveType(String type, Map<String,Class> aliases) throws UnsupportedContentException {
+        if (type == null)
+            return null;
+        final Class alias = aliases.get(type);
+        if (alias != null)
+            return alias;
+        try {
+            return Class.forName(type);
+        } catch (Throwable t) {
+            throw new UnsupportedContentException("unknown type " + type + ": " + t);
+        }
+    }
+
+    /**
+     * @return the binding for the given runtime class, which must be exactly mapped: castor would
+     * introspect an unmapped class, which we don't attempt.
+     */
+    private Binding getBinding(Class type) throws UnsupportedContentException {
+        synchronized (bindings) {
+            final Object b = bindings.get(type);
+            if (b instanceof Binding)
+                return (Binding) b;
+            else if (b != null)
+                throw (UnsupportedContentException) b;
+            final ClassMap cm = classMaps.get(type.getName());
+            try {
+                if (cm == null)
+                    throw new UnsupportedContentException("unmapped class " + type.getName());
+                final Binding binding = new Binding(type, cm, typeAliases);
+                if (DEBUG.XML) Log.debug("compiled " + binding);
+                bindings.put(type, binding);
+                return binding;
+            } catch (UnsupportedContentException e) {
+                bindings.put(type, e);
+                throw e;
+            }
+        }
+    }
+
+    private Class classForXMLType(String xsiType) throws UnsupportedContentException {
+        if (xsiType.startsWith(JAVA_PREFIX)) {
+            try {
+                return Class.forName(xsiType.substring(JAVA_PREFIX.length()));
+            } catch (Throwable t) {
+                throw new UnsupportedContentException("unknown xsi:type " + xsiType);
+            }
+        }
+        final ClassMap cm = classMapsByXML.get(xsiType);
+        if (cm == null)
+            throw new UnsupportedContentException("unmapped xsi:type " + xsiType);
+        try {
+            return Class.forName(cm.className);
+        } catch (Throwable t) {
+            throw new UnsupportedContentException("unloadable class for xsi:type " + xsiType + ": " + t);
+        }
+    }
+
+    //========================================================================================
+    // Reading
+    //========================================================================================
+
+    /**
+     * Read a map from the given reader, which must be positioned at the start of the XML
+     * (e.g., the &lt;?xml line), calling back the given handler for all restored objects
+     * exactly as castor would.  The caller is responsible for the post-unmarshalling
+     * MapUnmarshalHandler notifications.
+     */
+    LWMap readMap(Reader reader, String sourceName, MapUnmarshalHandler handler) throws IOException {
+        final XMLStreamReader r;
+        try {
+            r = inputFactory.createXMLStreamReader(reader);
+        } catch (XMLStreamException e) {
+            throw wrap(sourceName, e);
+        }
+        try {
+            return new MapReadState(sourceName, handler).read(r);
+        } catch (XMLStreamException e) {
+            throw wrap(sourceName, e);
+        } finally {
+            try { r.close(); } catch (XMLStreamException e) {}
+        }
+    }
+
+    private static IOException wrap(String sourceName, XMLStreamException e) {
+        final IOException io = new IOException(sourceName + ": " + e.getMessage());
+        io.initCause(e);
+        return io;
+    }
+
+    /** a pending assignment of an IDREF whose target has not been seen yet */
+    private static final class ForwardRef {
+        final Object owner;
+        final Accessor accessor;
+        ForwardRef(Object owner, Accessor accessor) {
+            this.owner = owner;
+            this.accessor = accessor;
+        }
+    }
+
+    /** the state for reading a single map */
+    private final class MapReadState {
+        final String sourceName;
+        final MapUnmarshalHandler handler;
+        final XMLObjectFactory factory;
+        final Map<String,Object> idTable = new HashMap<String,Object>();
+        final Map<String,List<ForwardRef>> forwardRefs = new HashMap<String,List<ForwardRef>>();
+        int objectCount;
+
+        MapReadState(String sourceName, MapUnmarshalHandler handler) {
+            this.sourceName = sourceName;
+            this.handler = handler;
+            this.factory = new XMLObjectFactory(sourceName);
+        }
+
+        LWMap read(XMLStreamReader r) throws IOException, XMLStreamException {
+            while (r.hasNext() && r.next() != XMLStreamConstants.START_ELEMENT)
+                ;
+            if (!r.isStartElement())
+                throw new IOException(sourceName + ": no XML content");
+
+            final ClassMap rootMap = classMapsByXML.get(r.getLocalName());
+            if (rootMap == null)
+                throw new UnsupportedContentException("unknown root element <" + r.getLocalName() + ">");
+            final Class rootType;
+            try {
+                rootType = Class.forName(rootMap.className, false, getClass().getClassLoader());
+            } catch (ClassNotFoundException e) {
+                throw new UnsupportedContentException("no class for root " + rootMap);
+            }
+            if (!LWMap.class.isAssignableFrom(rootType))
+                throw new UnsupportedContentException("not a map: <" + r.getLocalName() + ">");
+
+            final Object map = readObject(r, rootType);
+
+            if (forwardRefs.size() > 0)
+                Log.warn(sourceName + "; unresolved IDREF's: " + forwardRefs.keySet());
+            if (DEBUG.IO) Log.debug(sourceName + "; read " + objectCount + " objects, " + idTable.size() + " ID's");
+
+            return (LWMap) map;
+        }
+
+        /** read the object for the current START_ELEMENT, leaving the reader at it's END_ELEMENT */
+        private Object readObject(XMLStreamReader r, Class declaredType) throws IOException, XMLStreamException {
+
+            final String xsiType = r.getAttributeValue(XSI_NS, "type");
+            Class requested = declaredType;
+            if (xsiType != null) {
+                try {
+                    requested = classForXMLType(xsiType);
+                } catch (UnsupportedContentException e) {
+                    // castor falls back to the declared type in this case (e.g., old save
+                    // files with xsi:type="propertyEntry", from an older castor naming scheme)
+                    if (DEBUG.XML) Log.debug(sourceName + "; " + e.getMessage() + "; using " + declaredType);
+                }
+            }
+
+            if (requested.isInterface() || Modifier.isAbstract(requested.getModifiers()))
+                throw new UnsupportedContentException("can't instance " + requested.getName() + " for <" + r.getLocalName() + ">");
+
+            final Object o;
+            try {
+                o = factory.createInstance(requested, null, null);
+            } catch (Throwable t) {
+                final IOException e = new IOException(sourceName + "; failed to instance " + requested.getName() + ": " + t);
+                e.initCause(t);
+                throw e;
+            }
+            objectCount++;
+
+            final Binding b = getBinding(o.getClass());
+
+            handler.initialized(o);
+
+            //-----------------------------------------------------------------------------
+            // Attributes: applied in mapping order, not document order, as castor does
+            //-----------------------------------------------------------------------------
+
+            final int nattr = r.getAttributeCount();
+            if (nattr > 0 && b.attributes.length > 0) {
+                final String[] values = new String[b.attributes.length];
+                for (int i = 0; i < nattr; i++) {
+                    final String ns = r.getAttributeNamespace(i);
+                    if (ns != null && ns.length() > 0)
+                        continue;
+                    final Integer index = b.attributeIndex.get(r.getAttributeLocalName(i));
+                    if (index != null)
+                        values[index] = r.getAttributeValue(i);
+                }
+                for (int i = 0; i < values.length; i++) {
+                    final String value = values[i];
+                    if (value == null)
+                        continue;
+                    final Accessor a = b.attributes[i];
+                    if (a.map.isReference)
+                        assignReference(o, a, value);
+                    else if (a.isWritable())
+                        a.set(o, convert(value, a));
+                }
+            }
+
+            if (b.identityAttribute != null) {
+                final String id = r.getAttributeValue(null, b.identityAttribute);
+                if (id != null)
+                    registerID(id, o);
+            }
+
+            handler.attributesProcessed(o);
+
+            //-----------------------------------------------------------------------------
+            // Elements
+            //-----------------------------------------------------------------------------
+
+            for (;;) {
+                final int event = r.next();
+                if (event == XMLStreamConstants.END_ELEMENT)
+                    break;
+                if (event != XMLStreamConstants.START_ELEMENT)
+                    continue; // ignore white space & comments; no class in our mapping maps text content
+
+                final String name = r.getLocalName();
+                final Accessor a = b.elementIndex.get(name);
+
+                if (a == null) {
+                    // castor is configured to ignore extra elements
+                    if (DEBUG.XML) Log.debug(Util.tag(o) + "; skipping unmapped <" + name + ">");
+                    skipElement(r);
+                    continue;
+                }
+
+                if (a.map.isReference) {
+                    assignReference(o, a, readText(r));
+                    continue;
+                }
+
+                final Object value;
+                if (isSimpleElement(r, a)) {
+                    value = convert(readText(r), a);
+                } else {
+                    value = readObject(r, a.declaredType);
+                }
+
+                if (a.isWritable()) {
+                    a.set(o, value);
+                    handler.fieldAdded(a.map.name, o, value);
+                } else if (DEBUG.XML) {
+                    Log.debug(Util.tag(o) + "; no setter for <" + name + ">");
+                }
+            }
+
+            handler.unmarshalled(o);
+
+            return o;
+        }
+
+        private boolean isSimpleElement(XMLStreamReader r, Accessor a) throws UnsupportedContentException {
+            if (a.isSimple)
+                return true;
+            final String xsiType = r.getAttributeValue(XSI_NS, "type");
+            if (a.declaredType == Object.class) {
+                if (xsiType == null || "java:java.lang.String".equals(xsiType) || "string".equals(xsiType))
+                    return true;
+            }
+            return false;
+        }
+
+        private void assignReference(Object o, Accessor a, String id) throws IOException {
+            final Object target = idTable.get(id);
+            if (target != null) {
+                a.set(o, target);
+            } else {
+                List<ForwardRef> pending = forwardRefs.get(id);
+                if (pending == null) {
+                    pending = new ArrayList<ForwardRef>(2);
+                    forwardRefs.put(id, pending);
+                }
+                pending.add(new ForwardRef(o, a));
+            }
+        }
+
+        private void registerID(String id, Object o) throws IOException {
+            final Object prior = idTable.put(id, o);
+            if (prior != null && prior != o)
+                Log.warn(sourceName + "; duplicate ID " + id + ": " + Util.tag(prior) + " replaced by " + Util.tag(o));
+            final List<ForwardRef> pending = forwardRefs.remove(id);
+            if (pending != null) {
+                for (ForwardRef ref : pending)
+                    ref.accessor.set(ref.owner, o);
+            }
+        }
+
+        /**
+         * Read the text content of a simple element exactly as castor does.  Castor trims
+         * white space from each chunk of character data the parser hands it (the parser
+         * breaks text at entity & character references, comments and CDATA sections), and
+         * joins the chunks with a single space wherever it removed white space between them.
+         * So "a &amp;amp;  b" reads as "a &amp; b", but the run of spaces in "a  b" is kept.
+         */
+        private String readText(XMLStreamReader r) throws XMLStreamException {
+            StringBuilder buf = null;
+            boolean trailingRemoved = false;
+            for (;;) {
+                final int event = r.next();
+                if (event == XMLStreamConstants.END_ELEMENT)
+                    break;
+                if (event == XMLStreamConstants.START_ELEMENT)
+                    throw new XMLStreamException("unexpected element <" + r.getLocalName() + "> in text", r.getLocation());
+                if (event != XMLStreamConstants.CHARACTERS
+                    && event != XMLStreamConstants.CDATA
+                    && event != XMLStreamConstants.SPACE)
+                    continue; // comments & processing instructions
+                final String text = r.getText();
+                int start = 0, end = text.length();
+                boolean leading = false, trailing = false;
+                while (start < end && isWhitespace(text.charAt(start))) {
+                    start++;
+                    leading = true;
+                }
+                if (start == end) {
+                    trailing = leading;
+                } else {
+                    while (isWhitespace(text.charAt(end - 1))) {
+                        end--;
+                        trailing = true;
+                    }
+                }
+                if (buf == null)
+                    buf = new StringBuilder(end - start);
+                else if (start < end && (trailingRemoved || leading))
+                    buf.append(' ');
+                trailingRemoved = trailing;
+                buf.append(text, start, end);
+            }
+            return buf == null ? "" : buf.toString();
+        }
+
+        private void skipElement(XMLStreamReader r) throws XMLStreamException {
+            int depth = 1;
+            while (depth > 0) {
+                final int event = r.next();
+                if (event == XMLStreamConstants.START_ELEMENT)
+                    depth++;
+                else if (event == XMLStreamConstants.END_ELEMENT)
+                    depth--;
+            }
+        }
+    }
+
+    /** the white space castor strips from element text */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r';
+    }
+
+    private static Object convert(String s, Accessor a) throws IOException {
+        Class type = a.declaredType;
+        if (a.setter != null && !a.isCollection)
+            type = a.setter.getParameterTypes()[0];
+        else if (a.field != null && !a.isCollection)
+            type = a.field.getType();
+        try {
+            if (type == String.class || type == Object.class)
+                return s;
+            else if (type == Integer.TYPE || type == Integer.class)
+                return Integer.valueOf(s.trim());
+            else if (type == Float.TYPE || type == Float.class)
+                return Float.valueOf(s.trim());
+            else if (type == Boolean.TYPE || type == Boolean.class)
+                return Boolean.valueOf(s.trim());
+            else if (type == Long.TYPE || type == Long.class)
+                return Long.valueOf(s.trim());
+            else if (type == Double.TYPE || type == Double.class)
+                return Double.valueOf(s.trim());
+            else if (type == Short.TYPE || type == Short.class)
+                return Short.valueOf(s.trim());
+            else if (type == Byte.TYPE || type == Byte.class)
+                return Byte.valueOf(s.trim());
+            else if (type == Character.TYPE || type == Character.class)
+                return s.length() > 0 ? Character.valueOf(s.charAt(0)) : null;
+        } catch (NumberFormatException e) {
+            throw new IOException(a.map + ": bad value [" + s + "]: " + e);
+        }
+        throw new UnsupportedContentException(a.map + ": can't convert text to " + type.getName());
+    }
+
+    //========================================================================================
+    // Writing
+    //========================================================================================
+
+    /**
+     * Write the given map as an XML document, starting with the &lt;?xml declaration.
+     * The document is streamed to the writer as it's produced, so if the map contains
+     * anything the codec can't handle, an UnsupportedContentException is thrown with
+     * part of the document already written: callers that want to fall back to castor
+     * must write somewhere they can throw away.
+     */
+    void writeMap(LWMap map, String encoding, Writer writer) throws IOException {
+        final Emitter out = new Emitter(writer);
+        out.declaration(encoding);
+        new MapWriteState(out).writeRoot(map);
+        out.finish();
+    }
+
+    private final class MapWriteState {
+        final Emitter out;
+        final ActionUtil.VueMarshalListener listener = new ActionUtil.VueMarshalListener();
+        int objectCount;
+
+        MapWriteState(Emitter out) {
+            this.out = out;
+        }
+
+        void writeRoot(LWMap map) throws IOException {
+            final Binding b = getBinding(map.getClass());
+            out.start(b.xmlName);
+            out.attribute("xmlns:xsi", XSI_NS);
+            out.attribute("xsi:noNamespaceSchemaLocation", "none");
+            writeContent(map, b, null);
+            if (DEBUG.IO) Log.debug("wrote " + objectCount + " objects");
+        }
+
+        private void writeObject(String element, Object o, Class declaredType) throws IOException {
+            final Binding b = getBinding(o.getClass());
+            if (!listener.preMarshal(o))
+                return;
+            out.start(element);
+            writeContent(o, b, declaredType == o.getClass() ? null : b.xmlName);
+        }
+
+        /** write the attributes & children of an already started element, then end it */
+        private void writeContent(Object o, Binding b, String xsiType) throws IOException {
+            objectCount++;
+            for (Accessor a : b.attributes) {
+                if (!a.isReadable())
+                    continue;
+                final Object value = a.get(o);
+                if (value == null)
+                    continue;
+                if (a.map.isReference)
+                    out.attribute(a.map.xmlName, identityOf(value, a));
+                else
+                    out.attribute(a.map.xmlName, simpleValue(value, a));
+            }
+            if (xsiType != null)
+                out.attribute("xsi:type", xsiType);
+
+            for (Accessor a : b.elements) {
+                if (!a.isReadable())
+                    continue;
+                final Object value = a.get(o);
+                if (value == null)
+                    continue;
+                if (a.isCollection) {
+                    if (value instanceof Iterable) {
+                        for (Object item : (Iterable) value)
+                            writeElement(a, item);
+                    } else if (value instanceof Object[]) {
+                        for (Object item : (Object[]) value)
+                            writeElement(a, item);
+                    } else if (value instanceof Iterator) {
+                        final Iterator i = (Iterator) value;
+                        while (i.hasNext())
+                            writeElement(a, i.next());
+                    } else if (value instanceof Enumeration) {
+                        final Enumeration e = (Enumeration) value;
+                        while (e.hasMoreElements())
+                            writeElement(a, e.nextElement());
+                    } else
+                        throw new UnsupportedContentException(a.map + ": unhandled collection type " + value.getClass());
+                } else
+                    writeElement(a, value);
+            }
+            out.end();
+        }
+
+        private void writeElement(Accessor a, Object value) throws IOException {
+            if (value == null)
+                return;
+            if (a.map.isReference) {
+                out.start(a.map.xmlName);
+                if (value.getClass() != a.declaredType)
+                    out.attribute("xsi:type", getBinding(value.getClass()).xmlName);
+                out.text(identityOf(value, a));
+                out.end();
+            } else if (isSimpleType(value.getClass())) {
+                if (!a.isSimple)
+                    throw new UnsupportedContentException(a.map + ": simple value " + Util.tags(value) + " for type " + a.declaredType);
+                final String text = value.toString();
+                if (text.length() == 0)
+                    return; // castor doesn't write elements for empty strings (tho it does for attributes)
+                out.start(a.map.xmlName);
+                out.text(text);
+                out.end();
+            } else
+                writeObject(a.map.xmlName, value, a.declaredType);
+        }
+
+        private String simpleValue(Object value, Accessor a) throws UnsupportedContentException {
+            if (isSimpleType(value.getClass()) || a.declaredType == Object.class)
+                return value.toString();
+            else
+                throw new UnsupportedContentException(a.map + ": complex value " + Util.tag(value) + " in attribute");
+        }
+
+        private String identityOf(Object value, Accessor a) throws IOException {
+            final Binding b = getBinding(value.getClass());
+            final Object id = b.identity == null ? null : b.identity.get(value);
+            if (id == null)
+                throw new UnsupportedContentException(a.map + ": reference to object without ID: " + Util.tag(value));
+            return id.toString();
+        }
+    }
+
+    /**
+     * A minimal streaming XML emitter producing castor's layout: four space indent (that
+     * stops growing at half the line width), one element per line, simple content inline,
+     * start tags broken across lines between attributes as castor's serializer does,
+     * and US-ASCII output with everything else written as character references.  Output
+     * is collected a chunk at a time, and handed to the writer whenever an element starts
+     * or ends with a full chunk.
+     */
+    private static final class Emitter {
+        private static final int CHUNK = 64 * 1024;
+        private final Writer sink;
+        private final StringBuilder out = new StringBuilder(CHUNK + 1024);
+        private final String[] stack = new String[256];
+        private int depth;
+        private boolean startOpen; // is the last start tag still open (attributes can be added)
+        private boolean hasChildren; // has the current element any child elements
+        private boolean hasText;
+        private int lineAt; // where the line holding the open start tag begins in out
+        private int tagAt; // where the open start tag begins in out
+        private int tagIndent; // the indent of the open start tag
+        private int[] attrAt = new int[16]; // where each attribute of the open start tag begins in out
+        private int attrCount;
+
+        Emitter(Writer sink) {
+            this.sink = sink;
+        }
+
+        private void flushChunk() throws IOException {
+            if (out.length() >= CHUNK) {
+                sink.append(out);
+                out.setLength(0);
+            }
+        }
+
+        /** write out the final newline and anything left buffered */
+        void finish() throws IOException {
+            out.append('\n');
+            sink.append(out);
+            out.setLength(0);
+        }
+
+        void declaration(String encoding) {
+            out.append("<?xml version=\"1.0\" encoding=\"").append(encoding).append("\"?>");
+        }
+
+        void start(String name) throws IOException {
+            if (startOpen)
+                closeStart(">");
+            flushChunk();
+            if (depth == stack.length)
+                throw new UnsupportedContentException("XML nesting too deep");
+            out.append('\n');
+            lineAt = out.length();
+            tagIndent = depth * INDENT;
+            indent(tagIndent);
+            tagAt = out.length();
+            attrCount = 0;
+            out.append('<').append(name);
+            stack[depth++] = name;
+            startOpen = true;
+            hasChildren = false;
+            hasText = false;
+        }
+
+        void attribute(String name, String value) {
+            if (attrCount == attrAt.length) {
+                final int[] grown = new int[attrCount * 2];
+                System.arraycopy(attrAt, 0, grown, 0, attrCount);
+                attrAt = grown;
+            }
+            attrAt[attrCount++] = out.length();
+            out.append(' ').append(name).append("=\"");
+            escape(value, true);
+            out.append('"');
+        }
+
+        void text(String text) {
+            if (startOpen)
+                closeStart(">");
+            escape(text, false);
+            hasText = true;
+        }
+
+        void end() throws IOException {
+            final String name = stack[--depth];
+            if (startOpen) {
+                closeStart("/>");
+            } else {
+                if (hasChildren) {
+                    out.append('\n');
+                    indent(depth * INDENT);
+                }
+                out.append("</").append(name).append('>');
+            }
+            hasChildren = true; // for the parent
+            hasText = false;
+            flushChunk();
+        }
+
+        /**
+         * Close the open start tag, laying it out as castor's serializer does: before
+         * placing each piece of the tag (the element name, then every attribute but the
+         * last), it breaks the line if the piece would run past the line width, and
+         * continues on the next line at the child indent.  The last attribute and the
+         * closing bracket always stay on the current line.
+         */
+        private void closeStart(String close) {
+            startOpen = false;
+            if (attrCount > 0 && tagIndent + out.length() - tagAt > LINE_WIDTH) {
+                final String tag = out.substring(tagAt);
+                out.setLength(lineAt);
+                int thisIndent = tagIndent;
+                int lineLength = 0;
+                int spaces = 0;
+                int from = 0;
+                for (int i = 0; i <= attrCount; i++) {
+                    final int to = i < attrCount ? attrAt[i] - tagAt : tag.length();
+                    if (i < attrCount && thisIndent + lineLength + spaces + (to - from) > LINE_WIDTH) {
+                        if (lineLength > 0) {
+                            thisIndent = tagIndent + INDENT;
+                            spaces = 0;
+                        }
+                        out.append('\n');
+                        lineLength = 0;
+                    }
+                    if (lineLength == 0)
+                        indent(thisIndent);
+                    for (int n = 0; n < spaces; n++)
+                        out.append(' ');
+                    out.append(tag, from, to);
+                    lineLength += spaces + (to - from);
+                    spaces = 1;
+                    from = to + 1; // skip the space before the attribute
+                }
+            }
+            out.append(close);
+        }
+
+        private void indent(int width) {
+            if (width > LINE_WIDTH / 2)
+                width = LINE_WIDTH / 2; // as castor's serializer does
+            for (int i = 0; i < width; i++)
+                out.append(' ');
+        }
+
+        private void escape(String s, boolean inAttribute) {
+            final int len = s.length();
+            for (int i = 0; i < len; i++) {
+                final char c = s.charAt(i);
+                switch (c) {
+                case '&': out.append("&amp;"); break;
+                case '<': out.append("&lt;"); break;
+                case '>':
+                    if (inAttribute) out.append(c); // as castor does
+                    else out.append("&gt;");
+                    break;
+                case '"':
+                    if (inAttribute) out.append("&quot;");
+                    else out.append(c);
+                    break;
+                case '\n':
+                    if (inAttribute) out.append("&#xa;");
+                    else out.append(c);
+                    break;
+                case '\t':
+                    if (inAttribute) out.append("&#x9;");
+                    else out.append(c);
+                    break;
+                default:
+                    if (c >= 0x20 && c < 0x7f) {
+                        out.append(c);
+                    } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                        charRef(Character.toCodePoint(c, s.charAt(++i)));
+                    } else {
+                        charRef(c);
+                    }
+                }
+            }
+        }
+
+        private void charRef(int codePoint) {
+            out.append("&#x").append(Integer.toHexString(codePoint)).append(';');
+        }
+    }
+
+    //========================================================================================
+    // Reflection utilities
+    //========================================================================================
+
+    private static boolean isSimpleType(Class c) {
+        return c.isPrimitive()
+            || c == String.class
+            || c == Integer.class
+            || c == Float.class
+            || c == Boolean.class
+            || c == Long.class
+            || c == Double.class
+            || c == Short.class
+            || c == Byte.class
+            || c == Character.class;
+    }
+
+    private static boolean isCollectionType(Class c) {
+        return Collection.class.isAssignableFrom(c) || c.isArray();
+    }
+
+    private static String capitalize(String s) {
+        if (s.length() == 0 || Character.isUpperCase(s.charAt(0)))
+            return s;
+        return Character.toUpperCase(s.charAt(0)) + s.substring(1);
+    }
+
+    private static Field findField(Class c, String name) {
+        for (; c != null; c = c.getSuperclass()) {
+            try {
+                return c.getDeclaredField(name);
+            } catch (NoSuchFieldException e) {}
+        }
+        return null;
+    }
+
+    /**
+     * Find a public method with the given name & number of arguments.  If there are overloads,
+     * prefer the one whose single argument type matches the hint (treating primitives and their
+     * wrappers as the same), otherwise returns the first found.
+     */
+    private static Method findMethod(Class c, String name, int nargs, Class hint) {
+        Method found = null;
+        for (Method m : c.getMethods()) {
+            if (m.getParameterTypes().length != nargs || !m.getName().equals(name))
+                continue;
+            if (m.isBridge())
+                continue;
+            if (found == null)
+                found = m;
+            if (hint != null && nargs == 1) {
+                final Class p = m.getParameterTypes()[0];
+                if (boxed(p) == boxed(hint) || p.isAssignableFrom(boxed(hint))) {
+                    found = m;
+                    break;
+                }
+            }
+        }
+        if (found != null && !Modifier.isPublic(found.getDeclaringClass().getModifiers()))
+            found.setAccessible(true);
+        return found;
+    }
+
+    private static Class boxed(Class c) {
+        if (!c.isPrimitive())       return c;
+        if (c == Integer.TYPE)      return Integer.class;
+        if (c == Float.TYPE)        return Float.class;
+        if (c == Boolean.TYPE)      return Boolean.class;
+        if (c == Long.TYPE)         return Long.class;
+        if (c == Double.TYPE)       return Double.class;
+        if (c == Short.TYPE)        return Short.class;
+        if (c == Byte.TYPE)         return Byte.class;
+        if (c == Character.TYPE)    return Character.class;
+        return c;
+    }
+
+    /**
+     * Round-trip check & benchmark: for each map file given (VUE save files), verify
+     * that the codec writes the same document castor does, both for the map as castor
+     * reads it and as the codec reads it, and that codec output re-reads to the same
+     * document, then time castor vs the codec for both reading and writing.
+     */
+    public static void main(String args[]) throws Exception
+    {
+        DEBUG.Enabled = false;
+        final int iterations = Integer.getInteger("iterations", 20).intValue();
+
+        for (String arg : args) {
+            final File file = new File(arg);
+
+            ActionUtil.StreamCodecEnabled = true;
+            final LWMap map = ActionUtil.unmarshallMap(file);
+            // the first re-write picks up the new save file name, so compare the 2nd & 3rd generations
+            final File tmp = File.createTempFile("codec", ".vue");
+            tmp.deleteOnExit();
+            rewrite(map, tmp);
+            final String second = rewrite(ActionUtil.unmarshallMap(tmp), tmp);
+            final String third = rewrite(ActionUtil.unmarshallMap(tmp), tmp);
+            System.out.println(file + ": " + third.length() + " chars, round-trip "
+                               + (stripVolatile(second).equals(stripVolatile(third)) ? "identical" : "DIFFERS"));
+
+            // castor is the reference: the codec must write the same document castor does for
+            // the same map, and read the same map castor does (as seen through castor's output,
+            // less the time-stamp on the map's own resource, which is set when it's read).  Use
+            // the re-written file, as reading a map saved by an older version makes up new
+            // content (layers, URIs) each time.
+            final String[] castorOutput = new String[2];
+            for (int read = 0; read < 2; read++) {
+                ActionUtil.StreamCodecEnabled = read > 0;
+                final LWMap m = ActionUtil.unmarshallMap(tmp);
+                ActionUtil.StreamCodecEnabled = false;
+                castorOutput[read] = rewrite(m, null);
+                ActionUtil.StreamCodecEnabled = true;
+                System.out.println(file + ": as read by " + (read > 0 ? "codec" : "castor") + ", written "
+                                   + (stripComments(castorOutput[read]).equals(stripComments(rewrite(m, null)))
+                                      ? "identical" : "DIFFERENTLY") + " by castor & codec");
+            }
+            System.out.println(file + ": read "
+                               + (stripVolatile(castorOutput[0]).equals(stripVolatile(castorOutput[1]))
+                                  ? "identically" : "DIFFERENTLY") + " by castor & codec");
+
+            for (int pass = 0; pass < 2; pass++) {
+                // pass 0 is warm-up
+                for (boolean codec : new boolean[] { false, true }) {
+                    ActionUtil.StreamCodecEnabled = codec;
+                    long t = System.nanoTime();
+                    for (int i = 0; i < iterations; i++)
+                        ActionUtil.unmarshallMap(file);
+                    final long read = System.nanoTime() - t;
+                    t = System.nanoTime();
+                    for (int i = 0; i < iterations; i++)
+                        ActionUtil.marshallMapToWriter(map, new StringWriter());
+                    final long write = System.nanoTime() - t;
+                    if (pass > 0)
+                        System.out.format("    %-6s read %8.2fms  write %8.2fms%n",
+                                          codec ? "codec" : "castor",
+                                          read / 1e6 / iterations,
+                                          write / 1e6 / iterations);
+                }
+            }
+        }
+        ActionUtil.StreamCodecEnabled = true;
+    }
+
+    /** write the map to the file, if one is given, and return the XML */
+    private static String rewrite(LWMap map, File file) throws Exception {
+        final StringWriter w = new StringWriter();
+        ActionUtil.marshallMapToWriter(map, w);
+        if (file == null)
+            return w.toString();
+        final Writer out = new OutputStreamWriter(new FileOutputStream(file), "US-ASCII");
+        out.write(w.toString());
+        out.close();
+        return w.toString();
+    }
+
+    /** strip the header comments, which hold the save date */
+    private static String stripComments(String xml) {
+        return xml.replaceAll("<!--.*?-->", "");
+    }
+
+    /** strip the save-date header comments and the resource load time-stamps (and sizes, which change for the map's own file) */
+    private static String stripVolatile(String xml) {
+        return stripComments(xml).replaceAll("referenceCreated=\"[0-9]*\"( size=\"[0-9]*\")?", "");
+    }
+
+    public String toString() {
+        return "MapStreamCodec[" + mappingSource + "; " + classMaps.size() + " classes, " + bindings.size() + " bound]";
+    }
+}
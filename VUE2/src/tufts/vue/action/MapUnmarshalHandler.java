@@ -0,0 +1,216 @@
+/*
+* Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ * 
+ * http://www.osedu.org/licenses/ECL-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.vue.action;
+
+import tufts.Util;
+import tufts.vue.VueUtil;
+import tufts.vue.LWMap;
+import tufts.vue.MapLoadMetrics;
+import tufts.vue.VueResources;
+import tufts.vue.XMLUnmarshalListener;
+import tufts.vue.DEBUG;
+import tufts.vue.gui.GUI;
+
+import org.exolab.castor.xml.UnmarshalListener;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * This class serves as both an UnmarshalListener impl for VUE LWMap's and their components,
+ * as well as a handles what to do to / with a map once it's been unmarshalled to get
+ * it into it's final, completed state (e.g., in some cases, transformations may need to be performed).
+ */
+
+class MapUnmarshalHandler implements UnmarshalListener {
+
+    public static final Object CONTEXT_NONE = "NONE";
+
+    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(MapUnmarshalHandler.class);
+
+    final Object source;
+    final Object context;
+
+    protected LWMap map;
+    protected File file;
+        
+    MapUnmarshalHandler(Object source, Object context) {
+        this.source = source;
+        if (context == null)
+            this.context = CONTEXT_NONE;
+        else
+            this.context = context;
+    }
+
+    /** This must be called first */
+    void notifyFile(final LWMap map, final File file)
+    {
+        this.map = map;
+        this.file = file;
+
+        map.setFile(file); // VUE-713: do this always
+
+        // Note: LWMap.setFile sets the map label
+        
+    }
+
+    /** This must be called in sequence after notifyFile */
+    void notifyVersionOfVueThatSavedMap(String savingVersion)
+    {
+        final String fileName = file.getName();
+
+        if (map.getModelVersion() > LWMap.getCurrentModelVersion()) {
+            final String message =
+                          String.format(Locale.getDefault(),
+                                        VueResources.local("actionutil.notifyversion.message")+ "\n\n" +
+                                        VueResources.local("actionutil.notifyversion.datamodel")+" \n",
+                                        file, map.getModelVersion(), LWMap.getCurrentModelVersion())
+                          + "\n"+VueResources.local("actionutil.notifyversion.savedversion")   +"\n" + savingVersion
+                          + "\n"+VueResources.local("actionutil.notifyversion.currentversion") +"\n"
+                          + "        " + VueResources.local("actionutil.notifyversion.vuebuilt") + " " + tufts.vue.Version.AllInfo
+                          + " (public v" + VueResources.local("vue.version") + ")"
+                          + "\n"
+                          + "\n"+VueResources.local("actionutil.notifyversion.displaymap")
+                          + "\n"+VueResources.local("actionutil.notifyversion.corruptmap");
+            final String title =
+                String.format(Locale.getDefault(),VueResources.local("actionutil.notifyversion.versionwarning"), fileName);
+
+            // we may be loading in the background (see MapLoader)
+            GUI.invokeOnEDT(new Runnable() { public void run() {
+                VueUtil.alert(message, title);
+            }});
+
+            map.setLabel(fileName + " (as available)");
+            // Skip setting the file: this will force save-as if they try to save.
+        } else {
+
+            // VUE-713: don't do this conditionallly
+            //                 // This setFile also sets the label name, so it appears as a modification in the map.
+            //                 // So be sure to do completeXMLRestore last, as it will reset the modification count.
+            //                 if (map.getModelVersion() < 1) {
+            //                     map.setLabel(file.getName());
+            //                     // force save as for old maps as they will no longer work in old stable versions of VUE (1.5 & prior)
+            //                     // if they're saved in this new version of VUE.
+            //                 } else {
+            //                     map.setFile(file);
+            //                 }
+                
+            if (DEBUG.DATA && DEBUG.META) map.setLabel("|" + map.getModelVersion() + "| " + map.getLabel());
+        }
+
+        Log.debug("label-set: " + map);
+        
+    }
+
+    /** This must be called last */
+    void notifyUnmarshallingCompleted() {
+        // note that map.setFile should normally have been completed before this is called
+        map.completeXMLRestore(context);
+    }
+    
+            
+    /** @see org.exolab.castor.xml.UnmarshalListener */
+    public void initialized(Object o) {
+        // called for every object restored: a good place to notice a cancelled load
+        MapLoadMetrics.checkCancelled();
+        if (DEBUG.XML && DEBUG.META) Log.debug(" initialized: " + Util.tags(o));
+        if (o instanceof XMLUnmarshalListener) {
+            try {
+                ((XMLUnmarshalListener)o).XML_initialized(context);
+            } catch (Throwable t) {
+                Log.error(this, t);
+            }
+        }
+    }
+    
+    /** @see org.exolab.castor.xml.UnmarshalListener */
+    public void attributesProcessed(Object o) {
+        if (DEBUG.XML && DEBUG.META) Log.debug("  attributes: " + Util.tags(o));
+    }
+    
+    /** @see org.exolab.castor.xml.UnmarshalListener */
+    public void unmarshalled(Object o) {
+        if (DEBUG.XML && DEBUG.META) Log.debug("unmarshalled: " + Util.tags(o));
+            
+        if (o instanceof XMLUnmarshalListener) {
+            try {
+                ((XMLUnmarshalListener)o).XML_completed(context);
+            } catch (Throwable t) {
+                Log.error(this, t);
+            }
+        }
+    }
+
+    /** @see org.exolab.castor.xml.UnmarshalListener */
+    public void fieldAdded(String name, Object parent, Object child) {
+        if (DEBUG.XML) {
+
+            //final String field = "child[" + Util.TERM_YELLOW + name + Util.TERM_CLEAR + "] ";
+            //final String field = Util.TERM_YELLOW + name + Util.TERM_CLEAR + ": ";
+            final String field = Util.tag(parent) + "/" + Util.TERM_YELLOW + name + Util.TERM_CLEAR + " = ";
+            
+            if (DEBUG.META) {
+                Log.debug("  fieldAdded: parent: " + Util.tags(parent) + " " + field + Util.tags(child) + "\n");
+                //System.out.println("VUL fieldAdded: parent: " + parent.getClass().getName() + "\t" + tos(parent) + "\n"
+                //+ "             new child: " +  child.getClass().getName() + " \"" + name + "\" " + tos(child) + "\n");
+            } else {
+                if (child instanceof String)
+                    Log.debug(field + Util.TERM_RED + '"' + child + '"' + Util.TERM_CLEAR);
+                else
+                    Log.debug(field + Util.TERM_PURPLE + Util.tags(child) + Util.TERM_CLEAR);
+                //Log.debug(field + Util.tags(child));
+            }
+        }
+        if (parent instanceof XMLUnmarshalListener) {
+            try {
+                ((XMLUnmarshalListener)parent).XML_fieldAdded(context, name, child);
+            } catch (Throwable t) {
+                Log.error(this, t);
+            }
+        }
+        if (child instanceof XMLUnmarshalListener) {
+            try {
+                ((XMLUnmarshalListener)child).XML_addNotify(context, name, parent);
+            } catch (Throwable t) {
+                Log.error(this, t);
+            }
+        }
+    }
+
+    public String toString() {
+        return getClass().getName() + "[" + context + "; " + source + "]";
+    }
+
+//         // exception trapping toString in case the object isn't initialized enough
+//         // for it's toString to work...
+//         private String tos(Object o) {
+//             if (o == null)
+//                 return "<null-object>";
+            
+//             String s = o.getClass().getName() + " ";
+//             //String s = null;
+//             String txt = null;
+//             try {
+//                 txt = o.toString();
+//                 if (
+//             } catch (Throwable t) {
+//                 txt = t.toString();
+//                 // "[" + t.toString() + "]";
+//             }
+//             return s;
+//         }
+    
+}
@@ -133,16 +133,33 @@ public class OpenAction extends VueAction
     // (and also, again, merge this with ActionUtil unmarshall code?)
     public static LWMap loadMap(String filename) {
 
-        LWMap map = null;
+        final MapLoadMetrics metrics = MapLoadMetrics.begin(filename);
         
         try {
-            map = doLoadMap(filename);
-        } catch (FileNotFoundException e) {
+            return doLoadMap(filename);
+        } catch (Throwable t) {
+            metrics.end(); // don't time the alert
+            return handleLoadFailure(filename, t);
+        } finally {
+            metrics.end();
+            Log.info(metrics);
+        }
+    }
+
+    /**
+     * Tell the user the given file couldn't be loaded.
+     * @return a new empty map to stand in for the file, or null
+     */
+    static LWMap handleLoadFailure(String filename, Throwable t) {
+
+        LWMap map = null;
+        
+        if (t instanceof FileNotFoundException) {
             // maybe move all exception code here, taking the file-not-found handling
-            Log.error("loadMap " + Util.tags(filename), e);
+            Log.error("loadMap " + Util.tags(filename), t);
             VueUtil.alert(null, "\"" + filename + "\"" +VueResources.getString("openaction.mapnotfound.error"), VueResources.getString("openaction.mapnotfound.title"));
             map = LWMap.create(filename);
-        } catch (Throwable t) {
+        } else {
             // out of the Open File dialog box.
             Log.error("loadMap " + Util.tags(filename), t);
             if (t.getCause() != null)
@@ -170,7 +187,7 @@ public class OpenAction extends VueAction
         return map;
     }
 
-    private static LWMap doLoadMap(String filename)
+    static LWMap doLoadMap(String filename)
         throws java.io.FileNotFoundException,
                java.util.zip.ZipException,
                java.io.IOException
@@ -0,0 +1,445 @@
+/*
+* Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.vue.action;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import tufts.vue.DEBUG;
+import tufts.vue.PackageEntryFile;
+import tufts.vue.PropertyEntry;
+
+/**
+ * Writes the resource data for a VUE package into its zip stream.
+ *
+ * Each resource data file is read on a worker thread, which computes its CRC and a
+ * content hash.  Only a window of items just ahead of the one being written is ever
+ * being read, so only a few files are held in memory at once, and entries are always
+ * written in item order, so the same map always produces the same package.  Files too
+ * large to hold in memory are only hashed by the worker, and streamed from disk by the
+ * writer.
+ *
+ * Resources with identical content are written to the package only once: they share
+ * an entry in the returned manifest.  Data in formats that are already compressed
+ * (JPEG, PNG, PDF, etc) is written uncompressed (STORED), as deflating it again costs
+ * a great deal of time and saves next to nothing.  STORED entries need their CRC up
+ * front, which for data streamed from disk could be out of date by the time it's
+ * written, so those are instead DEFLATED at compression level 0, which costs about
+ * the same, and has the CRC computed as it's written.
+ *
+ * If the previous version of the package is provided, the hash of any entry in it
+ * with the same name, size and modification time as the source file is reused, and
+ * that file needn't be hashed again (for files held in memory, only if their CRC also
+ * still matches).  (java.util.zip has no way to copy compressed
+ * entry data from one archive to another, so the data itself is always re-written).
+ *
+ * @see Archive#writeArchive
+ */
+class PackageWriter
+{
+    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(PackageWriter.class);
+
+    /** entry comment key for the hash of the entry content: must precede the SPEC_KEY */
+    static final String HASH_KEY = "sha1=";
+
+    /** file extensions of formats whose data is already compressed */
+    private static final Set<String> CompressedFormats = new HashSet<String>(Arrays.asList(new String[] {
+        "jpg", "jpeg", "png", "gif", "pdf",
+        "zip", "gz", "tgz", "jar", "vpk",
+        "docx", "xlsx", "pptx", "odt", "ods", "odp",
+        "mp3", "m4a", "mp4", "m4v", "mov", "avi", "flv", "swf",
+    }));
+
+    /** reading is mostly I/O bound: a few readers are plenty */
+    private static final int READERS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    /** files up to this size are read into memory by the readers */
+    private static final int MAX_BUFFERED = 4 * 1024 * 1024;
+    /** the number of items ahead of the writer that may be read (or waiting to be) at once */
+    private static final int WINDOW = READERS * 3;
+
+    /** zip entry times are DOS times, which have 2 second resolution */
+    private static final long TIME_RESOLUTION = 2000;
+
+    private final ZipOutputStream zos;
+    private final File archive;
+    private final ZipFile previous;
+
+    private int entryCount;
+    private int duplicateCount;
+    private int reusedCount;
+    private long storedBytes;
+    private long deflatedBytes;
+
+    /** a resource data file after it's been through a reader */
+    private static final class Prepared {
+        final Archive.Item item;
+        /** the file content, or null if it's to be streamed from disk */
+        byte[] data;
+        long size;
+        long crc;
+        String hash;
+        boolean reused;
+        Throwable failure;
+
+        Prepared(Archive.Item item) {
+            this.item = item;
+        }
+    }
+
+    /**
+     * @param archive -- the package file being written
+     * @param previous -- the previous version of the package, if any, from which CRCs and
+     * hashes for unchanged data can be reused.  May be null.
+     */
+    PackageWriter(ZipOutputStream zos, File archive, ZipFile previous) {
+        this.zos = zos;
+        this.archive = archive.getAbsoluteFile();
+        this.previous = previous;
+    }
+
+    /** @return the number of resource entries written */
+    int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Write the data for all the given items to the zip stream.  An item whose data
+     * can't be read is skipped.  If writing to the zip stream fails, the whole write is
+     * abandoned.
+     *
+     * @return the manifest for the package: a map of Resource spec to package entry
+     * name for every item written, including those that share an entry
+     */
+    Collection<PropertyEntry> write(List<Archive.Item> items)
+        throws IOException
+    {
+        final long start = System.currentTimeMillis();
+        final Collection<PropertyEntry> manifest = new ArrayList<PropertyEntry>(items.size());
+
+        if (items.isEmpty())
+            return manifest;
+
+        final ExecutorService readers = Executors.newFixedThreadPool(Math.min(READERS, items.size()), new ReaderThreads());
+        final List<Future<Prepared>> pending = new ArrayList<Future<Prepared>>(items.size());
+
+        try {
+            // content hash -> package entry name of the first item with that content
+            final Map<String,String> written = new HashMap<String,String>();
+
+            for (int i = 0; i < items.size(); i++) {
+                // keep the readers a window ahead of us
+                while (pending.size() < items.size() && pending.size() < i + WINDOW)
+                    pending.add(readers.submit(preparer(items.get(pending.size()))));
+                final Prepared p;
+                try {
+                    p = pending.get(i).get();
+                    pending.set(i, null); // let go of the data once written
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("package write interrupted");
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e); // prepare failures are returned in the Prepared
+                }
+                final Archive.Item item = p.item;
+                final String spec = item.resource.getSpec();
+
+                if (p.failure != null) {
+                    Log.error("Failed to archive item: " + item, p.failure);
+                    continue;
+                }
+
+                final String sharedEntry = written.get(p.hash);
+                if (sharedEntry != null) {
+                    Log.info("duplicate: " + item.entry + "; content is in " + sharedEntry);
+                    manifest.add(new PropertyEntry(spec, sharedEntry));
+                    duplicateCount++;
+                    continue;
+                }
+
+                writeEntry(p, spec);
+                written.put(p.hash, item.packageName);
+                manifest.add(new PropertyEntry(spec, item.packageName));
+            }
+        } finally {
+            // if we're abandoning the write, this interrupts any readers still going
+            readers.shutdownNow();
+        }
+
+        Log.info(String.format("wrote %d entries in %dms; %d duplicates; %d reused; %,d bytes stored, %,d bytes deflated",
+                               entryCount,
+                               System.currentTimeMillis() - start,
+                               duplicateCount,
+                               reusedCount,
+                               storedBytes,
+                               deflatedBytes));
+
+        return manifest;
+    }
+
+    private Callable<Prepared> preparer(final Archive.Item item) {
+        return new Callable<Prepared>() { public Prepared call() {
+            final Prepared p = new Prepared(item);
+            try {
+                prepare(p);
+            } catch (Throwable t) {
+                p.failure = t;
+            }
+            return p;
+        }};
+    }
+
+    private void writeEntry(Prepared p, String spec)
+        throws IOException
+    {
+        final Archive.Item item = p.item;
+        final ZipEntry entry = item.entry;
+
+        if (DEBUG.Enabled)
+            Log.debug("writing: " + item + (p.reused ? " (reused)" : ""));
+        else
+            Log.info("writing: " + entry);
+
+        Archive.setComment(entry, "\t" + HASH_KEY + p.hash + "\t" + Archive.SPEC_KEY + spec);
+        entry.setTime(item.dataFile.lastModified());
+
+        final boolean compressed = isCompressedFormat(item.dataFile);
+
+        if (compressed && p.data != null) {
+            // we have the data in hand, so we know the CRC is exactly right
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(p.size);
+            entry.setCompressedSize(p.size);
+            entry.setCrc(p.crc);
+            storedBytes += p.size;
+        } else if (compressed) {
+            // streamed from disk: the file may have changed since it was hashed, so let
+            // the zip stream compute the CRC as it goes
+            entry.setMethod(ZipEntry.DEFLATED);
+            zos.setLevel(Deflater.NO_COMPRESSION);
+            storedBytes += p.size;
+        } else {
+            deflatedBytes += p.size;
+        }
+
+        try {
+            zos.putNextEntry(entry);
+            if (p.data != null)
+                zos.write(p.data, 0, (int) p.size);
+            else
+                Archive.copyBytesToZip(item.dataFile, zos);
+            zos.closeEntry();
+        } finally {
+            zos.setLevel(Deflater.DEFAULT_COMPRESSION);
+        }
+
+        entryCount++;
+        if (p.reused)
+            reusedCount++;
+    }
+
+    /** read, or just hash, the data for the item: runs on a reader thread */
+    private void prepare(Prepared p)
+        throws Exception
+    {
+        final File file = p.item.dataFile;
+
+        if (file instanceof PackageEntryFile) {
+            final PackageEntryFile entryFile = (PackageEntryFile) file;
+            // If the data is still in the package we're about to replace, extract it
+            // while it's still there.
+            if (!entryFile.isExtracted() && entryFile.getPackage().getFile().equals(archive))
+                entryFile.extract();
+        }
+
+        final long length = file.length();
+        final boolean buffer = length <= MAX_BUFFERED;
+
+        final CRC32 crc = new CRC32();
+
+        if (previous != null && reuse(p, file, length)) {
+            if (!buffer)
+                return;
+            // the CRC is cheap: make sure the content is really what was there before
+            p.data = read(file, length, crc, null);
+            if (p.data.length == p.size && crc.getValue() == p.crc)
+                return;
+            // it's changed since the last save, tho it's size & time may not have
+            p.reused = false;
+            crc.reset();
+        }
+
+        final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+
+        if (p.data != null) {
+            crc.update(p.data, 0, p.data.length);
+            digest.update(p.data, 0, p.data.length);
+            p.size = p.data.length;
+        } else if (buffer) {
+            p.data = read(file, length, crc, digest);
+            p.size = p.data.length;
+        } else {
+            p.size = hash(file, crc, digest);
+        }
+        p.crc = crc.getValue();
+        p.hash = toHex(digest.digest());
+    }
+
+    /**
+     * If the previous package has an entry for the item with the same size and time as
+     * the source file, take the CRC and content hash from that.
+     * @return true if the previous entry could be used
+     */
+    private boolean reuse(Prepared p, File file, long length) {
+        final ZipEntry e = previous.getEntry(p.item.entry.getName());
+        if (e == null || e.getSize() != length || e.getCrc() == -1)
+            return false;
+        if (Math.abs(e.getTime() - file.lastModified()) >= TIME_RESOLUTION)
+            return false;
+        final String hash = getHash(e);
+        if (hash == null)
+            return false;
+        p.size = length;
+        p.crc = e.getCrc();
+        p.hash = hash;
+        p.reused = true;
+        return true;
+    }
+
+    /** @return the content hash recorded in the comment of the given entry, if any */
+    static String getHash(ZipEntry entry) {
+        final String comment = Archive.getComment(entry);
+        if (comment == null)
+            return null;
+        final int start = comment.indexOf(HASH_KEY);
+        if (start < 0)
+            return null;
+        final int end = comment.indexOf('\t', start);
+        if (end < 0)
+            return null;
+        return comment.substring(start + HASH_KEY.length(), end);
+    }
+
+    static boolean isCompressedFormat(File file) {
+        final String name = file.getName();
+        final int dot = name.lastIndexOf('.');
+        return dot > 0 && CompressedFormats.contains(name.substring(dot + 1).toLowerCase());
+    }
+
+    /**
+     * Read the whole file, which is expected to be of the given length, updating the
+     * given checksums if they're provided.  If the file has changed size since, we get
+     * whatever is there now.
+     */
+    private static byte[] read(File file, long length, CRC32 crc, MessageDigest digest)
+        throws IOException
+    {
+        final InputStream in = PackageEntryFile.openStream(file);
+        try {
+            byte[] data = new byte[(int) length];
+            int total = 0;
+            int len;
+            for (;;) {
+                if (total == data.length) {
+                    // the file has grown: see if there's more
+                    final int next = in.read();
+                    if (next < 0)
+                        break;
+                    final byte[] larger = new byte[Math.max(data.length * 2, 8192)];
+                    System.arraycopy(data, 0, larger, 0, total);
+                    data = larger;
+                    data[total++] = (byte) next;
+                }
+                if ((len = in.read(data, total, data.length - total)) < 0)
+                    break;
+                total += len;
+            }
+            if (total != data.length) {
+                final byte[] trimmed = new byte[total];
+                System.arraycopy(data, 0, trimmed, 0, total);
+                data = trimmed;
+            }
+            if (crc != null)
+                crc.update(data, 0, data.length);
+            if (digest != null)
+                digest.update(data, 0, data.length);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    /** @return the number of bytes hashed */
+    private static long hash(File file, CRC32 crc, MessageDigest digest)
+        throws IOException
+    {
+        final InputStream in = new BufferedInputStream(PackageEntryFile.openStream(file), 65536);
+        try {
+            final byte[] buf = new byte[65536];
+            long total = 0;
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                crc.update(buf, 0, len);
+                digest.update(buf, 0, len);
+                total += len;
+            }
+            return total;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static String toHex(byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i*2]     = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i*2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    private static final class ReaderThreads implements ThreadFactory {
+        private int count;
+        public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "PackageWriter-reader-" + (++count));
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
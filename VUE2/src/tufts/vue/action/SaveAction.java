@@ -170,6 +170,8 @@ public class SaveAction extends VueAction
                 ImageConversion.createActiveMapJpeg(file,VueResources.getDouble("imageExportFactor"));
             else if (name.endsWith(".png"))
                 ImageConversion.createActiveMapPng(file,VueResources.getDouble("imageExportFactor"));
+            else if (name.endsWith(".dzi"))
+                ImageConversion.createActiveMapTilePyramid(file,VueResources.getDouble("imageExportFactor"));
             else if (name.endsWith(".svg"))
                 SVGConversion.createSVG(file);
             
@@ -0,0 +1,472 @@
+/*
+* Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.vue.action;
+
+import tufts.vue.DEBUG;
+import tufts.vue.LWComponent;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Writes an image of a map (or any LWComponent) of any size without ever
+ * holding the whole image in memory.
+ *
+ * The image is presented to the ImageIO writer as a RenderedImage made of
+ * full-width horizontal bands.  A band is only rendered when the writer asks
+ * for its rows, and is dropped again once the writer has moved on, so at most
+ * a few bands are in memory at a time.  Each band is drawn as a row of tiles,
+ * one per render thread, via {@link LWComponent#drawImageTile}, and the next
+ * band is rendered in the background while the writer encodes the current one.
+ *
+ * This only bounds memory for writers that pull the image a piece at a time
+ * (e.g., PNG, and TIFF where available).  The JPEG writer pulls the whole
+ * raster at once, so JPEG exports still go through LWComponent.getAsImage.
+ *
+ * Can also write a Deep Zoom (.dzi) tile pyramid of the map, for viewing
+ * maps too large to view as a single image.
+ */
+
+public class TiledImageWriter
+{
+    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(TiledImageWriter.class);
+
+    /** the width of the tiles drawn by each render thread */
+    private static final int RenderTileWidth = 512;
+    /** the approximate max bytes of a single band */
+    private static final int BandBytes = 16 * 1024 * 1024;
+    /** tile size for deep zoom pyramids */
+    public static final int PyramidTileSize = 256;
+
+    private static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private static ExecutorService RenderPool;
+    private static ExecutorService BandPool;
+
+    private static synchronized ExecutorService getRenderPool() {
+        if (RenderPool == null)
+            RenderPool = Executors.newFixedThreadPool(THREADS, new NamedThreads("TiledImageWriter-render"));
+        return RenderPool;
+    }
+
+    /** a separate pool for band production: band tasks wait on render tasks */
+    private static synchronized ExecutorService getBandPool() {
+        if (BandPool == null)
+            BandPool = Executors.newSingleThreadExecutor(new NamedThreads("TiledImageWriter-band"));
+        return BandPool;
+    }
+
+    private static final class NamedThreads implements ThreadFactory {
+        private final String name;
+        private int count;
+        NamedThreads(String name) { this.name = name; }
+        public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, name + "-" + (++count));
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /** @return true if the given format can be streamed a piece at a time */
+    public static boolean isStreamable(String format) {
+        return !"jpeg".equalsIgnoreCase(format)
+            && !"jpg".equalsIgnoreCase(format)
+            && ImageIO.getImageWritersByFormatName(format).hasNext();
+    }
+
+    /**
+     * Write an image of the given component at the given zoom, of any size.
+     * @param fillColor -- background for the image: if null, the image has an alpha channel
+     * @param format -- an ImageIO format name, e.g. "png" or "tiff"
+     * @return the pixel size of the written image
+     */
+    public static Dimension write(LWComponent c, Color fillColor, double zoom, File location, String format)
+        throws IOException
+    {
+        final Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext())
+            throw new IOException("no image writer for format " + format);
+        final ImageWriter writer = writers.next();
+        final BandedImage image = new BandedImage(c, fillColor, zoom);
+
+        Log.info("writing " + image + " to " + location);
+
+        // FileImageOutputStream won't truncate an existing file
+        if (location.exists() && !location.delete())
+            throw new IOException("can't overwrite " + location);
+        final ImageOutputStream output = ImageIO.createImageOutputStream(location);
+        if (output == null)
+            throw new IOException("can't write to " + location);
+        try {
+            writer.setOutput(output);
+            final ImageWriteParam param = writer.getDefaultWriteParam();
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            image.dispose();
+            writer.dispose();
+            output.close();
+        }
+        return new Dimension(image.getWidth(), image.getHeight());
+    }
+
+    /**
+     * Write a Deep Zoom tile pyramid of the given component: the given .dzi descriptor file,
+     * and the tiles in a directory next to it named [name]_files.  Every level is rendered
+     * directly from the map at that level's zoom.
+     * @param zoom -- the zoom of the most detailed level
+     * @param tileFormat -- the ImageIO format name for the tiles, e.g., "png" or "jpeg"
+     * @return the pixel size of the most detailed level
+     */
+    public static Dimension writePyramid(final LWComponent c, final Color fillColor, final double zoom, File dzi, final String tileFormat)
+        throws IOException
+    {
+        final Dimension size = c.getImageSize(zoom);
+        String name = dzi.getName();
+        if (name.lastIndexOf('.') > 0)
+            name = name.substring(0, name.lastIndexOf('.'));
+        final File tileDir = new File(dzi.getAbsoluteFile().getParentFile(), name + "_files");
+
+        int maxLevel = 0;
+        while ((1 << maxLevel) < Math.max(size.width, size.height))
+            maxLevel++;
+
+        Log.info("writing " + (maxLevel + 1) + " level tile pyramid of " + c + " at " + size.width + "x" + size.height + " to " + tileDir);
+
+        final ExecutorService pool = getRenderPool();
+        final int imageType = fillColor == null || fillColor.getAlpha() != 255
+            ? BufferedImage.TYPE_INT_ARGB
+            : BufferedImage.TYPE_INT_RGB;
+        final String ext = "jpeg".equalsIgnoreCase(tileFormat) ? "jpg" : tileFormat.toLowerCase();
+
+        for (int level = maxLevel; level >= 0; level--) {
+            final double scale = 1.0 / (1L << (maxLevel - level));
+            final double levelZoom = zoom * scale;
+            final int width = Math.max(1, (int) Math.ceil(size.width * scale));
+            final int height = Math.max(1, (int) Math.ceil(size.height * scale));
+            final File levelDir = new File(tileDir, Integer.toString(level));
+            if (!levelDir.isDirectory() && !levelDir.mkdirs())
+                throw new IOException("can't create " + levelDir);
+
+            // do a row of tiles at a time, so that the number of pending tiles stays bounded
+            for (int y = 0, row = 0; y < height; y += PyramidTileSize, row++) {
+                final List<Future<Object>> tiles = new ArrayList<Future<Object>>();
+                for (int x = 0, col = 0; x < width; x += PyramidTileSize, col++) {
+                    final Rectangle tile = new Rectangle(x, y,
+                                                         Math.min(PyramidTileSize, width - x),
+                                                         Math.min(PyramidTileSize, height - y));
+                    final File file = new File(levelDir, col + "_" + row + "." + ext);
+                    tiles.add(pool.submit(new Callable<Object>() {
+                            public Object call() throws IOException {
+                                final BufferedImage image = new BufferedImage(tile.width, tile.height, imageType);
+                                final Graphics2D g = image.createGraphics();
+                                try {
+                                    c.drawImageTile(g, fillColor, levelZoom, tile);
+                                } finally {
+                                    g.dispose();
+                                }
+                                if (!ImageIO.write(image, tileFormat, file))
+                                    throw new IOException("no image writer for format " + tileFormat);
+                                return null;
+                            }
+                        }));
+                }
+                waitFor(tiles);
+            }
+            if (DEBUG.IMAGE) Log.debug("wrote level " + level + " " + width + "x" + height);
+        }
+
+        final Writer out = new OutputStreamWriter(new FileOutputStream(dzi), "UTF-8");
+        try {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                      + "<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\""
+                      + " TileSize=\"" + PyramidTileSize + "\" Overlap=\"0\" Format=\"" + ext + "\">\n"
+                      + "  <Size Width=\"" + size.width + "\" Height=\"" + size.height + "\"/>\n"
+                      + "</Image>\n");
+        } finally {
+            out.close();
+        }
+        return size;
+    }
+
+    private static <T> void waitFor(List<Future<T>> tasks) throws IOException {
+        try {
+            for (Future<T> f : tasks)
+                f.get();
+        } catch (InterruptedException e) {
+            for (Future<T> f : tasks)
+                f.cancel(true);
+            throw new IOException("interrupted");
+        } catch (ExecutionException e) {
+            for (Future<T> f : tasks)
+                f.cancel(true);
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * A RenderedImage of an LWComponent made of one column of full-width tiles ("bands"),
+     * each of which is rendered on demand.
+     */
+    private static final class BandedImage implements RenderedImage
+    {
+        private final LWComponent lwc;
+        private final Color fill;
+        private final double zoom;
+        private final int width;
+        private final int height;
+        private final int bandHeight;
+        private final int imageType;
+        private final ColorModel colorModel;
+        private final SampleModel sampleModel;
+        /** the bands rendered or being rendered: keeps at most the previous, current and next band */
+        private final Map<Integer,Future<BufferedImage>> bands = new HashMap<Integer,Future<BufferedImage>>();
+
+        BandedImage(LWComponent c, Color fillColor, double zoom) {
+            this.lwc = c;
+            this.fill = fillColor;
+            this.zoom = zoom;
+            final Dimension size = c.getImageSize(zoom); // also computes all bounds before we go multi-threaded
+            this.width = Math.max(1, size.width);
+            this.height = Math.max(1, size.height);
+            this.bandHeight = Math.max(1, Math.min(height, BandBytes / 4 / width));
+            this.imageType = fillColor == null || fillColor.getAlpha() != 255
+                ? BufferedImage.TYPE_INT_ARGB
+                : BufferedImage.TYPE_INT_RGB;
+            final BufferedImage sample = new BufferedImage(1, 1, imageType);
+            this.colorModel = sample.getColorModel();
+            this.sampleModel = sample.getSampleModel().createCompatibleSampleModel(width, bandHeight);
+        }
+
+        private synchronized Raster getBand(final int band) {
+            if (!bands.containsKey(band))
+                bands.put(band, startBand(band));
+            // read-ahead the next band while the writer is encoding this one
+            if ((band + 1) * bandHeight < height && !bands.containsKey(band + 1))
+                bands.put(band + 1, startBand(band + 1));
+            // forget about bands the writer has moved past
+            for (Iterator<Integer> i = bands.keySet().iterator(); i.hasNext();) {
+                final int b = i.next();
+                if (b < band - 1 || b > band + 1) {
+                    bands.get(b).cancel(false);
+                    i.remove();
+                }
+            }
+            final BufferedImage image;
+            try {
+                image = bands.get(band).get();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("rendering band " + band + " of " + this, e.getCause());
+            }
+            return image.getRaster().createTranslatedChild(0, band * bandHeight);
+        }
+
+        private Future<BufferedImage> startBand(final int band) {
+            return getBandPool().submit(new Callable<BufferedImage>() {
+                    public BufferedImage call() throws IOException {
+                        return renderBand(band);
+                    }
+                });
+        }
+
+        private BufferedImage renderBand(int band) throws IOException {
+            final BufferedImage image = new BufferedImage(width, bandHeight, imageType);
+            final int y = band * bandHeight;
+            final List<Future<Object>> tiles = new ArrayList<Future<Object>>();
+            for (int x = 0; x < width; x += RenderTileWidth) {
+                final Rectangle tile = new Rectangle(x, y, Math.min(RenderTileWidth, width - x), bandHeight);
+                final BufferedImage tileImage = image.getSubimage(tile.x, 0, tile.width, tile.height);
+                tiles.add(getRenderPool().submit(new Callable<Object>() {
+                        public Object call() {
+                            final Graphics2D g = tileImage.createGraphics();
+                            try {
+                                lwc.drawImageTile(g, fill, zoom, tile);
+                            } finally {
+                                g.dispose();
+                            }
+                            return null;
+                        }
+                    }));
+            }
+            waitFor(tiles);
+            if (DEBUG.IMAGE) Log.debug("rendered band " + band + " at y=" + y);
+            return image;
+        }
+
+        synchronized void dispose() {
+            for (Future<BufferedImage> f : bands.values())
+                f.cancel(false);
+            bands.clear();
+        }
+
+        public WritableRaster copyData(WritableRaster raster) {
+            if (raster == null)
+                raster = colorModel.createCompatibleWritableRaster(width, height);
+            final int minBand = Math.max(0, raster.getMinY() / bandHeight);
+            final int maxBand = Math.min(getNumYTiles() - 1, (raster.getMinY() + raster.getHeight() - 1) / bandHeight);
+            for (int b = minBand; b <= maxBand; b++)
+                raster.setRect(getBand(b));
+            return raster;
+        }
+
+        public Raster getData(Rectangle rect) {
+            final WritableRaster raster = colorModel
+                .createCompatibleWritableRaster(rect.width, rect.height)
+                .createWritableTranslatedChild(rect.x, rect.y);
+            return copyData(raster);
+        }
+
+        /** note: this is the only method that will allocate memory for the entire image */
+        public Raster getData() {
+            return copyData(null);
+        }
+
+        public Raster getTile(int tileX, int tileY) {
+            return getBand(tileY);
+        }
+
+        public Vector<RenderedImage> getSources() { return null; }
+        public Object getProperty(String name) { return Image.UndefinedProperty; }
+        public String[] getPropertyNames() { return null; }
+        public ColorModel getColorModel() { return colorModel; }
+        public SampleModel getSampleModel() { return sampleModel; }
+        public int getWidth() { return width; }
+        public int getHeight() { return height; }
+        public int getMinX() { return 0; }
+        public int getMinY() { return 0; }
+        public int getNumXTiles() { return 1; }
+        public int getNumYTiles() { return (height + bandHeight - 1) / bandHeight; }
+        public int getMinTileX() { return 0; }
+        public int getMinTileY() { return 0; }
+        public int getTileWidth() { return width; }
+        public int getTileHeight() { return bandHeight; }
+        public int getTileGridXOffset() { return 0; }
+        public int getTileGridYOffset() { return 0; }
+
+        public String toString() {
+            return "BandedImage[" + lwc + " " + width + "x" + height + " zoom=" + zoom + " bands=" + getNumYTiles() + "x" + bandHeight + "]";
+        }
+    }
+
+    //----------------------------------------------------------------------------------------
+    // peak memory test
+    //----------------------------------------------------------------------------------------
+
+    private static volatile long PeakHeap;
+
+    private static void startHeapSampler() {
+        final Thread t = new Thread("heap-sampler") {
+                public void run() {
+                    final Runtime rt = Runtime.getRuntime();
+                    for (;;) {
+                        final long used = rt.totalMemory() - rt.freeMemory();
+                        if (used > PeakHeap)
+                            PeakHeap = used;
+                        try { sleep(5); } catch (InterruptedException e) { return; }
+                    }
+                }
+            };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Generate a grid map of linked nodes and export it at the given zoom, reporting
+     * the peak heap used.
+     * args: [node-count] [zoom] [output.png|output.dzi] [-full (use LWComponent.getAsImage)]
+     */
+    public static void main(String args[]) throws Exception {
+        DEBUG.Enabled = false;
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final double zoom = args.length > 1 ? Double.parseDouble(args[1]) : 4.0;
+        final File out = new File(args.length > 2 ? args[2] : "tiled-test.png");
+        final boolean full = args.length > 3 && args[3].equals("-full");
+
+        final tufts.vue.LWMap map = new tufts.vue.LWMap("tiled");
+        final int columns = (int) Math.ceil(Math.sqrt(count));
+        final List<tufts.vue.LWComponent> nodes = new ArrayList<tufts.vue.LWComponent>();
+        for (int i = 0; i < count; i++) {
+            final tufts.vue.LWNode node = new tufts.vue.LWNode("node " + i);
+            node.setLocation((i % columns) * 150, (i / columns) * 100);
+            node.setFillColor(new Color(Color.HSBtoRGB(i / (float) count, 0.3f, 1f)));
+            nodes.add(node);
+        }
+        for (int i = 1; i < count; i++)
+            nodes.add(new tufts.vue.LWLink(nodes.get(i - 1), nodes.get(i)));
+        map.addChildren(nodes);
+
+        final Dimension size = map.getImageSize(zoom);
+        System.gc();
+        final long base = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+        PeakHeap = 0;
+        startHeapSampler();
+
+        final long start = System.nanoTime();
+        if (full) {
+            ImageConversion.convert(map.getAsImage(zoom), out, "png");
+        } else if (out.getName().endsWith(".dzi")) {
+            writePyramid(map, map.getFillColor(), zoom, out, "png");
+        } else {
+            write(map, map.getFillColor(), zoom, out, "png");
+        }
+        final double secs = (System.nanoTime() - start) / 1e9;
+
+        System.out.format("%d nodes, %dx%d pixels (%.0f MB raw) -> %s: %.2fs, peak heap %.0f MB over %.0f MB base, %d threads\n",
+                          count, size.width, size.height, size.width * (double) size.height * 4 / (1 << 20),
+                          out, secs, (PeakHeap - base) / (double) (1 << 20), base / (double) (1 << 20), THREADS);
+        System.exit(0);
+    }
+}
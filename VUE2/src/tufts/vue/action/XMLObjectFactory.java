@@ -0,0 +1,79 @@
+/*
+* Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ * 
+ * http://www.osedu.org/licenses/ECL-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.vue.action;
+
+import tufts.Util;
+import tufts.vue.DEBUG;
+
+final class XMLObjectFactory extends org.exolab.castor.util.DefaultObjectFactory {
+
+    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(XMLObjectFactory.class);
+
+    final Object source;
+
+    XMLObjectFactory(Object source) {
+        this.source = source;
+        if (DEBUG.Enabled) Log.debug("new " + Util.tags(this) + "; " + source); 
+    }
+		
+    @Override
+    public Object createInstance(Class type, Object[] args) throws IllegalAccessException, InstantiationException {
+        //System.err.println("VOF0 ASKED FOR " + type + " args=" + args);
+        Log.info("*** ASKED FOR " + type + " args=" + args); // apparently never called
+        return this.createInstance(type, null, null);
+    }
+
+    @Override
+    public Object createInstance(Class type) throws IllegalAccessException, InstantiationException {
+        //System.err.println("VOF1 ASKED FOR " + type);
+        Log.info("*** ASKED FOR " + type); // apparently never called
+        return this.createInstance(type, null, null);
+    }
+
+
+    @Override
+    public Object createInstance(final Class _type, final Class[] argTypes, final Object[] args)
+        throws IllegalAccessException, InstantiationException
+    {
+            
+        final Class type;
+        if (_type == ActionUtil.OLD_MERGE_MAP_STUB.class) {
+            type = tufts.vue.LWMap.class;
+        }
+        // else if (_type == tufts.vue.MapResource.class || _type == tufts.vue.CabinetResource.class)
+        //     type = tufts.vue.URLResource.class;
+        else
+            type = _type;
+        
+        if (_type != type) Log.info("request for instance of " + _type.getName() + " yields: " + type);
+
+        //System.err.println("VOF ASKED FOR " + type + " argTypes=" + argTypes);
+        //Object o = super.createInstance(type);
+        final Object o = type.newInstance();
+        if (DEBUG.Enabled) {
+            if ((DEBUG.IO && DEBUG.META) ||
+                DEBUG.XML || DEBUG.CASTOR || (DEBUG.RESOURCE && DEBUG.META && o instanceof tufts.vue.Resource)) {
+                
+                // Do not use Util.tags(o) or allow toString to be called on object -- unmarshalling can fail
+                // if there are side-effects (!!!) due to calling it -- this happened at one point with an
+                // instance of FavoritesDataSource.  Util.tag(o) is fine tho.
+                
+                Log.debug("+= " + Util.tag(o));
+            }
+        }
+        return o;
+    }
+}
@@ -0,0 +1,560 @@
+/*
+* Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.vue.ds;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import tufts.vue.DEBUG;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+/**
+ * Reads the records of a CSV file in chunks that are parsed in parallel.  The file is
+ * memory-mapped, and split into chunks at record boundaries: a line break is a record
+ * boundary only if it follows an even number of quote characters, which is found for
+ * the start of each chunk from a parallel count of the quotes in each chunk.  Chunks are
+ * then parsed ahead of the reader on a small pool of threads, and handed back in file
+ * order.
+ *
+ * Records are parsed exactly as au.com.bytecode.opencsv.CSVReader (1.8) would parse
+ * them, and then trimmed and normalized as values stored in a DataRow, so that each
+ * chunk can also tally the statistics for the Field each value is for, on the parsing
+ * thread.  See Schema.addRows.  With only a single parser there's nothing to be gained
+ * by that, and chunks aren't tallied: merging the tallies would only add work.
+ *
+ * Only encodings in which the quote, comma and line break characters are always single
+ * ASCII bytes can be split like this (e.g., UTF-8, and any single byte encoding such
+ * as windows-1252).  For any other, this falls back to reading sequentially from an
+ * opencsv CSVReader.
+ *
+ * XmlDataSource only reads through this if -Dvue.csv.chunked=true: see main() for
+ * the comparison with the default opencsv loop.
+ */
+final class ChunkedCSVReader
+{
+    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(ChunkedCSVReader.class);
+
+    private static final int PARSERS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    /** how many chunks may be parsed ahead of the reader */
+    private static final int PARSE_AHEAD = PARSERS * 2;
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    /** for the fallback CSVReader */
+    private static final int CHUNK_RECORDS = 8192;
+
+    private static final char QUOTE = '"';
+    private static final char SEPARATOR = ',';
+
+    /** a chunk of records, with a tally of the values at each index amongst the records, or null tallies if not tallied */
+    static final class Chunk {
+        final List<String[]> records;
+        final Field.Tally[] tallies;
+
+        Chunk(List<String[]> records, Field.Tally[] tallies) {
+            this.records = records;
+            this.tallies = tallies;
+        }
+    }
+
+    private final File file;
+    private final Charset charset;
+
+    private FileChannel channel;
+    private long fileLength;
+    /** the start of the unread data in the file */
+    private long position;
+
+    private CSVReader fallback;
+
+    private ExecutorService parsers;
+    private final LinkedList<Future<Chunk>> parsing = new LinkedList();
+    /** the starts of each chunk: the last entry is the end of the file */
+    private long[] chunkStarts;
+    private int nextChunk;
+    private int tallyCount = -1;
+
+    /** for readNext, once the records are being read from chunks */
+    private Iterator<String[]> chunkRecords = Collections.EMPTY_LIST.iterator();
+
+    ChunkedCSVReader(File file, String encoding)
+        throws IOException
+    {
+        this.file = file;
+        if (isSplittable(encoding)) {
+            this.charset = Charset.forName(encoding);
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            channel = raf.getChannel();
+            fileLength = channel.size();
+        } else {
+            if (DEBUG.IO) Log.debug("reading sequentially in " + encoding + ": " + file);
+            this.charset = null;
+            fallback = new CSVReader(new InputStreamReader(new FileInputStream(file), encoding));
+        }
+    }
+
+    /** @return true if the given encoding can be split into chunks at the ASCII bytes for line breaks */
+    static boolean isSplittable(String encoding) {
+        if (encoding == null)
+            return false;
+        final Charset cs;
+        try {
+            cs = Charset.forName(encoding);
+        } catch (Throwable t) {
+            return false;
+        }
+        if (cs.name().equals("UTF-8"))
+            return true;
+        if (!cs.canEncode() || cs.newEncoder().maxBytesPerChar() != 1)
+            return false;
+        final String special = "\"\r\n,";
+        final ByteBuffer bytes = cs.encode(special);
+        if (bytes.remaining() != special.length())
+            return false;
+        for (int i = 0; i < special.length(); i++)
+            if (bytes.get(i) != special.charAt(i))
+                return false;
+        return true;
+    }
+
+    /**
+     * @return the next record, or null at the end of the file.  The first record is
+     * parsed immediately (it's usually the column names).  Records after that are
+     * read from chunks parsed ahead.
+     */
+    String[] readNext()
+        throws IOException
+    {
+        if (fallback != null)
+            return normalize(fallback.readNext());
+
+        if (chunkStarts == null && position == 0) {
+            // the first record, on it's own
+            final long end = findRecordEnd(0, 0);
+            if (end <= 0)
+                return null;
+            final List<String[]> records = parse(0, end, null);
+            position = end;
+            return records.isEmpty() ? null : records.get(0);
+        }
+
+        while (!chunkRecords.hasNext()) {
+            final Chunk chunk = readChunk(0);
+            if (chunk == null)
+                return null;
+            chunkRecords = chunk.records.iterator();
+        }
+        return chunkRecords.next();
+    }
+
+    /**
+     * @return the next chunk of records, or null at the end of the file
+     * @param tallyCount -- the number of values in each record to tally.  All chunks
+     * are tallied for the count given on the first call.  Chunks may come back
+     * untallied: see Chunk.
+     */
+    Chunk readChunk(int tallyCount)
+        throws IOException
+    {
+        if (chunkRecords.hasNext())
+            throw new IllegalStateException("readChunk with records of the current chunk unread");
+
+        if (fallback != null)
+            return readFallbackChunk();
+
+        if (chunkStarts == null)
+            startParsing(tallyCount);
+
+        while (parsing.size() < PARSE_AHEAD && nextChunk < chunkStarts.length - 1)
+            submit(nextChunk++);
+
+        if (parsing.isEmpty())
+            return null;
+
+        try {
+            return parsing.removeFirst().get();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted reading " + file);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            else if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            else
+                throw new Error(cause);
+        }
+    }
+
+    void close()
+        throws IOException
+    {
+        if (parsers != null) {
+            for (Future f : parsing)
+                f.cancel(true);
+            parsing.clear();
+            parsers.shutdownNow();
+            parsers = null;
+        }
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        if (fallback != null)
+            fallback.close();
+    }
+
+    /** read on this thread, so there's nothing to be gained by tallying */
+    private Chunk readFallbackChunk() throws IOException {
+        final List<String[]> records = new ArrayList(CHUNK_RECORDS);
+        String[] values;
+        while (records.size() < CHUNK_RECORDS && (values = normalize(fallback.readNext())) != null)
+            records.add(values);
+        return records.isEmpty() ? null : new Chunk(records, null);
+    }
+
+    private static Field.Tally[] newTallies(int count) {
+        final Field.Tally[] tallies = new Field.Tally[count];
+        for (int i = 0; i < count; i++)
+            tallies[i] = new Field.Tally();
+        return tallies;
+    }
+
+    private static void tally(Field.Tally[] tallies, String[] values) {
+        for (int i = 0; i < tallies.length; i++)
+            tallies[i].add(Schema.getRowValue(values, i));
+    }
+
+    /** trimmed and normalized as per XmlDataSource.trim and Schema.normalizeValue */
+    private static String[] normalize(String[] values) {
+        if (values == null)
+            return null;
+        XmlDataSource.trim(values);
+        for (int i = 0; i < values.length; i++)
+            values[i] = Schema.normalizeValue(values[i]);
+        return values;
+    }
+
+    //-----------------------------------------------------------------------------
+    // Splitting
+    //-----------------------------------------------------------------------------
+
+    private void startParsing(int tallyCount)
+        throws IOException
+    {
+        this.tallyCount = tallyCount;
+        parsers = Executors.newFixedThreadPool(PARSERS, new ParserThreads());
+
+        final long start = position;
+        if (start >= fileLength) {
+            chunkStarts = new long[] { fileLength };
+            return;
+        }
+        final int regions = (int) Math.max(1, (fileLength - start + CHUNK_SIZE - 1) / CHUNK_SIZE);
+
+        // count the quotes in each region in parallel, for the quote parity at the start of each
+        final List<Future<Long>> counts = new ArrayList(regions);
+        for (int i = 0; i < regions; i++) {
+            final long from = start + (long) i * CHUNK_SIZE;
+            final long to = Math.min(fileLength, from + CHUNK_SIZE);
+            counts.add(parsers.submit(new Callable<Long>() {
+                    public Long call() throws IOException {
+                        return countQuotes(from, to);
+                    }}));
+        }
+
+        final List<Long> starts = new ArrayList(regions + 1);
+        starts.add(start);
+        long quotes = 0;
+        try {
+            for (int i = 0; i < regions; i++) {
+                quotes += counts.get(i).get();
+                if (i == regions - 1)
+                    break;
+                // the first record boundary at or after the start of the next region
+                final long boundary = findRecordEnd(start + (long) (i+1) * CHUNK_SIZE, (int) (quotes & 1));
+                if (boundary > starts.get(starts.size() - 1) && boundary < fileLength)
+                    starts.add(boundary);
+            }
+        } catch (Exception e) {
+            throw new IOException("splitting " + file + ": " + e);
+        }
+        starts.add(fileLength);
+
+        chunkStarts = new long[starts.size()];
+        for (int i = 0; i < chunkStarts.length; i++)
+            chunkStarts[i] = starts.get(i);
+
+        if (DEBUG.IO) Log.debug(file + ": " + (chunkStarts.length - 1) + " chunks, " + PARSERS + " parsers");
+    }
+
+    private void submit(final int chunk) {
+        final long from = chunkStarts[chunk];
+        final long to = chunkStarts[chunk + 1];
+        final int tallies = tallyCount;
+        parsing.add(parsers.submit(new Callable<Chunk>() {
+                public Chunk call() throws IOException {
+                    final Field.Tally[] t = PARSERS > 1 ? newTallies(tallies) : null;
+                    return new Chunk(parse(from, to, t), t);
+                }}));
+    }
+
+    private MappedByteBuffer map(long from, long to) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+    }
+
+    private long countQuotes(long from, long to) throws IOException {
+        final MappedByteBuffer bytes = map(from, to);
+        long count = 0;
+        final int len = bytes.limit();
+        for (int i = 0; i < len; i++)
+            if (bytes.get(i) == QUOTE)
+                count++;
+        return count;
+    }
+
+    /**
+     * @param parity -- the parity of the count of quotes before the given position
+     * @return the position after the first line break at or after the given position that
+     * ends a record, or the end of the file
+     */
+    private long findRecordEnd(long from, int parity) throws IOException {
+        long pos = from;
+        while (pos < fileLength) {
+            final long to = Math.min(fileLength, pos + CHUNK_SIZE);
+            final MappedByteBuffer bytes = map(pos, to);
+            final int len = bytes.limit();
+            for (int i = 0; i < len; i++) {
+                final byte b = bytes.get(i);
+                if (b == QUOTE) {
+                    parity ^= 1;
+                } else if (parity == 0) {
+                    if (b == '\n')
+                        return pos + i + 1;
+                    if (b == '\r') {
+                        if (i + 1 < len) {
+                            return bytes.get(i + 1) == '\n' ? pos + i + 2 : pos + i + 1;
+                        } else if (pos + i + 1 < fileLength) {
+                            // CR at the end of the buffer: check the next byte in the file
+                            final MappedByteBuffer next = map(pos + i + 1, pos + i + 2);
+                            return next.get(0) == '\n' ? pos + i + 2 : pos + i + 1;
+                        } else
+                            return fileLength;
+                    }
+                }
+            }
+            pos = to;
+        }
+        return fileLength;
+    }
+
+    //-----------------------------------------------------------------------------
+    // Parsing
+    //-----------------------------------------------------------------------------
+
+    /** parse all the records in the given range of the file, which must start at a record boundary */
+    private List<String[]> parse(long from, long to, Field.Tally[] tallies)
+        throws IOException
+    {
+        final CharsetDecoder decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        final CharBuffer chars = decoder.decode(map(from, to));
+        final char[] text = chars.array();
+        final int end = chars.arrayOffset() + chars.limit();
+
+        final List<String[]> records = new ArrayList(1024);
+        final List<String> tokens = new ArrayList();
+        final StringBuilder sb = new StringBuilder();
+
+        int lineStart = chars.arrayOffset();
+        while (lineStart < end) {
+            tokens.clear();
+            sb.setLength(0);
+            boolean inQuotes = false;
+            // As per CSVReader.parseLine.  Note that the test for the embedded quote case
+            // is relative to the start of each line, not the record.
+            do {
+                if (inQuotes) {
+                    // continuing a quoted section: re-append the line break
+                    sb.append('\n');
+                    if (lineStart >= end)
+                        break;
+                }
+                int lineEnd = lineStart;
+                while (lineEnd < end && text[lineEnd] != '\n' && text[lineEnd] != '\r')
+                    lineEnd++;
+
+                for (int i = lineStart; i < lineEnd; i++) {
+                    final char c = text[i];
+                    final int li = i - lineStart;
+                    if (c == QUOTE) {
+                        if (inQuotes && i + 1 < lineEnd && text[i+1] == QUOTE) {
+                            sb.append(QUOTE);
+                            i++;
+                        } else {
+                            inQuotes = !inQuotes;
+                            // the tricky case of an embedded quote in the middle: a,bc"d"ef,g
+                            if (li > 2
+                                && text[i-1] != SEPARATOR
+                                && i + 1 < lineEnd
+                                && text[i+1] != SEPARATOR)
+                                sb.append(c);
+                        }
+                    } else if (c == SEPARATOR && !inQuotes) {
+                        tokens.add(sb.toString());
+                        sb.setLength(0);
+                    } else {
+                        sb.append(c);
+                    }
+                }
+
+                // as per BufferedReader.readLine: a line ends at \n, \r, or \r\n
+                lineStart = lineEnd;
+                if (lineStart < end && text[lineStart] == '\r')
+                    lineStart++;
+                if (lineStart < end && text[lineStart] == '\n' && (lineStart == lineEnd || text[lineStart-1] == '\r'))
+                    lineStart++;
+
+            } while (inQuotes);
+
+            tokens.add(sb.toString());
+
+            final String[] values = normalize(tokens.toArray(new String[tokens.size()]));
+            records.add(values);
+            if (tallies != null)
+                tally(tallies, values);
+        }
+        return records;
+    }
+
+    private static final class ParserThreads implements ThreadFactory {
+        private int count;
+        public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "ChunkedCSVReader-" + (++count));
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkedCSVReader[" + file + (fallback == null ? "" : " sequential") + "]";
+    }
+
+    /** write a CSV file of about the given size: numbers, categories, quoted values with commas & line breaks, empty values */
+    static void writeSample(File file, long bytes) throws IOException {
+        final java.util.Random random = new java.util.Random(42);
+        final java.io.Writer out = new java.io.BufferedWriter(new java.io.OutputStreamWriter(new java.io.FileOutputStream(file), "windows-1252"), 1 << 20);
+        final StringBuilder line = new StringBuilder("id");
+        for (int c = 1; c < 30; c++)
+            line.append(",col").append(c);
+        long written = 0;
+        for (int row = 1; written < bytes; row++) {
+            line.append('\n');
+            written += line.length();
+            out.write(line.toString());
+            line.setLength(0);
+            line.append(row);
+            for (int c = 1; c < 30; c++) {
+                line.append(',');
+                switch (c % 6) {
+                case 0: line.append("\"City ").append(random.nextInt(20)).append(", MA\""); break;
+                case 1: line.append(random.nextInt(1000)); break;
+                case 2: line.append(random.nextInt(10000) / 100.0); break;
+                case 3: line.append("cat").append(random.nextInt(50)); break;
+                case 4: if (random.nextInt(10) > 0) line.append(random.nextInt(100000)); break;
+                case 5: line.append(random.nextInt(100) == 0 ? "\"two\nlines\"" : "some text value " + random.nextInt(5000)); break;
+                }
+            }
+        }
+        out.close();
+    }
+
+    /**
+     * Benchmark: full CSV ingest throughput through XmlDataSource.ingestCSV, with it's default
+     * opencsv loop, and with ChunkedIngest.  Usage: ChunkedCSVReader [csv-file ...]  With no
+     * files, a sample file of -Dmegabytes (default 300) is written to the temp directory.
+     * Each ingested schema stays reachable through the global field index, as it would in
+     * VUE, so later iterations run in a fuller heap: give the JVM room (e.g., -Xmx3g).
+     */
+    public static void main(String args[]) throws Exception
+    {
+        DEBUG.Enabled = false;
+
+        final int iterations = Integer.getInteger("iterations", 2);
+        final List<File> files = new ArrayList();
+        File sample = null;
+        for (String arg : args)
+            files.add(new File(arg));
+        if (files.isEmpty()) {
+            sample = File.createTempFile("vue-ingest", ".csv");
+            writeSample(sample, Integer.getInteger("megabytes", 300) * 1024L * 1024L);
+            files.add(sample);
+        }
+
+        final XmlDataSource ds = new XmlDataSource();
+
+        try {
+            for (File file : files) {
+                final double mb = file.length() / (1024.0 * 1024.0);
+                System.out.format("%s: %.0fMB, %s, %d parser threads:\n", file, mb, ds.getEncodingField(), PARSERS);
+                for (int i = 0; i < iterations; i++) {
+                    // a fresh schema each pass: a reloaded one keeps the quantile fields added for the last pass
+                    XmlDataSource.ChunkedIngest = false;
+                    System.gc();
+                    long start = System.nanoTime();
+                    final int sequentialRows = ds.ingestCSV(null, file.getPath(), true).getRowCount();
+                    final double sequentialSecs = (System.nanoTime() - start) / 1e9;
+
+                    XmlDataSource.ChunkedIngest = true;
+                    System.gc();
+                    start = System.nanoTime();
+                    final int chunkedRows = ds.ingestCSV(null, file.getPath(), true).getRowCount();
+                    final double chunkedSecs = (System.nanoTime() - start) / 1e9;
+
+                    System.out.format("    opencsv: %6.1fs %6.1fMB/s %d rows   chunked: %6.1fs %6.1fMB/s %d rows%s\n",
+                                      sequentialSecs, mb / sequentialSecs, sequentialRows,
+                                      chunkedSecs, mb / chunkedSecs, chunkedRows,
+                                      sequentialRows == chunkedRows ? "" : "  ROW COUNTS DIFFER");
+                }
+            }
+        } finally {
+            if (sample != null)
+                sample.delete();
+        }
+    }
+}
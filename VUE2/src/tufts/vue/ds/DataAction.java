@@ -521,7 +521,7 @@ public final class DataAction
         if (link == null) { Log.error("link=null " + r); return null; }
         
         if (r.isCrossSchema()) {
-            link.mStrokeStyle.setTo(LWComponent.StrokeStyle.DASH3);
+            LWComponent.KEY_StrokeStyle.set(link, LWComponent.StrokeStyle.DASH3);
             link.setStrokeWidth(2);
         }
 
@@ -569,7 +569,7 @@ public final class DataAction
         LWLink link = new LWLink(src, dest);
         link.setArrowState(0);
         if (specialColor != null) {
-            link.mStrokeStyle.setTo(LWComponent.StrokeStyle.DASH3);
+            LWComponent.KEY_StrokeStyle.set(link, LWComponent.StrokeStyle.DASH3);
             link.setStrokeWidth(3);
             link.setStrokeColor(specialColor);
             if (specialColor == Color.red) {
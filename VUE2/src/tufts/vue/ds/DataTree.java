@@ -93,9 +93,13 @@ public class DataTree extends javax.swing.JTree
     private static volatile Collection<LWComponent> ActiveMapDataNodes = Collections.EMPTY_LIST;
     
     
-    public static final class MapListener implements LWComponent.Listener, LWSelection.Listener {
+    public static final class MapListener implements LWComponent.BatchListener, LWSelection.Listener {
 
         private static boolean mDataEventWasSeen;
+
+        /** data-node changes seen since the last UserActionCompleted: node -> TRUE if it was
+         * added to the map or had it's data replaced, FALSE if it was removed */
+        private static final Map<LWComponent,Boolean> mPendingChanges = new LinkedHashMap();
         
         /** if the active map changes, we need to wake the annotation thread to re-annotate against the newly active map,
          * as well as start listening for changes in the active map for running future annotation updates */
@@ -137,23 +141,79 @@ public class DataTree extends javax.swing.JTree
             // listener with a list of all active data-tree's instead of each tree listening
             // to the active map itself.
 
-            if (e.key == LWKey.UserActionCompleted && mDataEventWasSeen) {
-                // technically, don't need to check after ANY action has been completed:
-                // only if a data node was added/removed from the map.  todo: we'll need
-                // a data-changed LWCEvent.
-                if (DEBUG.ANNOTATE) Log.debug("RUNNING ANNOTATE on: " + e);
-                kickOffAnnotations();
+            if (e.isBatch()) {
+                // batches only hold property changes, which are never data events
+                return;
+            } else if (e.key == LWKey.UserActionCompleted && mDataEventWasSeen) {
+                // only the data nodes actually added, removed or updated during
+                // the action need to be re-annotated
+                if (DEBUG.ANNOTATE) Log.debug("RUNNING ANNOTATE on: " + e + "; changes: " + mPendingChanges.size());
+                kickOffAnnotationChanges();
                 mDataEventWasSeen = false;
             } else if (isDataEvent(e)) {
                 mDataEventWasSeen = true;
+                recordDataChanges(e);
                 if (DEBUG.ANNOTATE) Log.debug("   FOUND DATA EVENT: " + e + "; seenOne=" + mDataEventWasSeen);
             }
         }
 
+        private static void recordDataChanges(tufts.vue.LWCEvent e) {
+            if (e.key == LWKey.ChildrenAdded || e.key == LWKey.ChildrenRemoved) {
+                final Boolean present = Boolean.valueOf(e.key == LWKey.ChildrenAdded);
+                final List<LWComponent> list = e.getComponents();
+                if (list == null)
+                    return;
+                for (LWComponent c : list) {
+                    recordDataChange(c, present);
+                    if (c.hasChildren()) {
+                        for (LWComponent d : c.getAllDescendents())
+                            recordDataChange(d, present);
+                    }
+                }
+            } else if (e.key == LWKey.DataUpdate) {
+                final LWComponent c = e.getComponent();
+                // if the data was removed, it's no longer a data node
+                mPendingChanges.put(c, Boolean.valueOf(isAnnotatedNode(c)));
+            }
+        }
+
+        private static void recordDataChange(LWComponent c, Boolean present) {
+            if (isAnnotatedNode(c))
+                mPendingChanges.put(c, present);
+        }
+
+        /** apply the pending changes to ActiveMapDataNodes, and hand them off to all the DataTree's */
+        private void kickOffAnnotationChanges() {
+
+            if (mPendingChanges.isEmpty() || ActiveTrees.size() == 0) {
+                mPendingChanges.clear();
+                return;
+            }
+
+            final Map<LWComponent,Boolean> changes = new HashMap(mPendingChanges);
+            mPendingChanges.clear();
+
+            final Collection<LWComponent> dataNodes = new LinkedHashSet(ActiveMapDataNodes);
+            for (Map.Entry<LWComponent,Boolean> e : changes.entrySet()) {
+                if (e.getValue())
+                    dataNodes.add(e.getKey());
+                else
+                    dataNodes.remove(e.getKey());
+            }
+            ActiveMapDataNodes = dataNodes;
+
+            if (DEBUG.ANNOTATE) Log.debug("kicking off annotation changes for: " + Util.tags(ActiveTrees));
+            
+            for (DataTree tree : ActiveTrees)
+                tree.kickAnnotate(changes);
+        }
+
         private void kickOffAnnotations() {
 
             if (DEBUG.ANNOTATE) Log.debug("kicking off annotations for: " + Util.tags(ActiveTrees));
 
+            mPendingChanges.clear(); // we'll be re-annotating everything
+
             if (ActiveTrees.size() > 0) {
                 loadGlobalDataForAnnotations();
                 for (DataTree tree : ActiveTrees)
@@ -192,7 +252,7 @@ public class DataTree extends javax.swing.JTree
             final Collection<LWComponent> dataNodes = new ArrayList(allNodes.size());
             
             for (LWComponent c : allNodes) {
-                if (c.isDataNode() && c instanceof LWNode) // leave out data-links for now
+                if (isAnnotatedNode(c))
                     dataNodes.add(c);
             }
             ActiveMapDataNodes = dataNodes;
@@ -203,11 +263,15 @@ public class DataTree extends javax.swing.JTree
         
     }
 
+    private static boolean isAnnotatedNode(LWComponent c) {
+        return c.isDataNode() && c instanceof LWNode; // leave out data-links for now
+    }
+
     private static boolean isDataEvent(tufts.vue.LWCEvent e) {
         // we need to check for any childrenAdded/childrenRemoved right now, just in case ANY of them were data nodes
         return e.key == LWKey.DataUpdate
-            || e.key == LWKey.HierarchyChanging
-            || e.key == LWKey.Created;
+            || e.key == LWKey.ChildrenAdded
+            || e.key == LWKey.ChildrenRemoved;
     }
 
     // note: this is usually NOT called from the AWT thread -- is called from a data-source load thread
@@ -1128,7 +1192,30 @@ public class DataTree extends javax.swing.JTree
     // update comes through before the current pass is completed, the prior update can
     // be aborted.
 
+    /** data node changes not yet applied to our Schema's annotations (see MapListener.mPendingChanges) */
+    private final Map<LWComponent,Boolean> mPendingChanges = new HashMap();
+    /** if true, our Schema needs a full re-annotation against all of ActiveMapDataNodes */
+    private boolean mPendingFullAnnotate = true;
+
+    /** re-annotate everything */
     private void kickAnnotate() {
+        synchronized (mPendingChanges) {
+            mPendingFullAnnotate = true;
+            mPendingChanges.clear();
+        }
+        wakeAnnotate();
+    }
+
+    /** re-annotate incrementally for the given changes */
+    private void kickAnnotate(Map<LWComponent,Boolean> changes) {
+        synchronized (mPendingChanges) {
+            if (!mPendingFullAnnotate)
+                mPendingChanges.putAll(changes);
+        }
+        wakeAnnotate();
+    }
+
+    private void wakeAnnotate() {
 
         GUI.invokeOnEDT(new Runnable() { public void run() {
             mUpdateButton.setEnabled(false);
@@ -1151,6 +1238,29 @@ public class DataTree extends javax.swing.JTree
     // TODO: add another kind of annotation pass that runs after a search, and greys out enumerated
     // values that have dropped out of the search set.  (?)
 
+    /** apply all pending changes to our Schema's annotations */
+    private void annotateSchema() {
+
+        final boolean full;
+        final Collection<LWComponent> changed = new ArrayList();
+        final Collection<LWComponent> removed = new ArrayList();
+        
+        synchronized (mPendingChanges) {
+            full = mPendingFullAnnotate;
+            for (Map.Entry<LWComponent,Boolean> e : mPendingChanges.entrySet()) {
+                if (e.getValue())
+                    changed.add(e.getKey());
+                else
+                    removed.add(e.getKey());
+            }
+            mPendingChanges.clear();
+            mPendingFullAnnotate = false;
+        }
+
+        if (full || !mSchema.annotateChanges(changed, removed))
+            mSchema.annotateFor(ActiveMapDataNodes);
+    }
+
     /** @return true if interrupted */
     private boolean annotateForMap() {
         return annotateForMap(mActiveMap);
@@ -1161,7 +1271,7 @@ public class DataTree extends javax.swing.JTree
     {
         if (DEBUG.THREAD || DEBUG.SCHEMA || DEBUG.ANNOTATE) Log.debug("ANNOTATING against " + map + "; " + Util.tags(ActiveMapDataNodes));
         
-        mSchema.annotateFor(ActiveMapDataNodes);
+        annotateSchema();
 
         // note: the map isn't actually needed by any of the below annotation calls
 
@@ -1735,8 +1845,8 @@ public class DataTree extends javax.swing.JTree
         //dragNode.setFillColor(null);
         //dragNode.setStrokeWidth(0);
         if (!treeNode.isValue()) {
-            dragNode.mFontSize.setTo(24);
-            dragNode.mFontStyle.setTo(java.awt.Font.BOLD);
+            LWComponent.KEY_FontSize.set(dragNode, 24);
+            LWComponent.KEY_FontStyle.set(dragNode, java.awt.Font.BOLD);
             //                 dragNode.setClientData(LWComponent.ListFactory.class,
             //                                        new NodeProducer(treeNode));
         }
@@ -223,57 +223,27 @@ public class Field implements tufts.vue.XMLUnmarshalListener
         return mValues.count(value);
     }
 
-    void annotateIncludedValues(final Collection<LWComponent> nodes) {
-        if (mValues == null || count(mValues) < 1) {
-            if (mContextValues != null)
-                mContextValues.clear();
-            return;
-        }
+    /** clear the counts of our values found on the map (see Schema.annotateFor) */
+    void clearContextValues() {
+        if (mContextValues != null)
+            mContextValues.clear();
+    }
+
+    /** if the given value from an on-map node is one of ours, count it as in context
+     * @return true if it was one of ours */
+    boolean addContextValue(String value) {
+        if (mValues == null || !mValues.contains(value))
+            return false;
         if (mContextValues == null)
             mContextValues = HashMultiset.create();
-        else
-            mContextValues.clear();
-        if (DEBUG.META) Log.debug("MARKING INCLUDED VALUES AGAINST " + nodes.size() + " NODES for " + this);
-
-        final Set<String> valuesToCheck = mValues.elementSet();
-        for (LWComponent c : nodes) {
-            for (String value : valuesToCheck) {
-                //if (c.getDataSchema() == schema && c.hasDataValue(this.name, value)) {
-                if (c.hasDataValue(this.name, value)) {
-                    //if (!c.isDataValueNode()) // SMF - changed to allow data-value nodes 2009-10-04
-                        mContextValues.add(value);
-                    //Log.debug(String.format("found in context: %s=[%s], count=%d", this.name, value, mContextValues.count(value)));
-                }
-            }
-            
-//             final Iterator<String> i = valuesToCheck.iterator();
-//             while (i.hasNext()) {
-//                 final String value = i.next();
-//                 if (c.isSchematicFieldNode() && c.hasDataValue(this.name, value)) {
-//                     //Log.debug(String.format("found in context: %s=[%s]", this.name, value));
-//                     mContextValues.add(value);
-//                     i.remove();
-//                 }
-//             }
-//             if (valuesToCheck.size() < 1) {
-//                 //Log.debug(this + "; no more values to check, found: " + mContextValues);
-//                 Log.debug(String.format("all %d data-set values found on the map, done marking early for [%s]",
-//                                         mValues.size(),
-//                                         this.name));
-//                 if (mContextValues.size() != mValues.size())
-//                     Log.error(new Throwable(String.format("context values %d != data-set values size %d in [%s]", 
-//                                                           mContextValues.size(),
-//                                                           mValues.size(),
-//                                                           this.name)));
-//                 //                     Log.debug(String.format("all values discovered, found %3d on-map out of %3d in data-set [%s]",
-//                 //                                             mContextValues.size(),
-//                 //                                             mValues.size(),
-//                 //                                             this.name));
-//                 break;
-//             }
+        mContextValues.add(value);
+        return true;
+    }
 
-            
-        }
+    /** un-count a value previously counted by addContextValue */
+    void removeContextValue(String value) {
+        if (mContextValues != null)
+            mContextValues.remove(value);
     }
 
     public boolean hasContextValue(String value) {
@@ -554,6 +524,135 @@ public class Field implements tufts.vue.XMLUnmarshalListener
 
     }
 
+    /**
+     * Value statistics for a Field gathered over a chunk of rows, possibly on another
+     * thread, to be merged into the Field with mergeTally.  Chunks must be merged in row
+     * order: the result is then the same as calling trackValue for every value in turn.
+     */
+    static final class Tally {
+        private final Multiset<String> values = LinkedHashMultiset.create();
+        private final NumberFormat format = NumberFormat.getInstance(); // not thread-safe: one per tally
+        private int count;
+        private int valuesSeen;
+        private int maxValueLen;
+        private boolean allValuesUnique = true;
+        /** indexes of the first non-empty value, and the first two too long to enumerate */
+        private int firstValue = -1, firstLong = -1, secondLong = -1;
+
+        // type inference: over the values before any that determined the type
+        private String type;
+        private String typeCause;
+        private boolean allValuesAreIntegers = true;
+        private String firstDecimal;
+        private double minValue = Double.MAX_VALUE;
+        private double maxValue = Double.MIN_VALUE;
+        private double valuesTotal;
+
+        /** @param value -- a value as it's stored in a row: trimmed, and EMPTY_VALUE if empty */
+        void add(String value) {
+            final int index = count++;
+            final int valueLen = value.length();
+
+            if (valueLen > maxValueLen)
+                maxValueLen = valueLen;
+
+            if (valueLen == 0) {
+                value = EMPTY_VALUE;
+            } else {
+                valuesSeen++;
+                if (firstValue < 0)
+                    firstValue = index;
+                if (valueLen > MAX_ENUM_VALUE_LENGTH) {
+                    if (firstLong < 0)
+                        firstLong = index;
+                    else if (secondLong < 0)
+                        secondLong = index;
+                }
+            }
+
+            if (allValuesUnique && values.contains(value))
+                allValuesUnique = false;
+            values.add(value);
+
+            if (valueLen > 0 && type == null)
+                inferType(value);
+        }
+
+        /** as per Field.trackForTypeInference */
+        private void inferType(final String text) {
+            if (text.indexOf(':') > 0) {
+                type = isDateValue(text) ? TYPE_DATE : TYPE_TEXT;
+                typeCause = text;
+            } else {
+                final double number = getNumericValue(format, text, true);
+                if (Double.isNaN(number)) {
+                    type = TYPE_TEXT;
+                    typeCause = text;
+                } else {
+                    if (number < minValue)
+                        minValue = number;
+                    if (number > maxValue)
+                        maxValue = number;
+                    valuesTotal += number;
+                    if (allValuesAreIntegers && number != (long) number) {
+                        allValuesAreIntegers = false;
+                        firstDecimal = text;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Merge the statistics from a tally of the next chunk of rows.
+     * @param rows -- the rows the tally was taken from, in case part of the chunk needs
+     * to be tracked value by value
+     * @param column -- the index of our values in the rows
+     */
+    void mergeTally(Tally t, List<String[]> rows, int column) {
+
+        if (t.maxValueLen > mMaxValueLen)
+            mMaxValueLen = t.maxValueLen;
+
+        if (mValueTrackDisabled)
+            return;
+
+        // A value too long to enumerate disables value tracking, unless it's the very first value seen
+        int disableAt = t.firstLong;
+        if (disableAt >= 0 && disableAt == t.firstValue && mValuesSeen == 0)
+            disableAt = t.secondLong;
+        
+        if (disableAt >= 0) {
+            // rare: just track the values in the chunk up to and including the one that disables tracking
+            for (int i = 0; i <= disableAt; i++)
+                trackValue(Schema.getRowValue(rows.get(i), column));
+            return;
+        }
+
+        for (Multiset.Entry<String> e : t.values.entrySet()) {
+            if (mAllValuesUnique && mValues.contains(e.getElement()))
+                mAllValuesUnique = false;
+            mValues.add(e.getElement(), e.getCount());
+        }
+        if (!t.allValuesUnique)
+            mAllValuesUnique = false;
+        mValuesSeen += t.valuesSeen;
+
+        if (!mTypeDetermined) {
+            if (t.minValue < mMinValue)
+                mMinValue = t.minValue;
+            if (t.maxValue > mMaxValue)
+                mMaxValue = t.maxValue;
+            mValuesTotal += t.valuesTotal;
+            if (mAllValuesAreIntegers && !t.allValuesAreIntegers) {
+                mAllValuesAreIntegers = false;
+                takeType(TYPE_DECIMAL, t.firstDecimal);
+            }
+            if (t.type != null)
+                setType(t.type, t.typeCause);
+        }
+    }
+
     // the inferencing depends on not passing this method null or empty values
     private void trackForTypeInference(final String text)
     {
@@ -572,9 +671,11 @@ public class Field implements tufts.vue.XMLUnmarshalListener
                 setType(TYPE_TEXT, text);
             } else {
                 //Log.debug(Util.tags(text) + " = " + number);
+                // note: these are independent tests: the first value may be both (this was
+                // once an else-if, which could leave the max unset for descending values)
                 if (number < mMinValue)
                     mMinValue = number;
-                else if (number > mMaxValue)
+                if (number > mMaxValue)
                     mMaxValue = number;
                 mValuesTotal += number;
                 if (mAllValuesAreIntegers && number != (long) number) {
@@ -595,6 +696,11 @@ public class Field implements tufts.vue.XMLUnmarshalListener
 
     /** @return double value if one found, Double.NaN otherwise */
     private double getNumericValue(final String text, final boolean tryCurrency) {
+        return getNumericValue(LocalNumberFormat, text, tryCurrency);
+    }
+
+    /** @param format -- must not be in use by any other thread */
+    private static double getNumericValue(final NumberFormat format, final String text, final boolean tryCurrency) {
 
     	try {
             // Double.parseDouble handles most stuff, including "0x2F" style
@@ -607,16 +713,16 @@ public class Field implements tufts.vue.XMLUnmarshalListener
     	try {
             // This handles values of the form "1,234,567". It will also extract any
             // number that can be found at the head of a string: e.g. "7foo" will return
-            // 7, or "70%" will return 70 (*not* 0.70).  The instance of LocalNumberFormat will
-            // generally be a DecimalFormat
-            value = LocalNumberFormat.parse(text);
+            // 7, or "70%" will return 70 (*not* 0.70).  The format will generally be
+            // a DecimalFormat
+            value = format.parse(text);
     	} catch (Throwable t) {}
 
         // Note that if we use a NumberFormat.getCurrencyInstance() here to handle
         // currency, it will only allow the local currency symbol.
 
         if (value == null && tryCurrency && text.length() > 1 && isCurrencySymbol(text.codePointAt(0))) {
-            value = getNumericValue(text.substring(1), false); // NOTE RECURSION
+            value = getNumericValue(format, text.substring(1), false); // NOTE RECURSION
             //Log.debug("HANDLED CURRENCY " + Util.tags(text) + " = " + Util.tags(value));
         }
 
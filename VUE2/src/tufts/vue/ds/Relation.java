@@ -577,6 +577,34 @@ public final class Relation {
     }
     
     
+    /** as searchDataWithField, but search all the rows in the given Schema using it's value indexes */
+    static void searchDataWithField
+        (final Field fieldKey,
+         final String fieldValue,
+         final Schema schema,
+         final Collection results)
+    {
+        final String fieldName = fieldKey.getName();
+        
+        if (DEBUG.Enabled) {
+            Log.debug(String.format("searchDataWithField: %s=%s in %s",
+                                    quoteKey(fieldKey),
+                                    Util.tags(fieldValue),
+                                    schema));
+        }
+        
+        results.addAll(schema.getRowsWithValue(fieldName, fieldValue));
+
+        for (Association a : Association.getAliases(fieldKey)) {
+            if (a.isEnabled()) {
+                final String relatedField = a.getPairedField(fieldKey).getName();
+                if (fieldName.equals(relatedField))
+                    continue; // already searched above
+                results.addAll(schema.getRowsWithValue(relatedField, fieldValue));
+            }
+        }
+    }
+    
     /**
      * Uses an entire row of data to do AKA searches looking for relationships
      * betweens rows from DIFFERENT schema's.
@@ -651,6 +679,130 @@ public final class Relation {
         }
     }
 
+    /**
+     * As searchDataWithRow, but search all the rows in searchSchema using it's value indexes.
+     * The auto-relation checks of isAutoRelated (see relatedBy) are done as index lookups
+     * in both directions instead of being tested against every row.
+     */
+    static void searchDataWithRow
+        (final Scannable rowKey, // e.g., a MetaMap, from a DIFFERENT schema than the search-set
+         final Schema searchSchema,
+         final Collection results)
+    {
+        final Schema keySchema = rowKey.getSchema();
+
+        if (DEBUG.Enabled) {
+            Log.debug("searchDataWithRow: "
+                      + "\n      rowKey: " + rowKey
+                      + "\nsearchSchema: " + searchSchema
+                      );
+        }
+
+        if (keySchema == searchSchema)
+            throw new Error("can only search a schema with a row from another schema: " + keySchema);
+        
+        for (Association a : Association.getBetweens(searchSchema, keySchema)) {
+            if (DEBUG.Enabled) Log.debug("searchDataWithRow: indexing for " + a);
+            results.addAll(searchSchema.getRowsWithValue(a.getKeyForSchema(searchSchema),
+                                                         rowKey.getString(a.getKeyForSchema(keySchema)))); // TODO: handle multiple values
+        }
+
+        searchAutoRelated(keySchema.getKeyFieldName(), rowKey, searchSchema, results);
+        searchAutoRelated(searchSchema.getKeyFieldName(), rowKey, searchSchema, results);
+    }
+
+    /** add all rows in searchSchema that relatedBy(key, rowKey, row) would report as related */
+    private static void searchAutoRelated
+        (final String key,
+         final Scannable rowKey,
+         final Schema searchSchema,
+         final Collection results)
+    {
+        if (key == null)
+            return;
+        
+        // row.hasEntry(key, <first value in rowKey>)
+        results.addAll(searchSchema.getRowsWithValue(key, rowKey.getString(key)));
+
+        // the reverse case: rowKey.hasEntry(key, <first value in row>)
+        for (String value : rowKey.getValues(key)) {
+            for (DataRow row : searchSchema.getRowsWithValue(key, value)) {
+                if (value.equals(row.getString(key)))
+                    results.add(row);
+            }
+        }
+    }
+
+    /**
+     * Find all rows in rowSchema that getCrossSchemaRelation would relate to field=fieldValue
+     * (field being from a different schema), via Association JOIN's.  Rather than running
+     * the join for every row in rowSchema, this builds, for each join, the set of join-key
+     * values found in the field schema rows that contain fieldValue (the build side), and
+     * then probes the rowSchema index on the joined key with each of those (a hash join).
+     */
+    static void searchJoinedRows
+        (final Schema rowSchema,
+         final Field field,
+         final String fieldValue,
+         final Collection<DataRow> results)
+    {
+        final Schema fieldSchema = field.getSchema();
+
+        if (fieldSchema == rowSchema) {
+            // intra-schema "joins" are driven by the individual row-data (see getCrossSchemaJoinedValues)
+            for (DataRow row : rowSchema.getRows()) {
+                if (getCrossSchemaRelation(field, row.getData(), fieldValue) != null)
+                    results.add(row);
+            }
+            return;
+        }
+        
+        final Collection<DataRow> buildRows;
+        if (fieldValue == ALL_VALUES)
+            buildRows = fieldSchema.getRows();
+        else
+            buildRows = fieldSchema.getRowsWithValue(field.getName(), fieldValue);
+
+        if (buildRows.size() == 0)
+            return;
+
+        for (Association join : Association.getJoins(rowSchema, field)) {
+
+            final Field indexKey = join.getFieldForSchema(fieldSchema);
+            final String probeKey = join.getKeyForSchema(rowSchema);
+
+            // runJoin finds the index rows via getMatchingRows, which will also match
+            // through any aliases of the index key, so we collect values for those as well
+            final Collection<String> indexKeys = new ArrayList();
+            indexKeys.add(indexKey.getName());
+            for (Association a : Association.getAliases(indexKey)) {
+                if (a.isEnabled()) {
+                    final String alias = a.getPairedField(indexKey).getName();
+                    if (!indexKeys.contains(alias))
+                        indexKeys.add(alias);
+                }
+            }
+
+            final Set<String> joinValues = new HashSet();
+            for (DataRow row : buildRows) {
+                if (fieldValue == ALL_VALUES && row.getValues(field).isEmpty())
+                    continue;
+                for (String key : indexKeys)
+                    joinValues.addAll(row.getValues(key));
+            }
+
+            if (DEBUG.Enabled) Log.debug("HASH-JOIN " + join + "; " + joinValues.size() + " join values from " + buildRows.size() + " rows");
+
+            // getCrossSchemaJoinedValues only uses the first value of the probe key in each row
+            for (String value : joinValues) {
+                for (DataRow row : rowSchema.getRowsWithValue(probeKey, value)) {
+                    if (value.equals(row.getString(probeKey)))
+                        results.add(row);
+                }
+            }
+        }
+    }
+    
     /** search the given Scannable's for the given key=value, and add matches to results */
     private static void searchData
         (final String key,
@@ -0,0 +1,425 @@
+/*
+* Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.vue.ds;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import tufts.vue.DEBUG;
+import tufts.vue.MetaMap;
+
+/**
+ * Columnar storage for the values in the rows of a flat (e.g., CSV) data-set.  Each
+ * Field gets an interned column index, and each column holds one value per row: as
+ * a primitive long while every value in it is an integer whose String form we can
+ * reproduce exactly, and otherwise as an int code into a dictionary of the distinct
+ * values for that column.  A row is then just an index into the columns, instead of
+ * a MetaMap with an entry object per value.
+ *
+ * Rows hold at most one value per field.  Rows that need more than that (or that are
+ * otherwise modified) are copied out into a regular MetaMap by their DataRow.
+ *
+ * A store is only ever appended to: when a Schema flushes it's data it starts a new
+ * store, so any views on rows of the old store (e.g., the data of nodes on a map)
+ * remain valid.
+ */
+final class RowStore
+{
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** no value for the row in a numeric column */
+    private static final long NO_NUMBER = Long.MIN_VALUE;
+    /** the Field.EMPTY_VALUE in a numeric column */
+    private static final long EMPTY_NUMBER = Long.MIN_VALUE + 1;
+    /** no value for the row in a dictionary column */
+    private static final int NO_CODE = 0;
+
+    private final Schema mSchema;
+
+    /** columns in order of creation: the index is the interned field id */
+    private final List<Column> mColumns = new ArrayList();
+    private final Map<Field,Column> mColumnsByField = new HashMap();
+    private final Map<String,Column> mColumnsByName = new HashMap();
+
+    private int mRowCount;
+    private int mCapacity = INITIAL_CAPACITY;
+
+    RowStore(Schema schema) {
+        mSchema = schema;
+    }
+
+    Schema getSchema() {
+        return mSchema;
+    }
+
+    synchronized int getRowCount() {
+        return mRowCount;
+    }
+
+    /** @return the index of a new row with no values */
+    synchronized int addRow() {
+        if (mRowCount == mCapacity) {
+            mCapacity *= 2;
+            for (Column c : mColumns)
+                c.ensureCapacity(mCapacity);
+        }
+        return mRowCount++;
+    }
+
+    /**
+     * Set the value of the given field for the given row.
+     * @return the value as stored, which will be an equal String, but may be a
+     * shared instance, or null if the row already has a value for the field, in which
+     * case nothing has been stored
+     */
+    synchronized String setValue(int row, Field field, String value) {
+        Column c = mColumnsByField.get(field);
+        if (c == null) {
+            c = new Column(field, mCapacity);
+            mColumns.add(c);
+            mColumnsByField.put(field, c);
+            mColumnsByName.put(field.getName(), c);
+        }
+        if (c.has(row))
+            return null;
+        else
+            return c.set(row, value);
+    }
+
+    synchronized String getValue(int row, Field field) {
+        final Column c = mColumnsByField.get(field);
+        return c == null ? null : c.get(row);
+    }
+
+    synchronized String getValue(int row, String key) {
+        final Column c = getColumn(key);
+        return c == null ? null : c.get(row);
+    }
+
+    /** @return the number of fields with values in the given row */
+    synchronized int getValueCount(int row) {
+        int count = 0;
+        for (Column c : mColumns)
+            if (c.has(row))
+                count++;
+        return count;
+    }
+
+    /** @return the values in the given row, in field order */
+    synchronized List<String> getValues(int row) {
+        final List<String> values = new ArrayList(mColumns.size());
+        for (Column c : mColumns) {
+            final String value = c.get(row);
+            if (value != null)
+                values.add(value);
+        }
+        return values;
+    }
+
+    /** keys are case independent, as per MetaMap */
+    private Column getColumn(String key) {
+        final Column c = mColumnsByName.get(key);
+        if (c != null || key == null)
+            return c;
+        for (Column column : mColumns)
+            if (column.name.equalsIgnoreCase(key))
+                return column;
+        return null;
+    }
+
+    private synchronized int getColumnCount() {
+        return mColumns.size();
+    }
+
+    private synchronized Column getColumn(int index) {
+        return mColumns.get(index);
+    }
+
+    /** @return a read-only view of the given row, for presenting as a MetaMap */
+    MetaMap.Source getSource(int row) {
+        return new RowSource(row);
+    }
+
+    private final class RowSource implements MetaMap.Source {
+        private final int row;
+
+        RowSource(int row) {
+            this.row = row;
+        }
+
+        public int getKeyCount() {
+            return getColumnCount();
+        }
+
+        public String getKey(int index) {
+            return getColumn(index).name;
+        }
+
+        public Object getValue(int index) {
+            synchronized (RowStore.this) {
+                return getColumn(index).get(row);
+            }
+        }
+
+        public Object getValue(String key) {
+            return RowStore.this.getValue(row, key);
+        }
+
+        private RowStore getStore() {
+            return RowStore.this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof RowSource
+                && ((RowSource)o).row == row
+                && ((RowSource)o).getStore() == RowStore.this;
+        }
+
+        @Override
+        public int hashCode() {
+            return row;
+        }
+
+        @Override
+        public String toString() {
+            return "RowSource[" + mSchema.getName() + " #" + row + "]";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RowStore[" + mSchema.getName() + "; rows=" + mRowCount + "; columns=" + mColumns + "]";
+    }
+
+    /**
+     * The values for a single field.  Starts out numeric, and switches to a dictionary
+     * for good at the first value that isn't an integer we can reproduce exactly.
+     */
+    private static final class Column {
+        final Field field;
+        final String name;
+
+        /** non-null while we're a numeric column */
+        long[] numbers;
+
+        /** our dictionary codes, once we're not a numeric column */
+        int[] codes;
+        /** distinct values by code: code 0 is reserved for NO_CODE */
+        List<String> values;
+        Map<String,Integer> codeForValue;
+
+        Column(Field field, int capacity) {
+            this.field = field;
+            this.name = field.getName();
+            numbers = new long[capacity];
+            java.util.Arrays.fill(numbers, NO_NUMBER);
+        }
+
+        void ensureCapacity(int capacity) {
+            if (numbers != null) {
+                if (numbers.length < capacity) {
+                    final long[] grown = new long[capacity];
+                    System.arraycopy(numbers, 0, grown, 0, numbers.length);
+                    java.util.Arrays.fill(grown, numbers.length, capacity, NO_NUMBER);
+                    numbers = grown;
+                }
+            } else if (codes.length < capacity) {
+                final int[] grown = new int[capacity]; // new entries are NO_CODE
+                System.arraycopy(codes, 0, grown, 0, codes.length);
+                codes = grown;
+            }
+        }
+
+        boolean has(int row) {
+            if (numbers != null)
+                return numbers[row] != NO_NUMBER;
+            else
+                return codes[row] != NO_CODE;
+        }
+
+        String get(int row) {
+            if (numbers != null) {
+                final long n = numbers[row];
+                if (n == NO_NUMBER)
+                    return null;
+                else if (n == EMPTY_NUMBER)
+                    return Field.EMPTY_VALUE;
+                else
+                    return Long.toString(n);
+            } else {
+                return values.get(codes[row]);
+            }
+        }
+
+        String set(int row, String value) {
+            if (numbers != null) {
+                if (value == Field.EMPTY_VALUE) {
+                    numbers[row] = EMPTY_NUMBER;
+                    return value;
+                }
+                if (isExactInteger(value)) {
+                    final long n = Long.parseLong(value);
+                    if (n != NO_NUMBER && n != EMPTY_NUMBER) {
+                        numbers[row] = n;
+                        return value;
+                    }
+                }
+                convertToDictionary();
+            }
+            final Integer existing = codeForValue.get(value);
+            if (existing != null) {
+                codes[row] = existing.intValue();
+                return values.get(existing.intValue());
+            } else {
+                codes[row] = values.size();
+                codeForValue.put(value, values.size());
+                values.add(value);
+                return value;
+            }
+        }
+
+        private void convertToDictionary() {
+            final long[] numbers = this.numbers;
+            this.numbers = null;
+            codes = new int[numbers.length];
+            values = new ArrayList();
+            values.add(null); // NO_CODE
+            codeForValue = new HashMap();
+            for (int row = 0; row < numbers.length; row++) {
+                final long n = numbers[row];
+                if (n == EMPTY_NUMBER)
+                    set(row, Field.EMPTY_VALUE);
+                else if (n != NO_NUMBER)
+                    set(row, Long.toString(n));
+            }
+        }
+
+        /** @return true if the value is an integer that Long.toString would produce exactly */
+        private static boolean isExactInteger(String s) {
+            final int len = s.length();
+            if (len == 0 || len > 18) // 18 digits always fits in a long
+                return false;
+            int i = 0;
+            if (s.charAt(0) == '-') {
+                if (len == 1)
+                    return false;
+                i = 1;
+            }
+            if (s.charAt(i) == '0')
+                return len == 1; // no leading zeros, or "-0"
+            for (; i < len; i++) {
+                final char c = s.charAt(i);
+                if (c < '0' || c > '9')
+                    return false;
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            if (numbers != null)
+                return name + ":numeric";
+            else
+                return name + ":" + (values.size() - 1) + " values";
+        }
+    }
+
+    //----------------------------------------------------------------------------------------
+    // before & after measurement
+    //----------------------------------------------------------------------------------------
+
+    /**
+     * Benchmark: ingest time and retained heap for a CSV file through XmlDataSource.ingestCSV,
+     * with each row in it's own MetaMap (as all rows once were), and with the rows in a
+     * RowStore, then check that both give the same rows.  Usage: RowStore [csv-file]  With
+     * no file, a sample of -Dmegabytes (default 30: about 120k rows of 30 columns) is written
+     * to the temp directory.  Both schemas are kept for the comparison: give the JVM room
+     * (e.g., -Xmx3g).
+     */
+    public static void main(String args[]) throws Exception
+    {
+        DEBUG.Enabled = false;
+
+        final File file;
+        File sample = null;
+        if (args.length > 0) {
+            file = new File(args[0]);
+        } else {
+            sample = file = File.createTempFile("vue-rows", ".csv");
+            ChunkedCSVReader.writeSample(sample, Integer.getInteger("megabytes", 30) * 1024L * 1024L);
+        }
+
+        final XmlDataSource ds = new XmlDataSource();
+        final Schema[] schemas = new Schema[2];
+
+        System.out.format("%s: %.0fMB\n", file, file.length() / (1024.0 * 1024.0));
+        try {
+            for (int pass = 0; pass < 2; pass++) {
+                Schema.RowStoreEnabled = pass > 0;
+                final long base = usedHeap();
+                final long start = System.nanoTime();
+                schemas[pass] = ds.ingestCSV(new Schema(), file.getPath(), true); // unregistered: both can be kept
+                final double secs = (System.nanoTime() - start) / 1e9;
+                final long retained = usedHeap() - base;
+                System.out.format("    %-9s ingest %6.1fs, retained heap %6.0fMB, %d rows x %d fields\n",
+                                  pass > 0 ? "row-store" : "row-maps",
+                                  secs, retained / (1024.0 * 1024.0),
+                                  schemas[pass].getRowCount(), schemas[pass].getFields().size());
+            }
+        } finally {
+            Schema.RowStoreEnabled = true;
+            if (sample != null)
+                sample.delete();
+        }
+        System.out.println("    rows " + (sameRows(schemas[0], schemas[1]) ? "identical" : "DIFFER"));
+    }
+
+    /** @return the heap in use, once what can be collected has been */
+    private static long usedHeap() throws InterruptedException {
+        final Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /** @return true if the schemas have the same rows, with the same values and the same data maps */
+    private static boolean sameRows(Schema a, Schema b) {
+        final List<DataRow> aRows = a.getRows();
+        final List<DataRow> bRows = b.getRows();
+        if (aRows.size() != bRows.size())
+            return false;
+        for (int i = 0; i < aRows.size(); i++) {
+            final DataRow aRow = aRows.get(i);
+            final DataRow bRow = bRows.get(i);
+            if (aRow.size() != bRow.size())
+                return false;
+            for (Field f : a.getFields()) {
+                final String value = aRow.getValue(f.getName());
+                if (value == null ? bRow.getValue(f.getName()) != null : !value.equals(bRow.getValue(f.getName())))
+                    return false;
+            }
+            if (!aRow.getData().equals(bRow.getData()))
+                return false;
+        }
+        return true;
+    }
+}
@@ -71,6 +71,16 @@ public class Schema implements tufts.vue.XMLUnmarshalListener {
 
     private final List<DataRow> mRows = new ArrayList();
 
+    /** columnar storage for the values of flat rows: replaced (not cleared) when the data is flushed */
+    private RowStore mRowStore = new RowStore(this);
+
+    /** if false, flat rows each get their own MetaMap instead (for comparison: see RowStore.main) */
+    static boolean RowStoreEnabled = true;
+
+    /** value -> rows hash indexes, by lower-cased key name (MetaMap keys are case independent).
+     * Each is built on first lookup and flushed whenever rows are added or the data is flushed. */
+    private final Map<String,Map<String,List<DataRow>>> mRowIndexes = new HashMap();
+
     //private Object mSource;
     private Resource mResource;
     
@@ -763,82 +773,190 @@ public class Schema implements tufts.vue.XMLUnmarshalListener {
         return mImageField;
     }
 
+    /** what a single on-map node contributed to the current annotations */
+    private static final class NodeContext {
+        /** parallel arrays: each value that was counted in the context values of the Field */
+        final Field[] fields;
+        final String[] values;
+        /** the key field values this node was filed under if it's a row-node from this schema, otherwise null */
+        final String[] rowKeys;
+
+        NodeContext(List<Field> f, List<String> v, List<String> k) {
+            fields = f.toArray(new Field[f.size()]);
+            values = v.toArray(new String[v.size()]);
+            rowKeys = k == null ? null : k.toArray(new String[k.size()]);
+        }
+    }
+
+    /** the on-map data nodes our annotations currently account for */
+    private final Map<LWComponent,NodeContext> mContextNodes = new HashMap();
+    /** on-map row-nodes from this schema, by each of their key field values, in the order annotated */
+    private final Map<String,List<LWComponent>> mContextRowNodes = new HashMap();
+    /** the key field the current annotations were computed for -- null if they need a full re-compute */
+    private Field mContextKeyField;
+
+    /**
+     * Annotate all our Fields and DataRows against the given set of on-map data nodes,
+     * replacing any existing annotations.  This is a single pass over the nodes, filing
+     * the row-nodes by key value, followed by a single pass over the rows.
+     */
     public synchronized void annotateFor(Collection<LWComponent> nodes) {
 
         for (Field field : getFields())
-            field.annotateIncludedValues(nodes);
-
-        // is probably a faster way to track this by handling the key field specially
-        // during annotateIncludedValues above and process the rows v.s. the values,
-        // or just refactoring the whole process to go DataRow by DataRow.
-
-        final Field keyField = getKeyField();
-        final String keyFieldName = keyField.getName();
-
-//         // crap: this is where we should be comparing the actual data sourced schema.
-//         for (LWComponent node : nodes) {
-//             if (node.hasDataKey(keyFieldName) && !node.isSchematicField()) {
-//                 final DataRow row = findRow(keyField, node.getDataValue(keyFieldName));
-//                 if (row == null) {
-//                     Log.warn("no raw data found for node " + node);
-//                     continue;
-//                 }
-//                 final MetaMap rawData = row.getData();
-//                 final MetaMap mapData = node.getRawData();
+            field.clearContextValues();
+        mContextNodes.clear();
+        mContextRowNodes.clear();
+        mContextKeyField = getKeyField();
 
-                
-//             }
-//         }
+        for (LWComponent node : nodes)
+            addContext(node, null);
 
         mContextRowNodeCount = 0;
-
         for (DataRow row : mRows) {
+            row.mContextCount = 0;
+            annotateRow(row);
+        }
+    }
 
-            final String rowKey = row.getValue(keyField);
+    /**
+     * Incrementally update our annotations.
+     *
+     * @param changed - data nodes that are on the map, and have been added since the last
+     * annotation, or have had their data replaced
+     * @param removed - data nodes that have been removed from the map
+     * @return false if the existing annotations were stale and nothing was done: the
+     * caller must run a full annotateFor
+     */
+    public synchronized boolean annotateChanges(Collection<LWComponent> changed, Collection<LWComponent> removed) {
 
-            row.mContextCount = 0;
-            row.setContextChanged(false);
+        if (mContextKeyField == null || mContextKeyField != getKeyField())
+            return false;
 
-            for (LWComponent node : nodes) {
+        final Set<String> touchedKeys = new HashSet();
 
-                if (!node.isDataRow(this))
-                    continue;
+        for (LWComponent node : removed)
+            removeContext(node, touchedKeys);
 
-                mContextRowNodeCount++; // todo: is wildly overcounting -- need to total at end by adding all final row.mContextCount's
+        for (LWComponent node : changed) {
+            removeContext(node, touchedKeys);
+            addContext(node, touchedKeys);
+        }
 
-                if (!node.hasDataValue(keyFieldName, rowKey))
-                    continue;
+        final String keyFieldName = mContextKeyField.getName();
+        
+        for (String key : touchedKeys) {
+            for (DataRow row : getRowsWithValue(keyFieldName, key)) {
+                if (key.equals(row.getValue(mContextKeyField)))
+                    annotateRow(row);
+            }
+        }
 
-                row.mContextCount++;
-                
-                final MetaMap rawData = row.getData();
-                final MetaMap mapData = node.getRawData();
-                //Log.debug("comparing:\n" + rawData.values() + " to:\n" + mapData.values());
-                if (rawData != mapData) {
-                    // todo: would be nice to tag each field to see what changed, tho
-                    // that adds another bit for every single value in a data-set, and
-                    // we have no per-value meta-data in the DataRow at the moment
-                    row.setContextChanged(!rawData.equals(mapData));
+        if (DEBUG.SCHEMA) Log.debug(this + "; annotated " + changed.size() + " changed, "
+                                    + removed.size() + " removed, re-annotated rows for " + touchedKeys.size() + " keys");
+        return true;
+    }
+
+    /** count the values of the given node in our Field's, and file it if it's one of our row-nodes */
+    private void addContext(final LWComponent node, final Collection<String> touchedKeys) {
+
+        final MetaMap data = node.getRawData();
+
+        if (data == null)
+            return;
+
+        final List<Field> fields = new ArrayList(4);
+        final List<String> values = new ArrayList(4);
+        
+        for (Field field : getFields()) {
+            final int firstValue = values.size();
+            for (Object o : data.getValues(field.getName())) {
+                // a node is counted at most once per value
+                if (o instanceof String
+                    && !values.subList(firstValue, values.size()).contains(o)
+                    && field.addContextValue((String) o)) {
+                    fields.add(field);
+                    values.add((String) o);
+                }
+            }
+        }
+
+        List<String> rowKeys = null;
+
+        if (node.isDataRow(this)) {
+            rowKeys = new ArrayList(1);
+            for (Object o : data.getValues(mContextKeyField.getName())) {
+                if (o instanceof String && !rowKeys.contains(o)) {
+                    final String key = (String) o;
+                    rowKeys.add(key);
+                    List<LWComponent> rowNodes = mContextRowNodes.get(key);
+                    if (rowNodes == null) {
+                        rowNodes = new ArrayList(1);
+                        mContextRowNodes.put(key, rowNodes);
+                    }
+                    rowNodes.add(node);
+                    if (touchedKeys != null)
+                        touchedKeys.add(key);
                 }
+            }
+        }
 
-                
+        mContextNodes.put(node, new NodeContext(fields, values, rowKeys));
+    }
 
-                // test if this node is a row node from this schema -- currently an imperfect test: only
-                // checks for presence of the same key field.
-                //if (node.hasDataKey(keyFieldName) && !node.isSchematicField()) {
-
-//                 if (node.hasDataValue(keyFieldName) && !node.isSchematicField()) {
-//                     final MetaMap rawData = row.getData();
-//                     final MetaMap mapData = node.getRawData();
-//                     Log.debug("comparing:\n" + rawData.values() + " to:\n" + mapData.values());
-//                     row.setContextChanged(!rawData.equals(mapData));
-//                 } else {
-//                     // could set to a "present" status -- context changed state is now technically undefined...
-//                     row.setContextChanged(false);
-//                 }
+    /** undo whatever addContext recorded for the given node, if anything */
+    private void removeContext(final LWComponent node, final Collection<String> touchedKeys) {
+
+        final NodeContext nc = mContextNodes.remove(node);
+
+        if (nc == null)
+            return;
+
+        for (int i = 0; i < nc.fields.length; i++)
+            nc.fields[i].removeContextValue(nc.values[i]);
+
+        if (nc.rowKeys != null) {
+            for (String key : nc.rowKeys) {
+                final List<LWComponent> rowNodes = mContextRowNodes.get(key);
+                if (rowNodes != null) {
+                    rowNodes.remove(node);
+                    if (rowNodes.isEmpty())
+                        mContextRowNodes.remove(key);
+                }
+                touchedKeys.add(key);
             }
         }
+    }
+
+    /** re-compute the context count & context changed state for the given row from the filed row-nodes */
+    private void annotateRow(final DataRow row) {
+
+        final List<LWComponent> rowNodes = mContextRowNodes.get(row.getValue(mContextKeyField));
+
+        mContextRowNodeCount -= row.mContextCount;
+        row.mContextCount = 0;
+        row.setContextChanged(false);
+
+        if (rowNodes == null)
+            return;
+
+        final MetaMap rawData = row.getData();
+        boolean changed = false;
+        
+        for (LWComponent node : rowNodes) {
+            row.mContextCount++;
+            final MetaMap mapData = node.getRawData();
+            // the row is changed if ANY of it's nodes on the map differ from it (this used to
+            // be whichever node happened to be checked last, which depended on map order)
+            if (!changed && rawData != mapData) {
+                // todo: would be nice to tag each field to see what changed, tho
+                // that adds another bit for every single value in a data-set, and
+                // we have no per-value meta-data in the DataRow at the moment
+                changed = !rawData.equals(mapData);
+            }
+        }
+        row.setContextChanged(changed);
         
+        mContextRowNodeCount += row.mContextCount;
     }
 
     public int getContextRowNodeCount() {
@@ -848,6 +966,9 @@ public class Schema implements tufts.vue.XMLUnmarshalListener {
     public synchronized void flushData() {
         if (DEBUG.Enabled) Log.debug("flushing " + this);
         mRows.clear();
+        mRowStore = new RowStore(this);
+        mRowIndexes.clear();
+        mContextKeyField = null;
         mLongestFieldName = 10; // for debug
         for (Field f : getFields()) {
             f.flushStats(); // flush data / enums, but keep any style
@@ -855,12 +976,48 @@ public class Schema implements tufts.vue.XMLUnmarshalListener {
     }
 
     public synchronized DataRow findRow(Field field, String value) {
-        for (DataRow row : mRows)
+        // the index includes all values for a key, where contains only checks the first
+        for (DataRow row : getRowsWithValue(field.getName(), value))
             if (row.contains(field, value))
                 return row;
         return null;
     }
 
+    /** @return all rows that have the given value for the given key (amongst any of it's values), in row order */
+    synchronized List<DataRow> getRowsWithValue(String key, String value) {
+        if (value == null)
+            return Collections.EMPTY_LIST;
+        final List<DataRow> rows = getRowIndex(key).get(value);
+        return rows == null ? Collections.EMPTY_LIST : rows;
+    }
+
+    /** @return the value -> rows index for the given key, building it if needed */
+    private Map<String,List<DataRow>> getRowIndex(String key) {
+        final String indexKey = key.toLowerCase();
+        Map<String,List<DataRow>> index = mRowIndexes.get(indexKey);
+        if (index == null) {
+            final long start = System.currentTimeMillis();
+            index = new HashMap();
+            for (DataRow row : mRows) {
+                for (String value : row.getValues(key)) {
+                    List<DataRow> rows = index.get(value);
+                    if (rows == null) {
+                        rows = new ArrayList(2);
+                        index.put(value, rows);
+                    } else if (rows.get(rows.size() - 1) == row) {
+                        continue; // same value repeated in this row
+                    }
+                    rows.add(row);
+                }
+            }
+            mRowIndexes.put(indexKey, index);
+            if (DEBUG.SCHEMA || DEBUG.WORK)
+                Log.debug(String.format("%s; indexed %s: %d values in %dms",
+                                        this, Relation.quoteKey(key), index.size(), System.currentTimeMillis() - start));
+        }
+        return index;
+    }
+
     @Override
     public String toString() {
         try {
@@ -1251,28 +1408,71 @@ public class Schema implements tufts.vue.XMLUnmarshalListener {
     
     protected void addRow(DataRow row) {
         mRows.add(row);
+        if (mRowIndexes.size() > 0)
+            mRowIndexes.clear();
+        mContextKeyField = null;
     }
     
     protected void addRow(String[] values) {
+        addRow(values, true);
+    }
+
+    /** @param track -- if false, the values are added to the row, but not tracked by the Fields for analysis */
+    private void addRow(String[] values, boolean track) {
 
-        DataRow row = new DataRow(this);
+        final DataRow row = RowStoreEnabled ? new DataRow(mRowStore) : new DataRow(this);
         int i = 0;
         for (Field field : getFields()) {
             final String value;
-            try {
-                value = values[i++];
-            } catch (IndexOutOfBoundsException e) {
-                Log.warn("missing value at index " + (i-1) + " for field " + field + " in " + Arrays.asList(values));
+            if (i >= values.length) {
+                Log.warn("missing value at index " + i + " for field " + field + " in " + Arrays.asList(values));
                 Util.dumpArray(values);
-                row.addValue(field, "<missing>");
-                continue;
             }
-                    
-            row.addValue(field, value);
+            value = getRowValue(values, i++);
+            if (track)
+                row.addValue(field, value);
+            else
+                row.takeValue(field, value);
         }
         addRow(row);
     }
 
+    /** @return the value at the given index in the given values for a row, as it will be added to the row */
+    static String getRowValue(String[] values, int index) {
+        return index < values.length ? values[index] : "<missing>";
+    }
+
+    /** @return the given value as it's stored in a row: trimmed, and Field.EMPTY_VALUE if empty */
+    static String normalizeValue(String value) {
+        value = value.trim();
+        return value.length() == 0 ? Field.EMPTY_VALUE : value;
+    }
+
+    /**
+     * Add a chunk of rows, whose values for each Field have already been tallied.  The
+     * tallies are merged into the Field statistics, which must be done in row order.
+     *
+     * @param tallies -- the tallies of each value index in the rows, in Field order,
+     * or null if the rows haven't been tallied, in which case the values are tracked
+     * as they're added
+     */
+    protected void addRows(List<String[]> rows, Field.Tally[] tallies) {
+        if (tallies == null) {
+            for (String[] values : rows)
+                addRow(values, true);
+            return;
+        }
+        for (String[] values : rows)
+            addRow(values, false);
+        int i = 0;
+        for (Field field : getFields()) {
+            if (i >= tallies.length)
+                break;
+            field.mergeTally(tallies[i], rows, i);
+            i++;
+        }
+    }
+
     protected HashMap<String,Integer> existingRows = null;
     List<MatrixRelationship> matrixRelations = new ArrayList<MatrixRelationship>();
     public boolean isMatrixDataSet = false;
@@ -1306,16 +1506,16 @@ public class Schema implements tufts.vue.XMLUnmarshalListener {
         if (existingRows.get(values[matrixColNums.get(rowName)]) == null)
         {
         	addRow(fromRow);
-        	existingRows.put(values[matrixColNums.get(rowName)], new Integer(fromRow.mmap.size()));
+        	existingRows.put(values[matrixColNums.get(rowName)], new Integer(fromRow.size()));
         } else 
         {
         	//it's currently in as a ToRow replace it
         	int valCount = existingRows.get(values[matrixColNums.get(rowName)]);
-        	if (valCount < fromRow.mmap.size())
+        	if (valCount < fromRow.size())
         	{
         		//remove the existing row, add new one.
         		existingRows.remove(values[matrixColNums.get(rowName)]);
-        		existingRows.put(values[matrixColNums.get(rowName)], new Integer(fromRow.mmap.size()));
+        		existingRows.put(values[matrixColNums.get(rowName)], new Integer(fromRow.size()));
         		
         		for (DataRow r: getRows())
         		{
@@ -1343,7 +1543,7 @@ public class Schema implements tufts.vue.XMLUnmarshalListener {
         	if (existingRows.get(values[matrixColNums.get(colName)]) == null)
         	{
         		addRow(toRow);
-        		existingRows.put(values[matrixColNums.get(colName)], new Integer(toRow.mmap.size()));
+        		existingRows.put(values[matrixColNums.get(colName)], new Integer(toRow.size()));
         	}
         
         	
@@ -1521,7 +1721,7 @@ public class Schema implements tufts.vue.XMLUnmarshalListener {
         
         if (hasField(field)) {
             
-            Relation.searchDataWithField(field, fieldValue, getRows(), results);
+            Relation.searchDataWithField(field, fieldValue, this, results);
             
         } else {
 
@@ -1552,12 +1752,11 @@ public class Schema implements tufts.vue.XMLUnmarshalListener {
 //             if (Association.hasAliases(this, field)) {
 //             }
             
-            if (Association.hasJoins(this, field)) {
-                for (DataRow row : getRows()) {
-                    if (Relation.getCrossSchemaRelation(field, row.getData(), fieldValue) != null)
-                        results.add(row);
-                }
-            }
+            // [the above is now handled by Relation.searchJoinedRows, which hash-joins
+            // the two schemas once instead of running getCrossSchemaRelation for every row]
+            
+            if (Association.hasJoins(this, field))
+                Relation.searchJoinedRows(this, field, fieldValue, results);
             
         }
         
@@ -1576,7 +1775,7 @@ public class Schema implements tufts.vue.XMLUnmarshalListener {
         // we use a HashSet to prevent duplicates, which could happen through
         // duplicate associations, or associations that are duped by an auto-join
 
-        Relation.searchDataWithRow(searchKeys, getRows(), this, matching);
+        Relation.searchDataWithRow(searchKeys, this, matching);
 
         return matching;
     }
@@ -1635,17 +1834,39 @@ public class Schema implements tufts.vue.XMLUnmarshalListener {
 
 }
 
-/** a row impl that handles flat tables as well as Xml style variable "rows" or item groups */
+/**
+ * A row impl that handles flat tables as well as Xml style variable "rows" or item groups.
+ * Rows of flat tables are views on a RowStore until they need their own MetaMap: e.g.,
+ * when given more than one value for a field.  Xml style rows always have one.
+ */
 //class DataRow extends tufts.vue.MetaMap {
 final class DataRow implements Relation.Scannable{
 
-    final tufts.vue.MetaMap mmap = new tufts.vue.MetaMap();
+    /** our data: for a row in a RowStore, this is null until needed, and starts as a view on the store */
+    private volatile tufts.vue.MetaMap mmap;
+    private final RowStore mStore;
+    private final int mIndex;
 
     boolean isContextChanged;
     int mContextCount;
 
+    /** an Xml style row, with it's own MetaMap */
     DataRow(Schema s) {
+        mmap = new tufts.vue.MetaMap();
         mmap.setSchema(s);
+        mStore = null;
+        mIndex = -1;
+    }
+
+    /** a new row in the given store */
+    DataRow(RowStore store) {
+        mStore = store;
+        mIndex = store.addRow();
+    }
+
+    /** @return true if our values are read from the store, and we've no MetaMap of our own */
+    private boolean isStored() {
+        return mmap == null;
     }
 
     void setContextChanged(boolean t) {
@@ -1668,53 +1889,70 @@ final class DataRow implements Relation.Scannable{
     
     /** add, but DO NOT track the value -- return the actual value added (which may have been trimmed or be Field.EMPTY_VALUE) */
     String takeValue(Field f, String value) {
-        value = value.trim();
+        value = Schema.normalizeValue(value);
         
 //         final String existing = values.put(f, value);
 //         if (existing != null && Schema.DEBUG)
 //             Log.debug("ROW SUB-KEY COLLISION " + f);
         //super.put(f.getName(), value);
         
-        if (value.length() == 0)
-            value = Field.EMPTY_VALUE;
-        mmap.put(f.getName(), value);
+        if (isStored()) {
+            final String stored = mStore.setValue(mIndex, f, value);
+            if (stored != null)
+                return stored;
+            // a repeat value for the field: the store only holds one, so we need our own MetaMap
+        }
+        getData().put(f.getName(), value);
         return value;
     }
 
+    /** @return the number of values in this row */
+    int size() {
+        return isStored() ? mStore.getValueCount(mIndex) : mmap.size();
+    }
+
     Iterable<Map.Entry> dataEntries() {
-        return mmap.entries();
+        return getData().entries();
     }
 
     public String getValue(String key) {
-        return mmap.getString(key);
+        return isStored() ? mStore.getValue(mIndex, key) : mmap.getString(key);
     }
     
     /** interface Scannable */
     public Collection<String> getValues(String key) {
-        return mmap.getValues(key);
+        if (isStored()) {
+            final String value = mStore.getValue(mIndex, key);
+            return value == null ? Collections.EMPTY_LIST : Collections.singletonList(value);
+        } else
+            return mmap.getValues(key);
     }
     
     public Collection<String> getValues(Field f) {
-        return mmap.getValues(f.getName());
+        return getValues(f.getName());
     }
     
     /** interface Scannable */
     public Schema getSchema() {
-        return mmap.getSchema();
+        return isStored() ? mStore.getSchema() : mmap.getSchema();
     }
 
     /** interface Scannable */
     public String getString(String key) {
-        return mmap.getString(key);
+        return getValue(key);
     }
 
     /** interface Scannable */
     public boolean hasEntry(String key, CharSequence value) {
-        return mmap.hasEntry(key, value);
+        if (isStored()) {
+            final String v = mStore.getValue(mIndex, key);
+            return v != null && v.equals(value);
+        } else
+            return mmap.hasEntry(key, value);
     }
     
     String getValue(Field f) {
-        return mmap.getString(f.getName());
+        return isStored() ? mStore.getValue(mIndex, f) : mmap.getString(f.getName());
         //return super.getString(f.getName());
     }
     
@@ -1723,10 +1961,16 @@ final class DataRow implements Relation.Scannable{
     }
 
     @Override public String toString() {
-        return mmap.values().toString();
+        return isStored() ? mStore.getValues(mIndex).toString() : mmap.values().toString();
     }
 
-    tufts.vue.MetaMap getData() {
+    /** @return our data as a MetaMap: for a stored row, this is created on the first request, as a view on the store */
+    synchronized tufts.vue.MetaMap getData() {
+        if (mmap == null) {
+            final tufts.vue.MetaMap data = new tufts.vue.MetaMap(mStore.getSource(mIndex));
+            data.setSchema(mStore.getSchema());
+            mmap = data;
+        }
         return mmap;
     }
     
@@ -555,8 +555,12 @@ public class XmlDataSource extends BrowseDataSource
     private String[] readLine(CSVReader r) throws java.io.IOException {
         return trim(r.readNext());
     }
+    /** values from a ChunkedCSVReader are already trimmed */
+    private String[] readLine(ChunkedCSVReader r) throws java.io.IOException {
+        return r.readNext();
+    }
 
-    private static String[] trim(String[] values) {
+    static String[] trim(String[] values) {
 
         if (values == null)
             return null;
@@ -571,8 +575,18 @@ public class XmlDataSource extends BrowseDataSource
         return values;
     }
     
+    /**
+     * If true, CSV files are ingested via a ChunkedCSVReader, which parses chunks of the file
+     * in parallel.  Off by default: so far, it has only been measured slower than the opencsv
+     * loop (see ChunkedCSVReader.main).  Set with -Dvue.csv.chunked=true
+     */
+    static boolean ChunkedIngest = VUE.isSystemPropertyTrue("vue.csv.chunked");
+    
     public Schema ingestCSV(Schema schema, String file, boolean hasColumnTitles) throws java.io.IOException
     {
+        if (ChunkedIngest)
+            return ingestCSVChunked(schema, file, hasColumnTitles);
+        
         //final Schema schema = new Schema(file);
         //final CSVReader reader = new CSVReader(new FileReader(file));
         // TODO: need an encoding Win/Mac encoding toggle
@@ -621,6 +635,55 @@ public class XmlDataSource extends BrowseDataSource
         return schema;
     }
     
+    /** ingestCSV, reading through a ChunkedCSVReader, which parses exactly as opencsv does, but in parallel chunks */
+    private Schema ingestCSVChunked(Schema schema, String file, boolean hasColumnTitles) throws java.io.IOException
+    {
+        final ChunkedCSVReader dataStream = new ChunkedCSVReader(new File(file), this.getEncodingField());
+
+        final long start = System.currentTimeMillis();
+        String[] values = readLine(dataStream);
+
+        if (schema == null) {
+            schema = Schema.getNewAuthorityInstance(Resource.instance(file), getGUID(), getDisplayName());
+        } else {
+            if (DEBUG.SCHEMA) Log.debug("reloading schema " + schema);
+            schema.setResource(Resource.instance(file));
+        }
+        schema.flushData();
+        
+        if (values == null)
+            throw new IOException(file + ": empty file?");
+
+        if (hasColumnTitles) {
+            schema.ensureFields(values);
+        } else {
+            schema.ensureFields(values.length);
+            schema.addRow(values);
+        }
+
+        // The rest of the rows arrive in chunks, parsed in parallel, each with a tally
+        // of the values for each field, which are merged into the field stats in order.
+        
+        final int fieldCount = schema.getFieldCount();
+        ChunkedCSVReader.Chunk chunk;
+        try {
+            while ((chunk = dataStream.readChunk(fieldCount)) != null)
+                schema.addRows(chunk.records, chunk.tallies);
+        } finally {
+            dataStream.close();
+        }
+
+        if (schema.getRowCount() == 0)
+            throw new IOException(file + ": has column names, but no data");
+
+        if (DEBUG.Enabled) Log.debug(String.format("ingested %d rows in %dms from %s",
+                                                   schema.getRowCount(), System.currentTimeMillis() - start, file));
+
+        schema.notifyAllRowsAdded();
+
+        return schema;
+    }
+    
     protected String[] headerValues = null;
    
     private static String readFileAsString(String filePath)
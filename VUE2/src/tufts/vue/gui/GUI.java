@@ -3064,7 +3064,7 @@ public class GUI
                     // todo: Resource.getReference?  Returns URL if there is one, local package content otherwise
                     java.io.File file = ((Resource)o).getActiveDataFile();
                     if (file != null)
-                        result = file.toString();
+                        result = tufts.vue.PackageEntryFile.extract(file).toString();
                     else
                         result = ((Resource)o).getSpec();
                 } else {
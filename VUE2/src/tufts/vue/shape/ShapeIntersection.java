@@ -0,0 +1,206 @@
+/*
+* Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.vue.shape;
+
+import java.awt.Shape;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.geom.RoundRectangle2D;
+
+/**
+ * Closed-form intersection of a line segment with the outline of the standard
+ * node shapes: rectangles, ellipses, round-rectangles and the RectangularPoly2D
+ * polygons.  This avoids flattening the path of the shape, and allocates nothing.
+ *
+ * All coordinates are in the untransformed coordinate space of the shape.
+ * Results are returned as the parameter t along the segment, 0 at the start and
+ * 1 at the end, which is preserved by any affine transform of the segment and the
+ * shape together.
+ *
+ * @see tufts.vue.VueUtil#computeIntersection
+ */
+public final class ShapeIntersection
+{
+    private ShapeIntersection() {}
+
+    /** @return true if intersections with the given shape can be computed here */
+    public static boolean isAnalytic(Shape s) {
+        return s instanceof Rectangle2D
+            || s instanceof Ellipse2D
+            || s instanceof RoundRectangle2D
+            || s instanceof RectangularPoly2D;
+    }
+
+    /**
+     * Compute where the segment x1,y1 -> x2,y2 first crosses the outline of the
+     * given shape, which must be one for which isAnalytic returns true.
+     *
+     * @return the parameter t in [0,1] along the segment of the crossing nearest to
+     * x1,y1, or Double.NaN if the segment doesn't cross the outline
+     */
+    public static double intersect(Shape s, double x1, double y1, double x2, double y2)
+    {
+        final double dx = x2 - x1;
+        final double dy = y2 - y1;
+
+        if (s instanceof Rectangle2D) {
+            final Rectangle2D r = (Rectangle2D) s;
+            return rectangle(x1, y1, dx, dy, r.getX(), r.getY(), r.getWidth(), r.getHeight());
+        } else if (s instanceof Ellipse2D) {
+            final Ellipse2D e = (Ellipse2D) s;
+            final double rx = e.getWidth() / 2;
+            final double ry = e.getHeight() / 2;
+            return ellipse(x1, y1, dx, dy, e.getX() + rx, e.getY() + ry, rx, ry, 0, 0);
+        } else if (s instanceof RoundRectangle2D) {
+            return roundRectangle(x1, y1, dx, dy, (RoundRectangle2D) s);
+        } else if (s instanceof RectangularPoly2D) {
+            return polygon(x1, y1, dx, dy, (RectangularPoly2D) s);
+        } else
+            throw new IllegalArgumentException("not an analytic shape: " + s);
+    }
+
+    private static double rectangle(double px, double py, double dx, double dy,
+                                    double x, double y, double w, double h)
+    {
+        final double right = x + w;
+        final double bottom = y + h;
+        double t = segment(px, py, dx, dy, x, y, right, y);
+        t = nearest(t, segment(px, py, dx, dy, right, y, right, bottom));
+        t = nearest(t, segment(px, py, dx, dy, right, bottom, x, bottom));
+        t = nearest(t, segment(px, py, dx, dy, x, bottom, x, y));
+        return t;
+    }
+
+    private static double roundRectangle(double px, double py, double dx, double dy, RoundRectangle2D r)
+    {
+        final double x = r.getX();
+        final double y = r.getY();
+        final double w = r.getWidth();
+        final double h = r.getHeight();
+        // as per RoundRectangle2D's path iterator: arcs are limited to the size of the frame
+        final double rw = Math.min(w, Math.abs(r.getArcWidth())) / 2;
+        final double rh = Math.min(h, Math.abs(r.getArcHeight())) / 2;
+
+        if (rw <= 0 || rh <= 0)
+            return rectangle(px, py, dx, dy, x, y, w, h);
+
+        final double right = x + w;
+        final double bottom = y + h;
+
+        // the straight edges
+        double t = segment(px, py, dx, dy, x + rw, y, right - rw, y);
+        t = nearest(t, segment(px, py, dx, dy, right, y + rh, right, bottom - rh));
+        t = nearest(t, segment(px, py, dx, dy, right - rw, bottom, x + rw, bottom));
+        t = nearest(t, segment(px, py, dx, dy, x, bottom - rh, x, y + rh));
+
+        // the corner arcs: each is the outer quadrant of an ellipse
+        t = nearest(t, ellipse(px, py, dx, dy, x + rw,     y + rh,      rw, rh, -1, -1));
+        t = nearest(t, ellipse(px, py, dx, dy, right - rw, y + rh,      rw, rh,  1, -1));
+        t = nearest(t, ellipse(px, py, dx, dy, right - rw, bottom - rh, rw, rh,  1,  1));
+        t = nearest(t, ellipse(px, py, dx, dy, x + rw,     bottom - rh, rw, rh, -1,  1));
+
+        return t;
+    }
+
+    private static double polygon(double px, double py, double dx, double dy, RectangularPoly2D poly)
+    {
+        final double[] xs = poly.xpoints;
+        final double[] ys = poly.ypoints;
+        final int sides = poly.sides;
+
+        double t = Double.NaN;
+        for (int i = 0, j = sides - 1; i < sides; j = i++)
+            t = nearest(t, segment(px, py, dx, dy, xs[j], ys[j], xs[i], ys[i]));
+        return t;
+    }
+
+    /**
+     * Intersect the segment with an ellipse.  If quadX and quadY are non-zero, only
+     * crossings on the quadrant of the ellipse in that direction from its center count.
+     */
+    private static double ellipse(double px, double py, double dx, double dy,
+                                  double cx, double cy, double rx, double ry,
+                                  int quadX, int quadY)
+    {
+        if (rx <= 0 || ry <= 0)
+            return Double.NaN;
+
+        // scale the ellipse to the unit circle, and solve |p + t*d| = 1
+        final double ux = (px - cx) / rx;
+        final double uy = (py - cy) / ry;
+        final double vx = dx / rx;
+        final double vy = dy / ry;
+
+        final double a = vx * vx + vy * vy;
+        final double b = 2 * (ux * vx + uy * vy);
+        final double c = ux * ux + uy * uy - 1;
+        final double disc = b * b - 4 * a * c;
+
+        if (a == 0 || disc < 0)
+            return Double.NaN;
+
+        final double root = Math.sqrt(disc);
+        final double t1 = (-b - root) / (2 * a);
+        final double t2 = (-b + root) / (2 * a);
+
+        if (onQuadrant(t1, ux, uy, vx, vy, quadX, quadY))
+            return t1;
+        else if (onQuadrant(t2, ux, uy, vx, vy, quadX, quadY))
+            return t2;
+        else
+            return Double.NaN;
+    }
+
+    private static boolean onQuadrant(double t, double ux, double uy, double vx, double vy, int quadX, int quadY) {
+        if (t < 0 || t > 1)
+            return false;
+        return (ux + t * vx) * quadX >= 0
+            && (uy + t * vy) * quadY >= 0;
+    }
+
+    /**
+     * Intersect the segment p + t*d with the segment a -> b
+     * @return t in [0,1], or NaN if they don't intersect (or are parallel)
+     */
+    private static double segment(double px, double py, double dx, double dy,
+                                  double ax, double ay, double bx, double by)
+    {
+        final double ex = bx - ax;
+        final double ey = by - ay;
+        final double denom = dx * ey - dy * ex;
+
+        if (denom == 0)
+            return Double.NaN;
+
+        final double wx = ax - px;
+        final double wy = ay - py;
+        final double t = (wx * ey - wy * ex) / denom;
+        final double u = (wx * dy - wy * dx) / denom;
+
+        if (t < 0 || t > 1 || u < 0 || u > 1)
+            return Double.NaN;
+        else
+            return t;
+    }
+
+    private static double nearest(double t1, double t2) {
+        if (t1 != t1) // NaN
+            return t2;
+        if (t2 != t2)
+            return t1;
+        return t1 < t2 ? t1 : t2;
+    }
+}